@@ -2,6 +2,7 @@ package design;
 
 import static javax.swing.JOptionPane.INFORMATION_MESSAGE;
 
+import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.event.ActionEvent;
@@ -19,6 +20,7 @@ import java.util.stream.Collectors;
 import javax.imageio.ImageIO;
 import javax.swing.AbstractAction;
 import javax.swing.Icon;
+import javax.swing.JButton;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
@@ -1096,6 +1098,65 @@ public class EditorActions {
         }
     }
 
+    public static class SensitivityHeatmap extends BaseAction {
+
+        public SensitivityHeatmap(Main main) {
+            super("Two-parameter sensitivity analysis...", getIcon("color_swatch"), main);
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            if (main.views.getTabCount() == 0) {
+                JOptionPane.showMessageDialog(
+                        Main.mainFrame,
+                        "A model must be opened to analyze. Click File ➡ New model to start building one.",
+                        "No model available",
+                        JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+
+            if (main.getCurrentGraph().countActors() < 1) {
+                JOptionPane.showMessageDialog(
+                        Main.mainFrame,
+                        "Sensitivity analysis requires at least one actor. Please add more actors to the model",
+                        "Not enough actors.",
+                        JOptionPane.ERROR_MESSAGE);
+
+                return;
+            }
+
+            boolean cont = Utils.doModelCheck(main.getCurrentGraph(), main);
+
+            if (!cont) {
+                return;
+            }
+
+            RDFExport rdfExporter = new RDFExport(main.getCurrentGraph(), false, VTMode.DERIVE_ORPHANED, false);
+
+            if (!rdfExporter.getModel().isPresent()) {
+                Optional<String> error = rdfExporter.getError();
+
+                String errorString = "An error occurred while converting to an internal format. Please make sure the model contains no errors.";
+                if (error.isPresent()) {
+                    errorString += " The error: \n" + error.get();
+                }
+
+                JOptionPane.showMessageDialog(
+                        Main.mainFrame,
+                        errorString,
+                        "Invalid model",
+                        JOptionPane.ERROR_MESSAGE
+                );
+
+                return;
+            }
+
+            Model model = rdfExporter.getModel().get();
+
+            SensitivityAnalysis.showSensitivitySurface(Main.mainFrame, new E3Model(model), !main.getCurrentGraph().isFraud);
+        }
+    }
+
     public static class OpenSite extends BaseAction {
 
         private String url;
@@ -1378,7 +1439,10 @@ public class EditorActions {
                 table.setAutoCreateRowSorter(true);
 
                 JFrame tableFrame = new JFrame("" + main.getCurrentGraphTitle() + " - profitability");
+                JButton breakEvenButton = new JButton("Break-even values...");
+                breakEvenButton.addActionListener(e -> SensitivityAnalysis.addBreakEvenColumn(tableFrame, e3model, table, false));
                 tableFrame.add(new JScrollPane(table));
+                tableFrame.add(breakEvenButton, BorderLayout.SOUTH);
                 tableFrame.pack();
                 tableFrame.setLocationByPlatform(true);
                 tableFrame.setVisible(true);
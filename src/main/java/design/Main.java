@@ -298,6 +298,7 @@ public class Main {
         JMenu toolMenu = new JMenu("Tools");
         toolMenu.add(new EditorActions.ProfitabilityTable(this));
         toolMenu.add(new EditorActions.SensitivityChart(this));        
+        toolMenu.add(new EditorActions.SensitivityHeatmap(this));
         toolMenu.addSeparator();
         toolMenu.add(new EditorActions.NCF(this));
         toolMenu.addSeparator();
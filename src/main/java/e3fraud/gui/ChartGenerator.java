@@ -22,13 +22,26 @@ import java.awt.BasicStroke;
 import java.awt.Color;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.text.DecimalFormat;
+import java.util.List;
 import java.util.Set;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartUtilities;
 import org.jfree.chart.JFreeChart;
+import org.jfree.chart.annotations.XYPointerAnnotation;
+import org.jfree.chart.axis.NumberAxis;
+import org.jfree.chart.plot.XYPlot;
+import org.jfree.chart.renderer.LookupPaintScale;
+import org.jfree.chart.renderer.PaintScale;
+import org.jfree.chart.renderer.xy.XYBlockRenderer;
+import org.jfree.chart.title.PaintScaleLegend;
+import org.jfree.data.xy.DefaultXYZDataset;
+import org.jfree.ui.RectangleEdge;
+import e3fraud.model.SensitivitySurface;
 import org.jfree.chart.plot.PlotOrientation;
 import org.jfree.data.xy.XYSeriesCollection;
 import java.util.Map;
@@ -74,6 +87,145 @@ public class ChartGenerator {
         return lineChartObject;
     }
 
+    /**
+     * Marks the break-even values of the actors on a chart made by
+     * generateChart, each in the color of its actor.
+     *
+     * @param chart the chart to mark them on
+     * @param breakEvenPoints per actor, the values of the parameter at which
+     * its result is 0 (see E3Model.getBreakEvenPoints)
+     */
+    public static void addBreakEvenPoints(JFreeChart chart, Map<Resource, List<Double>> breakEvenPoints) {
+        DecimalFormat format = new DecimalFormat("#.####");
+        for (Map.Entry<Resource, List<Double>> actor : breakEvenPoints.entrySet()) {
+            String actorName = actor.getKey().getProperty(E3value.e3_has_name).getLiteral().toString();
+            for (double value : actor.getValue()) {
+                XYPointerAnnotation annotation = new XYPointerAnnotation(actorName + " breaks even at " + format.format(value), value, 0, -Math.PI / 4);
+                annotation.setPaint(stringToColor(actorName));
+                annotation.setArrowPaint(stringToColor(actorName));
+                chart.getXYPlot().addAnnotation(annotation);
+            }
+        }
+    }
+
+    /**
+     * Generates a heatmap of the results of one actor over a sensitivity
+     * surface: losses in red, gains in green.
+     *
+     * @param surface the results of all actors
+     * @param actor the actor to show
+     * @param xLabel the name of the parameter on the X-axis
+     * @param yLabel the name of the parameter on the Y-axis
+     */
+    public static JFreeChart generateHeatmap(SensitivitySurface surface, Resource actor, String xLabel, String yLabel) {
+        int xCount = surface.getXValues().size();
+        int yCount = surface.getYValues().size();
+        double[][] data = new double[3][xCount * yCount];
+        for (int y = 0; y < yCount; y++) {
+            for (int x = 0; x < xCount; x++) {
+                data[0][y * xCount + x] = surface.getXValues().get(x);
+                data[1][y * xCount + x] = surface.getYValues().get(y);
+                data[2][y * xCount + x] = surface.getResult(actor, x, y);
+            }
+        }
+        String actorName = actor.getProperty(E3value.e3_has_name).getLiteral().toString();
+        DefaultXYZDataset dataset = new DefaultXYZDataset();
+        dataset.addSeries(actorName, data);
+
+        //every block covers one point of the grid
+        XYBlockRenderer renderer = new XYBlockRenderer();
+        renderer.setBlockWidth(blockSize(surface.getXValues()));
+        renderer.setBlockHeight(blockSize(surface.getYValues()));
+        double[] range = surface.getRange(actor);
+        PaintScale scale = revenueScale(range[0], range[1]);
+        renderer.setPaintScale(scale);
+
+        NumberAxis xAxis = new NumberAxis(xLabel);
+        NumberAxis yAxis = new NumberAxis(yLabel);
+        xAxis.setAutoRangeIncludesZero(false);
+        yAxis.setAutoRangeIncludesZero(false);
+        JFreeChart heatmapObject = new JFreeChart(actorName, new XYPlot(dataset, xAxis, yAxis, renderer));
+        heatmapObject.removeLegend();
+        PaintScaleLegend legend = new PaintScaleLegend(scale, new NumberAxis("Revenue"));
+        legend.setPosition(RectangleEdge.RIGHT);
+        legend.setMargin(4, 4, 40, 4);
+        heatmapObject.addSubtitle(legend);
+        return heatmapObject;
+    }
+
+    /**
+     * Saves a sensitivity surface as CSV: a row per point of the grid, with
+     * the values of both parameters followed by the result of every actor.
+     *
+     * @param xLabel the name of the parameter on the X-axis
+     * @param yLabel the name of the parameter on the Y-axis
+     */
+    public static void saveToCSV(File file, SensitivitySurface surface, String xLabel, String yLabel) throws IOException {
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            out.print(csvField(xLabel) + "," + csvField(yLabel));
+            for (Resource actor : surface.getActors()) {
+                out.print("," + csvField(actor.getProperty(E3value.e3_has_name).getString()));
+            }
+            out.print("\r\n");
+            for (int y = 0; y < surface.getYValues().size(); y++) {
+                for (int x = 0; x < surface.getXValues().size(); x++) {
+                    out.print(surface.getXValues().get(x) + "," + surface.getYValues().get(y));
+                    for (Resource actor : surface.getActors()) {
+                        out.print("," + surface.getResult(actor, x, y));
+                    }
+                    out.print("\r\n");
+                }
+            }
+            if (out.checkError()) {
+                throw new IOException("Could not write to " + file);
+            }
+        }
+    }
+
+    private static String csvField(String text) {
+        if (text.contains(",") || text.contains("\"") || text.contains("\n")) {
+            return "\"" + text.replace("\"", "\"\"") + "\"";
+        }
+        return text;
+    }
+
+    /**
+     * @return the distance between consecutive values (which are equally
+     * spaced), or 1 if there is only one
+     */
+    private static double blockSize(List<Double> values) {
+        if (values.size() < 2) {
+            return 1;
+        }
+        return (values.get(values.size() - 1) - values.get(0)) / (values.size() - 1);
+    }
+
+    /**
+     * @return a scale from red (the largest loss) through white (0) to green
+     * (the largest gain)
+     */
+    private static PaintScale revenueScale(double min, double max) {
+        if (!(max > min)) {
+            //LookupPaintScale needs a range
+            min -= 1;
+            max += 1;
+        }
+        double extreme = Math.max(Math.abs(min), Math.abs(max));
+        LookupPaintScale scale = new LookupPaintScale(min, max, Color.GRAY);
+        int steps = 64;
+        for (int i = 0; i <= steps; i++) {
+            double value = min + (max - min) * i / steps;
+            //fade towards white as the value gets closer to 0
+            int fade = (int) (255 * (1 - Math.min(1, Math.abs(value) / extreme)));
+            if (value < 0) {
+                scale.add(value, new Color(200 + 55 * fade / 255, fade, fade));
+            } else {
+                scale.add(value, new Color(fade, 150 + 105 * fade / 255, fade));
+            }
+        }
+        return scale;
+    }
+
     public static void saveToFile(File file, JFreeChart lineChartObject) throws IOException {
         int width = 1024;
         /* Width of the image */
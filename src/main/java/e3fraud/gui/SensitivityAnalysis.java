@@ -1,97 +1,391 @@
-/*
- * Copyright (C) 2016 Dan
- *
- * This program is free software: you can redistribute it and/or modify
- * it under the terms of the GNU General Public License as published by
- * the Free Software Foundation, either version 3 of the License, or
- * (at your option) any later version.
- *
- * This program is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- *
- * You should have received a copy of the GNU General Public License
- * along with this program.  If not, see <http://www.gnu.org/licenses/>.
- */
-package e3fraud.gui;
-
-import com.hp.hpl.jena.rdf.model.Resource;
-import e3fraud.model.E3Model;
-import e3fraud.tools.currentTime;
-import java.util.HashMap;
-import java.util.Map;
-import javax.swing.Box;
-import javax.swing.JFrame;
-import javax.swing.JLabel;
-import javax.swing.JOptionPane;
-import javax.swing.JPanel;
-import javax.swing.JTextField;
-import org.jfree.chart.JFreeChart;
-import org.jfree.data.xy.XYSeries;
-
-/**
- *
- * @author Dan
- */
-public class SensitivityAnalysis {
-
-    static boolean debug = false;
-    
-    private static int needStartValue = 0, needEndValue = 0;
-    private static Resource selectedNeedOrMarketSegment;
-    private static JFreeChart chart;
-    private static String selectedActorString;
-
-    public static JFreeChart getSensitivityChart(JFrame parent, E3Model model, boolean ideal) {
-        if(debug) System.out.println(currentTime.currentTime() + " Starting sensitivity analysis...");
-        Map<String, Resource> msMap = model.getMSMap();        
-        Map<String, Resource> needsMap = model.getNeedsMap();
-        
-        //populate list of possible parameters
-        Map<String, Resource> parameters = new HashMap<>();
-        for (String marketSegmentName : msMap.keySet()){
-            parameters.put(marketSegmentName + " COUNT",msMap.get(marketSegmentName));
-        }
-        for (String needName : needsMap.keySet()){
-            parameters.put("OCCURRENCES of " +needName, needsMap.get(needName));
-        }
-
-            //have the user select a need via pop-up
-            String selectedParameter = (String) JOptionPane.showInputDialog(parent,
-                    "Which parameter would you like to use on the X-axis?",
-                    "Choose parameter",
-                    JOptionPane.QUESTION_MESSAGE,
-                    null,
-                    parameters.keySet().toArray(),
-                    parameters.keySet().toArray()[0]);
-            if (selectedParameter == null) {
-                if(debug) System.out.println(currentTime.currentTime() + "Sensitivity analysis cancelled by user!");
-            } else {
-                //have the user select occurence interval via pop-up
-                JTextField xField = new JTextField("1", 4);
-                JTextField yField = new JTextField("500", 4);
-                JPanel myPanel = new JPanel();
-                myPanel.add(new JLabel("Start value :"));
-                myPanel.add(xField);
-                myPanel.add(Box.createHorizontalStrut(15)); // a spacer
-                myPanel.add(new JLabel("End value:"));
-                myPanel.add(yField);
-                int result = JOptionPane.showConfirmDialog(parent, myPanel,
-                        "Please enter X-axis range", JOptionPane.OK_CANCEL_OPTION);
-                
-                if (result == JOptionPane.CANCEL_OPTION) {
-                    if(debug) System.out.println(currentTime.currentTime() + "Sensitivity analysis cancelled by user!");
-                } else if (result == JOptionPane.OK_OPTION) {
-                    needStartValue = Integer.parseInt(xField.getText());
-                    needEndValue = Integer.parseInt(yField.getText());
-                    selectedNeedOrMarketSegment = parameters.get(selectedParameter);
-                    Map<Resource, XYSeries> seriesMap = model.getSeries(selectedNeedOrMarketSegment, needStartValue, needEndValue, ideal);
-                    seriesMap = model.appendAverages(seriesMap);
-                    chart = ChartGenerator.generateChart(seriesMap, selectedParameter);
-                    return chart;
-                }
-            }
-        return null;
-    }
-}
+/*
+ * Copyright (C) 2016 Dan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package e3fraud.gui;
+
+import com.hp.hpl.jena.rdf.model.Resource;
+import design.Main;
+import e3fraud.model.E3Model;
+import e3fraud.model.SensitivitySurface;
+import e3fraud.tools.currentTime;
+import e3fraud.vocabulary.E3value;
+import java.awt.BorderLayout;
+import java.awt.Cursor;
+import java.awt.Dimension;
+import java.awt.GridLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntConsumer;
+import javax.swing.Box;
+import javax.swing.JButton;
+import javax.swing.JComboBox;
+import javax.swing.JFileChooser;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JTable;
+import javax.swing.JTextField;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+import javax.swing.filechooser.FileNameExtensionFilter;
+import org.jfree.chart.ChartPanel;
+import org.jfree.chart.JFreeChart;
+import org.jfree.data.xy.XYSeries;
+
+/**
+ *
+ * @author Dan
+ */
+public class SensitivityAnalysis {
+
+    static boolean debug = false;
+    
+    private static int needStartValue = 0, needEndValue = 0;
+    private static Resource selectedNeedOrMarketSegment;
+    private static JFreeChart chart;
+    private static String selectedActorString;
+
+    public static JFreeChart getSensitivityChart(JFrame parent, E3Model model, boolean ideal) {
+        if(debug) System.out.println(currentTime.currentTime() + " Starting sensitivity analysis...");
+        Map<String, Resource> parameters = model.getParametersMap();
+
+            //have the user select a need via pop-up
+            String selectedParameter = (String) JOptionPane.showInputDialog(parent,
+                    "Which parameter would you like to use on the X-axis?",
+                    "Choose parameter",
+                    JOptionPane.QUESTION_MESSAGE,
+                    null,
+                    parameters.keySet().toArray(),
+                    parameters.keySet().toArray()[0]);
+            if (selectedParameter == null) {
+                if(debug) System.out.println(currentTime.currentTime() + "Sensitivity analysis cancelled by user!");
+            } else {
+                //have the user select occurence interval via pop-up
+                JTextField xField = new JTextField("1", 4);
+                JTextField yField = new JTextField("500", 4);
+                JPanel myPanel = new JPanel();
+                myPanel.add(new JLabel("Start value :"));
+                myPanel.add(xField);
+                myPanel.add(Box.createHorizontalStrut(15)); // a spacer
+                myPanel.add(new JLabel("End value:"));
+                myPanel.add(yField);
+                int result = JOptionPane.showConfirmDialog(parent, myPanel,
+                        "Please enter X-axis range", JOptionPane.OK_CANCEL_OPTION);
+                
+                if (result == JOptionPane.CANCEL_OPTION) {
+                    if(debug) System.out.println(currentTime.currentTime() + "Sensitivity analysis cancelled by user!");
+                } else if (result == JOptionPane.OK_OPTION) {
+                    needStartValue = Integer.parseInt(xField.getText());
+                    needEndValue = Integer.parseInt(yField.getText());
+                    selectedNeedOrMarketSegment = parameters.get(selectedParameter);
+                    Map<Resource, XYSeries> seriesMap = model.getSeries(selectedNeedOrMarketSegment, needStartValue, needEndValue, ideal);
+                    seriesMap = model.appendAverages(seriesMap);
+                    chart = ChartGenerator.generateChart(seriesMap, selectedParameter);
+                    if (needStartValue < needEndValue) {
+                        try {
+                            ChartGenerator.addBreakEvenPoints(chart, model.getBreakEvenPoints(selectedNeedOrMarketSegment, needStartValue, needEndValue, ideal));
+                        } catch (InterruptedException ex) {
+                            //show the chart without them
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return chart;
+                }
+            }
+        return null;
+    }
+
+    /**
+     * Lets the user choose a need or market segment and a range, finds the
+     * values in that range at which the results of the actors are 0 in the
+     * background, and then adds them as a column to a profitability table.
+     *
+     * @param table a table made by TableGenerator.generateTable(model)
+     */
+    public static void addBreakEvenColumn(final JFrame parent, final E3Model model, final JTable table, final boolean ideal) {
+        final Map<String, Resource> parameters = model.getParametersMap();
+        if (parameters.isEmpty()) {
+            PopUps.infoBox("The model has no needs or market segments.", "Error");
+            return;
+        }
+
+        //have the user select a parameter and its range via pop-up
+        JComboBox<String> parameterBox = new JComboBox<>(parameters.keySet().toArray(new String[0]));
+        JTextField startField = new JTextField("0", 4);
+        JTextField endField = new JTextField("500", 4);
+        JPanel myPanel = new JPanel();
+        myPanel.add(parameterBox);
+        myPanel.add(new JLabel("Start value :"));
+        myPanel.add(startField);
+        myPanel.add(Box.createHorizontalStrut(15)); // a spacer
+        myPanel.add(new JLabel("End value:"));
+        myPanel.add(endField);
+        if (JOptionPane.showConfirmDialog(parent, myPanel, "Find break-even values of", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) {
+            return;
+        }
+
+        final String parameter = (String) parameterBox.getSelectedItem();
+        final double startValue, endValue;
+        try {
+            startValue = Double.parseDouble(startField.getText().trim());
+            endValue = Double.parseDouble(endField.getText().trim());
+        } catch (NumberFormatException ex) {
+            PopUps.infoBox("Start and end values must be numbers!", "Error");
+            return;
+        }
+        if (!(startValue < endValue)) {
+            PopUps.infoBox("Start value must be lower than end value!", "Error");
+            return;
+        }
+
+        parent.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        new SwingWorker<Map<Resource, List<Double>>, Void>() {
+            @Override
+            protected Map<Resource, List<Double>> doInBackground() throws Exception {
+                return model.getBreakEvenPoints(parameters.get(parameter), startValue, endValue, ideal);
+            }
+
+            @Override
+            protected void done() {
+                parent.setCursor(Cursor.getDefaultCursor());
+                try {
+                    TableGenerator.addBreakEvenColumn(table, model, parameter, get());
+                } catch (InterruptedException | ExecutionException ex) {
+                    ex.printStackTrace();
+                    PopUps.infoBox("<html>Encountered an error (" + ex.toString() + "). <br> Please send a description of the steps taken to produce this error: danionita@gmail.com.</html>", "Error");
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Lets the user choose two parameters and their ranges, computes the
+     * results of all actors over the grid in the background (showing progress,
+     * and stopping when the user cancels) and shows them as heatmaps, one
+     * actor at a time, which can be exported as CSV.
+     */
+    public static void showSensitivitySurface(final JFrame parent, final E3Model model, final boolean ideal) {
+        final Map<String, Resource> parameters = model.getParametersMap();
+        if (parameters.size() < 2) {
+            PopUps.infoBox("A sensitivity surface requires at least two needs or market segments.", "Error");
+            return;
+        }
+        String[] names = parameters.keySet().toArray(new String[0]);
+
+        //have the user select both parameters, their ranges and the size of the grid via pop-up
+        JComboBox<String> xBox = new JComboBox<>(names);
+        JComboBox<String> yBox = new JComboBox<>(names);
+        yBox.setSelectedIndex(1);
+        JTextField xStartField = new JTextField("1", 4);
+        JTextField xEndField = new JTextField("500", 4);
+        JTextField yStartField = new JTextField("1", 4);
+        JTextField yEndField = new JTextField("500", 4);
+        JTextField stepsField = new JTextField("100", 4);
+        JPanel myPanel = new JPanel(new GridLayout(0, 3, 5, 5));
+        myPanel.add(new JLabel("X-axis:"));
+        myPanel.add(xBox);
+        myPanel.add(new JLabel());
+        myPanel.add(new JLabel("Start value:"));
+        myPanel.add(xStartField);
+        myPanel.add(new JLabel());
+        myPanel.add(new JLabel("End value:"));
+        myPanel.add(xEndField);
+        myPanel.add(new JLabel());
+        myPanel.add(new JLabel("Y-axis:"));
+        myPanel.add(yBox);
+        myPanel.add(new JLabel());
+        myPanel.add(new JLabel("Start value:"));
+        myPanel.add(yStartField);
+        myPanel.add(new JLabel());
+        myPanel.add(new JLabel("End value:"));
+        myPanel.add(yEndField);
+        myPanel.add(new JLabel());
+        myPanel.add(new JLabel("Values per axis:"));
+        myPanel.add(stepsField);
+        myPanel.add(new JLabel());
+        int result = JOptionPane.showConfirmDialog(parent, myPanel,
+                "Please choose the parameters", JOptionPane.OK_CANCEL_OPTION);
+        if (result != JOptionPane.OK_OPTION) {
+            if (debug) System.out.println(currentTime.currentTime() + "Sensitivity analysis cancelled by user!");
+            return;
+        }
+
+        final String xLabel = (String) xBox.getSelectedItem();
+        final String yLabel = (String) yBox.getSelectedItem();
+        final List<Double> xValues, yValues;
+        try {
+            int steps = Integer.parseInt(stepsField.getText().trim());
+            xValues = getValues(Double.parseDouble(xStartField.getText().trim()), Double.parseDouble(xEndField.getText().trim()), steps);
+            yValues = getValues(Double.parseDouble(yStartField.getText().trim()), Double.parseDouble(yEndField.getText().trim()), steps);
+        } catch (NumberFormatException ex) {
+            PopUps.infoBox("Start and end values and the number of values must be numbers!", "Error");
+            return;
+        }
+        if (xLabel.equals(yLabel)) {
+            PopUps.infoBox("Please choose two different parameters!", "Error");
+            return;
+        } else if (xValues == null || yValues == null) {
+            PopUps.infoBox("Start value must be lower than end value, and there must be at least 2 values per axis!", "Error");
+            return;
+        }
+
+        final ProgressMonitor progressMonitor = new ProgressMonitor(parent, "Computing sensitivity surface...", null, 0, 100);
+        progressMonitor.setMillisToDecideToPopup(0);
+        progressMonitor.setMillisToPopup(0);
+        final SwingWorker<SensitivitySurface, Void> worker = new SwingWorker<SensitivitySurface, Void>() {
+            @Override
+            protected SensitivitySurface doInBackground() throws Exception {
+                return model.getSurface(parameters.get(xLabel), xValues, parameters.get(yLabel), yValues, ideal, new IntConsumer() {
+                    @Override
+                    public void accept(int progress) {
+                        setProgress(progress);
+                    }
+                });
+            }
+
+            @Override
+            protected void done() {
+                progressMonitor.close();
+                if (isCancelled()) {
+                    if (debug) System.out.println(currentTime.currentTime() + "Sensitivity analysis cancelled by user!");
+                    return;
+                }
+                try {
+                    showSurface(get(), xLabel, yLabel);
+                } catch (InterruptedException | ExecutionException ex) {
+                    ex.printStackTrace();
+                    PopUps.infoBox("<html>Encountered an error (" + ex.toString() + "). <br> Please send a description of the steps taken to produce this error: danionita@gmail.com.</html>", "Error");
+                }
+            }
+        };
+        //attach a listener to the worker in order to update the progress monitor
+        worker.addPropertyChangeListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                if ("progress".equals(evt.getPropertyName())) {
+                    progressMonitor.setProgress((Integer) evt.getNewValue());
+                }
+            }
+        });
+        //and check regularly whether the user pressed cancel
+        final Timer cancelCheck = new Timer(100, null);
+        cancelCheck.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (worker.isDone()) {
+                    cancelCheck.stop();
+                } else if (progressMonitor.isCanceled()) {
+                    worker.cancel(true);
+                    cancelCheck.stop();
+                }
+            }
+        });
+        cancelCheck.start();
+        worker.execute();
+    }
+
+    /**
+     * Shows the heatmap of the first actor, with a list to choose another
+     * actor and a button to export the whole surface as CSV
+     */
+    private static void showSurface(final SensitivitySurface surface, final String xLabel, final String yLabel) {
+        final List<Resource> actors = surface.getActors();
+        String[] actorNames = new String[actors.size()];
+        for (int i = 0; i < actorNames.length; i++) {
+            actorNames[i] = actors.get(i).getProperty(E3value.e3_has_name).getString();
+        }
+        final JComboBox<String> actorBox = new JComboBox<>(actorNames);
+        final ChartPanel chartPanel = new ChartPanel(ChartGenerator.generateHeatmap(surface, actors.get(0), xLabel, yLabel));
+        actorBox.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                chartPanel.setChart(ChartGenerator.generateHeatmap(surface, actors.get(actorBox.getSelectedIndex()), xLabel, yLabel));
+            }
+        });
+
+        final JFrame frame = new JFrame("Sensitivity surface");
+        JButton exportButton = new JButton("Export CSV...");
+        exportButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                exportSurface(frame, surface, xLabel, yLabel);
+            }
+        });
+        JPanel topPanel = new JPanel();
+        topPanel.add(new JLabel("Actor:"));
+        topPanel.add(actorBox);
+        topPanel.add(Box.createHorizontalStrut(15)); // a spacer
+        topPanel.add(exportButton);
+
+        frame.add(topPanel, BorderLayout.NORTH);
+        frame.add(chartPanel, BorderLayout.CENTER);
+        frame.setPreferredSize(new Dimension(Main.DEFAULT_CHART_WIDTH, Main.DEFAULT_CHART_HEIGHT));
+        frame.pack();
+        frame.setLocationByPlatform(true);
+        frame.setVisible(true);
+    }
+
+    private static void exportSurface(JFrame parent, SensitivitySurface surface, String xLabel, String yLabel) {
+        JFileChooser fc = new JFileChooser();
+        fc.addChoosableFileFilter(new FileNameExtensionFilter("CSV", "csv"));
+        fc.setAcceptAllFileFilterUsed(true);
+        fc.setFileSelectionMode(JFileChooser.FILES_ONLY);
+        if (fc.showSaveDialog(parent) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File targetFile = fc.getSelectedFile();
+        if (fc.getFileFilter() instanceof FileNameExtensionFilter && !targetFile.getName().toLowerCase().endsWith(".csv")) {
+            targetFile = new File(targetFile.getAbsolutePath() + ".csv");
+        }
+        if (targetFile.exists() && JOptionPane.showConfirmDialog(parent,
+                "The selected location already exists. Would you like to overwrite it?",
+                "Location already exists",
+                JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.INFORMATION_MESSAGE) != JOptionPane.OK_OPTION) {
+            return;
+        }
+        try {
+            ChartGenerator.saveToCSV(targetFile, surface, xLabel, yLabel);
+        } catch (IOException ex) {
+            PopUps.infoBox("Could not save to \"" + targetFile.getAbsolutePath() + "\": " + ex.getMessage(), "Error");
+        }
+    }
+
+    /**
+     * @return count equally spaced values from start to end (both included),
+     * or null if the range or the count is invalid
+     */
+    private static List<Double> getValues(double start, double end, int count) {
+        if (!(start < end) || count < 2) {
+            return null;
+        }
+        List<Double> values = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            values.add(i == count - 1 ? end : start + (end - start) * i / (count - 1));
+        }
+        return values;
+    }
+}
@@ -8,9 +8,12 @@ package e3fraud.gui;
 import com.hp.hpl.jena.rdf.model.Resource;
 import e3fraud.model.E3Model;
 import e3fraud.vocabulary.E3value;
+import java.text.DecimalFormat;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import javax.swing.JTable;
+import javax.swing.table.DefaultTableModel;
 
 /**
  *
@@ -48,8 +51,7 @@ public class TableGenerator {
         double expectedResult = 0;
         if (colludedActors.contains(Long.parseLong(actorUID))) {
             for (long colludedActorUID : colludedActors) {
-                Resource colludedActor = valueModel.getJenaModel().listResourcesWithProperty(E3value.e3_has_uid,String.valueOf(colludedActorUID)).next();
-                    expectedResult += valueModel.getTotalForActor(colludedActor, true);
+                    expectedResult += valueModel.getTotalForActor(colludedActorUID, true);
                 }
         }
         else{
@@ -77,7 +79,8 @@ public class TableGenerator {
      *  <li> Result: the financial result of the actor in the valueModel</li>
      * </ul>
      * @param valueModel the valueModel to be used for computing the Expected result column
-     * @return a 2-column JTable with headers and one row per actor
+     * @return a 2-column JTable with headers and one row per actor, to which
+     * columns can be added (see addBreakEvenColumn)
      */
    public static JTable generateTable(E3Model valueModel){
     Object columnNames[] = { "Actor", "Result" };           
@@ -93,9 +96,35 @@ public class TableGenerator {
         row++;
     }    
     
-    JTable table = new JTable(rowData, columnNames);
+    JTable table = new JTable(new DefaultTableModel(rowData, columnNames));
     return table;
     }
     
+    /**
+     * Adds a column to a table made by generateTable(E3Model), showing per
+     * actor the values of a need or market segment at which its result is 0,
+     * or "-" if there are none.
+     *
+     * @param table the table made by generateTable(valueModel)
+     * @param valueModel the valueModel the table was made of
+     * @param parameter the name of the need or market segment
+     * @param breakEvenPoints per actor, its break-even values (see
+     * E3Model.getBreakEvenPoints)
+     */
+    public static void addBreakEvenColumn(JTable table, E3Model valueModel, String parameter, Map<Resource, List<Double>> breakEvenPoints) {
+        DecimalFormat format = new DecimalFormat("#.####");
+        Object columnData[] = new Object[table.getModel().getRowCount()];
+        int row = 0;
+        for (Resource actor : valueModel.getActorsAndMarketSegments()) {
+            StringBuilder values = new StringBuilder();
+            for (double value : breakEvenPoints.get(actor)) {
+                values.append(values.length() == 0 ? "" : ", ").append(format.format(value));
+            }
+            columnData[row] = values.length() == 0 ? "-" : values.toString();
+            row++;
+        }
+        ((DefaultTableModel) table.getModel()).addColumn("Break-even: " + parameter, columnData);
+    }
+    
     
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package e3fraud.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Chooses the points at which to evaluate a sensitivity curve. It starts with
+ * a few equally spaced points and then only refines the intervals where a
+ * straight line between the ends is not a good enough fit: around the kinks
+ * caused by OR fractions or market segment counts, rather than on the linear
+ * stretches in between.
+ *
+ * Refinement goes in rounds. In every round the midpoints of all intervals
+ * that still have to be checked are evaluated at once (so a Sweep can
+ * evaluate them in parallel). An interval fits if, for every actor, the
+ * result at its midpoint differs from the straight line by at most the
+ * tolerance; otherwise both halves are checked in the next round. If the
+ * budget does not allow for all of them, the intervals with the largest error
+ * go first.
+ *
+ * @author agent
+ */
+public final class AdaptiveSampler {
+
+    /**
+     * The number of evaluations used by default, which is what getSeries
+     * spends on its 50 equal steps
+     */
+    public static final int DEFAULT_BUDGET = 51;
+    /**
+     * The tolerance used by default: half a percent of the range of results
+     */
+    public static final double DEFAULT_TOLERANCE = 0.005;
+
+    //the number of equally spaced points to start with
+    private static final int INITIAL_POINTS = 9;
+
+    private final int budget;
+    private final double tolerance;
+
+    /**
+     * @param budget the maximum number of points to evaluate, at least 2
+     * @param tolerance the largest acceptable difference between the curve
+     * and the straight line through its points, as a fraction of the range of
+     * all results (over all actors)
+     */
+    public AdaptiveSampler(int budget, double tolerance) {
+        if (budget < 2) {
+            throw new IllegalArgumentException("At least 2 points are needed, not " + budget);
+        }
+        if (!(tolerance >= 0)) {
+            throw new IllegalArgumentException("Invalid tolerance: " + tolerance);
+        }
+        this.budget = budget;
+        this.tolerance = tolerance;
+    }
+
+    public AdaptiveSampler() {
+        this(DEFAULT_BUDGET, DEFAULT_TOLERANCE);
+    }
+
+    public int getBudget() {
+        return budget;
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Samples the sweep between start and end (both included).
+     *
+     * @return per point, in increasing order, the result of every actor
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    TreeMap<Double, double[]> sample(double start, double end, Sweep sweep) throws InterruptedException {
+        TreeMap<Double, double[]> samples = new TreeMap<>();
+        if (start == end) {
+            add(samples, Collections.singletonList(start), sweep);
+            return samples;
+        }
+
+        List<Double> initial = new ArrayList<>();
+        int count = Math.min(budget, INITIAL_POINTS);
+        for (int i = 0; i < count; i++) {
+            //the end exactly, not start plus the sum of the steps
+            initial.add(i == count - 1 ? end : start + (end - start) * i / (count - 1));
+        }
+        add(samples, initial, sweep);
+        int used = count;
+
+        //intervals narrower than this are not split, so a jump does not take the whole budget
+        double minimumWidth = Math.abs(end - start) / (4.0 * budget);
+        List<Interval> pending = new ArrayList<>();
+        for (int i = 0; i + 1 < initial.size(); i++) {
+            pending.add(new Interval(initial.get(i), initial.get(i + 1), Double.POSITIVE_INFINITY));
+        }
+
+        while (!pending.isEmpty() && used < budget) {
+            Collections.sort(pending, Interval.LARGEST_ERROR_FIRST);
+            List<Interval> round = new ArrayList<>(pending.subList(0, Math.min(pending.size(), budget - used)));
+            List<Double> midpoints = new ArrayList<>();
+            for (Interval interval : round) {
+                midpoints.add(interval.midpoint());
+            }
+            add(samples, midpoints, sweep);
+            used += midpoints.size();
+
+            double accepted = tolerance * range(samples);
+            pending.clear();
+            for (Interval interval : round) {
+                double error = error(samples, interval);
+                if (error > accepted && (interval.end - interval.start) / 2 >= minimumWidth) {
+                    pending.add(new Interval(interval.start, interval.midpoint(), error));
+                    pending.add(new Interval(interval.midpoint(), interval.end, error));
+                }
+            }
+        }
+        return samples;
+    }
+
+    private static void add(TreeMap<Double, double[]> samples, List<Double> points, Sweep sweep) throws InterruptedException {
+        double[][] results = sweep.evaluate(points);
+        for (int i = 0; i < points.size(); i++) {
+            samples.put(points.get(i), results[i]);
+        }
+    }
+
+    /**
+     * @return the difference between the highest and the lowest result so
+     * far, over all actors
+     */
+    private static double range(TreeMap<Double, double[]> samples) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (double[] results : samples.values()) {
+            for (double result : results) {
+                if (Double.isNaN(result)) {
+                    continue;
+                }
+                min = Math.min(min, result);
+                max = Math.max(max, result);
+            }
+        }
+        return max > min ? max - min : 0;
+    }
+
+    /**
+     * @return the largest difference, over all actors, between the result at
+     * the midpoint of the interval and the straight line between its ends
+     */
+    private static double error(TreeMap<Double, double[]> samples, Interval interval) {
+        double[] start = samples.get(interval.start);
+        double[] middle = samples.get(interval.midpoint());
+        double[] end = samples.get(interval.end);
+        double error = 0;
+        for (int a = 0; a < middle.length; a++) {
+            double difference = Math.abs(middle[a] - (start[a] + end[a]) / 2);
+            //an actor without a result (NaN) cannot be fitted better by refining
+            if (!Double.isNaN(difference)) {
+                error = Math.max(error, difference);
+            }
+        }
+        return error;
+    }
+
+    /**
+     * An interval between two evaluated points, with the error of the
+     * interval it was split from
+     */
+    private static final class Interval {
+
+        static final Comparator<Interval> LARGEST_ERROR_FIRST = new Comparator<Interval>() {
+            @Override
+            public int compare(Interval first, Interval second) {
+                int byError = Double.compare(second.parentError, first.parentError);
+                //then from left to right, so equal intervals are refined evenly
+                return byError != 0 ? byError : Double.compare(first.start, second.start);
+            }
+        };
+
+        final double start;
+        final double end;
+        final double parentError;
+
+        Interval(double start, double end, double parentError) {
+            this.start = start;
+            this.end = end;
+            this.parentError = parentError;
+        }
+
+        double midpoint() {
+            return start + (end - start) / 2;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package e3fraud.model;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ResIterator;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDF;
+import e3fraud.vocabulary.E3value;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The actors of a model, numbered, with the profit computation of each of
+ * them (as far as E3Model.getTotalForActor needs it) compiled into a
+ * ProfitPlan (see E3Model.getProfitPlan), so the financial results can be
+ * computed without walking the Jena model or parsing formulas.
+ *
+ * The plans of an actor are made when its result is first asked for, one for
+ * the ideal and one for the real case. A compiled model stays valid while the
+ * structure of the Jena model and the evaluator stay the same (see
+ * {@link #isValidFor}); the values of the formulas are read from the evaluator
+ * on every evaluation, so changing a formula does not make it invalid.
+ *
+ * @author agent
+ */
+final class CompiledValueModel {
+
+    private final E3Model model;
+    private final ExpressionEvaluator evaluator;
+    private final long modifications;
+
+    private final Resource[] actors;
+    private final Map<Resource, Integer> actorIndex;
+    private final Map<Long, Integer> actorUIDIndex;
+    // per case (real, ideal) and actor, its plan once made
+    private final ProfitPlan[][] plans;
+
+    /**
+     * Compiles the model.
+     *
+     * @param model the model, which makes the plans
+     * @param evaluator the evaluator of the model, which the plans will refer
+     * to
+     * @param modifications the number of structural changes to the model
+     * (see E3Model.getCompiledModel) at the start of the compilation
+     */
+    CompiledValueModel(E3Model model, ExpressionEvaluator evaluator, long modifications) {
+        this.model = model;
+        this.evaluator = evaluator;
+        this.modifications = modifications;
+
+        List<Resource> actorList = new ArrayList<>();
+        Model jenaModel = model.getJenaModel();
+        addAll(jenaModel.listSubjectsWithProperty(RDF.type, E3value.elementary_actor), actorList);
+        addAll(jenaModel.listSubjectsWithProperty(RDF.type, E3value.market_segment), actorList);
+        actors = actorList.toArray(new Resource[actorList.size()]);
+        actorIndex = new HashMap<>();
+        actorUIDIndex = new HashMap<>();
+        for (int a = 0; a < actors.length; a++) {
+            actorIndex.put(actors[a], a);
+            if (actors[a].hasProperty(E3value.e3_has_uid)) {
+                actorUIDIndex.put(Long.parseLong(actors[a].getProperty(E3value.e3_has_uid).getString()), a);
+            }
+        }
+        plans = new ProfitPlan[2][actors.length];
+    }
+
+    /**
+     * @return true iff this was compiled from the model in its current
+     * structure and with the given evaluator
+     */
+    boolean isValidFor(ExpressionEvaluator currentEvaluator, long currentModifications) {
+        return evaluator == currentEvaluator && modifications == currentModifications;
+    }
+
+    /**
+     * @return the number of the actor, or -1 if it is not an actor (or market
+     * segment) of the model
+     */
+    int indexOf(Resource actor) {
+        Integer index = actorIndex.get(actor);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @return the number of the actor with the given uid, or -1 if there is no
+     * such actor (or market segment) in the model
+     */
+    int indexOfUID(long uid) {
+        Integer index = actorUIDIndex.get(uid);
+        return index == null ? -1 : index;
+    }
+
+    int getActorCount() {
+        return actors.length;
+    }
+
+    Resource getActor(int actor) {
+        return actors[actor];
+    }
+
+    /**
+     * Computes the financial result of every actor.
+     *
+     * @param ideal expected (true) or real (false) case, see getTotalForActor
+     * @param totals receives the result of each actor, by number
+     */
+    void totals(boolean ideal, double[] totals) {
+        for (int a = 0; a < actors.length; a++) {
+            totals[a] = total(a, ideal);
+        }
+    }
+
+    /**
+     * Computes the financial result of an actor with the current values of
+     * the evaluator.
+     *
+     * @param actor the number of the actor
+     * @param ideal expected (true) or real (false) case, see getTotalForActor
+     */
+    double total(int actor, boolean ideal) {
+        ProfitPlan plan = plans[ideal ? 1 : 0][actor];
+        if (plan == null) {
+            //plans are immutable, so threads that make the same one at the same time can each keep theirs
+            plan = model.getProfitPlan(actors[actor], ideal);
+            plans[ideal ? 1 : 0][actor] = plan;
+        }
+        return plan.evaluate(evaluator);
+    }
+
+    private static void addAll(ResIterator resources, List<Resource> list) {
+        while (resources.hasNext()) {
+            list.add(resources.next());
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package e3fraud.model;
+
+import java.util.Random;
+
+/**
+ * A probability distribution of the value of a parameter of a model, for
+ * E3Model.getUncertainty. Distributions are immutable; the random numbers come
+ * from the Random passed in, so sampling is reproducible.
+ *
+ * Samples are not limited to values that make sense for the parameter (e.g. a
+ * normal distribution may yield negative OCCURRENCES), so choose the
+ * distribution accordingly.
+ *
+ * @author agent
+ */
+public abstract class Distribution {
+
+    /**
+     * @return a random value from this distribution
+     */
+    public abstract double sample(Random random);
+
+    /**
+     * @return the expected value
+     */
+    public abstract double getMean();
+
+    /**
+     * @return always the given value
+     */
+    public static Distribution constant(final double value) {
+        return new Distribution() {
+            @Override
+            public double sample(Random random) {
+                return value;
+            }
+
+            @Override
+            public double getMean() {
+                return value;
+            }
+
+            @Override
+            public String toString() {
+                return "constant(" + value + ")";
+            }
+        };
+    }
+
+    /**
+     * @return any value between min and max, with equal probability
+     */
+    public static Distribution uniform(final double min, final double max) {
+        if (!(min <= max)) {
+            throw new IllegalArgumentException("Invalid range: " + min + " to " + max);
+        }
+        return new Distribution() {
+            @Override
+            public double sample(Random random) {
+                return min + (max - min) * random.nextDouble();
+            }
+
+            @Override
+            public double getMean() {
+                return (min + max) / 2;
+            }
+
+            @Override
+            public String toString() {
+                return "uniform(" + min + ", " + max + ")";
+            }
+        };
+    }
+
+    /**
+     * @return a normal (Gaussian) distribution
+     */
+    public static Distribution normal(final double mean, final double standardDeviation) {
+        if (!(standardDeviation >= 0)) {
+            throw new IllegalArgumentException("Invalid standard deviation: " + standardDeviation);
+        }
+        return new Distribution() {
+            @Override
+            public double sample(Random random) {
+                return mean + standardDeviation * random.nextGaussian();
+            }
+
+            @Override
+            public double getMean() {
+                return mean;
+            }
+
+            @Override
+            public String toString() {
+                return "normal(" + mean + ", " + standardDeviation + ")";
+            }
+        };
+    }
+
+    /**
+     * @return a triangular distribution: values between min and max, most
+     * likely around mode. This is the usual choice when only a lowest, a
+     * highest and a most likely estimate are known.
+     */
+    public static Distribution triangular(final double min, final double mode, final double max) {
+        if (!(min <= mode && mode <= max)) {
+            throw new IllegalArgumentException("Invalid triangle: " + min + ", " + mode + ", " + max);
+        }
+        return new Distribution() {
+            @Override
+            public double sample(Random random) {
+                //inverse of the cumulative distribution
+                double u = random.nextDouble();
+                if (max == min) {
+                    return min;
+                } else if (u < (mode - min) / (max - min)) {
+                    return min + Math.sqrt(u * (max - min) * (mode - min));
+                }
+                return max - Math.sqrt((1 - u) * (max - min) * (max - mode));
+            }
+
+            @Override
+            public double getMean() {
+                return (min + mode + max) / 3;
+            }
+
+            @Override
+            public String toString() {
+                return "triangular(" + min + ", " + mode + ", " + max + ")";
+            }
+        };
+    }
+}
@@ -16,15 +16,33 @@
  */
 package e3fraud.model;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
 
 import org.jfree.data.xy.XYDataItem;
 import org.jfree.data.xy.XYSeries;
 
+import com.hp.hpl.jena.graph.Factory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.GraphUtil;
+import com.hp.hpl.jena.rdf.listeners.StatementListener;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.RDFNode;
@@ -38,7 +56,6 @@ import design.Utils;
 import e3fraud.gui.PopUps;
 import e3fraud.vocabulary.E3value;
 import java.text.DecimalFormat;
-import java.util.Optional;
 
 /**
  *
@@ -47,6 +64,17 @@ import java.util.Optional;
 public class E3Model {
 
     private boolean debug = false; //use to toggle printing traversal steps
+    //getSeries only evaluates batches of at least this many points in parallel
+    private static final int POINTS_PER_BATCH_TASK = 16;
+    //getSurface reports progress after evaluating about this many points
+    private static final int POINTS_PER_SURFACE_STEP = 512;
+    //getUncertainty draws and evaluates its samples in chunks of this many
+    private static final int SAMPLES_PER_CHUNK = 1024;
+    //getBreakEvenPoints looks for sign changes between this many equally spaced values
+    private static final int BREAK_EVEN_GRID = 17;
+    //and then narrows them down to this relative precision, in at most so many steps
+    private static final double BREAK_EVEN_TOLERANCE = 1e-9;
+    private static final int BREAK_EVEN_ITERATIONS = 100;
 
     private final Model model;
     private String description;
@@ -54,6 +82,28 @@ public class E3Model {
     private Utils.GraphDelta fraudChanges;
     private String prefix;
     private ExpressionEvaluator evaluatedModel;
+    //occurrences of the paths into joins, kept in symbolic form during enhance()
+    private final Map<Resource, OccurrenceExpression> pathOccurrences = new HashMap<>();
+    //which actors depend on which elements, built when first needed
+    private InfluenceIndex influenceIndex;
+    //number of statements added to or removed from the Jena model so far
+    private final AtomicLong modifications = new AtomicLong();
+    //number of those changes that can change the compiled model: all but the formula rewrites of rewriteFormula()
+    private final AtomicLong structuralModifications = new AtomicLong();
+    //set while rewriteFormula() changes a formula that the compiled model refers to by handle
+    private boolean rewritingFormula;
+    //the formulas of every element, built when first needed, see formulas()
+    private volatile FormulaIndex formulaIndex;
+    //per uid, the element that has it; built when first needed, see resourcesByUID()
+    private volatile Map<Long, Resource> resourcesByUID;
+    //a copy of the graph that models derived from this one share, see derivedGraph()
+    private Graph frozenGraph;
+    private long frozenGraphModifications;
+    //the structure getTotalForActor walks, compiled when first needed
+    private volatile CompiledValueModel compiledModel;
+    //results of getTotalForActor, see cachedTotals()
+    private CachedTotals cachedTotals;
+    private final AtomicLong savedRecomputations = new AtomicLong();
 
 //constructors
     /**
@@ -67,6 +117,7 @@ public class E3Model {
         this.prefix = "";
         this.description = "Base Model";
         this.fraudChanges = null;        
+        countModifications();
     }
 
     /**
@@ -74,15 +125,161 @@ public class E3Model {
      * different E3Model. This method is used when wanting to duplicate an
      * E3Model.
      *
+     * The new model does not copy the statements of the base model, but only
+     * keeps the changes made to it (see OverlayGraph). Changing either model
+     * afterwards does not affect the other.
+     *
      * @param baseModel the E3model to take description and collusion info from
      */
     public E3Model(E3Model baseModel) {
-        Model newJenaModel = ModelFactory.createDefaultModel();
-        newJenaModel.add(baseModel.getJenaModel());
+        Model newJenaModel = ModelFactory.createModelForGraph(baseModel.derivedGraph());
         this.model = newJenaModel;
         this.prefix = "";
         this.description = baseModel.getDescription();
-        this.evaluatedModel = null;
+        //share the evaluated formulas with the base model instead of evaluating the copy from scratch
+        this.evaluatedModel = baseModel.evaluatedModel == null ? null : baseModel.evaluatedModel.fork(newJenaModel);
+        countModifications();
+    }
+
+    private void countModifications() {
+        model.register(new StatementListener() {
+            @Override
+            public void addedStatement(Statement statement) {
+                modifications.incrementAndGet();
+                if (!rewritingFormula) {
+                    structuralModifications.incrementAndGet();
+                }
+                FormulaIndex index = formulaIndex;
+                if (index != null) {
+                    index.added(statement);
+                }
+                Map<Long, Resource> uids = resourcesByUID;
+                if (uids != null && statement.getPredicate().equals(E3value.e3_has_uid)) {
+                    Long uid = uidOf(statement);
+                    if (uid != null && !uids.containsKey(uid)) {
+                        uids.put(uid, statement.getSubject());
+                    }
+                }
+            }
+
+            @Override
+            public void removedStatement(Statement statement) {
+                modifications.incrementAndGet();
+                if (!rewritingFormula) {
+                    structuralModifications.incrementAndGet();
+                }
+                FormulaIndex index = formulaIndex;
+                if (index != null) {
+                    index.removed(statement);
+                }
+                Map<Long, Resource> uids = resourcesByUID;
+                if (uids != null && statement.getPredicate().equals(E3value.e3_has_uid)) {
+                    Long uid = uidOf(statement);
+                    if (uid != null && statement.getSubject().equals(uids.get(uid))) {
+                        uids.remove(uid);
+                        //another element with the same uid takes its place, if any
+                        ResIterator others = model.listSubjectsWithProperty(E3value.e3_has_uid, statement.getObject());
+                        if (others.hasNext()) {
+                            uids.put(uid, others.next());
+                        }
+                        others.close();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the uid of an e3_has_uid statement, or null if it is not a
+     * number
+     */
+    private static Long uidOf(Statement statement) {
+        try {
+            return Long.parseLong(statement.getString());
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return per uid, the element of this model that has it, which the
+     * listener registered by countModifications keeps up to date
+     */
+    private Map<Long, Resource> resourcesByUID() {
+        Map<Long, Resource> uids = resourcesByUID;
+        if (uids == null) {
+            synchronized (this) {
+                uids = resourcesByUID;
+                if (uids == null) {
+                    uids = new ConcurrentHashMap<>();
+                    StmtIterator statements = model.listStatements(null, E3value.e3_has_uid, (RDFNode) null);
+                    while (statements.hasNext()) {
+                        Statement statement = statements.next();
+                        Long uid = uidOf(statement);
+                        if (uid != null && !uids.containsKey(uid)) {
+                            uids.put(uid, statement.getSubject());
+                        }
+                    }
+                    resourcesByUID = uids;
+                }
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * Finds an element of this model by its uid, without searching the model
+     *
+     * @param uid the e3_has_uid of the element
+     * @return the element, or null if there is none with that uid
+     */
+    public Resource getResourceByUID(long uid) {
+        return resourcesByUID().get(uid);
+    }
+
+    /**
+     * @return a new graph with the content of this model, for a model derived
+     * from it. Derived models share one frozen copy of this model as long as
+     * it does not change, and each only keeps its own changes to it. Models
+     * derived from a derived model share the frozen copy of the first one.
+     */
+    private synchronized Graph derivedGraph() {
+        Graph graph = model.getGraph();
+        if (graph instanceof OverlayGraph) {
+            return ((OverlayGraph) graph).copy();
+        }
+        if (frozenGraph == null || frozenGraphModifications != modifications.get()) {
+            frozenGraph = Factory.createGraphMem();
+            GraphUtil.addInto(frozenGraph, graph);
+            frozenGraphModifications = modifications.get();
+        }
+        return new OverlayGraph(frozenGraph);
+    }
+
+    /**
+     * @return the formulas of the elements of this model, which the listener
+     * registered by countModifications keeps up to date
+     */
+    private FormulaIndex formulas() {
+        FormulaIndex index = formulaIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = formulaIndex;
+                if (index == null) {
+                    index = new FormulaIndex(model);
+                    formulaIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return the expression of the given attribute of an element (e.g. 5 for
+     * VALUATION=5), or null if the element has no such formula
+     */
+    String getFormula(Resource element, String attribute) {
+        return formulas().getExpression(element, attribute);
     }
 
 //getters and setters
@@ -90,6 +287,15 @@ public class E3Model {
         return model;
     }
 
+    /**
+     * @return the number of changes made to the Jena model since this E3Model
+     * was created (through this E3Model or directly). If it is the same as
+     * before, the model was not changed in between.
+     */
+    public long getModificationCount() {
+        return modifications.get();
+    }
+
     public String getDescription() {
         return description;
     }
@@ -360,6 +566,28 @@ public class E3Model {
         return msMap;
     }
 
+    /**
+     * Returns all needs and market segments, as parameters of e.g. a
+     * sensitivity analysis
+     *
+     * @return A map of the needs ("OCCURRENCES of need") and market segments
+     * ("market segment COUNT") by their name as a parameter
+     */
+    public Map<String, Resource> getParametersMap() {
+        Map<String, Resource> msMap = getMSMap();
+        Map<String, Resource> needsMap = getNeedsMap();
+
+        //populate list of possible parameters
+        Map<String, Resource> parameters = new HashMap<>();
+        for (String marketSegmentName : msMap.keySet()) {
+            parameters.put(marketSegmentName + " COUNT", msMap.get(marketSegmentName));
+        }
+        for (String needName : needsMap.keySet()) {
+            parameters.put("OCCURRENCES of " + needName, needsMap.get(needName));
+        }
+        return parameters;
+    }
+
     /**
      * Returns all Value Exchange objects
      *
@@ -490,9 +718,11 @@ public class E3Model {
      */
     private void updateValueInterfaceOccurrences(Resource valueInterface, String newOccurrenceExpression) {
         String ID = valueInterface.getURI().split("#")[1];
+        //find the existing OCCURRENCE rate, if any (the value interface may have other formulas too)
+        FormulaIndex.FormulaEntry occurrences = formulas().get(valueInterface, "OCCURRENCES");
         //add the respective OCCURRENCE rate
-        if (valueInterface.hasProperty(E3value.e3_has_formula)) {
-            valueInterface.getProperty(E3value.e3_has_formula).changeObject("OCCURRENCES=" + newOccurrenceExpression);
+        if (occurrences != null) {
+            rewriteFormula(valueInterface, occurrences, newOccurrenceExpression);
             evaluatedModel.changeExistingFormula("#" + ID + ".OCCURRENCES", ID, newOccurrenceExpression);
             if (debug) {
                 System.out.println("\t\t\t...updated OCCURRENCES=" + newOccurrenceExpression + " to " + valueInterface.getProperty(E3value.e3_has_name).getString());
@@ -504,9 +734,38 @@ public class E3Model {
                 System.out.println("\t\t\t...added OCCURRENCES=" + newOccurrenceExpression + " to " + valueInterface.getProperty(E3value.e3_has_name).getString());
             }
         }
+        if (influenceIndex != null) {
+            influenceIndex.formulasChanged(valueInterface);
+        }
 
     }
 
+    /**
+     * Changes the expression of an existing formula in the Jena model; the
+     * caller changes it in the evaluator as well. The compiled model (see
+     * getCompiledModel) refers to formulas by handle, so this does not make
+     * it compile again; unless the OCCURRENCES of a value interface is or
+     * becomes a number, which the profit plans use as a constant.
+     */
+    private void rewriteFormula(Resource element, FormulaIndex.FormulaEntry formula, String expression) {
+        String attribute = formula.getAttribute();
+        rewritingFormula = !(attribute.equals("OCCURRENCES") && element.hasProperty(RDF.type, E3value.value_interface)
+                && (isNumber(formula.getExpression()) || isNumber(expression)));
+        try {
+            formula.getStatement().changeObject(attribute + "=" + expression);
+        } finally {
+            rewritingFormula = false;
+        }
+    }
+
+    /**
+     * @return true iff the expression is a plain number, which getProfitPlan
+     * uses directly
+     */
+    private static boolean isNumber(String expression) {
+        return expression.matches("\\d*\\.?\\d*");
+    }
+
     /**
      * Updates the OCCURRENCE attribute of a need to a given number..
      *
@@ -521,14 +780,13 @@ public class E3Model {
             System.err.println("Attempted to set occurence rate on a node which is not a need!");
             return false;
         }
-        StmtIterator formulas = need.listProperties(E3value.e3_has_formula);
-        while (formulas.hasNext()) {
-            Statement formula = formulas.next();
-            String attribute = formula.getString().split("=", 2)[0];
-            if (attribute.equals("OCCURRENCES")) {
-                formula.changeObject("OCCURRENCES=" + occurrence);
-                evaluatedModel.changeExistingFormula("#" + ID + ".OCCURRENCES", ID, occurrence);
-                break;
+        FormulaIndex.FormulaEntry formula = formulas().get(need, "OCCURRENCES");
+        if (formula != null) {
+            rewriteFormula(need, formula, String.valueOf(occurrence));
+            invalidateTotals();
+            evaluatedModel.changeExistingFormula("#" + ID + ".OCCURRENCES", ID, occurrence);
+            if (influenceIndex != null) {
+                influenceIndex.formulasChanged(need);
             }
         }
         this.enhance();
@@ -549,46 +807,51 @@ public class E3Model {
             System.err.println("Attempted to set count rate on a node which is not a market segment!");
             return false;
         }
-        StmtIterator formulas = ms.listProperties(E3value.e3_has_formula);
-        while (formulas.hasNext()) {
-            Statement formula = formulas.next();
-            String attribute = formula.getString().split("=", 2)[0];
-            if (attribute.equals("COUNT")) {
-                formula.changeObject("COUNT=" + count);
-                evaluatedModel.changeExistingFormula("#" + ID + ".COUNT", ID, count);
-                break;
+        FormulaIndex.FormulaEntry formula = formulas().get(ms, "COUNT");
+        if (formula != null) {
+            rewriteFormula(ms, formula, String.valueOf(count));
+            invalidateTotals();
+            evaluatedModel.changeExistingFormula("#" + ID + ".COUNT", ID, count);
+            if (influenceIndex != null) {
+                influenceIndex.formulasChanged(ms);
             }
         }
         this.enhance();
         return true;
     }
 
-    public String getNeedOccurrence(Resource need) {
-        String value = null;
-        StmtIterator formulas = need.listProperties(E3value.e3_has_formula);
-        while (formulas.hasNext()) {
-            Statement formula = formulas.next();
-            String attribute = formula.getString().split("=", 2)[0];
-            if (attribute.equals("OCCURRENCES")) {
-                value = formula.getString().split("=", 2)[1];
-                break;
+    /**
+     * Sets a formula of an element to the given number, like updateNeedOccurrence
+     * and updateCount do for the OCCURRENCES of a need and the COUNT of a
+     * market segment (which also enhance the model again). Other formulas are
+     * only changed in the Jena model and the evaluator. An element without
+     * the formula is left as it is.
+     */
+    private void updateFormula(Resource element, String attribute, double value) {
+        if (attribute.equals("OCCURRENCES") && element.hasProperty(RDF.type, E3value.start_stimulus)) {
+            updateNeedOccurrence(element, value);
+        } else if (attribute.equals("COUNT") && element.hasProperty(RDF.type, E3value.market_segment)) {
+            updateCount(element, value);
+        } else {
+            FormulaIndex.FormulaEntry formula = formulas().get(element, attribute);
+            if (formula != null) {
+                String ID = element.getURI().split("#")[1];
+                rewriteFormula(element, formula, String.valueOf(value));
+                invalidateTotals();
+                evaluatedModel.changeExistingFormula("#" + ID + "." + attribute, ID, value);
+                if (influenceIndex != null) {
+                    influenceIndex.formulasChanged(element);
+                }
             }
         }
-        return value;
+    }
+
+    public String getNeedOccurrence(Resource need) {
+        return formulas().getExpression(need, "OCCURRENCES");
     }
 
     public String getMarketSegmentCount(Resource ms) {
-        String value = null;
-        StmtIterator formulas = ms.listProperties(E3value.e3_has_formula);
-        while (formulas.hasNext()) {
-            Statement formula = formulas.next();
-            String attribute = formula.getString().split("=", 2)[0];
-            if (attribute.equals("COUNT")) {
-                value = formula.getString().split("=", 2)[1];
-                break;
-            }
-        }
-        return value;
+        return formulas().getExpression(ms, "COUNT");
     }
 
     /**
@@ -607,6 +870,9 @@ public class E3Model {
         //make sure the resources are from this model
         valueInterface1 = model.getResource(valueInterface1.getURI());
         valueInterface2 = model.getResource(valueInterface2.getURI());
+        //the new ports and exchange change the structure, so the index has to be rebuilt
+        this.influenceIndex = null;
+        invalidateTotals();
 
         Resource port1, port2, exchange;
         String URIbase = this.getActorsAndMarketSegments().iterator().next().getURI().split("#")[0];
@@ -646,6 +912,7 @@ public class E3Model {
         port1.addProperty(E3value.vp_in_vo, vo1);
         vo1.addProperty(E3value.vo_consists_of_vp, port1);
         port1.addProperty(E3value.e3_has_formula, "VALUATION=" + value);
+        addFormulaToEvaluator(port1, "VALUATION", "" + value);
 
         id = Utils.getUnusedID(URIbase, model);
         port2 = model.createResource(URIbase + "#" + id, E3value.value_port);
@@ -661,6 +928,7 @@ public class E3Model {
         port2.addProperty(E3value.vp_in_vo, vo2);
         vo2.addProperty(E3value.vo_consists_of_vp, port2);
         port2.addProperty(E3value.e3_has_formula, "VALUATION=" + value);
+        addFormulaToEvaluator(port2, "VALUATION", "" + value);
 
         id = Utils.getUnusedID(URIbase, model);
         exchange = model.createResource(URIbase + "#" + id, E3value.value_exchange);
@@ -672,6 +940,7 @@ public class E3Model {
         exchange.addProperty(E3value.ve_has_in_po, port2);
         exchange.addProperty(E3value.ve_has_out_po, port1);
         exchange.addProperty(E3value.e3_has_formula, "CARDINALITY=1");
+        addFormulaToEvaluator(exchange, "CARDINALITY", "1");
 
         port1.addProperty(E3value.vp_out_connects_ve, exchange);
 
@@ -681,54 +950,48 @@ public class E3Model {
     public void makeHidden(Resource valueExchange) {
         valueExchange = model.getResource(valueExchange.getURI());        //make sure the resources are from this model
         valueExchange.addProperty(E3value.e3_has_formula, "DOTTED=1");
+        invalidateTotals();
+        addFormulaToEvaluator(valueExchange, "DOTTED", "1");
     }
 
     public void makeNonOccurring(Resource valueExchange) {
         valueExchange = model.getResource(valueExchange.getURI());        //make sure the resources are from this model
         valueExchange.addProperty(E3value.e3_has_formula, "DASHED=1");
+        invalidateTotals();
+        addFormulaToEvaluator(valueExchange, "DASHED", "1");
         this.fraudChanges.addNonOccurringTransaction(valueExchange.getProperty(E3value.e3_has_uid).getLong());
     }
 
+    /**
+     * Keeps the expression evaluator (if any) in sync with a formula that was
+     * just added to the Jena model
+     */
+    private void addFormulaToEvaluator(Resource res, String attribute, String expression) {
+        if (evaluatedModel != null) {
+            String ID = res.getProperty(E3value.e3_has_uid).getString();
+            evaluatedModel.addNewFormula("#" + ID + "." + attribute, ID, expression);
+        }
+        if (influenceIndex != null) {
+            influenceIndex.formulasChanged(res);
+        }
+    }
+
     public double getCardinality(Resource res) {
         //make sure the resources are from this model
         res = model.getResource(res.getURI());
         double cardinality = 1;
-        StmtIterator resFormulas = res.listProperties(E3value.e3_has_formula);
-        while (resFormulas.hasNext()) {
-            Statement formula = resFormulas.next();
-            String attribute = formula.getString().split("=", 2)[0];
-            if (attribute.equals("CARDINALITY")) {
-                cardinality = valueOf(res, attribute);
-            }
+        if (formulas().has(res, "CARDINALITY")) {
+            cardinality = valueOf(res, "CARDINALITY");
         }
         return cardinality;
     }
 
     private boolean isNonOccurring(Resource valueExchange) {
-        Resource exchange = model.getResource(valueExchange.getURI());
-        StmtIterator veFormulas = exchange.listProperties(E3value.e3_has_formula);
-        while (veFormulas.hasNext()) {
-            Statement formula = veFormulas.next();
-            String attribute = formula.getString().split("=", 2)[0];
-            if (attribute.equals("DASHED")) {
-                return true;
-            }
-        }
-        return false;
+        return formulas().has(valueExchange, "DASHED");
     }
 
     private boolean isHidden(Resource valueExchange) {
-        //make sure the resources are from this model
-        valueExchange = model.getResource(valueExchange.getURI());
-        StmtIterator veFormulas = valueExchange.listProperties(E3value.e3_has_formula);
-        while (veFormulas.hasNext()) {
-            Statement formula = veFormulas.next();
-            String attribute = formula.getString().split("=", 2)[0];
-            if (attribute.equals("DOTTED")) {
-                return true;
-            }
-        }
-        return false;
+        return formulas().has(valueExchange, "DOTTED");
     }
 
     public int countNonOccurring() {
@@ -756,6 +1019,7 @@ public class E3Model {
         long actor2ID = Long.parseLong(actor2.getProperty(E3value.e3_has_uid).getString());
         this.fraudChanges.addColludedActor(actor1ID);
         this.fraudChanges.addColludedActor(actor2ID);
+        invalidateTotals();
 
         //make sure the resources are from this model
         actor1 = model.getResource(actor1.getURI());
@@ -869,10 +1133,13 @@ public class E3Model {
             String expression = expressionStatement.getLiteral().toString();
             expression = expression.replace("'"+actor1Name+"'", "'"+newActorName+"'");
             expression = expression.replace("'"+actor2Name+"'", "'"+newActorName+"'");
-            expression = expression.replace("#"+actor2ID, "#"+actor1ID);   
+            expression = expression.replace("#"+actor2ID+".", "#"+actor1ID+".");
             expressionStatement.changeObject(expression);
         }
 
+        //the formulas changed too much to patch the evaluator, so have it recreated by the next enhance()
+        this.evaluatedModel = null;
+        this.influenceIndex = null;
     }
 
     /**
@@ -943,60 +1210,50 @@ public class E3Model {
     }
 
     public String divideByCount(Resource marketSegment, String occurrences) {
-        double count = 1;
-        StmtIterator formulas = marketSegment.listProperties(E3value.e3_has_formula);
-        while (formulas.hasNext()) {
-            Statement formula = formulas.next();
-            String attribute = formula.getString().split("=", 2)[0];
-            if (attribute.equals("COUNT")) {
-                count = valueOf(marketSegment, attribute);
-            }
-        }
+        return divideByCount(marketSegment, OccurrenceExpression.parse(occurrences)).toString();
+    }
+
+    private OccurrenceExpression divideByCount(Resource marketSegment, OccurrenceExpression occurrences) {
+        String count = getCountReference(marketSegment);
         if (debug) {
             System.out.println("\t\t\t... Entering MS '" + marketSegment.getProperty(E3value.e3_has_name).getLiteral().toString() + "'. Dividing occurences by " + count);
         }
-        
-        if (count==0){
-            return Double.toString(0);
-        }
 
-        //If the occurrence rate is a number
-        if (occurrences.matches("\\d*\\.?\\d*")) {
-            //Compute it now to keep it a number
-            occurrences = Double.toString(Double.valueOf(occurrences) / count);
-        } //if it is an expression
-        else {
-            //Keep it as an expression
-            occurrences = "(" + occurrences + ")/" + count;
+        //If the market segment has a COUNT, refer to it so the occurrences follow changes to it
+        if (count != null) {
+            return occurrences.dividedBy(count);
         }
         return occurrences;
     }
 
     public String multiplyByCount(Resource marketSegment, String occurrences) {
-        double count = 1;
-        StmtIterator formulas = marketSegment.listProperties(E3value.e3_has_formula);
-        while (formulas.hasNext()) {
-            Statement formula = formulas.next();
-            String attribute = formula.getString().split("=", 2)[0];
-            if (attribute.equals("COUNT")) {
-                count = valueOf(marketSegment, attribute);
-            }
-        }
+        return multiplyByCount(marketSegment, OccurrenceExpression.parse(occurrences)).toString();
+    }
+
+    private OccurrenceExpression multiplyByCount(Resource marketSegment, OccurrenceExpression occurrences) {
+        String count = getCountReference(marketSegment);
         if (debug) {
             System.out.println("\t\t\t... Exiting  MS; Multiplying occurences by " + count);
         }
-        //If the occurrence rate is a number
-        if (occurrences.matches("\\d*\\.?\\d*")) {
-            //Compute it now to keep it a number
-            occurrences = Double.toString(Double.valueOf(occurrences) * count);
-        } //if it is an expression
-        else {
-            //Keep it as an expression
-            occurrences = "(" + occurrences + ")*" + count;
+
+        //If the market segment has a COUNT, refer to it so the occurrences follow changes to it
+        if (count != null) {
+            return occurrences.times(count);
         }
         return occurrences;
     }
 
+    /**
+     * @return a reference (e3{#123.COUNT}) to the COUNT of a market segment,
+     * or null if it has none
+     */
+    private String getCountReference(Resource marketSegment) {
+        if (formulas().has(marketSegment, "COUNT")) {
+            return "e3{#" + marketSegment.getProperty(E3value.e3_has_uid).getString() + ".COUNT}";
+        }
+        return null;
+    }
+
     /**
      * Re(creates) this E3Model's expressionEvaluator from this E3Model's Jena
      * Model.
@@ -1016,23 +1273,19 @@ public class E3Model {
         if (evaluatedModel == null) {
             createExpressionEvaluator();
         }
+        pathOccurrences.clear();
 
         //get a list of Start Stimuli
         ResIterator startStimuli = model.listSubjectsWithProperty(RDF.type, E3value.start_stimulus);
 
-        //for each Start Stimulus        
+        //for each Start Stimulus
         while (startStimuli.hasNext()) {
             Resource startStimulus = startStimuli.next();
-            String occurrences = null;
+            OccurrenceExpression occurrences = OccurrenceExpression.constant(0);
             //get occurences expressions of this stimuli
-            StmtIterator startStimulusFormulas = startStimulus.listProperties(E3value.e3_has_formula);
-            while (startStimulusFormulas.hasNext()) {
-                Statement formula = startStimulusFormulas.next();
-                String attribute = formula.getString().split("=", 2)[0];
-                String expression = formula.getString().split("=", 2)[1];
-                if (attribute.equals("OCCURRENCES")) {
-                    occurrences = expression;
-                }
+            if (formulas().has(startStimulus, "OCCURRENCES")) {
+                //refer to the need's OCCURRENCES instead of copying it, so the value interfaces follow changes to it
+                occurrences = OccurrenceExpression.reference("e3{#" + startStimulus.getProperty(E3value.e3_has_uid).getString() + ".OCCURRENCES}");
             }
             //get nextElement down the line
             Resource nextElement = startStimulus.getProperty(E3value.de_down_ce).getResource();
@@ -1046,275 +1299,296 @@ public class E3Model {
         if (debug) {
             System.out.println("\t...Finished!\n");
         }
+        pathOccurrences.clear();
         evaluatedModel.reEvaluate();
+        invalidateTotals();
+    }
+
+    /**
+     * A place on the dependency path that traverse() still has to go down
+     * from, with the occurrence rate it is reached with
+     */
+    private static final class PathVisit {
+
+        private final Resource element;
+        private final OccurrenceExpression occurrences;
+
+        PathVisit(Resource element, OccurrenceExpression occurrences) {
+            this.element = element;
+            this.occurrences = occurrences;
+        }
+    }
+
+    /**
+     * Schedules the given visits, such that they are done in the given order
+     * (before anything scheduled earlier)
+     */
+    private static void pushAll(Deque<PathVisit> worklist, List<PathVisit> visits) {
+        for (int i = visits.size() - 1; i >= 0; i--) {
+            worklist.push(visits.get(i));
+        }
     }
 
     /**
      * Starting from nextElement, goes down the dependency path, until reaching
      * the end stimulus (or stimuli if AND/OR forks are present), updating
-     * OCCURENCE rates of Value Interfaces along the way. This is a recursive
-     * helper method for enhance().
+     * OCCURENCE rates of Value Interfaces along the way. This is a helper
+     * method for enhance().
      *
-     * @param nextElement the element in the graph from which to start
+     * The paths are followed depth-first from a worklist rather than by
+     * recursion, so deep models do not overflow the stack. The occurrences of
+     * the paths going into a join are kept in pathOccurrences (not in the
+     * model); a join is only passed once all its incoming paths have been
+     * computed, so the part after it is traversed once, not once per incoming
+     * path.
+     *
+     * @param startElement the element in the graph from which to start
      * traversing downwards
-     * @param occurences the occurrence rate of nextElement
+     * @param startOccurrences the occurrence rate of startElement, which is kept
+     * simplified (see OccurrenceExpression) to keep the formulas small
      */
-    private void traverse(Resource nextElement, String occurrences) {
-        //While this is not the last element (i.e. an end stimulus)
-        while (!nextElement.hasProperty(RDF.type, E3value.end_stimulus)) {
-            if (debug) {
-                System.out.println("\t\t...moved to element: " + nextElement.getProperty(E3value.e3_has_name).getString());
-                System.out.println("\t\t\t...with e3type: " + nextElement.getProperty(RDF.type).toString());
-            }
-
-            //then depending on the type element, decide what to do next:
-            //###  OR node  ###
-            if (nextElement.hasProperty(RDF.type, E3value.OR_node)) {
-                StmtIterator outgoingNodes = nextElement.listProperties(E3value.de_down_ce);//get outgoing connection elements
-                StmtIterator incomingNodes = nextElement.listProperties(E3value.de_up_ce);
-                List<Statement> outgoingNodeList = outgoingNodes.toList();//get list() of outgoing elements (for more control)
-                List<Statement> incomingNodeList = incomingNodes.toList();
+    private void traverse(Resource startElement, OccurrenceExpression startOccurrences) {
+        Deque<PathVisit> worklist = new ArrayDeque<>();
+        worklist.push(new PathVisit(startElement, startOccurrences));
+        visits:
+        while (!worklist.isEmpty()) {
+            PathVisit visit = worklist.pop();
+            Resource nextElement = visit.element;
+            OccurrenceExpression occurrences = visit.occurrences;
+            //While this is not the last element (i.e. an end stimulus)
+            while (!nextElement.hasProperty(RDF.type, E3value.end_stimulus)) {
+                if (debug) {
+                    System.out.println("\t\t...moved to element: " + nextElement.getProperty(E3value.e3_has_name).getString());
+                    System.out.println("\t\t\t...with e3type: " + nextElement.getProperty(RDF.type).toString());
+                }
 
-                //## OR join ##
-                if (incomingNodeList.size() > 1) {
-                    if (debug) {
-                        System.out.println("\t\t\t ...found OR  join with " + incomingNodeList.size() + " incoming ports.");
-                    }
+                //then depending on the type element, decide what to do next:
+                //###  OR node  ###
+                if (nextElement.hasProperty(RDF.type, E3value.OR_node)) {
+                    StmtIterator outgoingNodes = nextElement.listProperties(E3value.de_down_ce);//get outgoing connection elements
+                    StmtIterator incomingNodes = nextElement.listProperties(E3value.de_up_ce);
+                    List<Statement> outgoingNodeList = outgoingNodes.toList();//get list() of outgoing elements (for more control)
+                    List<Statement> incomingNodeList = incomingNodes.toList();
+
+                    //## OR join ##
+                    if (incomingNodeList.size() > 1) {
+                        if (debug) {
+                            System.out.println("\t\t\t ...found OR  join with " + incomingNodeList.size() + " incoming ports.");
+                        }
 
-                    //check if all incoming paths have been considered,
-                    for (Statement incomingNode : incomingNodeList) {
-                        //and if not
-                        if (!incomingNode.getResource().hasProperty(E3value.e3_has_formula, "VISITED=1")) {
-                            System.out.println("\t\t\t ...waiting for the other incoming paths to be computed");
-                            //wait for the other paths
-                            return;
+                        //check if all incoming paths have been considered,
+                        for (Statement incomingNode : incomingNodeList) {
+                            //and if not
+                            if (!pathOccurrences.containsKey(incomingNode.getResource())) {
+                                if (debug) {
+                                    System.out.println("\t\t\t ...waiting for the other incoming paths to be computed");
+                                }
+                                //wait for the other paths
+                                continue visits;
+                            }
                         }
-                    }
 
-                    //If all paths were computed,     
-                    //sum up the occurrence of the incoming path 
-                    String outgoingOccurrences = "0";
-                    for (Statement incomingNodeStatement : incomingNodeList) {
-                        String incomingOccurrence = incomingNodeStatement.getResource().getProperty(E3value.down_fraction).getString();
-                        if (outgoingOccurrences.matches("\\d*\\.?\\d*") && incomingOccurrence.matches("\\d*\\.?\\d*")) {
-                            outgoingOccurrences = Double.toString(Double.valueOf(outgoingOccurrences) + Double.valueOf(incomingOccurrence));
-                        } else {
-                            outgoingOccurrences = "(" + outgoingOccurrences + ")+(" + incomingOccurrence + ")";
+                        //If all paths were computed,
+                        //sum up the occurrence of the incoming path
+                        OccurrenceExpression outgoingOccurrences = OccurrenceExpression.constant(0);
+                        for (Statement incomingNodeStatement : incomingNodeList) {
+                            outgoingOccurrences = outgoingOccurrences.plus(pathOccurrences.get(incomingNodeStatement.getResource()));
+                        }
+                        if (debug) {
+                            System.out.println("\t\t\t ... sum of incoming occurrences = " + outgoingOccurrences);
                         }
-                    }
-                    if (debug) {
-                        System.out.println("\t\t\t ... sum of incoming occurrences = " + outgoingOccurrences);
-                    }
 
-                    //and then go down outgoing CE
-                    traverse(nextElement.getProperty(E3value.de_down_ce).getResource(), outgoingOccurrences);
-                    return;
+                        //and then go down outgoing CE
+                        nextElement = nextElement.getProperty(E3value.de_down_ce).getResource();
+                        occurrences = outgoingOccurrences;
 
-                    //## OR fork ##
-                } else {
-                    if (debug) {
-                        System.out.println("\t\t\t ...found OR  fork with " + outgoingNodeList.size() + " outgoing ports.");
-                    }
+                        //## OR fork ##
+                    } else {
+                        if (debug) {
+                            System.out.println("\t\t\t ...found OR  fork with " + outgoingNodeList.size() + " outgoing ports.");
+                        }
 
-                    //First, sum up the fractions of all outgoing Connection Elements
-                    double totalFractions = 0;
-                    for (Statement node : outgoingNodeList) {
-                        totalFractions += node.getResource().getProperty(E3value.up_fraction).getFloat();
-                    }
+                        //First, sum up the fractions of all outgoing Connection Elements
+                        double totalFractions = 0;
+                        for (Statement node : outgoingNodeList) {
+                            totalFractions += node.getResource().getProperty(E3value.up_fraction).getFloat();
+                        }
 
-                    //Second, go down each path using occurence = OCCURENCE*FRACTION/Total_FRACTIONs
-                    for (Statement node : outgoingNodeList) {
-                        double ratio = node.getResource().getProperty(E3value.up_fraction).getFloat() / totalFractions;
-                        //We need to compute the occurrences on each path
-                        String pathOccurrences ;
-                        //If the occurrence rate is a number
-                        if (occurrences.matches("\\d*\\.?\\d*")) {
-                            //Compute it now to keep it a number
-                            pathOccurrences = Double.toString(Double.valueOf(occurrences) * ratio);
-                        } //if it is an expression
-                        else {
-                            //Keep it as an expression
-                            pathOccurrences = "(" + occurrences + ")*" + ratio;
+                        //Second, go down each path using occurence = OCCURENCE*FRACTION/Total_FRACTIONs
+                        List<PathVisit> paths = new ArrayList<>();
+                        for (Statement node : outgoingNodeList) {
+                            double ratio = node.getResource().getProperty(E3value.up_fraction).getFloat() / totalFractions;
+                            //We need to compute the occurrences on each path
+                            paths.add(new PathVisit(node.getResource(), occurrences.times(ratio)));
                         }
-                        traverse(node.getResource(), pathOccurrences);
+                        pushAll(worklist, paths);
+                        continue visits;
                     }
-                    return;
-                }
-
-                //###  AND node  ###
-            } else if (nextElement.hasProperty(RDF.type, E3value.AND_node)) { //if it's a AND node
-                StmtIterator outgoingNodes = nextElement.listProperties(E3value.de_down_ce);//get outgoing connection elements
-                StmtIterator incomingNodes = nextElement.listProperties(E3value.de_up_ce);
-                List<Statement> outgoingNodeList = outgoingNodes.toList();
-                List<Statement> incomingNodeList = incomingNodes.toList();
 
-//                //## AND join ##
-                if (incomingNodeList.size() > 1) {
-                    if (debug) {
-                        System.out.println("\t\t\t ...it is an AND  join with " + incomingNodeList.size() + " incoming ports.");
-                    }
+                    //###  AND node  ###
+                } else if (nextElement.hasProperty(RDF.type, E3value.AND_node)) { //if it's a AND node
+                    StmtIterator outgoingNodes = nextElement.listProperties(E3value.de_down_ce);//get outgoing connection elements
+                    StmtIterator incomingNodes = nextElement.listProperties(E3value.de_up_ce);
+                    List<Statement> outgoingNodeList = outgoingNodes.toList();
+                    List<Statement> incomingNodeList = incomingNodes.toList();
+
+                    //## AND join ##
+                    if (incomingNodeList.size() > 1) {
+                        if (debug) {
+                            System.out.println("\t\t\t ...it is an AND  join with " + incomingNodeList.size() + " incoming ports.");
+                        }
 
-                    //check if all incoming paths have been considered,
-                    for (Statement incomingNode : incomingNodeList) {
-                        //and if not
-                        if (!incomingNode.getResource().hasProperty(E3value.e3_has_formula, "VISITED=1")) {
-                            if (debug) {
-                                System.out.println("\t\t\t ...waiting for the other incoming paths to be computed");
+                        //check if all incoming paths have been considered,
+                        for (Statement incomingNode : incomingNodeList) {
+                            //and if not
+                            if (!pathOccurrences.containsKey(incomingNode.getResource())) {
+                                if (debug) {
+                                    System.out.println("\t\t\t ...waiting for the other incoming paths to be computed");
+                                }
+                                //wait for the other paths
+                                continue visits;
                             }
-                            //wait for the other paths
-                            return;
                         }
-                    }
 
-                    //If all paths were computed,     
-                    //take the smallest 
-                    String outgoingOccurrences = incomingNodeList.get(0).getResource().getProperty(E3value.down_fraction).getString();
-                    for (int i = 1; i < incomingNodeList.size(); i++) {
-                        String incomingOccurrence = incomingNodeList.get(i).getResource().getProperty(E3value.down_fraction).getString();
-                        if (outgoingOccurrences.matches("\\d*\\.?\\d*") && incomingOccurrence.matches("\\d*\\.?\\d*")) {
-                            int comparissonResult = (Double.valueOf(outgoingOccurrences).compareTo(Double.valueOf(incomingOccurrence)));
-                            if (comparissonResult > 0) {
-                                outgoingOccurrences = incomingOccurrence;
-                            }
-                        } else {
-                            outgoingOccurrences = "IF(" + outgoingOccurrences + ">" + incomingOccurrence + "," + incomingOccurrence + "," + outgoingOccurrences + ")";
+                        //If all paths were computed,
+                        //take the smallest
+                        OccurrenceExpression outgoingOccurrences = pathOccurrences.get(incomingNodeList.get(0).getResource());
+                        for (int i = 1; i < incomingNodeList.size(); i++) {
+                            outgoingOccurrences = outgoingOccurrences.min(pathOccurrences.get(incomingNodeList.get(i).getResource()));
+                        }
+                        if (debug) {
+                            System.out.println("\t\t\t ... smallest occurrence rate = " + outgoingOccurrences);
                         }
-                    }
-                    if (debug) {
-                        System.out.println("\t\t\t ... smallest occurrence rate = " + outgoingOccurrences);
-                    }
 
-                    //and then go down outgoing CE
-                    traverse(nextElement.getProperty(E3value.de_down_ce).getResource(), outgoingOccurrences);
-                    return;
-                } //## AND fork ##
-                else {
+                        //and then go down outgoing CE
+                        nextElement = nextElement.getProperty(E3value.de_down_ce).getResource();
+                        occurrences = outgoingOccurrences;
+                    } //## AND fork ##
+                    else {
 
-                    if (debug) {
-                        System.out.println("\t\t\t ...it is an AND  fork with " + outgoingNodeList.size() + " outgoing ports.");
-                    }
-                    //Go down each path using occurence = OCCURENCE*fraction
-                    for (Statement node : outgoingNodeList) {
-                        double ratio = node.getResource().getProperty(E3value.up_fraction).getFloat();
-                        //Therefore, if the occurrence rate is a number
-                        if (occurrences.matches("\\d*\\.?\\d*")) {
-                            //Compute it now to keep it a number
-                            occurrences = Double.toString(Double.valueOf(occurrences) * ratio);
-                        } //if it is an expression
-                        else {
-                            //Keep it as an expression
-                            occurrences = "(" + occurrences + ")*" + ratio;
+                        if (debug) {
+                            System.out.println("\t\t\t ...it is an AND  fork with " + outgoingNodeList.size() + " outgoing ports.");
+                        }
+                        //Go down each path using occurence = OCCURENCE*fraction
+                        List<PathVisit> paths = new ArrayList<>();
+                        for (Statement node : outgoingNodeList) {
+                            double ratio = node.getResource().getProperty(E3value.up_fraction).getFloat();
+                            occurrences = occurrences.times(ratio);
+                            paths.add(new PathVisit(node.getResource(), occurrences));
                         }
-                        traverse(node.getResource(), occurrences);
+                        pushAll(worklist, paths);
+                        continue visits;
                     }
-                    return;
-                }
 
-                //###  connection_element  ###
-            } else if (nextElement.hasProperty(RDF.type, E3value.connection_element)) {//if it's a ConnectionElement
-                if (debug) {
-                    System.out.println("\t\t\t... it is a Connection Element");
-                }
-                //if the next element happens to be a join (i.e. have multiple incoming CEs)
-                StmtIterator incomingNodes = nextElement.getProperty(E3value.ce_with_down_de).getResource().listProperties(E3value.de_up_ce);
-                List<Statement> incomingNodeList = incomingNodes.toList();
-                if (incomingNodeList.size() > 1) {
-                    //mark this incoming path as visited (to be used by the join to compute the occurrences of the outgoing path)
-                    nextElement.addProperty(E3value.e3_has_formula, "VISITED=1");
-                    nextElement.getProperty(E3value.down_fraction).changeObject(occurrences);
-                }
-                nextElement = nextElement.getProperty(E3value.ce_with_down_de).getResource();//choose the next element (Value Interface or AND/OR node)
+                    //###  connection_element  ###
+                } else if (nextElement.hasProperty(RDF.type, E3value.connection_element)) {//if it's a ConnectionElement
+                    if (debug) {
+                        System.out.println("\t\t\t... it is a Connection Element");
+                    }
+                    //if the next element happens to be a join (i.e. have multiple incoming CEs)
+                    StmtIterator incomingNodes = nextElement.getProperty(E3value.ce_with_down_de).getResource().listProperties(E3value.de_up_ce);
+                    List<Statement> incomingNodeList = incomingNodes.toList();
+                    if (incomingNodeList.size() > 1) {
+                        //remember the occurrences of this incoming path (to be used by the join to compute the occurrences of the outgoing path)
+                        pathOccurrences.put(nextElement, occurrences);
+                    }
+                    nextElement = nextElement.getProperty(E3value.ce_with_down_de).getResource();//choose the next element (Value Interface or AND/OR node)
 
-                //###  value_interface  with incoming CE###                
-            } else if (nextElement.hasProperty(RDF.type, E3value.value_interface) && nextElement.hasProperty(E3value.de_up_ce)) { //if it's a ValueInterface with an incoming ConnectionElement (meaning we need to go down the ValueExchange(s))
-                if (debug) {
-                    System.out.println("\t\t\t... it is a ValueInterface with an incoming ConnectionElement");
-                }
-                //add occurrences to it (before taking count into consideration)
-                updateValueInterfaceOccurrences(nextElement, occurrences);
+                    //###  value_interface  with incoming CE###
+                } else if (nextElement.hasProperty(RDF.type, E3value.value_interface) && nextElement.hasProperty(E3value.de_up_ce)) { //if it's a ValueInterface with an incoming ConnectionElement (meaning we need to go down the ValueExchange(s))
+                    if (debug) {
+                        System.out.println("\t\t\t... it is a ValueInterface with an incoming ConnectionElement");
+                    }
+                    //add occurrences to it (before taking count into consideration)
+                    updateValueInterfaceOccurrences(nextElement, occurrences.toString());
 
-                //if the Value Interface was part of a MarketSegment, multiply the occurence by the count of this MarketSegment
-                if (nextElement.hasProperty(E3value.vi_assigned_to_ms)) {
-                    Resource marketSegment = nextElement.getPropertyResourceValue(E3value.vi_assigned_to_ms);
-                    occurrences = multiplyByCount(marketSegment, occurrences);
-                }
+                    //if the Value Interface was part of a MarketSegment, multiply the occurence by the count of this MarketSegment
+                    if (nextElement.hasProperty(E3value.vi_assigned_to_ms)) {
+                        Resource marketSegment = nextElement.getPropertyResourceValue(E3value.vi_assigned_to_ms);
+                        occurrences = multiplyByCount(marketSegment, occurrences);
+                    }
 
-                //find all other interfaces that are connected to this one 
-                HashSet<Resource> connectedValueInterfaces = getConnectedInterfaces(nextElement, true, true);
+                    //find all other interfaces that are connected to this one
+                    HashSet<Resource> connectedValueInterfaces = getConnectedInterfaces(nextElement, true, true);
 
-                //and continue the traversal through each one
-                for (Resource connectedValueInterface : connectedValueInterfaces) {
-                    traverse(connectedValueInterface, occurrences);
-                }
-                return;
+                    //and continue the traversal through each one
+                    List<PathVisit> paths = new ArrayList<>();
+                    for (Resource connectedValueInterface : connectedValueInterfaces) {
+                        paths.add(new PathVisit(connectedValueInterface, occurrences));
+                    }
+                    pushAll(worklist, paths);
+                    continue visits;
 
-                //###  value_interface with outgoing CE  ###
-            } else if (nextElement.hasProperty(RDF.type, E3value.value_interface) && nextElement.hasProperty(E3value.de_down_ce)) { //if it's a ValueInterface with an outgoing ConnectionElement (meaning we need to go down this ConnectionElement)
-                if (debug) {
-                    System.out.println("\t\t\t... it is a ValueInterface with an outgoing ConnectionElement");
-                }
+                    //###  value_interface with outgoing CE  ###
+                } else if (nextElement.hasProperty(RDF.type, E3value.value_interface) && nextElement.hasProperty(E3value.de_down_ce)) { //if it's a ValueInterface with an outgoing ConnectionElement (meaning we need to go down this ConnectionElement)
+                    if (debug) {
+                        System.out.println("\t\t\t... it is a ValueInterface with an outgoing ConnectionElement");
+                    }
 
-                //If the Value Interface is part of a MarketSegment, divide the occurence by the count of this MarketSegment
-                if (nextElement.hasProperty(E3value.vi_assigned_to_ms)) {
-                    Resource marketSegment = nextElement.getPropertyResourceValue(E3value.vi_assigned_to_ms);
-                    occurrences = divideByCount(marketSegment, occurrences);
-                }
-                //Then, add occurrences to it 
-                updateValueInterfaceOccurrences(nextElement, occurrences);
+                    //If the Value Interface is part of a MarketSegment, divide the occurence by the count of this MarketSegment
+                    if (nextElement.hasProperty(E3value.vi_assigned_to_ms)) {
+                        Resource marketSegment = nextElement.getPropertyResourceValue(E3value.vi_assigned_to_ms);
+                        occurrences = divideByCount(marketSegment, occurrences);
+                    }
+                    //Then, add occurrences to it
+                    updateValueInterfaceOccurrences(nextElement, occurrences.toString());
 
-                nextElement = nextElement.getProperty(E3value.de_down_ce).getResource();//choose the next Connection Element                
+                    nextElement = nextElement.getProperty(E3value.de_down_ce).getResource();//choose the next Connection Element
 
-                //###  value_interface with no connected CE (exchanges on either sides)  ###
-            } else if (nextElement.hasProperty(RDF.type, E3value.value_interface)) {
-                if (debug) {
-                    System.out.println("\t\t\t... it is a ValueInterface with no connected CE (exchanges on both sides)");
-                }
-                //First, find out which is (are) the next value interface(s)                
-                HashSet<Resource> connectedValueInterfaces = getConnectedInterfaces(nextElement, true, true);
-                System.out.println("connected value interfaces: " + connectedValueInterfaces.toString());
-                HashSet<Resource> outgoingConnectedValueInterfaces = new HashSet<>();
-                //by looking through all connected interfaces
-                for (Resource connectedValueInterface : connectedValueInterfaces) {
-                    //and selecting the ones which have a outgoing CE
-                    if (connectedValueInterface.hasProperty(E3value.de_down_ce)) {
-                        outgoingConnectedValueInterfaces.add(connectedValueInterface);
-                    } //or which are in turn connected to another interface  which has an outgoing CE
-                    else if (!connectedValueInterface.hasProperty(E3value.de_down_ce)) {
-                        HashSet<Resource> secondConnectedValueInterfaces = getConnectedInterfaces(connectedValueInterface, true, true);
-                        for (Resource secondConnectedValueInterface : secondConnectedValueInterfaces) {
-                            if (secondConnectedValueInterface.hasProperty(E3value.de_down_ce)) {
-                                outgoingConnectedValueInterfaces.add(connectedValueInterface);
+                    //###  value_interface with no connected CE (exchanges on either sides)  ###
+                } else if (nextElement.hasProperty(RDF.type, E3value.value_interface)) {
+                    if (debug) {
+                        System.out.println("\t\t\t... it is a ValueInterface with no connected CE (exchanges on both sides)");
+                    }
+                    //First, find out which is (are) the next value interface(s)
+                    HashSet<Resource> connectedValueInterfaces = getConnectedInterfaces(nextElement, true, true);
+                    System.out.println("connected value interfaces: " + connectedValueInterfaces.toString());
+                    HashSet<Resource> outgoingConnectedValueInterfaces = new HashSet<>();
+                    //by looking through all connected interfaces
+                    for (Resource connectedValueInterface : connectedValueInterfaces) {
+                        //and selecting the ones which have a outgoing CE
+                        if (connectedValueInterface.hasProperty(E3value.de_down_ce)) {
+                            outgoingConnectedValueInterfaces.add(connectedValueInterface);
+                        } //or which are in turn connected to another interface  which has an outgoing CE
+                        else if (!connectedValueInterface.hasProperty(E3value.de_down_ce)) {
+                            HashSet<Resource> secondConnectedValueInterfaces = getConnectedInterfaces(connectedValueInterface, true, true);
+                            for (Resource secondConnectedValueInterface : secondConnectedValueInterfaces) {
+                                if (secondConnectedValueInterface.hasProperty(E3value.de_down_ce)) {
+                                    outgoingConnectedValueInterfaces.add(connectedValueInterface);
+                                }
                             }
                         }
                     }
-                }
 
-                System.out.println("outgoing connected value interfaces: " + outgoingConnectedValueInterfaces.toString());
+                    System.out.println("outgoing connected value interfaces: " + outgoingConnectedValueInterfaces.toString());
 
-                //Second, find out if we are entering or exiting a MarketSegment
-                //and divide or multiple the occurence by its count as needed
-                if (nextElement.hasProperty(E3value.vi_assigned_to_ms)) {
-                    Resource marketSegment = nextElement.getPropertyResourceValue(E3value.vi_assigned_to_ms);
-                    HashSet<Resource> innerConnectedValueInterfaces = getConnectedInterfaces(nextElement, true, false);
-                    if (innerConnectedValueInterfaces.containsAll(connectedValueInterfaces)) {
-                        occurrences = divideByCount(marketSegment, occurrences);
-                    } else {
-                        occurrences = multiplyByCount(marketSegment, occurrences);
+                    //Second, find out if we are entering or exiting a MarketSegment
+                    //and divide or multiple the occurence by its count as needed
+                    if (nextElement.hasProperty(E3value.vi_assigned_to_ms)) {
+                        Resource marketSegment = nextElement.getPropertyResourceValue(E3value.vi_assigned_to_ms);
+                        HashSet<Resource> innerConnectedValueInterfaces = getConnectedInterfaces(nextElement, true, false);
+                        if (innerConnectedValueInterfaces.containsAll(connectedValueInterfaces)) {
+                            occurrences = divideByCount(marketSegment, occurrences);
+                        } else {
+                            occurrences = multiplyByCount(marketSegment, occurrences);
+                        }
                     }
-                }
 
-                //Then, add occurrences to it 
-                updateValueInterfaceOccurrences(nextElement, occurrences);
+                    //Then, add occurrences to it
+                    updateValueInterfaceOccurrences(nextElement, occurrences.toString());
 
-                //and continue the traversal through each one
-                for (Resource outgoingConnectedValueInterface : outgoingConnectedValueInterfaces) {
-                    traverse(outgoingConnectedValueInterface, occurrences);
+                    //and continue the traversal through each one
+                    List<PathVisit> paths = new ArrayList<>();
+                    for (Resource outgoingConnectedValueInterface : outgoingConnectedValueInterfaces) {
+                        paths.add(new PathVisit(outgoingConnectedValueInterface, occurrences));
+                    }
+                    pushAll(worklist, paths);
+                    continue visits;
                 }
-                return;
             }
-        }
-        if (debug) {
-            System.out.println("\t...reached end stimulus!");
+            if (debug) {
+                System.out.println("\t...reached end stimulus!");
+            }
         }
     }
 
@@ -1328,11 +1602,17 @@ public class E3Model {
      */
     public double valueOf(Resource element, String attribute) {
         String uuid = element.getProperty(E3value.e3_has_uid).getString();
-        Optional<Double> val = this.evaluatedModel.valueOf("#" + uuid + "." + attribute);
-        if (val.isPresent()) {
-            return val.get();
+        int handle = this.evaluatedModel.handleOf(uuid, attribute);
+        if (handle == ExpressionEvaluator.NO_HANDLE) {
+            //let the evaluator report the missing reference
+            this.evaluatedModel.valueOf("#" + uuid + "." + attribute);
+            return 0;
+        }
+        double val = this.evaluatedModel.valueOf(handle);
+        if (Double.isNaN(val)) {
+            return 0;
         }
-        return 0;
+        return val;
     }
 
     /**
@@ -1350,7 +1630,6 @@ public class E3Model {
      * @return the profit for that actor in the selected case
      */
     public double getTotalForActorPerOccurence(Resource actor, Resource selectedValueInterface, boolean ideal) {
-        double result = 0;
         actor = model.getResource(actor.getURI());
 
         //as preparation, select the valueInterfaces that the calculation is to be done for
@@ -1403,106 +1682,7 @@ public class E3Model {
             return 0;
         }
 
-        //Second, take into account Investment, Expenses and Interest:
-        if (actor.hasProperty(E3value.e3_has_formula)) {
-            //get list of formulas (INVESTMENT, EXPENSES, INTEREST)
-            StmtIterator actorFormulas = actor.listProperties(E3value.e3_has_formula);
-            while (actorFormulas.hasNext()) {
-                Statement formula = actorFormulas.next();
-                String formulaString = formula.getString();
-                String attribute = formulaString.split("=", 2)[0];
-                if (attribute.equals("INVESTMENT") || attribute.equals("EXPENSES") || attribute.equals("INTEREST")) {
-                    double value = valueOf(actor, attribute);
-                    result -= value;
-                }
-            }
-        }
-
-        //Third, calculate the income/loss per Value Interface:
-        //if actor/ms has a Value Interfaces
-        if (actor.hasProperty(E3value.ac_has_vi) || actor.hasProperty(E3value.ms_has_vi)) {
-            StmtIterator actorValueInterfaces;
-            //get list of ValueInterfaces
-            if (actor.hasProperty(E3value.ms_has_vi)) {
-                actorValueInterfaces = actor.listProperties(E3value.ms_has_vi);
-            } else {
-                actorValueInterfaces = actor.listProperties(E3value.ac_has_vi);
-            }
-            //for each VAlueInterface,
-            while (actorValueInterfaces.hasNext()) {
-                Statement valueInterface = actorValueInterfaces.next();
-                //if it is part of the desired ones 
-                if (selectedValueInterfaces.contains(valueInterface.getResource())) {
-                    //get ValueOfferings (groups of equally directed ports)
-                    StmtIterator valueOfferings = valueInterface.getResource().listProperties(E3value.vi_consists_of_of);
-                    //and for each ValueOffering (group of equally directed ports)
-                    while (valueOfferings.hasNext()) {
-                        Statement valueOffering = valueOfferings.next();
-                        //determine valuation
-                        //by getting a list of it's individual ports
-                        double valueOfferingValuation = 0;
-                        StmtIterator valuePorts = valueOffering.getResource().listProperties(E3value.vo_consists_of_vp);
-                        //and for each valuePort
-                        while (valuePorts.hasNext()) {
-                            Statement valuePort = valuePorts.next();
-                            //determine value
-                            //by getting list of EXPENSES, VALUATION,
-                            double valuePortValuation = 0;
-                            StmtIterator valuePortFormulas = valuePort.getResource().listProperties(E3value.e3_has_formula);
-                            //adding them up
-                            while (valuePortFormulas.hasNext()) {
-                                Statement formula = valuePortFormulas.next();
-                                String formulaString = formula.getString();
-                                String attribute = formulaString.split("=", 2)[0];
-                                if (attribute.equals("VALUATION") || attribute.equals("EXPENSES")) {
-                                    double value = valueOf(valuePort.getResource(), attribute);
-                                    valuePortValuation += value;
-                                }
-                            }
-
-                            //multiplying it with the CARDINALITY of the Port's associated Value Exchange and nullifying if necessary
-                            if (valuePort.getResource().hasProperty(E3value.vp_out_connects_ve)) {//if it's an (outgoing) ValuePort
-                                if (ideal == true) {//If we want the expected case
-                                    if (isHidden(valuePort.getResource().getProperty(E3value.vp_out_connects_ve).getResource())) {//and it's respective (outgoing) Value Exchange is hidden
-                                        valuePortValuation = 0; //nullify it
-                                    }
-                                } else//If we want the real case
-                                 if (isNonOccurring(valuePort.getResource().getProperty(E3value.vp_out_connects_ve).getResource())) {//and it's respective (outgoing) Value Exchange is nonOccurring
-                                        valuePortValuation = 0; //nullify it
-                                    }
-                                valuePortValuation *= getCardinality(valuePort.getResource().getProperty(E3value.vp_out_connects_ve).getResource());// then multiply with cardinality of respective (outgoing) ve                             
-                            } else if (valuePort.getResource().hasProperty(E3value.vp_in_connects_ve)) {//if it's an (incoming) ValuePort
-                                if (ideal == true) {//If we want the expected case
-                                    if (isHidden(valuePort.getResource().getProperty(E3value.vp_in_connects_ve).getResource())) {//and it's respective (incoming) Value Exchange is hidden
-                                        valuePortValuation = 0; //nullify it
-                                    }
-                                } else//If we want the real case
-                                 if (isNonOccurring(valuePort.getResource().getProperty(E3value.vp_in_connects_ve).getResource())) {//and it's respective (incoming) Value Exchange is nonOccurring
-                                        valuePortValuation = 0; //nullify it
-                                    }
-                                valuePortValuation *= getCardinality(valuePort.getResource().getProperty(E3value.vp_in_connects_ve).getResource());// then multiply with cardinality of respective (incoming) ve
-                            }
-
-                            //and then multiplying them with the occurence rate
-                            //valuePortValuation = valuePortValuation * occurences;
-                            //add it up to determine valueOfferingValuation
-                            valueOfferingValuation += valuePortValuation;
-                        }
-                        //finally, if it was an incoming ValueOFfering,
-                        if (valueOffering.getResource().getProperty(E3value.e3_has_name).getString().equals("in")) {
-                            //add it to the actors profit.
-                            result += valueOfferingValuation;
-                            //else, if it was outgoing,
-                        } else {
-                            //deduct it from the actor's profit.
-                            result -= valueOfferingValuation;
-                        }
-                    }
-                }
-            }
-        }
-
-        return result;
+        return getProfitPlan(actor, ideal, selectedValueInterfaces).evaluate(evaluatedModel);
     }
 
     /**
@@ -1518,7 +1698,6 @@ public class E3Model {
      * @return the profit for that actor in the selected case
      */
     public double getTotalForActor(Resource actor, boolean ideal) {
-        double result = 0;
         actor = model.getResource(actor.getURI());
 
         
@@ -1529,138 +1708,464 @@ public class E3Model {
             //return 0;
         }
 
-        //Second, take into account Investment, Expenses and Interest:
-        if (actor.hasProperty(E3value.e3_has_formula)) {
-            //get list of formulas (INVESTMENT, EXPENSES, INTEREST)
-            StmtIterator actorFormulas = actor.listProperties(E3value.e3_has_formula);
-            while (actorFormulas.hasNext()) {
-                Statement formula = actorFormulas.next();
-                String formulaString = formula.getString();
-                String attribute = formulaString.split("=", 2)[0];
-                if (attribute.equals("INVESTMENT") || attribute.equals("EXPENSES") || attribute.equals("INTEREST")) {
-                    double value = valueOf(actor, attribute);
-                    result -= value;
-                }
+        CompiledValueModel compiled = getCompiledModel();
+        return getTotal(compiled, compiled.indexOf(actor), ideal);
+    }
+
+    /**
+     * Same as getTotalForActor, for the actor (or market segment) with the
+     * given uid
+     *
+     * @param actorUID the e3_has_uid of the actor
+     * @param ideal expected (true) or real (false) case, see getTotalForActor
+     * @return the profit for that actor in the selected case
+     */
+    public double getTotalForActor(long actorUID, boolean ideal) {
+        CompiledValueModel compiled = getCompiledModel();
+        int index = compiled.indexOfUID(actorUID);
+        if (index < 0) {
+            System.err.println("UID " + actorUID + " is not an actor!");
+            throw new IllegalArgumentException("Attempted to compute profit of a non-actor");
+        }
+        return getTotal(compiled, index, ideal);
+    }
+
+    /**
+     * The (cached) profit of the actor with the given number in the compiled
+     * model
+     */
+    private double getTotal(CompiledValueModel compiled, int index, boolean ideal) {
+        synchronized (this) {
+            CachedTotals cached = cachedTotals(compiled);
+            if (cached.known[ideal ? 1 : 0][index]) {
+                savedRecomputations.incrementAndGet();
+                return cached.totals[ideal ? 1 : 0][index];
             }
         }
+        double total = compiled.total(index, ideal);
+        synchronized (this) {
+            CachedTotals cached = cachedTotals(compiled);
+            cached.totals[ideal ? 1 : 0][index] = total;
+            cached.known[ideal ? 1 : 0][index] = true;
+        }
+        return total;
+    }
 
-        //Third, calculate the income/loss per Value Interface:
-        //if actor has a Value Interfaces
-        if (actor.hasProperty(E3value.ac_has_vi) || actor.hasProperty(E3value.ms_has_vi)) {
-            StmtIterator actorValueInterfaces;
-            //get list of ValueInterfaces
-            if (actor.hasProperty(E3value.ms_has_vi)) {
-                actorValueInterfaces = actor.listProperties(E3value.ms_has_vi);
-            } else {
-                actorValueInterfaces = actor.listProperties(E3value.ac_has_vi);
-            }
-            //for each VAlueInterface,
-            while (actorValueInterfaces.hasNext()) {
-                Statement valueInterface = actorValueInterfaces.next();
-                double occurences = 0;
-                //get number of occurences
-                StmtIterator valueInterfaceFormulas = valueInterface.getResource().listProperties(E3value.e3_has_formula);
-                while (valueInterfaceFormulas.hasNext()) {
-                    Statement formula = valueInterfaceFormulas.next();
-                    String attribute = formula.getString().split("=", 2)[0];
-                    String value = formula.getString().split("=", 2)[1];
-                    if (attribute.equals("OCCURRENCES")) {
-                        // if it is a number
-                        if (value.matches("\\d*\\.?\\d*")) {
-                            //we must use it directly (since the evaluatedModel will not be up-to-date)
-                            occurences = Double.valueOf(value);
-                        } //if it is an expression
-                        else {
-                            //we query the evaluatedModel
-                            occurences = valueOf(valueInterface.getResource(), attribute);
-                        }
-                    }
-                }
-                //and then get ValueOfferings (groups of equally directed ports)
-                StmtIterator valueOfferings = valueInterface.getResource().listProperties(E3value.vi_consists_of_of);
-                //and for each ValueOffering (group of equally directed ports)
-                while (valueOfferings.hasNext()) {
-                    Statement valueOffering = valueOfferings.next();
-                    //determine valuation
-                    //by getting a list of it's individual ports
-                    double valueOfferingValuation = 0;
-                    StmtIterator valuePorts = valueOffering.getResource().listProperties(E3value.vo_consists_of_vp);
-                    //and for each valuePort
-                    while (valuePorts.hasNext()) {
-                        Statement valuePort = valuePorts.next();
-                        //determine value
-                        //by getting list of EXPENSES, VALUATION,
-                        double valuePortValuation = 0;
-                        double valuePortExpenses = 0;
-                        StmtIterator valuePortFormulas = valuePort.getResource().listProperties(E3value.e3_has_formula);
-                        //adding them up
-                        while (valuePortFormulas.hasNext()) {
-                            Statement formula = valuePortFormulas.next();
-                            String formulaString = formula.getString();
-                            String attribute = formulaString.split("=", 2)[0];
-                            if (attribute.equals("VALUATION")) {
-                                double value = valueOf(valuePort.getResource(), attribute);
-                                valuePortValuation += value;
-                            } else if (attribute.equals("EXPENSES")) {
-                                double value = valueOf(valuePort.getResource(), attribute);
-                                valuePortExpenses += value;
-                            }
-                        }
+    /**
+     * Calculates the total profit of every actor and market segment, as
+     * getTotalForActor does, in a single pass
+     *
+     * @param ideal expected (true) or real (false) case, see getTotalForActor
+     * @return per actor, its profit in the selected case
+     */
+    public Map<Resource, Double> getTotals(boolean ideal) {
+        CompiledValueModel compiled = getCompiledModel();
+        double[] totals = new double[compiled.getActorCount()];
+        boolean complete;
+        synchronized (this) {
+            CachedTotals cached = cachedTotals(compiled);
+            complete = true;
+            for (boolean known : cached.known[ideal ? 1 : 0]) {
+                complete &= known;
+            }
+            if (complete) {
+                System.arraycopy(cached.totals[ideal ? 1 : 0], 0, totals, 0, totals.length);
+                savedRecomputations.addAndGet(totals.length);
+            }
+        }
+        if (!complete) {
+            compiled.totals(ideal, totals);
+            synchronized (this) {
+                CachedTotals cached = cachedTotals(compiled);
+                System.arraycopy(totals, 0, cached.totals[ideal ? 1 : 0], 0, totals.length);
+                Arrays.fill(cached.known[ideal ? 1 : 0], true);
+            }
+        }
+        Map<Resource, Double> result = new HashMap<>();
+        for (int a = 0; a < totals.length; a++) {
+            result.put(compiled.getActor(a), totals[a]);
+        }
+        return result;
+    }
 
-                        //multiplying it with the CARDINALITY of the Port's associated Value Exchange and nullifying if necessary
-                        if (valuePort.getResource().hasProperty(E3value.vp_out_connects_ve)) {//if it's an (outgoing) ValuePort
-                            //add the expenses to the valuation
-                            valuePortValuation += valuePortExpenses;
-                            if (ideal == true) {//If we want the expected case
-                                if (isHidden(valuePort.getResource().getProperty(E3value.vp_out_connects_ve).getResource())) {//and it's respective (outgoing) Value Exchange is hidden
-                                    valuePortValuation = 0; //nullify it
-                                }
-                            } else//If we want the real case
-                             if (isNonOccurring(valuePort.getResource().getProperty(E3value.vp_out_connects_ve).getResource())) {//and it's respective (outgoing) Value Exchange is nonOccurring
-                                    valuePortValuation = 0; //nullify it
-                                }
-                            valuePortValuation *= getCardinality(valuePort.getResource().getProperty(E3value.vp_out_connects_ve).getResource());// then multiply with cardinality of respective (outgoing) ve                             
-                        } else if (valuePort.getResource().hasProperty(E3value.vp_in_connects_ve)) {//if it's an (incoming) ValuePort
-                            //deduct expenses from valuation
-                            valuePortValuation -= valuePortExpenses;
-                            if (ideal == true) {//If we want the expected case
-                                if (isHidden(valuePort.getResource().getProperty(E3value.vp_in_connects_ve).getResource())) {//and it's respective (incoming) Value Exchange is hidden
-                                    valuePortValuation = 0; //nullify it
-                                }
-                            } else//If we want the real case
-                             if (isNonOccurring(valuePort.getResource().getProperty(E3value.vp_in_connects_ve).getResource())) {//and it's respective (incoming) Value Exchange is nonOccurring
-                                    valuePortValuation = 0; //nullify it
-                                }
-                            valuePortValuation *= getCardinality(valuePort.getResource().getProperty(E3value.vp_in_connects_ve).getResource());// then multiply with cardinality of respective (incoming) ve
-                        }
+    /**
+     * @return the number of times getTotalForActor (or getTotals, per actor)
+     * returned a remembered result instead of computing it again
+     */
+    public long getSavedRecomputations() {
+        return savedRecomputations.get();
+    }
+
+    /**
+     * Forgets the results of getTotalForActor. Called by all methods that
+     * change the model; changes made to the Jena model directly are noticed
+     * through the modification count.
+     */
+    private synchronized void invalidateTotals() {
+        cachedTotals = null;
+    }
+
+    /**
+     * The remembered results for the given compiled model, which are empty if
+     * the model was compiled again or changed in any way since they were
+     * computed. Must be called while synchronized on this.
+     */
+    private CachedTotals cachedTotals(CompiledValueModel compiled) {
+        long modificationCount = modifications.get();
+        if (cachedTotals == null || cachedTotals.compiled != compiled || cachedTotals.modifications != modificationCount) {
+            cachedTotals = new CachedTotals(compiled, modificationCount);
+        }
+        return cachedTotals;
+    }
+
+    /**
+     * Results of getTotalForActor per actor number (of a compiled model), for
+     * the real (index 0) and ideal (index 1) case
+     */
+    private static final class CachedTotals {
+
+        private final CompiledValueModel compiled;
+        private final long modifications;
+        private final double[][] totals;
+        private final boolean[][] known;
+
+        CachedTotals(CompiledValueModel compiled, long modifications) {
+            this.compiled = compiled;
+            this.modifications = modifications;
+            this.totals = new double[2][compiled.getActorCount()];
+            this.known = new boolean[2][compiled.getActorCount()];
+        }
+    }
 
-                        //and then multiplying them with the occurence rate
-                        valuePortValuation = valuePortValuation * occurences;
+    /**
+     * The profit plans of the actors, compiled again whenever the evaluator
+     * or the structure of the Jena model changed. Formula rewrites of
+     * rewriteFormula (e.g. the OCCURRENCES that enhance() sets) only change
+     * the values the plans read.
+     */
+    CompiledValueModel getCompiledModel() {
+        CompiledValueModel compiled = compiledModel;
+        long modificationCount = structuralModifications.get();
+        if (compiled == null || !compiled.isValidFor(evaluatedModel, modificationCount)) {
+            compiled = new CompiledValueModel(this, evaluatedModel, modificationCount);
+            compiledModel = compiled;
+        }
+        return compiled;
+    }
 
-                        //add it up to determine valueOfferingValuation
-                        valueOfferingValuation += valuePortValuation;
+    /**
+     * Finds the actors whose financial result (see getTotalForActor) can
+     * change when the given element changes, e.g. when the OCCURRENCES of a
+     * need, the COUNT of a market segment, the VALUATION of a value port or
+     * the CARDINALITY of a value exchange are varied. This is answered from
+     * the formulas and dependency paths of the model alone, without
+     * evaluating anything (see InfluenceIndex).
+     *
+     * @param element the need, market segment, value port, value exchange or
+     * other element that changes
+     * @return the actors (and market segments) that can be affected. Actors
+     * that are not in it are certainly not affected.
+     */
+    public Set<Resource> getInfluencedActors(Resource element) {
+        if (influenceIndex == null) {
+            influenceIndex = new InfluenceIndex(model);
+        }
+        return influenceIndex.getInfluencedActors(element);
+    }
+
+    /**
+     * Compiles the profit computation of getTotalForActor for the current
+     * structure of the model into a ProfitPlan. The plan stays valid while
+     * only formula values change.
+     *
+     * @param actor the actor (or market segment) to compile the profit for
+     * @param ideal expected (true) or real (false) case, see getTotalForActor
+     * @return the plan
+     */
+    ProfitPlan getProfitPlan(Resource actor, boolean ideal) {
+        return getProfitPlan(actor, ideal, null);
+    }
+
+    /**
+     * Compiles the profit computation of getTotalForActor, or, if value
+     * interfaces are selected, that of getTotalForActorPerOccurence: only the
+     * selected value interfaces count, their occurrences are left out, and the
+     * VALUATION and EXPENSES of each port are added up as they come.
+     *
+     * @param selectedValueInterfaces the value interfaces to count per
+     * occurrence, or null for all value interfaces with their occurrences
+     */
+    private ProfitPlan getProfitPlan(Resource actor, boolean ideal, Set<Resource> selectedValueInterfaces) {
+        actor = model.getResource(actor.getURI());
+        if (!actor.hasProperty(RDF.type, E3value.elementary_actor) && !actor.hasProperty(RDF.type, E3value.market_segment)) {
+            System.err.println(actor.getProperty(E3value.e3_has_name) + "(UID " + actor.getProperty(E3value.e3_has_uid) + ") is not an actor!");
+            throw new IllegalArgumentException("Attempted to compute profit of a non-actor");
+        }
+        ProfitPlan.Builder plan = new ProfitPlan.Builder();
+
+        //Investment, Expenses and Interest
+        StmtIterator actorFormulas = actor.listProperties(E3value.e3_has_formula);
+        while (actorFormulas.hasNext()) {
+            String attribute = actorFormulas.next().getString().split("=", 2)[0];
+            if (attribute.equals("INVESTMENT") || attribute.equals("EXPENSES") || attribute.equals("INTEREST")) {
+                plan.subtract(operandOf(plan, actor, attribute));
+            }
+        }
+
+        //income/loss per Value Interface
+        StmtIterator actorValueInterfaces;
+        if (actor.hasProperty(E3value.ms_has_vi)) {
+            actorValueInterfaces = actor.listProperties(E3value.ms_has_vi);
+        } else {
+            actorValueInterfaces = actor.listProperties(E3value.ac_has_vi);
+        }
+        while (actorValueInterfaces.hasNext()) {
+            Resource valueInterface = actorValueInterfaces.next().getResource();
+            int occurrences = plan.constant(0);
+            String value = formulas().getExpression(valueInterface, "OCCURRENCES");
+            if (selectedValueInterfaces != null) {
+                if (!selectedValueInterfaces.contains(valueInterface)) {
+                    continue;
+                }
+                occurrences = plan.constant(1);
+            } else if (value != null) {
+                if (isNumber(value)) {
+                    //use it directly, since the evaluator may not be up-to-date
+                    occurrences = plan.constant(Double.valueOf(value));
+                } else {
+                    occurrences = operandOf(plan, valueInterface, "OCCURRENCES");
+                }
+            }
+
+            StmtIterator valueOfferings = valueInterface.listProperties(E3value.vi_consists_of_of);
+            while (valueOfferings.hasNext()) {
+                Resource valueOffering = valueOfferings.next().getResource();
+                StmtIterator valuePorts = valueOffering.listProperties(E3value.vo_consists_of_vp);
+                while (valuePorts.hasNext()) {
+                    Resource valuePort = valuePorts.next().getResource();
+                    List<Integer> valuations = new ArrayList<>();
+                    List<Integer> expenses = new ArrayList<>();
+                    StmtIterator valuePortFormulas = valuePort.listProperties(E3value.e3_has_formula);
+                    while (valuePortFormulas.hasNext()) {
+                        String attribute = valuePortFormulas.next().getString().split("=", 2)[0];
+                        if (attribute.equals("VALUATION") || (attribute.equals("EXPENSES") && selectedValueInterfaces != null)) {
+                            valuations.add(operandOf(plan, valuePort, attribute));
+                        } else if (attribute.equals("EXPENSES")) {
+                            expenses.add(operandOf(plan, valuePort, attribute));
+                        }
                     }
 
-                    //finally, if it was an incoming ValueOFfering,
-                    if (valueOffering.getResource().getProperty(E3value.e3_has_name).getString().equals("in")) {
-                        //add it to the actors profit.
-                        result += valueOfferingValuation;
-                        //else, if it was outgoing,
-                    } else {
-                        //deduct it from the actor's profit.
-                        result -= valueOfferingValuation;
+                    int direction = ProfitPlan.NONE;
+                    Resource valueExchange = null;
+                    if (valuePort.hasProperty(E3value.vp_out_connects_ve)) {
+                        direction = ProfitPlan.OUT;
+                        valueExchange = valuePort.getProperty(E3value.vp_out_connects_ve).getResource();
+                    } else if (valuePort.hasProperty(E3value.vp_in_connects_ve)) {
+                        direction = ProfitPlan.IN;
+                        valueExchange = valuePort.getProperty(E3value.vp_in_connects_ve).getResource();
+                    }
+                    boolean nullified = false;
+                    int cardinality = plan.constant(1);
+                    if (valueExchange != null) {
+                        nullified = ideal ? isHidden(valueExchange) : isNonOccurring(valueExchange);
+                        valueExchange = model.getResource(valueExchange.getURI());
+                        if (formulas().has(valueExchange, "CARDINALITY")) {
+                            cardinality = operandOf(plan, valueExchange, "CARDINALITY");
+                        }
                     }
+                    plan.port(direction, toArray(valuations), toArray(expenses), nullified, cardinality, occurrences);
+                }
+                plan.offering(valueOffering.getProperty(E3value.e3_has_name).getString().equals("in"));
+            }
+        }
+        return plan.build();
+    }
+
+    /**
+     * Computes the profit of every actor (as getTotalForActor does) together
+     * with its derivatives with respect to every parameter of the model: the
+     * OCCURRENCES of the needs, the COUNT of the market segments and the
+     * VALUATION of the value ports. All derivatives are computed in a single
+     * pass over the formulas, using forward mode automatic differentiation.
+     * Like getTotalForActor, it does not change the model, so the model must
+     * have been enhanced first.
+     *
+     * @param ideal expected (true) or real (false) case, see getTotalForActor
+     * @return the profits and derivatives
+     * @throws IllegalStateException if the evaluator is in POI mode
+     */
+    public ProfitDerivatives getProfitDerivatives(boolean ideal) {
+        List<Resource> parameters = new ArrayList<>();
+        List<String> attributes = new ArrayList<>();
+        List<Integer> handles = new ArrayList<>();
+        addParameters(E3value.start_stimulus, "OCCURRENCES", parameters, attributes, handles);
+        addParameters(E3value.market_segment, "COUNT", parameters, attributes, handles);
+        addParameters(E3value.value_port, "VALUATION", parameters, attributes, handles);
+
+        //compile the profit of every actor, and collect the formulas they need
+        Set<Resource> actors = this.getActorsAndMarketSegments();
+        Map<Resource, ProfitPlan> plans = new HashMap<>();
+        Map<Integer, Integer> outputIndex = new HashMap<>();
+        List<Integer> outputs = new ArrayList<>();
+        for (Resource actor : actors) {
+            ProfitPlan plan = getProfitPlan(actor, ideal);
+            plans.put(actor, plan);
+            for (int handle : plan.getHandles()) {
+                if (!outputIndex.containsKey(handle)) {
+                    outputIndex.put(handle, outputs.size());
+                    outputs.add(handle);
+                }
+            }
+        }
+        double[][] outputDerivatives = evaluatedModel.differentiate(toArray(handles), toArray(outputs));
+
+        Map<Resource, Double> profits = new HashMap<>();
+        Map<Resource, double[]> derivatives = new HashMap<>();
+        for (Resource actor : actors) {
+            ProfitPlan plan = plans.get(actor);
+            int[] planHandles = plan.getHandles();
+            double[] values = new double[planHandles.length];
+            double[][] tangents = new double[planHandles.length][];
+            for (int h = 0; h < planHandles.length; h++) {
+                values[h] = evaluatedModel.valueOf(planHandles[h]);
+                tangents[h] = outputDerivatives[outputIndex.get(planHandles[h])];
+            }
+            double[] tangent = new double[handles.size()];
+            profits.put(actor, plan.evaluate(values, tangents, tangent));
+            derivatives.put(actor, tangent);
+        }
+        return new ProfitDerivatives(parameters, attributes, profits, derivatives);
+    }
+
+    /**
+     * Computes bounds on the profit of every actor (as getTotalForActor
+     * computes it) when some formulas take any value within a range, e.g. a
+     * hidden transfer between 0 and an actor's total, or a COUNT between 1
+     * and 500. The bounds are guaranteed: whatever values the formulas take
+     * within their ranges, the profit of each actor stays within its bounds.
+     * They are not necessarily tight. Like getTotalForActor, it does not
+     * change the model, so the model must have been enhanced first.
+     *
+     * @param ranges per formula (as a reference, e.g. #123.COUNT), its lowest
+     * and highest value
+     * @param ideal expected (true) or real (false) case, see getTotalForActor
+     * @return per actor, the lowest (index 0) and highest (index 1) profit.
+     * Infinite if the profit cannot be bounded.
+     * @throws IllegalArgumentException if a reference does not exist
+     * @throws IllegalStateException if the evaluator is in POI mode
+     */
+    public Map<Resource, double[]> getProfitBounds(Map<String, double[]> ranges, boolean ideal) {
+        int[] inputs = new int[ranges.size()];
+        double[] lower = new double[ranges.size()];
+        double[] upper = new double[ranges.size()];
+        int i = 0;
+        for (Map.Entry<String, double[]> range : ranges.entrySet()) {
+            inputs[i] = evaluatedModel.handleOf(range.getKey());
+            if (inputs[i] == ExpressionEvaluator.NO_HANDLE) {
+                throw new IllegalArgumentException("Formula " + range.getKey() + " does not exist");
+            }
+            lower[i] = range.getValue()[0];
+            upper[i] = range.getValue()[1];
+            i++;
+        }
+
+        //compile the profit of every actor, and collect the formulas they need
+        Set<Resource> actors = this.getActorsAndMarketSegments();
+        Map<Resource, ProfitPlan> plans = new HashMap<>();
+        Map<Integer, Integer> outputIndex = new HashMap<>();
+        List<Integer> outputs = new ArrayList<>();
+        for (Resource actor : actors) {
+            ProfitPlan plan = getProfitPlan(actor, ideal);
+            plans.put(actor, plan);
+            for (int handle : plan.getHandles()) {
+                if (!outputIndex.containsKey(handle)) {
+                    outputIndex.put(handle, outputs.size());
+                    outputs.add(handle);
                 }
             }
         }
+        double[][] outputBounds = evaluatedModel.evaluateBounds(inputs, lower, upper, toArray(outputs));
+
+        Map<Resource, double[]> result = new HashMap<>();
+        for (Resource actor : actors) {
+            ProfitPlan plan = plans.get(actor);
+            int[] planHandles = plan.getHandles();
+            double[] planLower = new double[planHandles.length];
+            double[] planUpper = new double[planHandles.length];
+            for (int h = 0; h < planHandles.length; h++) {
+                double[] bounds = outputBounds[outputIndex.get(planHandles[h])];
+                planLower[h] = bounds[0];
+                planUpper[h] = bounds[1];
+            }
+            result.put(actor, plan.evaluate(planLower, planUpper));
+        }
         return result;
     }
 
+    /**
+     * Bounds the profit of one actor, see getProfitBounds
+     *
+     * @return the lowest (index 0) and highest (index 1) profit of the actor
+     */
+    public double[] getTotalBoundsForActor(Resource actor, boolean ideal, Map<String, double[]> ranges) {
+        return getProfitBounds(ranges, ideal).get(model.getResource(actor.getURI()));
+    }
+
+    /**
+     * Adds the given attribute of all elements of the given type that have
+     * it to the parameters
+     */
+    private void addParameters(Resource type, String attribute, List<Resource> parameters, List<String> attributes, List<Integer> handles) {
+        ResIterator elements = model.listSubjectsWithProperty(RDF.type, type);
+        while (elements.hasNext()) {
+            Resource element = elements.next();
+            if (!element.hasProperty(E3value.e3_has_uid)) {
+                continue;
+            }
+            int handle = handleOf(element, attribute);
+            if (handle != ExpressionEvaluator.NO_HANDLE) {
+                parameters.add(element);
+                attributes.add(attribute);
+                handles.add(handle);
+            }
+        }
+    }
+
+    private int handleOf(Resource element, String attribute) {
+        return evaluatedModel.handleOf(element.getProperty(E3value.e3_has_uid).getString(), attribute);
+    }
+
+    /**
+     * The operand of a plan for a formula of an element. A missing formula
+     * counts as 0, and is reported by the evaluator like in valueOf.
+     */
+    private int operandOf(ProfitPlan.Builder plan, Resource element, String attribute) {
+        int handle = handleOf(element, attribute);
+        if (handle == ExpressionEvaluator.NO_HANDLE) {
+            //let the evaluator report the missing reference
+            evaluatedModel.valueOf("#" + element.getProperty(E3value.e3_has_uid).getString() + "." + attribute);
+        }
+        return plan.value(handle);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
     /**
      * Computes and returns series for all actors across an interval of either
      * occurrence rates (if the given resource is a need) or counts (if given
      * resource is a Market segment)
      *
+     * The interval is divided into 50 equal steps. The model is not changed,
+     * see getSeries(Resource, List, boolean). To have fewer points where the
+     * results are linear and more where they bend, see getSeries(Resource,
+     * double, double, AdaptiveSampler, boolean).
+     *
      * @param needOrMarketSegment the need or market segment to be used on the
      * X-axis
      * @param startValue minimum occurrence rate of need
@@ -1671,64 +2176,799 @@ public class E3Model {
      *  and the Y-axis shows the financial result.
      */
     public Map<Resource, XYSeries> getSeries(Resource needOrMarketSegment, int startValue, int endValue, boolean ideal) {
+        //we only need 50 values so divide interval to 50
+        List<Double> points = new ArrayList<>();
+        if (startValue < endValue) {
+            double step = ((float) endValue - (float) startValue) / 50;
+            for (double i = startValue; i <= endValue; i += step) {
+                points.add(i);
+            }
+        } else if (startValue == endValue) {
+            points.add((double) startValue);
+        } else {
+            PopUps.infoBox("Start value must be lower than end value!", "Error");
+            return emptySeries();
+        }
+
+        try {
+            return getSeries(needOrMarketSegment, points, ideal);
+        } catch (InterruptedException ex) {
+            //keep the interrupt for the caller; there are no results to show
+            Thread.currentThread().interrupt();
+            return emptySeries();
+        }
+    }
+
+    /**
+     * Computes series for all actors across an interval of occurrence rates
+     * (if the given resource is a need) or counts (if it is a market
+     * segment), without changing this model.
+     *
+     * Instead of equal steps, the sampler starts with a few points and adds
+     * more only where the results bend, so kinks (e.g. from OR fractions) are
+     * sharp while linear stretches take few evaluations. The points of every
+     * round of the sampler are evaluated like in getSeries(Resource, List,
+     * boolean); the model is enhanced and compiled only once.
+     *
+     * @param needOrMarketSegment the need or market segment to be used on the
+     * X-axis
+     * @param startValue the lowest value of the need or market segment
+     * @param endValue the highest value of the need or market segment
+     * @param sampler decides on the points and the number of them
+     * @param ideal ideal or sub-ideal case
+     * @return a map of <Actor,XY series>, with the sampled points in
+     * increasing order
+     * @throws InterruptedException if the calling thread is interrupted. This
+     * model is then left as it was.
+     */
+    public Map<Resource, XYSeries> getSeries(Resource needOrMarketSegment, double startValue, double endValue, AdaptiveSampler sampler, boolean ideal) throws InterruptedException {
         //make sure the resources are from this model
         needOrMarketSegment = model.getResource(needOrMarketSegment.getURI());
-        Map<Resource, XYSeries> actorSeriesMap = new HashMap();
-        Set<Resource> actors = this.getActorsAndMarketSegments();
+        List<Resource> actors = new ArrayList<>(this.getActorsAndMarketSegments());
+
+        Map<Double, double[]> samples = sampler.sample(startValue, endValue, prepareSweep(needOrMarketSegment, actors, ideal));
+        return toSeries(actors, new ArrayList<>(samples.keySet()), samples.values().toArray(new double[samples.size()][]));
+    }
+
+    /**
+     * Computes series for all actors for the given occurrence rates (if the
+     * given resource is a need) or counts (if it is a market segment),
+     * without changing this model.
+     *
+     * The points are divided over the available processors and the series
+     * are assembled in the order of the points. In NATIVE and LAZY mode the
+     * model is enhanced on a fork (see E3Model(E3Model)) and compiled once
+     * into a FormulaBatch, which the workers evaluate for their share of the
+     * points. In POI mode every worker gets its own fork, in which it sets
+     * the need or market segment to each of its points in turn.
+     *
+     * @param needOrMarketSegment the need or market segment to be used on the
+     * X-axis
+     * @param points the values of the need or market segment
+     * @param ideal ideal or sub-ideal case
+     * @return a map of <Actor,XY series>, with one item per point
+     * @throws InterruptedException if the calling thread is interrupted (e.g.
+     * by SwingWorker.cancel(true)). The workers then stop, and this model is
+     * left as it was.
+     */
+    public Map<Resource, XYSeries> getSeries(Resource needOrMarketSegment, List<Double> points, boolean ideal) throws InterruptedException {
+        //make sure the resources are from this model
+        needOrMarketSegment = model.getResource(needOrMarketSegment.getURI());
+        List<Resource> actors = new ArrayList<>(this.getActorsAndMarketSegments());
+
+        return toSeries(actors, points, prepareSweep(needOrMarketSegment, actors, ideal).evaluate(points));
+    }
+
+    /**
+     * Computes the results of all actors over a grid of two parameters, each
+     * either the occurrence rate of a need or the count of a market segment,
+     * without changing this model.
+     *
+     * Like getSeries in NATIVE and LAZY mode, the model is enhanced on a fork
+     * and compiled once (also in POI mode, where the fork is evaluated
+     * natively instead, unless it calls functions that only POI can evaluate;
+     * see BatchSweep); the grid is then evaluated in parallel, a few rows at a
+     * time.
+     *
+     * @param xParameter the need or market segment along the X-axis
+     * @param xValues its values
+     * @param yParameter the need or market segment along the Y-axis, which
+     * must differ from xParameter
+     * @param yValues its values
+     * @param ideal ideal or sub-ideal case
+     * @param progress receives the progress (0-100) after every few rows, or
+     * null
+     * @return the results of all actors for all combinations of values
+     * @throws InterruptedException if the calling thread is interrupted (e.g.
+     * by SwingWorker.cancel(true)). This model is then left as it was.
+     */
+    public SensitivitySurface getSurface(Resource xParameter, List<Double> xValues, Resource yParameter, List<Double> yValues, boolean ideal, IntConsumer progress) throws InterruptedException {
+        if (xParameter.equals(yParameter)) {
+            throw new IllegalArgumentException("The two parameters of a surface must differ");
+        }
+        //make sure the resources are from this model
+        xParameter = model.getResource(xParameter.getURI());
+        yParameter = model.getResource(yParameter.getURI());
+        List<Resource> actors = new ArrayList<>(this.getActorsAndMarketSegments());
+
+        BatchSweep sweep = new BatchSweep(this, Arrays.asList(xParameter, yParameter),
+                Arrays.asList(getSweptAttribute(xParameter), getSweptAttribute(yParameter)), actors, ideal);
+        double[][][] results = new double[actors.size()][yValues.size()][xValues.size()];
+        int rowsPerStep = Math.max(1, POINTS_PER_SURFACE_STEP / Math.max(1, xValues.size()));
+        for (int row = 0; row < yValues.size(); row += rowsPerStep) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            int rows = Math.min(rowsPerStep, yValues.size() - row);
+            double[][] points = new double[rows * xValues.size()][];
+            for (int r = 0; r < rows; r++) {
+                for (int x = 0; x < xValues.size(); x++) {
+                    points[r * xValues.size() + x] = new double[]{xValues.get(x), yValues.get(row + r)};
+                }
+            }
+            double[][] totals = sweep.evaluate(points);
+            for (int r = 0; r < rows; r++) {
+                for (int x = 0; x < xValues.size(); x++) {
+                    for (int a = 0; a < actors.size(); a++) {
+                        results[a][row + r][x] = totals[r * xValues.size() + x][a];
+                    }
+                }
+            }
+            if (progress != null) {
+                progress.accept(100 * (row + rows) / yValues.size());
+            }
+        }
+        return new SensitivitySurface(xParameter, xValues, yParameter, yValues, actors, results);
+    }
+
+    /**
+     * Monte Carlo analysis: draws the given parameters from their
+     * distributions, computes the profit of every actor for each draw, and
+     * returns statistics of those profits. This model is not changed.
+     *
+     * The model is enhanced on a fork and compiled once, like for
+     * getSurface. The samples are divided into chunks of a fixed size, which
+     * are drawn and evaluated in parallel. Every chunk has its own random
+     * generator, seeded from the given seed and the number of the chunk, and
+     * the profits are added to the statistics in the order of the samples,
+     * so the same seed gives the same results on any number of processors.
+     * Only the profits of the chunks in progress are kept in memory.
+     *
+     * @param parameters the formulas to draw, each of which must exist
+     * @param samples the number of draws, at least 1
+     * @param seed the seed of the random draws
+     * @param ideal ideal or sub-ideal case
+     * @param progress receives the progress (0-100) as chunks are done, or
+     * null
+     * @return per actor (in the order of getActorsAndMarketSegments), the
+     * statistics of its profit
+     * @throws InterruptedException if the calling thread is interrupted (e.g.
+     * by SwingWorker.cancel(true)). This model is then left as it was.
+     */
+    public Map<Resource, ProfitStatistics> getUncertainty(List<UncertainParameter> parameters, int samples, long seed, boolean ideal, IntConsumer progress) throws InterruptedException {
+        if (samples < 1) {
+            throw new IllegalArgumentException("At least 1 sample is needed, not " + samples);
+        }
+        List<Resource> elements = new ArrayList<>();
+        List<String> attributes = new ArrayList<>();
+        final Distribution[] distributions = new Distribution[parameters.size()];
+        for (int p = 0; p < parameters.size(); p++) {
+            //make sure the resources are from this model
+            elements.add(model.getResource(parameters.get(p).getElement().getURI()));
+            attributes.add(parameters.get(p).getAttribute());
+            distributions[p] = parameters.get(p).getDistribution();
+        }
+        List<Resource> actors = new ArrayList<>(this.getActorsAndMarketSegments());
+
+        final BatchSweep sweep = new BatchSweep(this, elements, attributes, actors, ideal);
+        for (int p = 0; p < parameters.size(); p++) {
+            if (!sweep.isVaried(p)) {
+                throw new IllegalArgumentException("There is no formula " + parameters.get(p).getAttribute() + " for " + parameters.get(p).getElement().getURI());
+            }
+        }
+
+        Map<Resource, ProfitStatistics> statistics = new LinkedHashMap<>();
         for (Resource actor : actors) {
-            XYSeries actorSeries = new XYSeries(actor.getProperty(E3value.e3_has_name).getString());
-            actorSeriesMap.put(actor, actorSeries);
+            statistics.put(actor, new ProfitStatistics());
+        }
+        int chunks = (samples + SAMPLES_PER_CHUNK - 1) / SAMPLES_PER_CHUNK;
+        int chunksPerRound = Runtime.getRuntime().availableProcessors();
+        for (int first = 0; first < chunks; first += chunksPerRound) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            final int round = first;
+            int last = Math.min(chunks, first + chunksPerRound);
+            final double[][][] totals = new double[last - first][][];
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int c = first; c < last; c++) {
+                final int chunk = c;
+                final int size = Math.min(SAMPLES_PER_CHUNK, samples - chunk * SAMPLES_PER_CHUNK);
+                final long chunkSeed = mix(seed + chunk * 0x9E3779B97F4A7C15L);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        Random random = new Random(chunkSeed);
+                        double[][] values = new double[size][distributions.length];
+                        for (int i = 0; i < size; i++) {
+                            for (int p = 0; p < distributions.length; p++) {
+                                values[i][p] = distributions[p].sample(random);
+                            }
+                        }
+                        totals[chunk - round] = new double[size][];
+                        sweep.evaluate(values, 0, size, totals[chunk - round]);
+                        return null;
+                    }
+                });
+            }
+            invokeAll(tasks, new AtomicBoolean());
+
+            for (double[][] chunkTotals : totals) {
+                for (double[] sampleTotals : chunkTotals) {
+                    for (int a = 0; a < actors.size(); a++) {
+                        statistics.get(actors.get(a)).add(sampleTotals[a]);
+                    }
+                }
+            }
+            if (progress != null) {
+                progress.accept(100 * last / chunks);
+            }
         }
+        return statistics;
+    }
 
-        double initialValue = 0;
+    /**
+     * Scrambles a seed, so the generators of consecutive chunks do not start
+     * out alike (the finalizer of SplitMix64)
+     */
+    private static long mix(long seed) {
+        seed = (seed ^ (seed >>> 30)) * 0xBF58476D1CE4E5B9L;
+        seed = (seed ^ (seed >>> 27)) * 0x94D049BB133111EBL;
+        return seed ^ (seed >>> 31);
+    }
 
-        if (needOrMarketSegment.hasProperty(RDF.type, (E3value.market_segment))) {
-            initialValue = Double.valueOf(this.getMarketSegmentCount(needOrMarketSegment));
-        } else if (needOrMarketSegment.hasProperty(RDF.type, (E3value.start_stimulus))) {
-            initialValue = Double.valueOf(this.getNeedOccurrence(needOrMarketSegment));
+    /**
+     * Finds the values of a need's occurrence rate or a market segment's
+     * count at which the financial result of each actor is exactly 0, without
+     * changing this model.
+     *
+     * The results are first computed at equally spaced values over the range,
+     * all at once and on the batched path of getSurface. Every interval where
+     * the result of an actor changes sign is then narrowed down with Brent's
+     * method, one value at a time. This typically takes a few dozen
+     * evaluations in total. Two crossings between the same two values go
+     * unnoticed (the result is positive or negative at both ends), as does a
+     * curve that only touches 0 between them.
+     *
+     * @param needOrMarketSegment the need or market segment to vary
+     * @param startValue the lowest value to consider
+     * @param endValue the highest value to consider
+     * @param ideal ideal or sub-ideal case
+     * @return per actor (in the order of getActorsAndMarketSegments), its
+     * break-even values in increasing order. Actors whose result is 0 over
+     * the whole range have none.
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public Map<Resource, List<Double>> getBreakEvenPoints(Resource needOrMarketSegment, double startValue, double endValue, boolean ideal) throws InterruptedException {
+        return findBreakEvenPoints(needOrMarketSegment, new ArrayList<>(this.getActorsAndMarketSegments()), startValue, endValue, ideal);
+    }
+
+    /**
+     * Same as getBreakEvenPoints(Resource, double, double, boolean), for a
+     * single actor.
+     *
+     * @param actor the actor (or market segment) to find the break-even
+     * values of
+     * @return its break-even values in increasing order
+     */
+    public List<Double> getBreakEvenPoints(Resource actor, Resource needOrMarketSegment, double startValue, double endValue, boolean ideal) throws InterruptedException {
+        actor = model.getResource(actor.getURI());
+        return findBreakEvenPoints(needOrMarketSegment, Arrays.asList(actor), startValue, endValue, ideal).get(actor);
+    }
+
+    private Map<Resource, List<Double>> findBreakEvenPoints(Resource needOrMarketSegment, List<Resource> actors, double startValue, double endValue, boolean ideal) throws InterruptedException {
+        if (!(startValue < endValue)) {
+            throw new IllegalArgumentException("Start value must be lower than end value");
         }
+        //make sure the resources are from this model
+        needOrMarketSegment = model.getResource(needOrMarketSegment.getURI());
+        BatchSweep sweep = new BatchSweep(this, Arrays.asList(needOrMarketSegment), Arrays.asList(getSweptAttribute(needOrMarketSegment)), actors, ideal);
 
-        //we only need 50 values so divide interval to 50
-        if (startValue < endValue) {
-            double step = ((float) endValue - (float) startValue) / 50;
-            //calculate profit for each (occurence) value:
-            for (double i = startValue; i <= endValue; i += step) {
-                if (needOrMarketSegment.hasProperty(RDF.type, (E3value.market_segment))) {
-                    this.updateCount(needOrMarketSegment, i);
-                } else if (needOrMarketSegment.hasProperty(RDF.type, (E3value.start_stimulus))) {
-                    this.updateNeedOccurrence(needOrMarketSegment, i);
+        List<Double> grid = new ArrayList<>();
+        for (int i = 0; i < BREAK_EVEN_GRID; i++) {
+            //the end exactly, not start plus the sum of the steps
+            grid.add(i == BREAK_EVEN_GRID - 1 ? endValue : startValue + (endValue - startValue) * i / (BREAK_EVEN_GRID - 1));
+        }
+        double[][] totals = sweep.evaluate(grid);
+
+        //a result of exactly 0 has no sign, so also look just after such values to see which way it goes
+        List<Integer> zeros = new ArrayList<>();
+        List<Double> afterZeros = new ArrayList<>();
+        for (int i = 0; i + 1 < grid.size(); i++) {
+            for (int a = 0; a < actors.size(); a++) {
+                if (totals[i][a] == 0 && totals[i + 1][a] != 0) {
+                    zeros.add(i);
+                    afterZeros.add(grid.get(i) + (grid.get(i + 1) - grid.get(i)) * BREAK_EVEN_TOLERANCE);
+                    break;
+                }
+            }
+        }
+        double[][] afterZeroTotals = sweep.evaluate(afterZeros);
+
+        Map<Resource, List<Double>> breakEvenPoints = new LinkedHashMap<>();
+        for (int a = 0; a < actors.size(); a++) {
+            List<Double> points = new ArrayList<>();
+            boolean allZero = true;
+            for (double[] total : totals) {
+                allZero &= total[a] == 0;
+            }
+            for (int i = 0; i < grid.size() && !allZero; i++) {
+                double result = totals[i][a];
+                if (result == 0) {
+                    //of a stretch of zeros, only its ends are break-even values
+                    boolean first = i == 0 || totals[i - 1][a] != 0;
+                    boolean last = i + 1 == grid.size() || totals[i + 1][a] != 0;
+                    if ((first && last) || (first && i > 0) || (last && i + 1 < grid.size())) {
+                        points.add(grid.get(i));
+                    }
                 }
-                //For each actor
-                for (Resource actor : actors) {
-                    //add it's profit to the relevant series
-                    actorSeriesMap.get(actor).add(i, this.getTotalForActor(actor, ideal));
+                if (i + 1 == grid.size()) {
+                    continue;
+                }
+                double from = grid.get(i);
+                double next = totals[i + 1][a];
+                if (result == 0 && next != 0) {
+                    from = afterZeros.get(zeros.indexOf(i));
+                    result = afterZeroTotals[zeros.indexOf(i)][a];
+                }
+                if (result != 0 && next != 0 && !Double.isNaN(result) && !Double.isNaN(next) && (result < 0) != (next < 0)) {
+                    points.add(solveBreakEven(sweep, a, from, grid.get(i + 1), result, next));
                 }
             }
-        } else if (startValue == endValue) {
-            double i = startValue;
-            if (needOrMarketSegment.hasProperty(RDF.type, (E3value.market_segment))) {
-                this.updateCount(needOrMarketSegment, i);
-            } else if (needOrMarketSegment.hasProperty(RDF.type, (E3value.start_stimulus))) {
-                this.updateNeedOccurrence(needOrMarketSegment, i);
+            breakEvenPoints.put(actors.get(a), points);
+        }
+        return breakEvenPoints;
+    }
+
+    /**
+     * Brent's method (as in Numerical Recipes' zbrent): finds where the result
+     * of an actor is 0 between a and b, where it has opposite signs. It
+     * combines bisection, which always halves the interval, with secant and
+     * inverse quadratic steps, which converge much faster on smooth results
+     * (in one step on linear ones).
+     *
+     * @param actor the index of the actor in the sweep
+     * @return the break-even value, to within a relative BREAK_EVEN_TOLERANCE
+     */
+    private static double solveBreakEven(BatchSweep sweep, int actor, double a, double b, double fa, double fb) throws InterruptedException {
+        double tolerance = BREAK_EVEN_TOLERANCE * Math.max(1, Math.max(Math.abs(a), Math.abs(b)));
+        double c = b;
+        double fc = fb;
+        double d = b - a;
+        double e = d;
+        double[][] point = new double[1][1];
+        double[][] total = new double[1][];
+        for (int iteration = 0; iteration < BREAK_EVEN_ITERATIONS; iteration++) {
+            if ((fb > 0) == (fc > 0)) {
+                //keep the root between b and c
+                c = a;
+                fc = fa;
+                d = b - a;
+                e = d;
+            }
+            if (Math.abs(fc) < Math.abs(fb)) {
+                //b is the best guess so far
+                a = b;
+                b = c;
+                c = a;
+                fa = fb;
+                fb = fc;
+                fc = fa;
+            }
+            double accuracy = 2 * Math.ulp(1.0) * Math.abs(b) + tolerance / 2;
+            double half = (c - b) / 2;
+            if (Math.abs(half) <= accuracy || fb == 0) {
+                return b;
+            }
+            if (Math.abs(e) >= accuracy && Math.abs(fa) > Math.abs(fb)) {
+                //try interpolation
+                double s = fb / fa;
+                double p, q;
+                if (a == c) {
+                    p = 2 * half * s;
+                    q = 1 - s;
+                } else {
+                    q = fa / fc;
+                    double r = fb / fc;
+                    p = s * (2 * half * q * (q - r) - (b - a) * (r - 1));
+                    q = (q - 1) * (r - 1) * (s - 1);
+                }
+                if (p > 0) {
+                    q = -q;
+                }
+                p = Math.abs(p);
+                if (2 * p < Math.min(3 * half * q - Math.abs(accuracy * q), Math.abs(e * q))) {
+                    e = d;
+                    d = p / q;
+                } else {
+                    //interpolation failed, bisect instead
+                    d = half;
+                    e = d;
+                }
+            } else {
+                //the bounds decrease too slowly, bisect
+                d = half;
+                e = d;
+            }
+            a = b;
+            fa = fb;
+            b += Math.abs(d) > accuracy ? d : Math.copySign(accuracy, half);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
             }
+            point[0][0] = b;
+            sweep.evaluate(point, 0, 1, total);
+            fb = total[0][actor];
+        }
+        return b;
+    }
+
+    /**
+     * @param totals per point, per actor, its result
+     * @return a map of <Actor,XY series>, with one item per point
+     */
+    private Map<Resource, XYSeries> toSeries(List<Resource> actors, List<Double> points, double[][] totals) {
+        Map<Resource, XYSeries> actorSeriesMap = emptySeries();
+        for (int a = 0; a < actors.size(); a++) {
+            XYSeries actorSeries = actorSeriesMap.get(actors.get(a));
+            for (int i = 0; i < points.size(); i++) {
+                actorSeries.add(points.get(i).doubleValue(), totals[i][a]);
+            }
+        }
+        return actorSeriesMap;
+    }
 
-            //For each actor
+    /**
+     * @return an empty series per actor
+     */
+    private Map<Resource, XYSeries> emptySeries() {
+        Map<Resource, XYSeries> actorSeriesMap = new HashMap();
+        for (Resource actor : this.getActorsAndMarketSegments()) {
+            actorSeriesMap.put(actor, new XYSeries(actor.getProperty(E3value.e3_has_name).getString()));
+        }
+        return actorSeriesMap;
+    }
+
+    /**
+     * @return the sweep of the getSeries methods for the current evaluation
+     * mode, over the given actors
+     */
+    private Sweep prepareSweep(Resource needOrMarketSegment, List<Resource> actors, boolean ideal) {
+        if (evaluatedModel != null && evaluatedModel.getMode() == ExpressionEvaluator.Mode.POI) {
+            return sweepByUpdating(needOrMarketSegment, actors, ideal);
+        }
+        return new BatchSweep(this, Arrays.asList(needOrMarketSegment), Arrays.asList(getSweptAttribute(needOrMarketSegment)), actors, ideal);
+    }
+
+    /**
+     * The sweep of getSeries, getSurface and getUncertainty in NATIVE and
+     * LAZY mode: a fork of the model is enhanced once, and the profits of the
+     * actors are compiled into one FormulaBatch with the parameters as its
+     * inputs. The points are then divided over the available processors.
+     *
+     * If the model calls functions that only POI can evaluate, there is no
+     * batch: every worker then sets the parameters of its own fork of the
+     * enhanced model to each of its points, as sweepByUpdating does.
+     */
+    private static final class BatchSweep implements Sweep {
+
+        //per parameter, its column in the inputs of the batch, or -1 if it has no formula to vary
+        private final int[] inputOf;
+        private final int inputCount;
+        //the results of the actors that the parameters do not affect, which are the same for all points
+        private final double[] constantTotals;
+        private final Map<Integer, ProfitPlan> plans = new HashMap<>();
+        private final Map<Integer, Integer> outputIndex = new HashMap<>();
+        private final FormulaBatch batch;
+        //the enhanced fork that is forked again for every worker, if there is no batch
+        private final E3Model prototype;
+        private final List<Resource> parameters;
+        private final List<String> attributes;
+        private final List<Resource> actors;
+        private final boolean ideal;
+
+        /**
+         * @param parameters the elements to vary
+         * @param attributes per element, the formula to vary, e.g. COUNT
+         */
+        BatchSweep(E3Model base, List<Resource> parameters, List<String> attributes, List<Resource> actors, boolean ideal) {
+            //make sure the occurrences of all value interfaces refer to the needs and counts
+            E3Model fork = new E3Model(base);
+            fork.enhance();
+            if (fork.evaluatedModel.getMode() == ExpressionEvaluator.Mode.POI) {
+                //batches are compiled from native formulas; the fork is not used by anyone else
+                ExpressionEvaluator evaluator = ExpressionEvaluator.evaluateModel(fork.model, ExpressionEvaluator.Mode.NATIVE).get();
+                //unless the model calls functions that only POI can evaluate
+                if (evaluator.getMode() != ExpressionEvaluator.Mode.POI) {
+                    fork.evaluatedModel = evaluator;
+                }
+            }
+            this.parameters = parameters;
+            this.attributes = attributes;
+            this.actors = actors;
+            this.ideal = ideal;
+
+            List<Integer> inputs = new ArrayList<>();
+            Set<Resource> influenced = new HashSet<>();
+            inputOf = new int[parameters.size()];
+            for (int p = 0; p < parameters.size(); p++) {
+                Resource parameter = fork.model.getResource(parameters.get(p).getURI());
+                int handle = attributes.get(p) == null ? ExpressionEvaluator.NO_HANDLE : fork.handleOf(parameter, attributes.get(p));
+                inputOf[p] = handle == ExpressionEvaluator.NO_HANDLE ? -1 : inputs.size();
+                if (handle != ExpressionEvaluator.NO_HANDLE) {
+                    inputs.add(handle);
+                }
+                influenced.addAll(fork.getInfluencedActors(parameter));
+            }
+            inputCount = inputs.size();
+            if (fork.evaluatedModel.getMode() == ExpressionEvaluator.Mode.POI) {
+                prototype = fork;
+                constantTotals = null;
+                batch = null;
+                return;
+            }
+            prototype = null;
+
+            //compile the profit of every actor that can be affected, and collect the formulas they need
+            constantTotals = new double[actors.size()];
+            List<Integer> outputs = new ArrayList<>();
+            for (int a = 0; a < actors.size(); a++) {
+                Resource actor = fork.model.getResource(actors.get(a).getURI());
+                ProfitPlan plan = fork.getProfitPlan(actor, ideal);
+                if (!influenced.contains(actor)) {
+                    constantTotals[a] = plan.evaluate(fork.evaluatedModel);
+                    continue;
+                }
+                plans.put(a, plan);
+                for (int handle : plan.getHandles()) {
+                    if (!outputIndex.containsKey(handle)) {
+                        outputIndex.put(handle, outputs.size());
+                        outputs.add(handle);
+                    }
+                }
+            }
+            batch = fork.evaluatedModel.compileBatch(toArray(inputs), toArray(outputs));
+        }
+
+        /**
+         * @return whether the parameter has the formula to vary; if not, its
+         * values are ignored
+         */
+        boolean isVaried(int parameter) {
+            return inputOf[parameter] >= 0;
+        }
+
+        /**
+         * For a sweep over a single parameter
+         */
+        @Override
+        public double[][] evaluate(List<Double> points) throws InterruptedException {
+            double[][] parameterValues = new double[points.size()][1];
+            for (int i = 0; i < points.size(); i++) {
+                parameterValues[i][0] = points.get(i);
+            }
+            return evaluate(parameterValues);
+        }
+
+        /**
+         * @param parameterValues per point, the value of every parameter
+         * @return per point, per actor, its result
+         */
+        double[][] evaluate(final double[][] parameterValues) throws InterruptedException {
+            final double[][] totals = new double[parameterValues.length][];
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (final int[] range : split(parameterValues.length, POINTS_PER_BATCH_TASK)) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        evaluate(parameterValues, range[0], range[1], totals);
+                        return null;
+                    }
+                });
+            }
+            invokeAll(tasks, new AtomicBoolean());
+            return totals;
+        }
+
+        /**
+         * Evaluates some of the points on the calling thread.
+         *
+         * @param parameterValues per point, the value of every parameter
+         * @param from the first point to evaluate
+         * @param to the point after the last one to evaluate
+         * @param totals receives per point, per actor, its result
+         */
+        void evaluate(double[][] parameterValues, int from, int to, double[][] totals) {
+            if (prototype != null) {
+                evaluateByUpdating(parameterValues, from, to, totals);
+                return;
+            }
+            double[][] inputValues = new double[to - from][inputCount];
+            for (int i = from; i < to; i++) {
+                totals[i] = constantTotals.clone();
+                for (int p = 0; p < inputOf.length; p++) {
+                    if (inputOf[p] >= 0) {
+                        inputValues[i - from][inputOf[p]] = parameterValues[i][p];
+                    }
+                }
+            }
+            double[][] results = batch.evaluate(inputValues);
+            for (Map.Entry<Integer, ProfitPlan> plan : plans.entrySet()) {
+                int[] handles = plan.getValue().getHandles();
+                double[] values = new double[handles.length];
+                for (int i = from; i < to; i++) {
+                    for (int h = 0; h < handles.length; h++) {
+                        values[h] = results[i - from][outputIndex.get(handles[h])];
+                    }
+                    totals[i][plan.getKey()] = plan.getValue().evaluate(values);
+                }
+            }
+        }
+
+        /**
+         * Evaluates some of the points on the calling thread, one at a time
+         * on a fork of the prototype
+         */
+        private void evaluateByUpdating(double[][] parameterValues, int from, int to, double[][] totals) {
+            E3Model fork;
+            //making a fork reads the prototype and its evaluator, which other workers do too
+            synchronized (prototype) {
+                fork = new E3Model(prototype);
+            }
+            List<Resource> forkParameters = new ArrayList<>();
+            for (Resource parameter : parameters) {
+                forkParameters.add(fork.model.getResource(parameter.getURI()));
+            }
+            List<Resource> forkActors = new ArrayList<>();
             for (Resource actor : actors) {
-                //add it's profit to the relevant series
-                actorSeriesMap.get(actor).add(i, this.getTotalForActor(actor, ideal));
+                forkActors.add(fork.model.getResource(actor.getURI()));
+            }
+            for (int i = from; i < to; i++) {
+                for (int p = 0; p < inputOf.length; p++) {
+                    if (inputOf[p] >= 0) {
+                        fork.updateFormula(forkParameters.get(p), attributes.get(p), parameterValues[i][p]);
+                    }
+                }
+                totals[i] = new double[forkActors.size()];
+                for (int a = 0; a < forkActors.size(); a++) {
+                    totals[i][a] = fork.getTotalForActor(forkActors.get(a), ideal);
+                }
             }
-        } else {
-            PopUps.infoBox("Start value must be lower than end value!", "Error");
         }
+    }
 
+    /**
+     * @return the formula of a need (OCCURRENCES) or market segment (COUNT)
+     * that the sensitivity analyses vary, or null for other elements
+     */
+    private static String getSweptAttribute(Resource needOrMarketSegment) {
         if (needOrMarketSegment.hasProperty(RDF.type, (E3value.market_segment))) {
-            this.updateCount(needOrMarketSegment, initialValue);
+            return "COUNT";
         } else if (needOrMarketSegment.hasProperty(RDF.type, (E3value.start_stimulus))) {
+            return "OCCURRENCES";
+        }
+        return null;
+    }
 
-            this.updateNeedOccurrence(needOrMarketSegment, initialValue);
+    /**
+     * The sweep of getSeries for evaluators that cannot evaluate in batches:
+     * every worker changes the need or market segment of its own fork to each
+     * of its points, re-enhances the fork and computes the results.
+     */
+    private Sweep sweepByUpdating(Resource needOrMarketSegment, final List<Resource> actors, final boolean ideal) {
+        final boolean isMarketSegment = needOrMarketSegment.hasProperty(RDF.type, (E3value.market_segment));
+        final boolean isNeed = needOrMarketSegment.hasProperty(RDF.type, (E3value.start_stimulus));
+        final String parameterURI = needOrMarketSegment.getURI();
+
+        return new Sweep() {
+            @Override
+            public double[][] evaluate(final List<Double> points) throws InterruptedException {
+                final double[][] totals = new double[points.size()][actors.size()];
+                final AtomicBoolean cancelled = new AtomicBoolean();
+
+                List<Callable<Void>> tasks = new ArrayList<>();
+                for (final int[] range : split(points.size(), 1)) {
+                    //forks are made here, as making one reads this model and its evaluator
+                    final E3Model fork = new E3Model(E3Model.this);
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            Resource parameter = fork.model.getResource(parameterURI);
+                            List<Resource> forkActors = new ArrayList<>();
+                            for (Resource actor : actors) {
+                                forkActors.add(fork.model.getResource(actor.getURI()));
+                            }
+                            for (int i = range[0]; i < range[1] && !cancelled.get() && !Thread.currentThread().isInterrupted(); i++) {
+                                if (isMarketSegment) {
+                                    fork.updateCount(parameter, points.get(i));
+                                } else if (isNeed) {
+                                    fork.updateNeedOccurrence(parameter, points.get(i));
+                                }
+                                for (int a = 0; a < forkActors.size(); a++) {
+                                    totals[i][a] = fork.getTotalForActor(forkActors.get(a), ideal);
+                                }
+                            }
+                            return null;
+                        }
+                    });
+                }
+                invokeAll(tasks, cancelled);
+                return totals;
+            }
+        };
+    }
+
+    /**
+     * Divides count points into consecutive ranges, one per worker, with at
+     * least minimumSize points per range (except when there are fewer
+     * points)
+     *
+     * @return per range, its first point and the point after its last one
+     */
+    private static List<int[]> split(int count, int minimumSize) {
+        int workers = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), count / minimumSize));
+        List<int[]> ranges = new ArrayList<>();
+        for (int w = 0; w < workers; w++) {
+            int from = (int) ((long) count * w / workers);
+            int to = (int) ((long) count * (w + 1) / workers);
+            if (to > from) {
+                ranges.add(new int[]{from, to});
+            }
         }
+        return ranges;
+    }
 
-        return actorSeriesMap;
+    /**
+     * Runs the tasks on the common ForkJoinPool (the first one on the calling
+     * thread) and waits until all of them are done.
+     *
+     * @param cancelled set when the calling thread is interrupted, for the
+     * tasks to stop early
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    private static void invokeAll(List<Callable<Void>> tasks, AtomicBoolean cancelled) throws InterruptedException {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        List<Future<Void>> futures = new ArrayList<>();
+        for (Callable<Void> task : tasks.subList(1, tasks.size())) {
+            futures.add(ForkJoinPool.commonPool().submit(task));
+        }
+        try {
+            tasks.get(0).call();
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            cancelled.set(true);
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+            throw ex;
+        } catch (ExecutionException ex) {
+            cancelled.set(true);
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        } catch (Exception ex) {
+            //only from the first task, which does not throw checked exceptions
+            cancelled.set(true);
+            throw (RuntimeException) ex;
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
     }
 
     /**
@@ -29,6 +29,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -53,6 +55,57 @@ import e3fraud.vocabulary.E3value;
 
 public class ExpressionEvaluator {
 
+    /**
+     * How formulas are evaluated. NATIVE compiles every formula once and
+     * evaluates it over an array of doubles. LAZY does the same, but only
+     * evaluates a formula when its value is asked for and keeps the value
+     * until one of its inputs changes. POI writes every formula into an excel
+     * sheet and lets POI evaluate it; it is kept as a fallback, and is used
+     * for models that call functions the native formula engine does not know.
+     */
+    public enum Mode {
+        NATIVE, LAZY, POI
+    }
+
+    private static volatile Mode defaultMode = Mode.NATIVE;
+
+    /**
+     * Number of formulas a recalculation has to touch before it is done level
+     * by level in parallel, and the number of formulas per parallel task
+     */
+    private static volatile int parallelThreshold = 20000;
+    private static final int PARALLEL_CHUNK = 1024;
+
+    public static Mode getDefaultMode() {
+        return defaultMode;
+    }
+
+    /**
+     * Sets the mode used by evaluators created from now on.
+     */
+    public static void setDefaultMode(Mode mode) {
+        defaultMode = mode;
+    }
+
+    public static int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * Sets the number of formulas a (re)calculation in NATIVE mode has to
+     * touch before it is spread over multiple threads. Below it, evaluation
+     * stays single-threaded. Use Integer.MAX_VALUE to never evaluate in
+     * parallel.
+     */
+    public static void setParallelThreshold(int threshold) {
+        parallelThreshold = threshold;
+    }
+
+    /**
+     * Returned by {@link #handleOf(String)} for references that do not exist
+     */
+    public static final int NO_HANDLE = -1;
+
     public static final String alphaNumericID = "[a-zA-Z][a-zA-Z0-9]*";
     public static final String alphaNumericWithSpacesPlusAndNewLineID = "[a-zA-Z][a-zA-Z0-9 + \\r\\n]*";
     public static final String zeroOrNumberUID = "(?:[1-9][0-9]*?|0)";
@@ -60,24 +113,49 @@ public class ExpressionEvaluator {
     private final boolean DEBUG = false;
 
     private Model model;
+    private final Mode mode;
     private Map<String, Integer> rowMap = new HashMap<>();
     private Map<String, String> uidMap = new HashMap<>();
     private Workbook wb;
     private Sheet sheet;
     private int nextRow;
+
+    // Native mode: per row the compiled formula, the value slots of its
+    // references and its current value
+    private Formula[] formulas;
+    private int[][] links;
+    private double[] values;
+    private double[] stack;
+    // The reverse of links: per row the rows that refer to it. A row occurs
+    // once for every time it refers to the other row.
+    private int[][] dependents;
+    private int[] dependentCount;
+    // Rows that changed since the last recalculation
+    private boolean[] dirty;
+    private int[] dirtyRows;
+    private int dirtyCount;
+    // Scratch space of recalculate, kept to avoid allocating on every call
+    private int[] pending;
+    private int[] queue;
+    private int[] order;
+    // Set when the arrays above (or rowMap) are shared with a fork and have
+    // to be copied before they are written to. ownLists tells which of the
+    // dependents lists have been copied already.
+    private boolean sharedValues;
+    private boolean sharedStructure;
+    private boolean[] ownLists;
+    // LAZY mode: rows whose value has to be (re)computed before use. If a
+    // row is stale, so are all rows that depend on it.
+    private boolean[] stale;
+    // Profiling counters
+    private long evaluationCount;
+    private long queryCount;
+    private long lastQueryEvaluations;
     private Optional<String> lastUID;
     private Optional<String> lastFormulaName;
+    // Reused by rewrite
+    private final StringBuilder buffer = new StringBuilder();
 
-    /**
-     * Matches strings like: e3{'Subscription fee'.VALUATION}
-     */
-    private static final Pattern newNamePat = Pattern.compile("e3\\{'(" + alphaNumericWithSpacesPlusAndNewLineID + ")'\\.(" + alphaNumericID + ")\\}"
-    );
-    /**
-     * Matches strings like: e3{ValuePort('Subscription fee').VALUATION}
-     */
-    private static final Pattern oldNamePat = Pattern.compile("e3\\{" + alphaNumericID + "\\('(" + alphaNumericWithSpacesPlusAndNewLineID + ")'\\)\\.(" + alphaNumericID + ")\\}"
-    );
     /**
      * Matches strings like: #123.VALUATION
      */
@@ -91,22 +169,13 @@ public class ExpressionEvaluator {
     private static final Pattern namePat = Pattern.compile("'(" + alphaNumericWithSpacesPlusAndNewLineID + ")'.(" + alphaNumericID + ")"
     );
 
-    /**
-     * Matches strings like: e3{VALUATION}
-     */
-    private static final Pattern formulaPat = Pattern.compile(
-            "e3\\{(" + alphaNumericID + ")\\}"
-    );
-
-    /**
-     * Matches strings like: e3{#123.VALUATION}
-     */
-    private static final Pattern uidPat = Pattern.compile(
-            "e3\\{(#" + zeroOrNumberUID + "\\." + alphaNumericID + ")\\}"
-    );
-
-    private ExpressionEvaluator(Model model) {
+    private ExpressionEvaluator(Model model, Mode mode) {
         this.model = model;
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
     }
 
     /**
@@ -115,11 +184,23 @@ public class ExpressionEvaluator {
      * or formula that does not exist), empty is returned.
      */
     public static Optional<ExpressionEvaluator> evaluateModel(Model model) {
+        return evaluateModel(model, defaultMode);
+    }
+
+    /**
+     * Same as {@link #evaluateModel(Model)}, but with an explicit evaluation
+     * mode. If the model calls a function that NATIVE and LAZY mode do not
+     * support, it is evaluated in POI mode instead.
+     */
+    public static Optional<ExpressionEvaluator> evaluateModel(Model model, Mode mode) {
         try {
-            Optional<ExpressionEvaluator> em = Optional.of(new ExpressionEvaluator(model));
+            Optional<ExpressionEvaluator> em = Optional.of(new ExpressionEvaluator(model, mode));
             em.get().evaluateAll();
             return em;
-        } catch (FormulaParseException e) {
+        } catch (FormulaParseException | FormulaException e) {
+            if (fallsBackToPOI(e, mode)) {
+                return evaluateModel(model, Mode.POI);
+            }
             PopUps.infoBox(e.toString(), "Error");
             System.err.println("Could not parse formula!");
             e.printStackTrace();
@@ -140,7 +221,11 @@ public class ExpressionEvaluator {
     }
     
     public static ModelOrError evaluateModelOrError(Model model) {
-		ExpressionEvaluator em = new ExpressionEvaluator(model);
+        return evaluateModelOrError(model, defaultMode);
+    }
+
+    private static ModelOrError evaluateModelOrError(Model model, Mode mode) {
+		ExpressionEvaluator em = new ExpressionEvaluator(model, mode);
 
         try {
             em.evaluateAll();
@@ -149,7 +234,10 @@ public class ExpressionEvaluator {
         	moe.optionalModel = Optional.of(em);
 
         	return moe;
-        } catch (FormulaParseException e) {            
+        } catch (FormulaParseException | FormulaException e) {            
+            if (fallsBackToPOI(e, mode)) {
+                return evaluateModelOrError(model, Mode.POI);
+            }
             PopUps.infoBox(e.toString(), "Error");
             System.err.println("Could not parse formula!");
             e.printStackTrace();
@@ -162,6 +250,19 @@ public class ExpressionEvaluator {
         }
     }
 
+    /**
+     * @return whether a model that failed to evaluate in the given mode
+     * because of the given exception should be evaluated in POI mode instead,
+     * which is the case if it calls a function that only POI knows
+     */
+    private static boolean fallsBackToPOI(RuntimeException e, Mode mode) {
+        if (mode == Mode.POI || !(e instanceof FormulaException) || !((FormulaException) e).isUnsupportedFunction()) {
+            return false;
+        }
+        System.err.println(e.getMessage() + "; evaluating the model with POI instead");
+        return true;
+    }
+
     /**
      * This does a bulk update and puts the EvaluatedModel in its initial state.
      * If an error occurs, this function throws an exception. Once called this
@@ -205,6 +306,12 @@ public class ExpressionEvaluator {
             }
         }
 
+        if (mode != Mode.POI) {
+            compileAll();
+            recalculate();
+            return;
+        }
+
         // Now we're going to populate the excel sheet
         wb = new XSSFWorkbook();
         sheet = wb.createSheet("this");
@@ -225,9 +332,9 @@ public class ExpressionEvaluator {
             while (stmtIt.hasNext()) {
                 // Get the formula name and value
                 String formulaEntry = stmtIt.next().getString();
-                String formulaName = formulaEntry.split("=")[0];
+                String formulaName = formulaEntry.split("=", 2)[0];
                 // Remove all e3references
-                String formula = e3ExpressionToExcel(uid, formulaEntry.split("=")[1]);                
+                String formula = e3ExpressionToExcel(uid, formulaEntry.split("=", 2)[1]);                
 
                 // Save the debug information in case of an exception
                 lastUID = Optional.of(uid);
@@ -260,6 +367,465 @@ public class ExpressionEvaluator {
         }
     }
 
+    /**
+     * Native counterpart of the sheet population in evaluateAll: compiles
+     * every formula in the model and links its references to rows.
+     */
+    private void compileAll() {
+        int capacity = Math.max(16, nextRow);
+        formulas = new Formula[capacity];
+        links = new int[capacity][];
+        values = new double[capacity];
+        stale = new boolean[capacity];
+        dependents = new int[capacity][];
+        dependentCount = new int[capacity];
+        allocateScratch(capacity);
+        stack = new double[1];
+
+        ResIterator it = model.listResourcesWithProperty(E3value.e3_has_uid);
+        while (it.hasNext()) {
+            Resource res = it.next();
+
+            String uid = res.getProperty(E3value.e3_has_uid).getString();
+
+            StmtIterator stmtIt = res.listProperties(E3value.e3_has_formula);
+            while (stmtIt.hasNext()) {
+                String formulaEntry = stmtIt.next().getString();
+                String formulaName = formulaEntry.split("=", 2)[0];
+
+                // Save the debug information in case of an exception
+                lastUID = Optional.of(uid);
+                lastFormulaName = Optional.of(formulaName);
+
+                int row = rowMap.get("#" + uid + "." + formulaName);
+                formulas[row] = FormulaCache.get(uid, formulaEntry.split("=", 2)[1]);
+            }
+        }
+
+        // Only link once all rows exist, formulas may refer forward
+        for (Map.Entry<String, Integer> entry : rowMap.entrySet()) {
+            int row = entry.getValue();
+            if (formulas[row] == null) {
+                continue;
+            }
+            String[] ref = entry.getKey().substring(1).split("\\.", 2);
+            lastUID = Optional.of(ref[0]);
+            lastFormulaName = Optional.of(ref[1]);
+            setFormula(row, formulas[row], link(formulas[row]));
+        }
+
+        // Everything has to be computed once
+        for (int row = 0; row < nextRow; row++) {
+            markDirty(row);
+        }
+    }
+
+    /**
+     * Resolves the references of a formula to rows.
+     *
+     * @throws FormulaException if a reference does not exist
+     */
+    private int[] link(Formula formula) {
+        String[] references = formula.getReferences();
+        int[] slots = new int[references.length];
+        for (int i = 0; i < references.length; i++) {
+            String reference = references[i];
+            if (reference.startsWith("'")) {
+                int split = reference.lastIndexOf("'.");
+                String name = reference.substring(1, split);
+                reference = "#" + uidMap.get(name) + reference.substring(split + 1);
+            }
+            Integer row = rowMap.get(reference);
+            if (row == null) {
+                throw new FormulaException("Formula [" + formula.getText() + "] refers to non-existing formula " + references[i]);
+            }
+            slots[i] = row;
+        }
+        return slots;
+    }
+
+    /**
+     * Puts a linked formula in a row, keeps the dependency graph up to date
+     * and marks the row as changed.
+     */
+    private void setFormula(int row, Formula formula, int[] slots) {
+        ownStructure();
+        if (links[row] != null) {
+            for (int ref : links[row]) {
+                removeDependent(ref, row);
+            }
+        }
+        for (int ref : slots) {
+            addDependent(ref, row);
+        }
+        formulas[row] = formula;
+        links[row] = slots;
+        if (formula.getMaxStack() > stack.length) {
+            stack = new double[formula.getMaxStack()];
+        }
+        markDirty(row);
+    }
+
+    private void addDependent(int row, int dependent) {
+        int[] list = ownList(row);
+        if (list == null) {
+            list = dependents[row] = new int[2];
+        } else if (dependentCount[row] == list.length) {
+            list = dependents[row] = Arrays.copyOf(list, list.length * 2);
+        }
+        list[dependentCount[row]++] = dependent;
+    }
+
+    private void removeDependent(int row, int dependent) {
+        int[] list = ownList(row);
+        int count = dependentCount[row];
+        for (int i = 0; i < count; i++) {
+            if (list[i] == dependent) {
+                list[i] = list[count - 1];
+                dependentCount[row]--;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the dependents list of row, copying it first if it is shared
+     * with a fork
+     */
+    private int[] ownList(int row) {
+        if (ownLists != null && !ownLists[row]) {
+            ownLists[row] = true;
+            if (dependents[row] != null) {
+                dependents[row] = dependents[row].clone();
+            }
+        }
+        return dependents[row];
+    }
+
+    /**
+     * Copies the formula storage if it is shared with a fork. The formulas
+     * themselves are immutable and stay shared, the dependents lists are
+     * copied one by one when they change.
+     */
+    private void ownStructure() {
+        if (sharedStructure) {
+            formulas = formulas.clone();
+            links = links.clone();
+            dependents = dependents.clone();
+            dependentCount = dependentCount.clone();
+            rowMap = new HashMap<>(rowMap);
+            ownLists = new boolean[formulas.length];
+            sharedStructure = false;
+        }
+    }
+
+    /**
+     * Copies the values if they are shared with a fork
+     */
+    private void ownValues() {
+        if (sharedValues) {
+            values = values.clone();
+            stale = stale.clone();
+            sharedValues = false;
+        }
+    }
+
+    private void allocateScratch(int capacity) {
+        dirty = new boolean[capacity];
+        dirtyRows = new int[capacity];
+        pending = new int[capacity];
+        Arrays.fill(pending, -1);
+        queue = new int[capacity];
+        order = new int[capacity];
+    }
+
+    private void markDirty(int row) {
+        if (dirty == null) {
+            allocateScratch(formulas.length);
+        }
+        if (!dirty[row]) {
+            dirty[row] = true;
+            dirtyRows[dirtyCount++] = row;
+        }
+    }
+
+    /**
+     * Makes sure the native storage can hold at least size rows
+     */
+    private void ensureCapacity(int size) {
+        if (size > formulas.length) {
+            ownStructure();
+            int newSize = Math.max(size, formulas.length * 2);
+            formulas = Arrays.copyOf(formulas, newSize);
+            links = Arrays.copyOf(links, newSize);
+            values = Arrays.copyOf(values, newSize);
+            stale = Arrays.copyOf(stale, newSize);
+            sharedValues = false;
+            dependents = Arrays.copyOf(dependents, newSize);
+            dependentCount = Arrays.copyOf(dependentCount, newSize);
+            if (ownLists != null) {
+                ownLists = Arrays.copyOf(ownLists, newSize);
+            }
+            if (dirty != null) {
+                boolean[] oldDirty = dirty;
+                int[] oldDirtyRows = dirtyRows;
+                allocateScratch(newSize);
+                System.arraycopy(oldDirty, 0, dirty, 0, oldDirty.length);
+                System.arraycopy(oldDirtyRows, 0, dirtyRows, 0, dirtyCount);
+            }
+        }
+    }
+
+    /**
+     * Recomputes the rows that changed since the last call and everything that
+     * depends on them, each row after the rows it refers to. Rows that are
+     * part of (or depend on) a circular reference evaluate to NaN.
+     */
+    private void recalculate() {
+        if (dirtyCount == 0) {
+            return;
+        }
+        ownValues();
+
+        if (mode == Mode.LAZY) {
+            // Nothing is evaluated yet, the changed rows and their
+            // dependents just have to be recomputed when asked for
+            for (int i = 0; i < dirtyCount; i++) {
+                dirty[dirtyRows[i]] = false;
+                invalidate(dirtyRows[i]);
+            }
+            dirtyCount = 0;
+            return;
+        }
+
+        // Collect the changed rows and their transitive dependents in queue.
+        // pending is -1 for rows outside that set.
+        int size = 0;
+        for (int i = 0; i < dirtyCount; i++) {
+            int row = dirtyRows[i];
+            dirty[row] = false;
+            if (pending[row] < 0) {
+                pending[row] = 0;
+                queue[size++] = row;
+            }
+        }
+        dirtyCount = 0;
+        for (int i = 0; i < size; i++) {
+            int row = queue[i];
+            for (int d = 0; d < dependentCount[row]; d++) {
+                int dependent = dependents[row][d];
+                if (pending[dependent] < 0) {
+                    pending[dependent] = 0;
+                    queue[size++] = dependent;
+                }
+            }
+        }
+
+        // For each affected row, count the references to other affected rows
+        for (int i = 0; i < size; i++) {
+            int row = queue[i];
+            for (int d = 0; d < dependentCount[row]; d++) {
+                pending[dependents[row][d]]++;
+            }
+        }
+
+        // Evaluate in topological order
+        int head = 0;
+        int tail = 0;
+        for (int i = 0; i < size; i++) {
+            if (pending[queue[i]] == 0) {
+                order[tail++] = queue[i];
+            }
+        }
+        if (size >= parallelThreshold) {
+            // Level by level: all rows of a level only depend on rows of
+            // earlier levels, so they can be evaluated concurrently
+            while (head < tail) {
+                int levelEnd = tail;
+                evaluateLevel(head, levelEnd);
+                for (; head < levelEnd; head++) {
+                    int row = order[head];
+                    for (int d = 0; d < dependentCount[row]; d++) {
+                        int dependent = dependents[row][d];
+                        if (--pending[dependent] == 0) {
+                            order[tail++] = dependent;
+                        }
+                    }
+                }
+            }
+        }
+        while (head < tail) {
+            int row = order[head++];
+            values[row] = formulas[row] == null ? 0 : formulas[row].evaluate(values, links[row], stack);
+            evaluationCount++;
+            for (int d = 0; d < dependentCount[row]; d++) {
+                int dependent = dependents[row][d];
+                if (--pending[dependent] == 0) {
+                    order[tail++] = dependent;
+                }
+            }
+        }
+
+        // Whatever is left waits on a circular reference
+        for (int i = 0; i < size; i++) {
+            int row = queue[i];
+            if (pending[row] > 0) {
+                values[row] = Double.NaN;
+            }
+            pending[row] = -1;
+        }
+    }
+
+    /**
+     * Evaluates the rows in order[from, to), which must not depend on each
+     * other. Large levels are split over the common ForkJoinPool.
+     */
+    private void evaluateLevel(int from, int to) {
+        if (to - from < PARALLEL_CHUNK) {
+            new LevelTask(from, to).compute();
+        } else {
+            ForkJoinPool.commonPool().invoke(new LevelTask(from, to));
+        }
+        evaluationCount += to - from;
+    }
+
+    /**
+     * Evaluates a range of one level of the dependency graph, splitting it in
+     * halves until the parts are small enough
+     */
+    private class LevelTask extends RecursiveAction {
+
+        private static final long serialVersionUID = -1107539149237255858L;
+
+        private final int from;
+        private final int to;
+
+        LevelTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PARALLEL_CHUNK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new LevelTask(from, middle), new LevelTask(middle, to));
+                return;
+            }
+            // Every task needs its own stack
+            double[] taskStack = new double[stack.length];
+            for (int i = from; i < to; i++) {
+                int row = order[i];
+                values[row] = formulas[row] == null ? 0 : formulas[row].evaluate(values, links[row], taskStack);
+            }
+        }
+    }
+
+    /**
+     * Marks row and everything that depends on it as stale (LAZY mode)
+     */
+    private void invalidate(int row) {
+        if (stale[row]) {
+            return;
+        }
+        stale[row] = true;
+        queue[0] = row;
+        int size = 1;
+        while (size > 0) {
+            int r = queue[--size];
+            for (int d = 0; d < dependentCount[r]; d++) {
+                int dependent = dependents[r][d];
+                if (!stale[dependent]) {
+                    stale[dependent] = true;
+                    queue[size++] = dependent;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the current value of a row. In LAZY mode, a stale row is
+     * computed first, together with the stale rows it refers to.
+     */
+    private double current(int row) {
+        lastQueryEvaluations = 0;
+        if (stale == null || !stale[row]) {
+            return values[row];
+        }
+        ownValues();
+        if (pending == null) {
+            allocateScratch(formulas.length);
+        }
+
+        // Iterative depth-first search over the stale references. order holds
+        // the rows on the search path, queue the next reference to visit for
+        // each of them. pending is -2 for rows on the path, or -3 if the row
+        // refers back to a row on the path (i.e. is part of a circle).
+        final int OPEN = -2, CIRCULAR = -3;
+        int top = 0;
+        order[0] = row;
+        queue[0] = 0;
+        pending[row] = OPEN;
+        while (top >= 0) {
+            int r = order[top];
+            int[] refs = links[r];
+            if (refs != null && queue[top] < refs.length) {
+                int ref = refs[queue[top]++];
+                if (pending[ref] == OPEN || pending[ref] == CIRCULAR) {
+                    pending[r] = CIRCULAR;
+                } else if (stale[ref]) {
+                    top++;
+                    order[top] = ref;
+                    queue[top] = 0;
+                    pending[ref] = OPEN;
+                }
+                continue;
+            }
+            if (pending[r] == CIRCULAR) {
+                values[r] = Double.NaN;
+            } else {
+                values[r] = formulas[r] == null ? 0 : formulas[r].evaluate(values, refs, stack);
+            }
+            stale[r] = false;
+            pending[r] = -1;
+            lastQueryEvaluations++;
+            top--;
+        }
+        evaluationCount += lastQueryEvaluations;
+        return values[row];
+    }
+
+    /**
+     * @return the number of formulas evaluated by the native engine so far
+     */
+    public long getEvaluationCount() {
+        return evaluationCount;
+    }
+
+    /**
+     * @return the number of values asked for (through valueOf) so far
+     */
+    public long getQueryCount() {
+        return queryCount;
+    }
+
+    /**
+     * @return the number of formulas that had to be evaluated to answer the
+     * last valueOf. Always 0 unless in LAZY mode.
+     */
+    public long getLastQueryEvaluations() {
+        return lastQueryEvaluations;
+    }
+
+    /**
+     * Sets the evaluation and query counters back to 0
+     */
+    public void resetCounters() {
+        evaluationCount = 0;
+        queryCount = 0;
+        lastQueryEvaluations = 0;
+    }
+
     /**
      * Gets the value of an e3reference. The e3reference should have the form of
      * either: - 'Subscription fee'.VALUATION - #123.VALUATION
@@ -296,6 +862,16 @@ public class ExpressionEvaluator {
 
         int row = rowMap.get(e3ref);
 
+        if (mode != Mode.POI) {
+            queryCount++;
+            double value = current(row);
+            if (Double.isNaN(value)) {
+                System.out.println(e3ref + " is not numeric but ERROR");
+                return Optional.empty();
+            }
+            return Optional.of(value);
+        }
+
         // Return the appropriate value.
         Cell cell = sheet.getRow(row).getCell(1);
         // As soon as we start using their new API we'll
@@ -313,6 +889,61 @@ public class ExpressionEvaluator {
 
     }
 
+    /**
+     * Resolves an e3reference to a handle that can be passed to
+     * {@link #valueOf(int)}. The e3reference should have the form of either:
+     * - 'Subscription fee'.VALUATION - #123.VALUATION
+     *
+     * A handle stays valid for the lifetime of this evaluator, also after
+     * formulas change, and is also valid in forks of this evaluator.
+     *
+     * @return the handle, or {@link #NO_HANDLE} if the reference does not
+     * exist
+     */
+    public int handleOf(String e3ref) {
+        if (e3ref.startsWith("'")) {
+            int split = e3ref.lastIndexOf("'.");
+            if (split < 1) {
+                return NO_HANDLE;
+            }
+            String uid = uidMap.get(e3ref.substring(1, split));
+            if (uid == null) {
+                return NO_HANDLE;
+            }
+            e3ref = "#" + uid + e3ref.substring(split + 1);
+        }
+        Integer row = rowMap.get(e3ref);
+        return row == null ? NO_HANDLE : row;
+    }
+
+    /**
+     * Resolves the attribute of the entity with the given UID to a handle, see
+     * {@link #handleOf(String)}.
+     */
+    public int handleOf(String uid, String attribute) {
+        return handleOf("#" + uid + "." + attribute);
+    }
+
+    /**
+     * Gets the value of a handle obtained from {@link #handleOf(String)}.
+     * Unlike {@link #valueOf(String)} this does not allocate.
+     *
+     * @return the value, or NaN if the formula results in an error
+     */
+    public double valueOf(int handle) {
+        if (mode != Mode.POI) {
+            queryCount++;
+            return current(handle);
+        }
+
+        Cell cell = sheet.getRow(handle).getCell(1);
+        try {
+            return cell.getNumericCellValue();
+        } catch (IllegalStateException e) {
+            return Double.NaN;
+        }
+    }
+
     /**
      * Replaces all locals in an expression (e.g. <code>e3{VALUATION}</code>
      * with actual references to an entity (e.g.
@@ -327,7 +958,7 @@ public class ExpressionEvaluator {
             return formula;
         }
 
-        String newF = formulaPat.matcher(formula).replaceAll("e3{#" + uid + ".$1}");
+        String newF = rewrite(formula, true, false, false, uid);
 
         if (DEBUG && !formula.equals(newF)) {
             System.out.println("Replacing locals....");
@@ -344,102 +975,293 @@ public class ExpressionEvaluator {
      */
     public String replaceNames(String formula) {
         // Replace all occurrences like e3{'Subscription fee'.VALUATION}
+        // and e3{SomeValuePort('Subscription fee').VALUATION}
         // With e3{#123.VALUATION}
-        Matcher match = newNamePat.matcher(formula);
+        String newF = rewrite(formula, false, true, false, null);
 
-        String oldFormula = formula;
+        if (DEBUG && !formula.equals(newF)) {
+            System.out.println("Replacing names....");
+            System.out.println("\tOld: " + formula);
+            System.out.println("\tNew: " + newF);
+        }
 
-        while (match.find()) {
-            String name = match.group(1);
-            String attr = match.group(2);
-            int start = match.start();
-            int end = match.end();
+        return newF;
+    }
 
-            
-            formula = formula.substring(0, start)
-                    + "e3{#" + uidMap.get(name) + "." + attr + "}"
-                    + formula.substring(end);
-            match = newNamePat.matcher(formula);
+    /**
+     * Replaces e3 UID references (i.e. e3{#123.VALUATION}) with their
+     * respective cell reference (i.e. B3) in the internal excel spreadsheet.
+     */
+    public String replaceUIDs(String formula) {
+        String newF = rewrite(formula, false, false, true, null);
+
+        if (DEBUG && !formula.equals(newF)) {
+            System.out.println("Replacing UIDs....");
+            System.out.println("\tOld: " + formula);
+            System.out.println("\tNew: " + newF);
         }
 
-        // Replace all occurrences like e3{SomeValuePort('Subscription fee').VALUATION}
-        // With e3{#123.VALUATION}
-        match = oldNamePat.matcher(formula);
+        return newF;
+    }
 
-        while (match.find()) {
-            String name = match.group(1);
-            String attr = match.group(2);
-            int start = match.start();
-            int end = match.end();
-            formula = formula.substring(0, start)
-                    + "e3{#" + uidMap.get(name) + "." + attr + "}"
-                    + formula.substring(end);
+    /**
+     * Shorthand for turning an e3 expression into an excel expression
+     */
+    public String e3ExpressionToExcel(String uidScope, String e3expr) {
+        return rewrite(e3expr, uidScope != null, true, true, uidScope);
+    }
+
+    /**
+     * Rewrites the references in a formula in a single pass. Locals are
+     * resolved to uid references, names to uid references and uid references
+     * to cells of the spreadsheet, depending on the flags. Each step sees the
+     * result of the previous one, so with all flags set a local reference ends
+     * up as a cell reference. References that cannot be resolved are left
+     * as they are.
+     */
+    private String rewrite(String formula, boolean locals, boolean names, boolean uids, String uidScope) {
+        ReferenceScanner scanner = new ReferenceScanner(formula);
+        StringBuilder sb = buffer;
+        sb.setLength(0);
+        int copied = 0;
+        while (scanner.find()) {
+            String uid;
+            switch (scanner.getKind()) {
+                case ReferenceScanner.LOCAL:
+                    uid = locals ? uidScope : null;
+                    break;
+                case ReferenceScanner.NAME:
+                    uid = names ? String.valueOf(uidMap.get(scanner.getTarget())) : null;
+                    break;
+                default:
+                    uid = scanner.getTarget();
+            }
+            if (uid == null) {
+                continue;
+            }
+
+            sb.append(formula, copied, scanner.getStart());
+            copied = scanner.getEnd();
+
+            String reference = "#" + uid + "." + scanner.getAttribute();
+            Integer row = uids ? rowMap.get(reference) : null;
+            if (row != null) {
+                // Excel is 0 indexed. Hence, if rowMap.get() actually returns 0,
+                // it means the "first" row in excel, which is actually 1. Hence,
+                // we increment it by 1.
+                // And we use column B because column A holds all the uid + formula names.
+                sb.append('B').append(row + 1);
+            } else {
+                if (uids) {
+                    System.err.println("Not found!");
+                }
+                sb.append("e3{").append(reference).append('}');
+            }
+        }
+        if (copied == 0) {
+            return formula;
+        }
+        sb.append(formula, copied, formula.length());
+        return sb.toString();
+    }
 
-            match = oldNamePat.matcher(formula);
+    /**
+     * Finds the rows that depend, directly or indirectly, on the given rows
+     * and orders them so that every row comes after the rows it refers to.
+     * The given rows themselves are not included. Rows that wait on a
+     * circular reference come last and are marked in circular.
+     *
+     * @throws IllegalArgumentException if a row is given twice
+     */
+    private int[] dependentsInOrder(int[] rows, boolean[] circular) {
+        final int GIVEN = 1;
+        final int AFFECTED = 2;
+        int[] state = new int[nextRow];
+        for (int row : rows) {
+            if (state[row] == GIVEN) {
+                throw new IllegalArgumentException("Row " + row + " given twice");
+            }
+            state[row] = GIVEN;
         }
 
-        if (DEBUG && oldFormula != formula) {
-            System.out.println("Replacing names....");
-            System.out.println("\tOld: " + oldFormula);
-            System.out.println("\tNew: " + formula);
+        int[] affected = new int[nextRow];
+        int size = 0;
+        for (int row : rows) {
+            for (int d = 0; d < dependentCount[row]; d++) {
+                int dependent = dependents[row][d];
+                if (state[dependent] == 0) {
+                    state[dependent] = AFFECTED;
+                    affected[size++] = dependent;
+                }
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            int row = affected[i];
+            for (int d = 0; d < dependentCount[row]; d++) {
+                int dependent = dependents[row][d];
+                if (state[dependent] == 0) {
+                    state[dependent] = AFFECTED;
+                    affected[size++] = dependent;
+                }
+            }
         }
 
-        return formula;
+        int[] waiting = new int[nextRow];
+        for (int i = 0; i < size; i++) {
+            for (int ref : links[affected[i]]) {
+                if (state[ref] == AFFECTED) {
+                    waiting[affected[i]]++;
+                }
+            }
+        }
+        int[] ordered = new int[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (waiting[affected[i]] == 0) {
+                ordered[count++] = affected[i];
+            }
+        }
+        for (int head = 0; head < count; head++) {
+            int row = ordered[head];
+            for (int d = 0; d < dependentCount[row]; d++) {
+                int dependent = dependents[row][d];
+                if (state[dependent] == AFFECTED && --waiting[dependent] == 0) {
+                    ordered[count++] = dependent;
+                }
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if (waiting[affected[i]] > 0) {
+                circular[affected[i]] = true;
+                ordered[count++] = affected[i];
+            }
+        }
+        return ordered;
     }
 
     /**
-     * Replaces e3 UID references (i.e. e3{#123.VALUATION}) with their
-     * respective cell reference (i.e. B3) in the internal excel spreadsheet.
+     * Computes the derivatives of a number of formulas with respect to a
+     * number of parameters at the current values, in a single forward pass
+     * over the formulas that depend on the parameters (see
+     * {@link Formula#evaluateDual}).
+     *
+     * A parameter is treated as an independent input: the derivatives are
+     * with respect to its value, also when the value is computed by an
+     * expression that refers to other parameters.
+     *
+     * Only available in NATIVE and LAZY mode.
+     *
+     * @param parameters handles (see {@link #handleOf(String)}) of the
+     * formulas to differentiate with respect to
+     * @param outputs handles of the formulas to differentiate
+     * @return per output, its derivative with respect to each parameter. NaN
+     * where the derivative does not exist.
      */
-    public String replaceUIDs(String formula) {
-        Matcher match = uidPat.matcher(formula);
-
-        String oldFormula = formula;
-
-        while (match.find()) {
-            String arg = match.group(1);
-
-//			System.out.println("Arg:" + arg);
-            if (rowMap.containsKey(arg)) {
-                int start = match.start();
-                int end = match.end();
-
-//				System.out.println("Match: " + match.group(0));
-                formula = formula.substring(0, start)
-                        // Excel is 0 indexed. Hence, if rowMap.get() actually returns 0,
-                        // it means the "first" row in excel, which is actually 1. Hence,
-                        // we increment it by 1.
-                        // And we use column B because column A holds all the uid + formula names.
-                        // This can be removed/made optional/triggerable with a flag in the future
-                        // if the current approach is too slow.
-                        + "B" + (rowMap.get(arg) + 1)
-                        + formula.substring(end);
-
-                match = uidPat.matcher(formula);
+    public double[][] differentiate(int[] parameters, int[] outputs) {
+        if (mode == Mode.POI) {
+            throw new IllegalStateException("Differentiation is not supported in POI mode");
+        }
+        recalculate();
+
+        int width = parameters.length;
+        boolean[] circular = new boolean[nextRow];
+        int[] rows = dependentsInOrder(parameters, circular);
+
+        double[][] tangents = new double[nextRow][];
+        for (int i = 0; i < width; i++) {
+            tangents[parameters[i]] = new double[width];
+            tangents[parameters[i]][i] = 1;
+        }
+
+        // Values are read from the value storage directly, so make sure
+        // everything the pass uses is up to date
+        for (int row : rows) {
+            current(row);
+        }
+
+        double[][] tangentStack = new double[Math.max(stack.length, 1)][width];
+        for (int row : rows) {
+            double[] tangent = new double[width];
+            if (circular[row]) {
+                Arrays.fill(tangent, Double.NaN);
             } else {
-                System.err.println("Not found!");
+                formulas[row].evaluateDual(values, tangents, links[row], stack, tangentStack, tangent);
             }
+            tangents[row] = tangent;
         }
 
-        if (DEBUG && oldFormula != formula) {            
-            System.out.println("Replacing UIDs....");
-            System.out.println("\tOld: " + oldFormula);
-            System.out.println("\tNew: " + formula);
+        double[][] result = new double[outputs.length][];
+        for (int i = 0; i < outputs.length; i++) {
+            double[] tangent = tangents[outputs[i]];
+            result[i] = tangent == null ? new double[width] : tangent.clone();
         }
-
-        return formula;
+        return result;
     }
 
     /**
-     * Shorthand for turning an e3 expression into an excel expression
+     * Computes bounds on a number of formulas when some formulas take any
+     * value within a range instead of their current value (see
+     * {@link Formula#evaluateInterval}). Everything that does not depend on
+     * those inputs keeps its current value.
+     *
+     * Only available in NATIVE and LAZY mode.
+     *
+     * @param inputs handles (see {@link #handleOf(String)}) of the formulas
+     * that range
+     * @param lower per input, the lowest value
+     * @param upper per input, the highest value
+     * @param outputs handles of the formulas to bound
+     * @return per output, its lower (index 0) and upper (index 1) bound.
+     * [NaN, NaN] if the output is an error for all inputs, [-Infinity,
+     * Infinity] if it may be an error.
      */
-    public String e3ExpressionToExcel(String uidScope, String e3expr) {
-        return Arrays.asList(e3expr).stream()
-                .map(e -> replaceLocals(uidScope, e3expr))
-                .map(this::replaceNames)
-                .map(this::replaceUIDs)
-                .findFirst()
-                .get();
+    public double[][] evaluateBounds(int[] inputs, double[] lower, double[] upper, int[] outputs) {
+        if (mode == Mode.POI) {
+            throw new IllegalStateException("Interval evaluation is not supported in POI mode");
+        }
+        for (int i = 0; i < inputs.length; i++) {
+            if (!(lower[i] <= upper[i])) {
+                throw new IllegalArgumentException("Empty range [" + lower[i] + ", " + upper[i] + "] for input " + inputs[i]);
+            }
+        }
+        recalculate();
+
+        boolean[] circular = new boolean[nextRow];
+        int[] rows = dependentsInOrder(inputs, circular);
+        for (int row : rows) {
+            current(row);
+        }
+        for (int output : outputs) {
+            current(output);
+        }
+
+        // Everything starts out at its current value
+        double[] low = Arrays.copyOf(values, nextRow);
+        double[] high = Arrays.copyOf(values, nextRow);
+        for (int i = 0; i < inputs.length; i++) {
+            low[inputs[i]] = lower[i];
+            high[inputs[i]] = upper[i];
+        }
+
+        double[] lowStack = new double[stack.length];
+        double[] highStack = new double[stack.length];
+        double[] bounds = new double[2];
+        for (int row : rows) {
+            if (circular[row]) {
+                low[row] = Double.NaN;
+                high[row] = Double.NaN;
+                continue;
+            }
+            formulas[row].evaluateInterval(low, high, links[row], lowStack, highStack, bounds);
+            low[row] = bounds[0];
+            high[row] = bounds[1];
+        }
+
+        double[][] result = new double[outputs.length][];
+        for (int i = 0; i < outputs.length; i++) {
+            result[i] = new double[]{low[outputs[i]], high[outputs[i]]};
+        }
+        return result;
     }
 
     /**
@@ -457,6 +1279,13 @@ public class ExpressionEvaluator {
         // Get the row, convert the formula, change the expression, update the sheet
         int row = rowMap.get(reference);
 
+        if (mode != Mode.POI) {
+            setFormula(row, Formula.constant(value), new int[0]);
+            ownValues();
+            values[row] = value;
+            return;
+        }
+
         Cell cell = sheet.getRow(row).getCell(1);
         cell.setCellValue(value);
         cell.setCellType(CellType.NUMERIC);
@@ -477,6 +1306,12 @@ public class ExpressionEvaluator {
         // Get the row, convert the formula, change the expression, update the sheet
         int row = rowMap.get(reference);
 
+        if (mode != Mode.POI) {
+            Formula compiled = FormulaCache.get(uidScope, formula);
+            setFormula(row, compiled, link(compiled));
+            return;
+        }
+
         formula = e3ExpressionToExcel(uidScope, formula);
 
         Cell cell = sheet.getRow(row).getCell(1);
@@ -484,9 +1319,133 @@ public class ExpressionEvaluator {
     }
      
      public void reEvaluate(){
-                 XSSFFormulaEvaluator.evaluateAllFormulaCells(wb);
+        if (mode != Mode.POI) {
+            recalculate();
+            return;
+        }
+        XSSFFormulaEvaluator.evaluateAllFormulaCells(wb);
      }
 
+    /**
+     * Creates an evaluator for a copy of the model this evaluator was created
+     * from. The fork shares the compiled formulas, the row and name mappings
+     * and the current values with this evaluator; whichever of the two
+     * changes first copies what it changes. Changes to either evaluator are
+     * not visible in the other.
+     *
+     * In POI mode the model copy is simply evaluated from scratch.
+     *
+     * @param modelCopy the copy of the Jena model, with the same formulas as
+     * the model of this evaluator
+     * @return the fork
+     */
+    public ExpressionEvaluator fork(Model modelCopy) {
+        if (mode == Mode.POI) {
+            ExpressionEvaluator copy = new ExpressionEvaluator(modelCopy, mode);
+            copy.evaluateAll();
+            return copy;
+        }
+
+        // Make sure the fork starts out without pending changes
+        recalculate();
+
+        ExpressionEvaluator copy = new ExpressionEvaluator(modelCopy, mode);
+        copy.rowMap = rowMap;
+        copy.uidMap = uidMap;
+        copy.nextRow = nextRow;
+        copy.formulas = formulas;
+        copy.links = links;
+        copy.values = values;
+        copy.stale = stale;
+        copy.dependents = dependents;
+        copy.dependentCount = dependentCount;
+        copy.stack = new double[stack.length];
+        copy.lastUID = lastUID;
+        copy.lastFormulaName = lastFormulaName;
+
+        copy.sharedValues = sharedValues = true;
+        copy.sharedStructure = sharedStructure = true;
+        copy.ownLists = ownLists = null;
+        return copy;
+    }
+
+    /**
+     * Compiles the formulas that depend on the given inputs into a batch that
+     * evaluates the outputs for many values of the inputs at once, without
+     * changing this evaluator. The formulas of the inputs themselves are
+     * replaced by the given values. Everything that does not depend on the
+     * inputs keeps its current value.
+     *
+     * Only available in NATIVE and LAZY mode.
+     *
+     * @param inputs handles (see {@link #handleOf(String)}) of the formulas to
+     * vary
+     * @param outputs handles of the formulas to compute
+     * @return the batch
+     */
+    public FormulaBatch compileBatch(int[] inputs, int[] outputs) {
+        if (mode == Mode.POI) {
+            throw new IllegalStateException("Batched evaluation is not supported in POI mode");
+        }
+        recalculate();
+
+        boolean[] circular = new boolean[nextRow];
+        int[] programRows = dependentsInOrder(inputs, circular);
+        int size = programRows.length;
+
+        // column[row] is the column of a row in the batch, or -1
+        int[] column = new int[nextRow];
+        Arrays.fill(column, -1);
+        for (int i = 0; i < inputs.length; i++) {
+            column[inputs[i]] = i;
+        }
+        for (int i = 0; i < size; i++) {
+            column[programRows[i]] = inputs.length + i;
+        }
+
+        // Rows that are used but do not depend on the inputs become constant
+        // columns after the program
+        double[] constants = new double[16];
+        int constantCount = 0;
+        int[][] slots = new int[size][];
+        Formula[] program = new Formula[size];
+        for (int i = 0; i < size; i++) {
+            int row = programRows[i];
+            if (circular[row]) {
+                program[i] = Formula.constant(Double.NaN);
+                slots[i] = new int[0];
+                continue;
+            }
+            program[i] = formulas[row];
+            slots[i] = links[row].clone();
+            for (int r = 0; r < slots[i].length; r++) {
+                int ref = slots[i][r];
+                if (column[ref] == -1) {
+                    if (constantCount == constants.length) {
+                        constants = Arrays.copyOf(constants, constantCount * 2);
+                    }
+                    constants[constantCount] = current(ref);
+                    column[ref] = inputs.length + size + constantCount++;
+                }
+                slots[i][r] = column[ref];
+            }
+        }
+        int[] outputColumns = new int[outputs.length];
+        for (int i = 0; i < outputs.length; i++) {
+            int row = outputs[i];
+            if (column[row] == -1) {
+                if (constantCount == constants.length) {
+                    constants = Arrays.copyOf(constants, constantCount * 2);
+                }
+                constants[constantCount] = current(row);
+                column[row] = inputs.length + size + constantCount++;
+            }
+            outputColumns[i] = column[row];
+        }
+
+        return new FormulaBatch(inputs.length, program, slots, Arrays.copyOf(constants, constantCount), outputColumns);
+    }
+
     /**
      * Argument reference can only be of form <code>#123.VALUATION</code>.
      * uidScope contains the UID of the enity that owns the formula. This is
@@ -505,6 +1464,17 @@ public class ExpressionEvaluator {
             System.out.println("Reference \"" + reference + "\" already exists.");
             return;
         }
+        if (mode != Mode.POI) {
+            Formula compiled = FormulaCache.get(uidScope, formula);
+            int[] slots = link(compiled);
+            ownStructure();
+            int newRow = nextRow++;
+            ensureCapacity(nextRow);
+            rowMap.put(reference, newRow);
+            setFormula(newRow, compiled, slots);
+            return;
+        }
+
         // Convert the formula, get a new row, create the row and cells,
         // and update the sheet
         formula = e3ExpressionToExcel(uidScope, formula);    
@@ -536,7 +1506,7 @@ public class ExpressionEvaluator {
         } else {
             addNewFormula(reference, uidScope, formula);            
         }
-        XSSFFormulaEvaluator.evaluateAllFormulaCells(wb);
+        reEvaluate();
     }
 
     /**
@@ -553,7 +1523,7 @@ public class ExpressionEvaluator {
 
         for (int i = 0; i < 100; i++) {
             System.out.println(i);
-            ExpressionEvaluator eModel = new ExpressionEvaluator(model.getJenaModel());
+            ExpressionEvaluator eModel = new ExpressionEvaluator(model.getJenaModel(), defaultMode);
         }
 
 //		Optional<Double> val = eModel.valueOf("#7.VALUATION");
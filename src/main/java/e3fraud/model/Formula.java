@@ -0,0 +1,1091 @@
+/**
+ * *****************************************************************************
+ * Copyright (C) 2026 agent
+ *
+ *
+ * This file is part of e3tool.
+ *
+ * e3tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * e3tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with e3tool.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************
+ */
+package e3fraud.model;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+
+/**
+ * A compiled e3value formula. The formula is stored as a flat postfix program
+ * (opcodes and operands in one int array) that runs on a small double stack.
+ *
+ * References to other formulas are kept symbolic (i.e. <code>#123.VALUATION</code>
+ * or <code>'Subscription fee'.VALUATION</code>), so one Formula can be shared
+ * by several evaluators. An evaluator links the references to its own value
+ * slots and passes that mapping to {@link #evaluate}.
+ *
+ * Instances are immutable. Excel errors (division by zero, square root of a
+ * negative number etc.) evaluate to NaN.
+ */
+public final class Formula {
+
+    static final int CONST = 0;
+    static final int LOAD = 1;
+    static final int NEG = 2;
+    static final int ADD = 3;
+    static final int SUB = 4;
+    static final int MUL = 5;
+    static final int DIV = 6;
+    static final int POW = 7;
+    static final int PERCENT = 8;
+    static final int EQ = 9;
+    static final int NE = 10;
+    static final int LT = 11;
+    static final int GT = 12;
+    static final int LE = 13;
+    static final int GE = 14;
+    static final int CALL = 15;
+
+    static final int IF = 0;
+    static final int MIN = 1;
+    static final int MAX = 2;
+    static final int SUM = 3;
+    static final int AVERAGE = 4;
+    static final int ABS = 5;
+    static final int ROUND = 6;
+    static final int ROUNDUP = 7;
+    static final int ROUNDDOWN = 8;
+    static final int INT = 9;
+    static final int MOD = 10;
+    static final int POWER = 11;
+    static final int SQRT = 12;
+    static final int EXP = 13;
+    static final int LN = 14;
+    static final int LOG = 15;
+    static final int LOG10 = 16;
+    static final int AND = 17;
+    static final int OR = 18;
+    static final int NOT = 19;
+    static final int SIGN = 20;
+
+    /**
+     * Function names, indexed by function id
+     */
+    static final String[] FUNCTIONS = {"IF", "MIN", "MAX", "SUM", "AVERAGE", "ABS",
+        "ROUND", "ROUNDUP", "ROUNDDOWN", "INT", "MOD", "POWER", "SQRT", "EXP",
+        "LN", "LOG", "LOG10", "AND", "OR", "NOT", "SIGN"};
+    /**
+     * Minimum and maximum number of arguments, indexed by function id. -1
+     * means unbounded.
+     */
+    static final int[] MIN_ARGS = {2, 1, 1, 1, 1, 1, 2, 2, 2, 1, 2, 2, 1, 1, 1, 1, 1, 1, 1, 1, 1};
+    static final int[] MAX_ARGS = {3, -1, -1, -1, -1, 1, 2, 2, 2, 1, 2, 2, 1, 1, 1, 2, 1, -1, -1, 1, 1};
+
+    private static final String[] NO_REFERENCES = new String[0];
+
+    private final String text;
+    private final int[] code;
+    private final double[] constants;
+    private final String[] references;
+    private final int maxStack;
+
+    Formula(String text, int[] code, double[] constants, String[] references, int maxStack) {
+        this.text = text;
+        this.code = code;
+        this.constants = constants;
+        this.references = references;
+        this.maxStack = maxStack;
+    }
+
+    /**
+     * Returns a formula that always evaluates to value.
+     */
+    public static Formula constant(double value) {
+        return new Formula(Double.toString(value), new int[]{CONST, 0}, new double[]{value}, NO_REFERENCES, 1);
+    }
+
+    /**
+     * The (e3value) text this formula was compiled from
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * The symbolic references used by this formula, in the order of their
+     * operand index. Name references are returned as <code>'Name'.ATTR</code>,
+     * all others as <code>#123.ATTR</code>. The returned array must not be
+     * modified.
+     */
+    public String[] getReferences() {
+        return references;
+    }
+
+    /**
+     * The stack size needed to evaluate this formula
+     */
+    public int getMaxStack() {
+        return maxStack;
+    }
+
+    /**
+     * @return true iff the formula is a single number
+     */
+    public boolean isConstant() {
+        return code.length == 2 && code[0] == CONST;
+    }
+
+    /**
+     * Evaluates the formula.
+     *
+     * @param values the value storage of the evaluator
+     * @param slots for each reference of this formula, the index in values
+     * where its value can be found
+     * @param stack scratch space of at least {@link #getMaxStack()} elements
+     * @return the value of the formula, or NaN if it results in an error
+     */
+    public double evaluate(double[] values, int[] slots, double[] stack) {
+        final int[] code = this.code;
+        int sp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case CONST:
+                    stack[sp++] = constants[code[pc++]];
+                    break;
+                case LOAD:
+                    stack[sp++] = values[slots[code[pc++]]];
+                    break;
+                case NEG:
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                case PERCENT:
+                    stack[sp - 1] = stack[sp - 1] / 100;
+                    break;
+                case CALL: {
+                    int function = code[pc++];
+                    int argc = code[pc++];
+                    sp -= argc;
+                    stack[sp] = call(function, stack, sp, argc);
+                    sp++;
+                    break;
+                }
+                default:
+                    sp--;
+                    stack[sp - 1] = binary(code[pc - 1], stack[sp - 1], stack[sp]);
+                    break;
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * Evaluates the formula for count points at once. Instead of one value
+     * per reference this takes a column of count values per reference, and
+     * every operation is applied to whole columns.
+     *
+     * @param columns the value columns of the evaluator
+     * @param slots for each reference of this formula, the index in columns
+     * where its column can be found
+     * @param count the number of points
+     * @param stack scratch space of at least {@link #getMaxStack()} columns of
+     * at least count elements
+     * @param result receives the value of the formula for each point
+     */
+    public void evaluateBatch(double[][] columns, int[] slots, int count, double[][] stack, double[] result) {
+        final int[] code = this.code;
+        int sp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc++];
+            switch (op) {
+                case CONST:
+                    Arrays.fill(stack[sp++], 0, count, constants[code[pc++]]);
+                    break;
+                case LOAD:
+                    System.arraycopy(columns[slots[code[pc++]]], 0, stack[sp++], 0, count);
+                    break;
+                case NEG: {
+                    double[] a = stack[sp - 1];
+                    for (int i = 0; i < count; i++) {
+                        a[i] = -a[i];
+                    }
+                    break;
+                }
+                case PERCENT: {
+                    double[] a = stack[sp - 1];
+                    for (int i = 0; i < count; i++) {
+                        a[i] = a[i] / 100;
+                    }
+                    break;
+                }
+                case CALL: {
+                    int function = code[pc++];
+                    int argc = code[pc++];
+                    sp -= argc;
+                    double[] args = new double[argc];
+                    double[] out = stack[sp];
+                    for (int i = 0; i < count; i++) {
+                        for (int arg = 0; arg < argc; arg++) {
+                            args[arg] = stack[sp + arg][i];
+                        }
+                        out[i] = call(function, args, 0, argc);
+                    }
+                    sp++;
+                    break;
+                }
+                default: {
+                    sp--;
+                    double[] a = stack[sp - 1];
+                    double[] b = stack[sp];
+                    switch (op) {
+                        case ADD:
+                            for (int i = 0; i < count; i++) {
+                                a[i] = a[i] + b[i];
+                            }
+                            break;
+                        case SUB:
+                            for (int i = 0; i < count; i++) {
+                                a[i] = a[i] - b[i];
+                            }
+                            break;
+                        case MUL:
+                            for (int i = 0; i < count; i++) {
+                                a[i] = a[i] * b[i];
+                            }
+                            break;
+                        default:
+                            for (int i = 0; i < count; i++) {
+                                a[i] = binary(op, a[i], b[i]);
+                            }
+                    }
+                }
+            }
+        }
+        System.arraycopy(stack[0], 0, result, 0, count);
+    }
+
+    /**
+     * Evaluates the formula together with its derivatives (forward mode
+     * automatic differentiation). Every value comes with a tangent: its
+     * partial derivatives with respect to a number of parameters. The
+     * tangent of the result follows from the tangents of the references by
+     * the chain rule.
+     *
+     * Functions that are piecewise constant (comparisons, ROUND, INT, AND
+     * etc.) have derivative 0. IF, MIN and MAX take the derivative of the
+     * argument they select. Where the derivative does not exist the tangent
+     * is NaN.
+     *
+     * @param values the value storage of the evaluator
+     * @param tangents per value slot its tangent, or null if all its
+     * derivatives are 0
+     * @param slots for each reference of this formula, the index in values
+     * and tangents where it can be found
+     * @param stack scratch space of at least {@link #getMaxStack()} elements
+     * @param tangentStack scratch space of at least {@link #getMaxStack()}
+     * tangents, each as long as tangent
+     * @param tangent receives the derivatives of the formula
+     * @return the value of the formula, or NaN if it results in an error
+     */
+    public double evaluateDual(double[] values, double[][] tangents, int[] slots, double[] stack, double[][] tangentStack, double[] tangent) {
+        final int[] code = this.code;
+        final int width = tangent.length;
+        double[] partials = new double[2];
+        int sp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc++];
+            switch (op) {
+                case CONST:
+                    Arrays.fill(tangentStack[sp], 0, width, 0);
+                    stack[sp++] = constants[code[pc++]];
+                    break;
+                case LOAD: {
+                    int slot = slots[code[pc++]];
+                    if (tangents[slot] == null) {
+                        Arrays.fill(tangentStack[sp], 0, width, 0);
+                    } else {
+                        System.arraycopy(tangents[slot], 0, tangentStack[sp], 0, width);
+                    }
+                    stack[sp++] = values[slot];
+                    break;
+                }
+                case NEG: {
+                    double[] t = tangentStack[sp - 1];
+                    for (int i = 0; i < width; i++) {
+                        t[i] = -t[i];
+                    }
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                }
+                case PERCENT: {
+                    double[] t = tangentStack[sp - 1];
+                    for (int i = 0; i < width; i++) {
+                        t[i] = t[i] / 100;
+                    }
+                    stack[sp - 1] = stack[sp - 1] / 100;
+                    break;
+                }
+                case CALL: {
+                    int function = code[pc++];
+                    int argc = code[pc++];
+                    sp -= argc;
+                    double result = call(function, stack, sp, argc);
+                    if (partials.length < argc) {
+                        partials = new double[argc];
+                    }
+                    callPartials(function, stack, sp, argc, result, partials);
+                    combine(tangentStack, sp, argc, partials, width);
+                    stack[sp] = result;
+                    sp++;
+                    break;
+                }
+                default: {
+                    sp--;
+                    double a = stack[sp - 1];
+                    double b = stack[sp];
+                    double result = binary(op, a, b);
+                    binaryPartials(op, a, b, result, partials);
+                    combine(tangentStack, sp - 1, 2, partials, width);
+                    stack[sp - 1] = result;
+                }
+            }
+        }
+        System.arraycopy(tangentStack[0], 0, tangent, 0, width);
+        if (Double.isNaN(stack[0])) {
+            Arrays.fill(tangent, Double.NaN);
+        }
+        return stack[0];
+    }
+
+    /**
+     * tangentStack[from] = sum over i of partials[i] * tangentStack[from + i].
+     * Operands with partial 0 are skipped, so that an infinite or NaN tangent
+     * of an argument that is not used (e.g. the other branch of an IF) does
+     * not leak into the result.
+     */
+    private static void combine(double[][] tangentStack, int from, int count, double[] partials, int width) {
+        double[] out = tangentStack[from];
+        for (int i = 0; i < width; i++) {
+            double sum = 0;
+            for (int arg = 0; arg < count; arg++) {
+                if (partials[arg] != 0) {
+                    sum += partials[arg] * tangentStack[from + arg][i];
+                }
+            }
+            out[i] = sum;
+        }
+    }
+
+    /**
+     * The partial derivatives of a binary operation with respect to a and b
+     */
+    static void binaryPartials(int op, double a, double b, double result, double[] partials) {
+        switch (op) {
+            case ADD:
+                partials[0] = 1;
+                partials[1] = 1;
+                break;
+            case SUB:
+                partials[0] = 1;
+                partials[1] = -1;
+                break;
+            case MUL:
+                partials[0] = b;
+                partials[1] = a;
+                break;
+            case DIV:
+                partials[0] = 1 / b;
+                partials[1] = -a / (b * b);
+                break;
+            case POW:
+                powerPartials(a, b, result, partials, 0);
+                break;
+            default:
+                // Comparisons
+                partials[0] = 0;
+                partials[1] = 0;
+        }
+    }
+
+    private static void powerPartials(double a, double b, double result, double[] partials, int offset) {
+        partials[offset] = b == 0 ? 0 : b * Math.pow(a, b - 1);
+        partials[offset + 1] = a > 0 ? result * Math.log(a) : 0;
+    }
+
+    /**
+     * The partial derivatives of a function call with respect to each of its
+     * arguments
+     */
+    static void callPartials(int function, double[] args, int offset, int argc, double result, double[] partials) {
+        Arrays.fill(partials, 0, argc, 0);
+        double a = args[offset];
+        switch (function) {
+            case IF:
+                if (!Double.isNaN(a)) {
+                    if (a != 0) {
+                        partials[1] = 1;
+                    } else if (argc == 3) {
+                        partials[2] = 1;
+                    }
+                }
+                break;
+            case MIN:
+            case MAX:
+                for (int i = 0; i < argc; i++) {
+                    if (args[offset + i] == result) {
+                        partials[i] = 1;
+                        break;
+                    }
+                }
+                break;
+            case SUM:
+                Arrays.fill(partials, 0, argc, 1);
+                break;
+            case AVERAGE:
+                Arrays.fill(partials, 0, argc, 1.0 / argc);
+                break;
+            case ABS:
+                partials[0] = Math.signum(a);
+                break;
+            case MOD:
+                partials[0] = 1;
+                partials[1] = -Math.floor(a / args[offset + 1]);
+                break;
+            case POWER:
+                powerPartials(a, args[offset + 1], result, partials, 0);
+                break;
+            case SQRT:
+                partials[0] = 0.5 / result;
+                break;
+            case EXP:
+                partials[0] = result;
+                break;
+            case LN:
+                partials[0] = 1 / a;
+                break;
+            case LOG:
+                if (argc == 2) {
+                    double logBase = Math.log(args[offset + 1]);
+                    partials[0] = 1 / (a * logBase);
+                    partials[1] = -Math.log(a) / (args[offset + 1] * logBase * logBase);
+                } else {
+                    partials[0] = 1 / (a * Math.log(10));
+                }
+                break;
+            case LOG10:
+                partials[0] = 1 / (a * Math.log(10));
+                break;
+            default:
+                // ROUND, ROUNDUP, ROUNDDOWN, INT, AND, OR, NOT and SIGN are
+                // piecewise constant
+                break;
+        }
+    }
+
+    /**
+     * Evaluates the formula for inputs that are ranges instead of single
+     * values (interval arithmetic). The result is a range that is guaranteed
+     * to contain the value of the formula for every combination of input
+     * values within their ranges.
+     *
+     * Errors are represented as follows: [NaN, NaN] means the formula
+     * results in an error for all inputs, and [-Infinity, Infinity] means
+     * nothing is known: the formula may have any value, or result in an
+     * error.
+     *
+     * @param lower the lower bounds of the value storage of the evaluator
+     * @param upper the upper bounds of the value storage of the evaluator
+     * @param slots for each reference of this formula, the index in lower
+     * and upper where its bounds can be found
+     * @param lowStack scratch space of at least {@link #getMaxStack()}
+     * elements
+     * @param highStack scratch space of at least {@link #getMaxStack()}
+     * elements
+     * @param bounds receives the lower (index 0) and upper (index 1) bound of
+     * the formula
+     */
+    public void evaluateInterval(double[] lower, double[] upper, int[] slots, double[] lowStack, double[] highStack, double[] bounds) {
+        final int[] code = this.code;
+        double[] lo = lowStack;
+        double[] hi = highStack;
+        int sp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc++];
+            switch (op) {
+                case CONST:
+                    lo[sp] = constants[code[pc]];
+                    hi[sp++] = constants[code[pc++]];
+                    break;
+                case LOAD: {
+                    int slot = slots[code[pc++]];
+                    lo[sp] = lower[slot];
+                    hi[sp++] = upper[slot];
+                    break;
+                }
+                case NEG: {
+                    double low = lo[sp - 1];
+                    lo[sp - 1] = -hi[sp - 1];
+                    hi[sp - 1] = -low;
+                    break;
+                }
+                case PERCENT:
+                    lo[sp - 1] = lo[sp - 1] / 100;
+                    hi[sp - 1] = hi[sp - 1] / 100;
+                    break;
+                case CALL: {
+                    int function = code[pc++];
+                    int argc = code[pc++];
+                    sp -= argc;
+                    intervalCall(function, lo, hi, sp, argc, bounds);
+                    lo[sp] = bounds[0];
+                    hi[sp++] = bounds[1];
+                    break;
+                }
+                default:
+                    sp--;
+                    intervalBinary(op, lo[sp - 1], hi[sp - 1], lo[sp], hi[sp], bounds);
+                    lo[sp - 1] = bounds[0];
+                    hi[sp - 1] = bounds[1];
+            }
+        }
+        bounds[0] = lo[0];
+        bounds[1] = hi[0];
+    }
+
+    private static boolean isError(double low, double high) {
+        return Double.isNaN(low);
+    }
+
+    private static boolean isUnknown(double low, double high) {
+        return low == Double.NEGATIVE_INFINITY && high == Double.POSITIVE_INFINITY;
+    }
+
+    private static void setInterval(double[] out, double low, double high) {
+        // NaN bounds come from things like Infinity - Infinity; all that is
+        // known then is that there is no bound
+        out[0] = Double.isNaN(low) ? Double.NEGATIVE_INFINITY : low;
+        out[1] = Double.isNaN(high) ? Double.POSITIVE_INFINITY : high;
+    }
+
+    private static void setError(double[] out) {
+        out[0] = Double.NaN;
+        out[1] = Double.NaN;
+    }
+
+    private static void setUnknown(double[] out) {
+        out[0] = Double.NEGATIVE_INFINITY;
+        out[1] = Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * 0 * Infinity is 0 in interval arithmetic
+     */
+    private static double product(double a, double b) {
+        return (a == 0 || b == 0) ? 0 : a * b;
+    }
+
+    /**
+     * The range of a * b for a in [al, ah] and b in [bl, bh]
+     */
+    static void intervalMultiply(double al, double ah, double bl, double bh, double[] out) {
+        double p1 = product(al, bl);
+        double p2 = product(al, bh);
+        double p3 = product(ah, bl);
+        double p4 = product(ah, bh);
+        setInterval(out, Math.min(Math.min(p1, p2), Math.min(p3, p4)), Math.max(Math.max(p1, p2), Math.max(p3, p4)));
+    }
+
+    static void intervalBinary(int op, double al, double ah, double bl, double bh, double[] out) {
+        if (op == POW) {
+            intervalPower(al, ah, bl, bh, out);
+            return;
+        }
+        if (isError(al, ah) || isError(bl, bh)) {
+            setError(out);
+            return;
+        }
+        if (isUnknown(al, ah) || isUnknown(bl, bh)) {
+            setUnknown(out);
+            return;
+        }
+        switch (op) {
+            case ADD:
+                setInterval(out, al + bl, ah + bh);
+                return;
+            case SUB:
+                setInterval(out, al - bh, ah - bl);
+                return;
+            case MUL:
+                intervalMultiply(al, ah, bl, bh, out);
+                return;
+            case DIV:
+                if (bl == 0 && bh == 0) {
+                    setError(out);
+                } else if (bl <= 0 && bh >= 0) {
+                    setUnknown(out);
+                } else {
+                    intervalMultiply(al, ah, 1 / bh, 1 / bl, out);
+                }
+                return;
+        }
+        // Comparisons: 1 or 0 if the outcome is the same for all values,
+        // otherwise [0, 1]
+        boolean always;
+        boolean never;
+        switch (op) {
+            case EQ:
+            case NE:
+                always = al == ah && bl == bh && al == bl;
+                never = ah < bl || bh < al;
+                if (op == NE) {
+                    boolean swap = always;
+                    always = never;
+                    never = swap;
+                }
+                break;
+            case LT:
+                always = ah < bl;
+                never = al >= bh;
+                break;
+            case GT:
+                always = al > bh;
+                never = ah <= bl;
+                break;
+            case LE:
+                always = ah <= bl;
+                never = al > bh;
+                break;
+            case GE:
+                always = al >= bh;
+                never = ah < bl;
+                break;
+            default:
+                throw new IllegalStateException("Unknown opcode " + op);
+        }
+        out[0] = always ? 1 : 0;
+        out[1] = never ? 0 : 1;
+    }
+
+    private static void intervalPower(double al, double ah, double bl, double bh, double[] out) {
+        // x^0 is 1 for every x, even for errors
+        if (bl == 0 && bh == 0) {
+            out[0] = 1;
+            out[1] = 1;
+            return;
+        }
+        if (isError(bl, bh)) {
+            setError(out);
+            return;
+        }
+        if (isError(al, ah) || isUnknown(al, ah) || isUnknown(bl, bh)) {
+            if (bl <= 0 && bh >= 0) {
+                setUnknown(out);
+            } else if (isError(al, ah)) {
+                setError(out);
+            } else {
+                setUnknown(out);
+            }
+            return;
+        }
+        if (al > 0) {
+            // a^b = exp(b * ln(a)) is monotonic in both arguments, so the
+            // extremes are at the corners
+            double p1 = Math.pow(al, bl);
+            double p2 = Math.pow(al, bh);
+            double p3 = Math.pow(ah, bl);
+            double p4 = Math.pow(ah, bh);
+            setInterval(out, Math.min(Math.min(p1, p2), Math.min(p3, p4)), Math.max(Math.max(p1, p2), Math.max(p3, p4)));
+        } else if (bl == bh && bl == Math.rint(bl) && (bl > 0 || ah < 0)) {
+            // Integer exponent, so negative bases are fine. Apart from the
+            // end points the extreme can only be at 0.
+            double p1 = Math.pow(al, bl);
+            double p2 = Math.pow(ah, bl);
+            double low = Math.min(p1, p2);
+            double high = Math.max(p1, p2);
+            if (ah >= 0) {
+                low = Math.min(low, 0);
+            }
+            setInterval(out, low, high);
+        } else if (ah < 0 && bl == bh) {
+            // Fractional power of a negative number
+            setError(out);
+        } else {
+            setUnknown(out);
+        }
+    }
+
+    /**
+     * The range of ROUND, ROUNDUP or ROUNDDOWN. These are monotonic in the
+     * value. If the number of digits is not fixed, the result differs at
+     * most one unit of the smallest number of digits from the value.
+     */
+    private static void intervalRound(double low, double high, double digitsLow, double digitsHigh, RoundingMode mode, double[] out) {
+        if (digitsLow == digitsHigh) {
+            setInterval(out, Double.isInfinite(low) ? low : round(low, digitsLow, mode),
+                    Double.isInfinite(high) ? high : round(high, digitsLow, mode));
+        } else {
+            double unit = Math.pow(10, -(int) digitsLow);
+            setInterval(out, low - unit, high + unit);
+        }
+    }
+
+    static void intervalCall(int function, double[] lo, double[] hi, int offset, int argc, double[] out) {
+        double al = lo[offset];
+        double ah = hi[offset];
+        if (function == IF) {
+            if (isError(al, ah)) {
+                setError(out);
+            } else if (isUnknown(al, ah)) {
+                setUnknown(out);
+            } else if (al > 0 || ah < 0) {
+                out[0] = lo[offset + 1];
+                out[1] = hi[offset + 1];
+            } else if (al == 0 && ah == 0) {
+                out[0] = argc == 3 ? lo[offset + 2] : 0;
+                out[1] = argc == 3 ? hi[offset + 2] : 0;
+            } else {
+                // Either branch can be taken
+                double bl = argc == 3 ? lo[offset + 2] : 0;
+                double bh = argc == 3 ? hi[offset + 2] : 0;
+                double cl = lo[offset + 1];
+                double ch = hi[offset + 1];
+                if (isError(cl, ch) && isError(bl, bh)) {
+                    setError(out);
+                } else if (isError(cl, ch) || isError(bl, bh)) {
+                    setUnknown(out);
+                } else {
+                    setInterval(out, Math.min(cl, bl), Math.max(ch, bh));
+                }
+            }
+            return;
+        }
+        if (function == AND || function == OR) {
+            // The first argument that is false (AND) or true (OR) decides,
+            // and an error before that makes the result an error
+            double decisive = function == AND ? 0 : 1;
+            boolean maybeDecided = false;
+            for (int i = 0; i < argc; i++) {
+                double l = lo[offset + i];
+                double h = hi[offset + i];
+                if (isError(l, h) || isUnknown(l, h)) {
+                    if (maybeDecided || isUnknown(l, h)) {
+                        setUnknown(out);
+                    } else {
+                        setError(out);
+                    }
+                    return;
+                }
+                boolean isFalse = l == 0 && h == 0;
+                boolean isTrue = l > 0 || h < 0;
+                if (function == AND ? isFalse : isTrue) {
+                    out[0] = decisive;
+                    out[1] = decisive;
+                    return;
+                }
+                if (!isFalse && !isTrue) {
+                    maybeDecided = true;
+                }
+            }
+            out[0] = maybeDecided ? 0 : 1 - decisive;
+            out[1] = maybeDecided ? 1 : 1 - decisive;
+            return;
+        }
+        if (function == POWER) {
+            intervalPower(al, ah, lo[offset + 1], hi[offset + 1], out);
+            return;
+        }
+        for (int i = 0; i < argc; i++) {
+            if (isError(lo[offset + i], hi[offset + i])) {
+                setError(out);
+                return;
+            }
+        }
+        for (int i = 0; i < argc; i++) {
+            if (isUnknown(lo[offset + i], hi[offset + i])) {
+                setUnknown(out);
+                return;
+            }
+        }
+        switch (function) {
+            case MIN:
+            case MAX: {
+                double low = al;
+                double high = ah;
+                for (int i = 1; i < argc; i++) {
+                    if (function == MIN) {
+                        low = Math.min(low, lo[offset + i]);
+                        high = Math.min(high, hi[offset + i]);
+                    } else {
+                        low = Math.max(low, lo[offset + i]);
+                        high = Math.max(high, hi[offset + i]);
+                    }
+                }
+                setInterval(out, low, high);
+                return;
+            }
+            case SUM:
+            case AVERAGE: {
+                double low = 0;
+                double high = 0;
+                for (int i = 0; i < argc; i++) {
+                    low += lo[offset + i];
+                    high += hi[offset + i];
+                }
+                if (function == AVERAGE) {
+                    low /= argc;
+                    high /= argc;
+                }
+                setInterval(out, low, high);
+                return;
+            }
+            case ABS:
+                if (al >= 0) {
+                    setInterval(out, al, ah);
+                } else if (ah <= 0) {
+                    setInterval(out, -ah, -al);
+                } else {
+                    setInterval(out, 0, Math.max(-al, ah));
+                }
+                return;
+            case ROUND:
+                intervalRound(al, ah, lo[offset + 1], hi[offset + 1], RoundingMode.HALF_UP, out);
+                return;
+            case ROUNDUP:
+                intervalRound(al, ah, lo[offset + 1], hi[offset + 1], RoundingMode.UP, out);
+                return;
+            case ROUNDDOWN:
+                intervalRound(al, ah, lo[offset + 1], hi[offset + 1], RoundingMode.DOWN, out);
+                return;
+            case INT:
+                setInterval(out, Math.floor(al), Math.floor(ah));
+                return;
+            case MOD: {
+                double bl = lo[offset + 1];
+                double bh = hi[offset + 1];
+                if (bl == 0 && bh == 0) {
+                    setError(out);
+                } else if (bl == bh && !Double.isInfinite(al) && !Double.isInfinite(ah)
+                        && Math.floor(al / bl) == Math.floor(ah / bl)) {
+                    // Within one period MOD increases with the value
+                    setInterval(out, al - bl * Math.floor(al / bl), ah - bl * Math.floor(ah / bl));
+                } else if (bl > 0) {
+                    setInterval(out, 0, bh);
+                } else if (bh < 0) {
+                    setInterval(out, bl, 0);
+                } else {
+                    setUnknown(out);
+                }
+                return;
+            }
+            case SQRT:
+                if (ah < 0) {
+                    setError(out);
+                } else if (al < 0) {
+                    setUnknown(out);
+                } else {
+                    setInterval(out, Math.sqrt(al), Math.sqrt(ah));
+                }
+                return;
+            case EXP:
+                setInterval(out, Math.exp(al), Math.exp(ah));
+                return;
+            case LN:
+            case LOG10:
+            case LOG:
+                if (ah <= 0) {
+                    setError(out);
+                } else if (al <= 0) {
+                    setUnknown(out);
+                } else if (function == LN) {
+                    setInterval(out, Math.log(al), Math.log(ah));
+                } else if (function == LOG10 || argc == 1) {
+                    setInterval(out, Math.log10(al), Math.log10(ah));
+                } else {
+                    // ln(a) * 1/ln(b), for a base that stays on one side of 1
+                    double bl = lo[offset + 1];
+                    double bh = hi[offset + 1];
+                    if (bl > 1 || (bl > 0 && bh < 1)) {
+                        intervalMultiply(Math.log(al), Math.log(ah), 1 / Math.log(bh), 1 / Math.log(bl), out);
+                    } else {
+                        setUnknown(out);
+                    }
+                }
+                return;
+            case NOT:
+                out[0] = al == 0 && ah == 0 ? 1 : 0;
+                out[1] = al > 0 || ah < 0 ? 0 : 1;
+                return;
+            case SIGN:
+                setInterval(out, Math.signum(al), Math.signum(ah));
+                return;
+            default:
+                throw new IllegalStateException("Unknown function " + function);
+        }
+    }
+
+    static double binary(int op, double a, double b) {
+        switch (op) {
+            case ADD:
+                return a + b;
+            case SUB:
+                return a - b;
+            case MUL:
+                return a * b;
+            case DIV:
+                return b == 0 ? Double.NaN : a / b;
+            case POW:
+                return power(a, b);
+        }
+        // Comparisons; errors propagate instead of comparing as false
+        if (Double.isNaN(a) || Double.isNaN(b)) {
+            return Double.NaN;
+        }
+        switch (op) {
+            case EQ:
+                return a == b ? 1 : 0;
+            case NE:
+                return a != b ? 1 : 0;
+            case LT:
+                return a < b ? 1 : 0;
+            case GT:
+                return a > b ? 1 : 0;
+            case LE:
+                return a <= b ? 1 : 0;
+            case GE:
+                return a >= b ? 1 : 0;
+            default:
+                throw new IllegalStateException("Unknown opcode " + op);
+        }
+    }
+
+    /**
+     * a^b, where results POI cannot represent (e.g. 0^-1 or an overflow) are
+     * errors rather than infinity
+     */
+    private static double power(double a, double b) {
+        double result = Math.pow(a, b);
+        return Double.isInfinite(result) ? Double.NaN : result;
+    }
+
+    static double call(int function, double[] args, int offset, int argc) {
+        double a = args[offset];
+        switch (function) {
+            case IF:
+                if (Double.isNaN(a)) {
+                    return Double.NaN;
+                }
+                // IF(x, y) returns FALSE (i.e. 0) when x does not hold
+                return a != 0 ? args[offset + 1] : (argc == 3 ? args[offset + 2] : 0);
+            case MIN: {
+                double result = a;
+                for (int i = 1; i < argc; i++) {
+                    result = Math.min(result, args[offset + i]);
+                }
+                return result;
+            }
+            case MAX: {
+                double result = a;
+                for (int i = 1; i < argc; i++) {
+                    result = Math.max(result, args[offset + i]);
+                }
+                return result;
+            }
+            case SUM:
+            case AVERAGE: {
+                double result = 0;
+                for (int i = 0; i < argc; i++) {
+                    result += args[offset + i];
+                }
+                return function == SUM ? result : result / argc;
+            }
+            case ABS:
+                return Math.abs(a);
+            case ROUND:
+                return round(a, args[offset + 1], RoundingMode.HALF_UP);
+            case ROUNDUP:
+                return round(a, args[offset + 1], RoundingMode.UP);
+            case ROUNDDOWN:
+                return round(a, args[offset + 1], RoundingMode.DOWN);
+            case INT:
+                return Math.floor(a);
+            case MOD: {
+                double b = args[offset + 1];
+                return b == 0 ? Double.NaN : a - b * Math.floor(a / b);
+            }
+            case POWER:
+                return power(a, args[offset + 1]);
+            case SQRT:
+                return a < 0 ? Double.NaN : Math.sqrt(a);
+            case EXP:
+                return Math.exp(a);
+            case LN:
+                return a <= 0 ? Double.NaN : Math.log(a);
+            case LOG:
+                if (a <= 0) {
+                    return Double.NaN;
+                }
+                if (argc == 2) {
+                    // like POI, a base of 1 (dividing by log(1) = 0) is an error
+                    double result = Math.log(a) / Math.log(args[offset + 1]);
+                    return Double.isInfinite(result) ? Double.NaN : result;
+                }
+                return Math.log10(a);
+            case LOG10:
+                return a <= 0 ? Double.NaN : Math.log10(a);
+            case AND: {
+                for (int i = 0; i < argc; i++) {
+                    if (Double.isNaN(args[offset + i])) {
+                        return Double.NaN;
+                    }
+                    if (args[offset + i] == 0) {
+                        return 0;
+                    }
+                }
+                return 1;
+            }
+            case OR: {
+                for (int i = 0; i < argc; i++) {
+                    if (Double.isNaN(args[offset + i])) {
+                        return Double.NaN;
+                    }
+                    if (args[offset + i] != 0) {
+                        return 1;
+                    }
+                }
+                return 0;
+            }
+            case NOT:
+                return Double.isNaN(a) ? Double.NaN : (a == 0 ? 1 : 0);
+            case SIGN:
+                return Math.signum(a);
+            default:
+                throw new IllegalStateException("Unknown function " + function);
+        }
+    }
+
+    private static double round(double value, double digits, RoundingMode mode) {
+        if (Double.isNaN(value) || Double.isInfinite(value) || Double.isNaN(digits)) {
+            return Double.NaN;
+        }
+        // Go through the decimal representation, like Excel does, so that
+        // ROUND(2.345, 2) is 2.35 and not 2.34
+        return new BigDecimal(Double.toString(value)).setScale((int) digits, mode).doubleValue();
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
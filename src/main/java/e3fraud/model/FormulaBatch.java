@@ -0,0 +1,139 @@
+/**
+ * *****************************************************************************
+ * Copyright (C) 2026 agent
+ *
+ *
+ * This file is part of e3tool.
+ *
+ * e3tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * e3tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with e3tool.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************
+ */
+package e3fraud.model;
+
+import java.util.Arrays;
+
+/**
+ * The formulas of an evaluator that depend on a few inputs, compiled into a
+ * program that evaluates them for many values of those inputs at once.
+ * Created by {@link ExpressionEvaluator#compileBatch(int[], int[])}.
+ *
+ * Internally every formula gets a column with one value per point. The
+ * columns are laid out as: the inputs, then the formulas that depend on the
+ * inputs (in evaluation order), then the values of all other formulas that
+ * are used, which are constant over all points.
+ *
+ * A batch is a snapshot: later changes to the evaluator do not affect it. It
+ * is immutable and can be evaluated from multiple threads at the same time.
+ */
+public final class FormulaBatch {
+
+    private final int inputCount;
+    private final Formula[] program;
+    private final int[][] slots;
+    private final double[] constants;
+    private final int[] outputs;
+    private final int maxStack;
+
+    FormulaBatch(int inputCount, Formula[] program, int[][] slots, double[] constants, int[] outputs) {
+        this.inputCount = inputCount;
+        this.program = program;
+        this.slots = slots;
+        this.constants = constants;
+        this.outputs = outputs;
+        int stack = 1;
+        for (Formula formula : program) {
+            stack = Math.max(stack, formula.getMaxStack());
+        }
+        this.maxStack = stack;
+    }
+
+    public int getInputCount() {
+        return inputCount;
+    }
+
+    public int getOutputCount() {
+        return outputs.length;
+    }
+
+    /**
+     * @return the number of formulas that are evaluated for every point
+     */
+    public int getProgramSize() {
+        return program.length;
+    }
+
+    /**
+     * Evaluates the outputs for a number of points.
+     *
+     * @param inputValues per point, the value of each input (in the order the
+     * inputs were given when compiling)
+     * @return per point, the value of each output (in the order the outputs
+     * were given when compiling). Errors are NaN.
+     */
+    public double[][] evaluate(double[][] inputValues) {
+        int count = inputValues.length;
+        double[][] inputColumns = new double[inputCount][count];
+        for (int point = 0; point < count; point++) {
+            if (inputValues[point].length != inputCount) {
+                throw new IllegalArgumentException("Expected " + inputCount + " input values, got " + inputValues[point].length);
+            }
+            for (int input = 0; input < inputCount; input++) {
+                inputColumns[input][point] = inputValues[point][input];
+            }
+        }
+
+        double[][] outputColumns = evaluateColumns(inputColumns, count);
+
+        double[][] result = new double[count][outputs.length];
+        for (int output = 0; output < outputs.length; output++) {
+            for (int point = 0; point < count; point++) {
+                result[point][output] = outputColumns[output][point];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #evaluate(double[][])}, but with the values organized
+     * per input and per output instead of per point.
+     *
+     * @param inputColumns per input, its value for each point
+     * @param count the number of points
+     * @return per output, its value for each point
+     */
+    public double[][] evaluateColumns(double[][] inputColumns, int count) {
+        if (inputColumns.length != inputCount) {
+            throw new IllegalArgumentException("Expected " + inputCount + " input columns, got " + inputColumns.length);
+        }
+        double[][] columns = new double[inputCount + program.length + constants.length][];
+        System.arraycopy(inputColumns, 0, columns, 0, inputCount);
+        for (int i = 0; i < constants.length; i++) {
+            double[] column = new double[count];
+            Arrays.fill(column, constants[i]);
+            columns[inputCount + program.length + i] = column;
+        }
+
+        double[][] stack = new double[maxStack][count];
+        for (int i = 0; i < program.length; i++) {
+            double[] column = new double[count];
+            program[i].evaluateBatch(columns, slots[i], count, stack, column);
+            columns[inputCount + i] = column;
+        }
+
+        double[][] result = new double[outputs.length][];
+        for (int i = 0; i < outputs.length; i++) {
+            result[i] = columns[outputs[i]];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * *****************************************************************************
+ * Copyright (C) 2026 agent
+ *
+ *
+ * This file is part of e3tool.
+ *
+ * e3tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * e3tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with e3tool.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************
+ */
+package e3fraud.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide cache of compiled formulas, keyed on the UID of the entity that
+ * owns the formula and the formula text. Since a {@link Formula} keeps its
+ * references symbolic it does not depend on the evaluator it is used in, so
+ * all fraud variants of a model can share the formulas of the base model.
+ *
+ * The cache holds at most {@link #getMaxSize()} formulas and evicts the least
+ * recently used one when it is full. It can be used from multiple threads.
+ */
+public final class FormulaCache {
+
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private static int maxSize = DEFAULT_MAX_SIZE;
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    private static final LinkedHashMap<String, Formula> cache = new LinkedHashMap<String, Formula>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Formula> eldest) {
+            if (size() > maxSize) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private FormulaCache() {
+    }
+
+    /**
+     * Returns the compiled form of an e3value expression, compiling it if it
+     * is not in the cache yet.
+     *
+     * @param uidScope the UID of the entity that owns the formula, may be null
+     * @param text the expression (i.e. the part after the '=')
+     * @return the compiled formula
+     * @throws FormulaException if the expression cannot be parsed. Failures
+     * are not cached.
+     */
+    public static Formula get(String uidScope, String text) {
+        String key = (uidScope == null ? "" : uidScope) + "|" + text;
+        Formula formula;
+        synchronized (cache) {
+            formula = cache.get(key);
+        }
+        if (formula != null) {
+            hits.incrementAndGet();
+            return formula;
+        }
+
+        // Parse outside of the lock; two threads may parse the same formula,
+        // which is harmless since the results are equal
+        misses.incrementAndGet();
+        formula = FormulaParser.parse(uidScope, text);
+        synchronized (cache) {
+            cache.put(key, formula);
+        }
+        return formula;
+    }
+
+    public static int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Changes the maximum number of cached formulas. If the cache is larger
+     * than that, the least recently used formulas are evicted the next time
+     * a formula is added.
+     */
+    public static void setMaxSize(int newMaxSize) {
+        if (newMaxSize < 1) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        synchronized (cache) {
+            maxSize = newMaxSize;
+        }
+    }
+
+    /**
+     * @return the number of formulas currently in the cache
+     */
+    public static int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    public static long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Empties the cache and resets all counters
+     */
+    public static void clear() {
+        synchronized (cache) {
+            cache.clear();
+            hits.set(0);
+            misses.set(0);
+            evictions.set(0);
+        }
+    }
+
+    /**
+     * @return a one line summary of the counters, for debugging
+     */
+    public static String getStatistics() {
+        long h = hits.get();
+        long m = misses.get();
+        return "formula cache: " + size() + " formulas, " + h + " hits, " + m + " misses ("
+                + (h + m == 0 ? 0 : (100 * h / (h + m))) + "% hit rate), " + evictions.get() + " evictions";
+    }
+}
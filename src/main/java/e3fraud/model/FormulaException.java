@@ -0,0 +1,54 @@
+/**
+ * *****************************************************************************
+ * Copyright (C) 2026 agent
+ *
+ *
+ * This file is part of e3tool.
+ *
+ * e3tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * e3tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with e3tool.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************
+ */
+package e3fraud.model;
+
+/**
+ * Thrown by the native formula engine when an e3value formula cannot be parsed
+ * or refers to an entity or formula that does not exist. This is the native
+ * counterpart of POI's FormulaParseException.
+ */
+public class FormulaException extends RuntimeException {
+
+    private static final long serialVersionUID = 8656172876075628592L;
+
+    private final boolean unsupportedFunction;
+
+    public FormulaException(String message) {
+        this(message, false);
+    }
+
+    /**
+     * @param unsupportedFunction whether the formula calls a function that
+     * the native formula engine does not know (but POI may)
+     */
+    public FormulaException(String message, boolean unsupportedFunction) {
+        super(message);
+        this.unsupportedFunction = unsupportedFunction;
+    }
+
+    /**
+     * @return whether the formula calls a function that the native formula
+     * engine does not know, in which case it may still be evaluated by POI
+     */
+    public boolean isUnsupportedFunction() {
+        return unsupportedFunction;
+    }
+}
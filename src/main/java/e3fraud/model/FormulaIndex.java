@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package e3fraud.model;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+import e3fraud.vocabulary.E3value;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The formulas (e3_has_formula statements like <code>VALUATION=5</code>) of
+ * every element of a model, already split into attribute and expression, so
+ * that finding one attribute of an element does not need a scan over its
+ * statements and a split of every formula.
+ *
+ * The index is kept in sync by E3Model, which passes every formula statement
+ * that is added to or removed from the Jena model to {@link #added} and
+ * {@link #removed}. If an element has more than one formula for the same
+ * attribute, the index holds the first one that was added.
+ *
+ * @author agent
+ */
+final class FormulaIndex {
+
+    private final Map<Resource, Map<String, FormulaEntry>> formulas = new HashMap<>();
+
+    /**
+     * Indexes all formulas of the model
+     */
+    FormulaIndex(Model model) {
+        StmtIterator statements = model.listStatements(null, E3value.e3_has_formula, (RDFNode) null);
+        while (statements.hasNext()) {
+            added(statements.next());
+        }
+    }
+
+    /**
+     * @return the formula for the given attribute of the element, or null if
+     * it has none
+     */
+    synchronized FormulaEntry get(Resource element, String attribute) {
+        Map<String, FormulaEntry> elementFormulas = formulas.get(element);
+        return elementFormulas == null ? null : elementFormulas.get(attribute);
+    }
+
+    /**
+     * @return the expression for the given attribute of the element (e.g. 5
+     * for VALUATION=5), or null if it has none
+     */
+    String getExpression(Resource element, String attribute) {
+        FormulaEntry entry = get(element, attribute);
+        return entry == null ? null : entry.getExpression();
+    }
+
+    boolean has(Resource element, String attribute) {
+        return get(element, attribute) != null;
+    }
+
+    /**
+     * Indexes a formula statement that was added to the model. Other
+     * statements are ignored.
+     */
+    synchronized void added(Statement statement) {
+        if (!statement.getPredicate().equals(E3value.e3_has_formula) || !statement.getObject().isLiteral()) {
+            return;
+        }
+        FormulaEntry entry = new FormulaEntry(statement);
+        Map<String, FormulaEntry> elementFormulas = formulas.get(statement.getSubject());
+        if (elementFormulas == null) {
+            elementFormulas = new LinkedHashMap<>();
+            formulas.put(statement.getSubject(), elementFormulas);
+        }
+        if (!elementFormulas.containsKey(entry.getAttribute())) {
+            elementFormulas.put(entry.getAttribute(), entry);
+        }
+    }
+
+    /**
+     * Forgets a formula statement that was removed from the model. Other
+     * statements are ignored.
+     */
+    synchronized void removed(Statement statement) {
+        if (!statement.getPredicate().equals(E3value.e3_has_formula) || !statement.getObject().isLiteral()) {
+            return;
+        }
+        Resource element = statement.getSubject();
+        Map<String, FormulaEntry> elementFormulas = formulas.get(element);
+        if (elementFormulas == null) {
+            return;
+        }
+        String attribute = new FormulaEntry(statement).getAttribute();
+        FormulaEntry entry = elementFormulas.get(attribute);
+        if (entry != null && entry.getStatement().equals(statement)) {
+            elementFormulas.remove(attribute);
+            // another formula for the same attribute takes its place, if any
+            StmtIterator others = element.listProperties(E3value.e3_has_formula);
+            while (others.hasNext()) {
+                Statement other = others.next();
+                if (!other.equals(statement) && other.getObject().isLiteral()
+                        && new FormulaEntry(other).getAttribute().equals(attribute)) {
+                    elementFormulas.put(attribute, new FormulaEntry(other));
+                    break;
+                }
+            }
+            if (elementFormulas.isEmpty()) {
+                formulas.remove(element);
+            }
+        }
+    }
+
+    /**
+     * One formula of an element
+     */
+    static final class FormulaEntry {
+
+        private final Statement statement;
+        private final String attribute;
+        private final String expression;
+
+        FormulaEntry(Statement statement) {
+            this.statement = statement;
+            String[] formula = statement.getString().split("=", 2);
+            this.attribute = formula[0];
+            this.expression = formula.length > 1 ? formula[1] : "";
+        }
+
+        /**
+         * @return the e3_has_formula statement, e.g. to change it
+         */
+        Statement getStatement() {
+            return statement;
+        }
+
+        String getAttribute() {
+            return attribute;
+        }
+
+        String getExpression() {
+            return expression;
+        }
+    }
+}
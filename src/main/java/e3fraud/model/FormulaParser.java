@@ -0,0 +1,392 @@
+/**
+ * *****************************************************************************
+ * Copyright (C) 2026 agent
+ *
+ *
+ * This file is part of e3tool.
+ *
+ * e3tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * e3tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with e3tool.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************
+ */
+package e3fraud.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recursive descent parser that compiles e3value formulas directly into a
+ * {@link Formula}, without going through an excel spreadsheet. Operator
+ * precedence follows POI (and therefore the previous implementation): unary
+ * minus binds weaker than <code>^</code>, and <code>^</code> is left
+ * associative.
+ *
+ * The supported e3value references are <code>e3{#123.VALUATION}</code>,
+ * <code>e3{'Subscription fee'.VALUATION}</code>,
+ * <code>e3{ValuePort('Subscription fee').VALUATION}</code> and the local
+ * reference <code>e3{VALUATION}</code>.
+ */
+final class FormulaParser {
+
+    private static final int EOF = 0;
+    private static final int NUMBER = 1;
+    private static final int REFERENCE = 2;
+    private static final int IDENTIFIER = 3;
+    private static final int OPERATOR = 4;
+
+    private final String text;
+    private final String uidScope;
+
+    // Lexer state
+    private int pos;
+    private int token;
+    private String tokenText;
+    private double tokenNumber;
+
+    // Output
+    private int[] code = new int[16];
+    private int codeLength;
+    private double[] constants = new double[4];
+    private int constantCount;
+    private final List<String> references = new ArrayList<>();
+    private final Map<String, Integer> referenceIndex = new HashMap<>();
+    private int depth;
+    private int maxDepth;
+
+    private FormulaParser(String uidScope, String text) {
+        this.uidScope = uidScope;
+        this.text = text;
+    }
+
+    /**
+     * Compiles an e3value expression.
+     *
+     * @param uidScope the UID of the entity that owns the formula, used to
+     * resolve local references (e.g. e3{VALUATION}). May be null, in which
+     * case local references are an error.
+     * @param text the expression (i.e. the part after the '=')
+     * @return the compiled formula
+     * @throws FormulaException if the expression cannot be parsed
+     */
+    static Formula parse(String uidScope, String text) {
+        FormulaParser parser = new FormulaParser(uidScope, text);
+        parser.next();
+        parser.parseComparison();
+        if (parser.token != EOF) {
+            throw parser.error("Unexpected input");
+        }
+        return new Formula(text,
+                Arrays.copyOf(parser.code, parser.codeLength),
+                Arrays.copyOf(parser.constants, parser.constantCount),
+                parser.references.toArray(new String[parser.references.size()]),
+                Math.max(1, parser.maxDepth));
+    }
+
+// Grammar
+    private void parseComparison() {
+        parseAdditive();
+        while (token == OPERATOR) {
+            int op;
+            switch (tokenText) {
+                case "=":
+                    op = Formula.EQ;
+                    break;
+                case "<>":
+                    op = Formula.NE;
+                    break;
+                case "<":
+                    op = Formula.LT;
+                    break;
+                case ">":
+                    op = Formula.GT;
+                    break;
+                case "<=":
+                    op = Formula.LE;
+                    break;
+                case ">=":
+                    op = Formula.GE;
+                    break;
+                default:
+                    return;
+            }
+            next();
+            parseAdditive();
+            emitBinary(op);
+        }
+    }
+
+    private void parseAdditive() {
+        parseTerm();
+        while (isOperator("+") || isOperator("-")) {
+            int op = tokenText.equals("+") ? Formula.ADD : Formula.SUB;
+            next();
+            parseTerm();
+            emitBinary(op);
+        }
+    }
+
+    private void parseTerm() {
+        parseUnary();
+        while (isOperator("*") || isOperator("/")) {
+            int op = tokenText.equals("*") ? Formula.MUL : Formula.DIV;
+            next();
+            parseUnary();
+            emitBinary(op);
+        }
+    }
+
+    private void parseUnary() {
+        if (isOperator("-")) {
+            next();
+            parseUnary();
+            emit(Formula.NEG);
+        } else if (isOperator("+")) {
+            next();
+            parseUnary();
+        } else {
+            parsePower();
+        }
+    }
+
+    private void parsePower() {
+        parsePostfix();
+        while (isOperator("^")) {
+            next();
+            // Allow 2^-1. Like in POI, the sign applies to the rest of the
+            // power, so 2^-1^2 is 2^-(1^2)
+            if (isOperator("-") || isOperator("+")) {
+                parseUnary();
+            } else {
+                parsePostfix();
+            }
+            emitBinary(Formula.POW);
+        }
+    }
+
+    private void parsePostfix() {
+        parsePrimary();
+        while (isOperator("%")) {
+            next();
+            emit(Formula.PERCENT);
+        }
+    }
+
+    private void parsePrimary() {
+        switch (token) {
+            case NUMBER:
+                emitConstant(tokenNumber);
+                next();
+                return;
+            case REFERENCE:
+                Integer index = referenceIndex.get(tokenText);
+                if (index == null) {
+                    index = references.size();
+                    references.add(tokenText);
+                    referenceIndex.put(tokenText, index);
+                }
+                emit(Formula.LOAD, index);
+                push();
+                next();
+                return;
+            case IDENTIFIER:
+                parseIdentifier();
+                return;
+            case OPERATOR:
+                if (tokenText.equals("(")) {
+                    next();
+                    parseComparison();
+                    expect(")");
+                    return;
+                }
+                break;
+        }
+        throw error("Expected a number, reference or function");
+    }
+
+    private void parseIdentifier() {
+        String name = tokenText.toUpperCase();
+        next();
+        if (!isOperator("(")) {
+            if (name.equals("TRUE")) {
+                emitConstant(1);
+                return;
+            } else if (name.equals("FALSE")) {
+                emitConstant(0);
+                return;
+            }
+            throw error("Unknown identifier \"" + name + "\"");
+        }
+        int function = Arrays.asList(Formula.FUNCTIONS).indexOf(name);
+        if (function < 0) {
+            throw error("Unsupported function \"" + name + "\"", true);
+        }
+        next();
+        int argc = 0;
+        if (!isOperator(")")) {
+            parseComparison();
+            argc++;
+            while (isOperator(",")) {
+                next();
+                parseComparison();
+                argc++;
+            }
+        }
+        expect(")");
+        if (argc < Formula.MIN_ARGS[function]
+                || (Formula.MAX_ARGS[function] >= 0 && argc > Formula.MAX_ARGS[function])) {
+            throw error("Wrong number of arguments for " + name);
+        }
+        emit(Formula.CALL, function, argc);
+        depth -= argc - 1;
+    }
+
+    private void expect(String operator) {
+        if (!isOperator(operator)) {
+            throw error("Expected \"" + operator + "\"");
+        }
+        next();
+    }
+
+    private boolean isOperator(String operator) {
+        return token == OPERATOR && tokenText.equals(operator);
+    }
+
+// Code generation
+    private void emitConstant(double value) {
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        emit(Formula.CONST, constantCount++);
+        push();
+    }
+
+    private void emitBinary(int op) {
+        emit(op);
+        depth--;
+    }
+
+    private void emit(int... words) {
+        if (codeLength + words.length > code.length) {
+            code = Arrays.copyOf(code, Math.max(code.length * 2, codeLength + words.length));
+        }
+        for (int word : words) {
+            code[codeLength++] = word;
+        }
+    }
+
+    private void push() {
+        depth++;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+// Lexer
+    private void next() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        if (pos >= text.length()) {
+            token = EOF;
+            tokenText = "";
+            return;
+        }
+
+        char c = text.charAt(pos);
+        if (text.startsWith("e3{", pos)) {
+            token = REFERENCE;
+            tokenText = readReference();
+        } else if (Character.isDigit(c) || (c == '.' && pos + 1 < text.length() && Character.isDigit(text.charAt(pos + 1)))) {
+            token = NUMBER;
+            readNumber();
+        } else if (Character.isLetter(c)) {
+            int start = pos;
+            while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '.' || text.charAt(pos) == '_')) {
+                pos++;
+            }
+            token = IDENTIFIER;
+            tokenText = text.substring(start, pos);
+        } else if ((c == '<' || c == '>') && pos + 1 < text.length()
+                && (text.charAt(pos + 1) == '=' || (c == '<' && text.charAt(pos + 1) == '>'))) {
+            token = OPERATOR;
+            tokenText = text.substring(pos, pos + 2);
+            pos += 2;
+        } else if ("+-*/^%(),=<>".indexOf(c) >= 0) {
+            token = OPERATOR;
+            tokenText = String.valueOf(c);
+            pos++;
+        } else {
+            throw error("Unexpected character '" + c + "'");
+        }
+    }
+
+    private void readNumber() {
+        int start = pos;
+        while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+            pos++;
+        }
+        // Exponent, as produced by Double.toString (e.g. 1.0E-4)
+        if (pos < text.length() && (text.charAt(pos) == 'E' || text.charAt(pos) == 'e')) {
+            int exponent = pos + 1;
+            if (exponent < text.length() && (text.charAt(exponent) == '+' || text.charAt(exponent) == '-')) {
+                exponent++;
+            }
+            if (exponent < text.length() && Character.isDigit(text.charAt(exponent))) {
+                pos = exponent;
+                while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                    pos++;
+                }
+            }
+        }
+        tokenText = text.substring(start, pos);
+        try {
+            tokenNumber = Double.parseDouble(tokenText);
+        } catch (NumberFormatException e) {
+            throw error("Malformed number \"" + tokenText + "\"");
+        }
+    }
+
+    /**
+     * Reads an e3{...} reference starting at pos and returns it in its
+     * symbolic form (#123.ATTR or 'Name'.ATTR)
+     */
+    private String readReference() {
+        ReferenceScanner scanner = new ReferenceScanner(text);
+        if (!scanner.matchAt(pos)) {
+            throw error("Malformed reference");
+        }
+        switch (scanner.getKind()) {
+            case ReferenceScanner.LOCAL:
+                if (uidScope == null) {
+                    throw error("Local reference without scope");
+                }
+                pos = scanner.getEnd();
+                return "#" + uidScope + "." + scanner.getAttribute();
+            case ReferenceScanner.NAME:
+                pos = scanner.getEnd();
+                return "'" + scanner.getTarget() + "'." + scanner.getAttribute();
+            default:
+                pos = scanner.getEnd();
+                return "#" + scanner.getTarget() + "." + scanner.getAttribute();
+        }
+    }
+
+    private FormulaException error(String message) {
+        return error(message, false);
+    }
+
+    private FormulaException error(String message, boolean unsupportedFunction) {
+        return new FormulaException(message + " at position " + pos + " in formula [" + text + "]", unsupportedFunction);
+    }
+}
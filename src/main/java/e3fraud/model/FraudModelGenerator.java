@@ -19,8 +19,6 @@ package e3fraud.model;
 import com.hp.hpl.jena.rdf.model.NodeIterator;
 import com.hp.hpl.jena.rdf.model.RDFNode;
 import com.hp.hpl.jena.rdf.model.Resource;
-import com.hp.hpl.jena.rdf.model.Statement;
-import com.hp.hpl.jena.rdf.model.StmtIterator;
 
 import design.Utils.GraphDelta;
 import e3fraud.vocabulary.E3value;
@@ -226,15 +224,9 @@ public class FraudModelGenerator {
         //exclude exchanges of 0 valuation        
         Set<Resource> exchangesOfZeroValue = new HashSet<>();
         for (Resource exchange : potentialNonOccurringExchanges) {
-            StmtIterator formulas = exchange.listProperties(E3value.e3_has_formula);
-            while (formulas.hasNext()) {
-                Statement formula = formulas.next();
-                String attribute = formula.getString().split("=", 2)[0];
-                String value = formula.getString().split("=", 2)[1];
-                if (attribute.equals("VALUATION") && value.equals("0")) {
-                    System.out.println("removed exchange: " + exchange.getProperty(E3value.e3_has_name).getString());
-                    exchangesOfZeroValue.add(exchange);
-                }
+            if ("0".equals(baseModel.getFormula(exchange, "VALUATION"))) {
+                System.out.println("removed exchange: " + exchange.getProperty(E3value.e3_has_name).getString());
+                exchangesOfZeroValue.add(exchange);
             }
         }        
         if(!exchangesOfZeroValue.isEmpty()){
@@ -32,6 +32,29 @@ import javax.swing.SwingWorker;
  */
 public class FraudModelRanker {
 
+    //results of the scenarios ranked so far, shared by all rankings
+    private static final ScenarioMemo MEMO = new ScenarioMemo(4096);
+
+    /**
+     * @return the memo of the results of the scenarios ranked so far, e.g. to
+     * see how much evaluation it saved
+     */
+    public static ScenarioMemo getScenarioMemo() {
+        return MEMO;
+    }
+
+    /**
+     * @param totals the results of all actors of a model, see
+     * ScenarioMemo.getTotals
+     */
+    private static double total(Map<String, Double> totals, Resource actor) {
+        Double total = totals.get(actor.getProperty(E3value.e3_has_uid).getString());
+        if (total == null) {
+            throw new IllegalArgumentException("Attempted to compute profit of a non-actor");
+        }
+        return total;
+    }
+
     /**
      * Transforms the Set of models into an ordered List of models, ranked by
      * largest gain of any actor. In case two models are equal in terms of
@@ -328,6 +351,8 @@ public class FraudModelRanker {
     }
 
     public static ActorResult computeTopGain(E3Model fraudModel, E3Model valueModel) {
+        Map<String, Double> fraudTotals = MEMO.getTotals(fraudModel, false);
+        Map<String, Double> valueTotals = MEMO.getTotals(valueModel, true);
 
         double largestGain = -Double.MAX_VALUE;
         Resource untrustedActorWithLargestGain = null;
@@ -339,20 +364,20 @@ public class FraudModelRanker {
             // if (!trustedActorURIs.contains(actorInFraudModel.getURI())) {
 
             String actorInFraudModelUID = actorInFraudModel.getProperty(E3value.e3_has_uid).getString();
-            double gain = fraudModel.getTotalForActor(actorInFraudModel, false);
+            double gain = total(fraudTotals, actorInFraudModel);
 
             //if the actor consists of one or more colluding actors
             if (colludedActors.contains(Long.parseLong(actorInFraudModelUID))) {
                 //deduct the base profit of all the actors involved in the collusion        
                 for (long colludedActorUID : colludedActors) {
-                    Resource colludedActor = valueModel.getJenaModel().listResourcesWithProperty(E3value.e3_has_uid, String.valueOf(colludedActorUID)).next();
-                    gain -= valueModel.getTotalForActor(colludedActor, true);
+                    Resource colludedActor = valueModel.getResourceByUID(colludedActorUID);
+                    gain -= total(valueTotals, colludedActor);
                 }
 
                 //otherwise, deduct their base profit (if un-trusted) 
             } else {
-                Resource actor = valueModel.getJenaModel().listResourcesWithProperty(E3value.e3_has_uid, actorInFraudModelUID).next();
-                gain -= valueModel.getTotalForActor(actor, true);
+                Resource actor = valueModel.getResourceByUID(Long.parseLong(actorInFraudModelUID));
+                gain -= total(valueTotals, actor);
             }
 
             if (gain > largestGain) {
@@ -364,7 +389,48 @@ public class FraudModelRanker {
         return new ActorResult(untrustedActorWithLargestGain, largestGain);
     }
 
+    /**
+     * Upper bound of computeTopGain when some formulas of the fraud model
+     * take any value within a range (see E3Model.getProfitBounds). If the
+     * bound is below a threshold, no choice of values within the ranges
+     * gives a gain above it, so the whole family of scenarios can be skipped.
+     *
+     * @param ranges per formula of the fraud model (e.g. #123.VALUATION), its
+     * lowest and highest value
+     */
+    public static ActorResult computeTopGainBound(E3Model fraudModel, E3Model valueModel, Map<String, double[]> ranges) {
+        Map<String, Double> valueTotals = MEMO.getTotals(valueModel, true);
+        double largestGain = -Double.MAX_VALUE;
+        Resource untrustedActorWithLargestGain = null;
+
+        List<Long> colludedActors = fraudModel.getFraudChanges().colludedActors;
+        Map<Resource, double[]> bounds = fraudModel.getProfitBounds(ranges, false);
+
+        for (Resource actorInFraudModel : fraudModel.getActorsAndMarketSegments()) {
+            String actorInFraudModelUID = actorInFraudModel.getProperty(E3value.e3_has_uid).getString();
+            double gain = bounds.get(actorInFraudModel)[1];
+
+            if (colludedActors.contains(Long.parseLong(actorInFraudModelUID))) {
+                for (long colludedActorUID : colludedActors) {
+                    Resource colludedActor = valueModel.getResourceByUID(colludedActorUID);
+                    gain -= total(valueTotals, colludedActor);
+                }
+            } else {
+                Resource actor = valueModel.getResourceByUID(Long.parseLong(actorInFraudModelUID));
+                gain -= total(valueTotals, actor);
+            }
+
+            if (gain > largestGain) {
+                largestGain = gain;
+                untrustedActorWithLargestGain = actorInFraudModel;
+            }
+        }
+        return new ActorResult(untrustedActorWithLargestGain, largestGain);
+    }
+
     public static ActorResult computeTopLoss(E3Model fraudModel, E3Model valueModel) {
+        Map<String, Double> fraudTotals = MEMO.getTotals(fraudModel, false);
+        Map<String, Double> valueTotals = MEMO.getTotals(valueModel, true);
         double largestLoss = -Double.MAX_VALUE;
         Resource trustedActorWithLargestLoss = null;
 
@@ -376,9 +442,9 @@ public class FraudModelRanker {
             String actorInFraudModelUID = actorInFraudModel.getProperty(E3value.e3_has_uid).getString();
             //ignore colluded actors
             if (!colludedActors.contains(Long.parseLong(actorInFraudModelUID))) {
-                Resource actorInValueModel = valueModel.getJenaModel().listResourcesWithProperty(E3value.e3_has_uid, actorInFraudModelUID).next();
+                Resource actorInValueModel = valueModel.getResourceByUID(Long.parseLong(actorInFraudModelUID));
 
-                double loss = valueModel.getTotalForActor(actorInValueModel, true) - fraudModel.getTotalForActor(actorInFraudModel, false);
+                double loss = total(valueTotals, actorInValueModel) - total(fraudTotals, actorInFraudModel);
 
                 if (loss > largestLoss) {
                     largestLoss = loss;
@@ -391,6 +457,8 @@ public class FraudModelRanker {
     }
 
     public static Double computeLoss(E3Model fraudModel, E3Model valueModel, Resource actorFromValueModel) {
+        Map<String, Double> fraudTotals = MEMO.getTotals(fraudModel, false);
+        Map<String, Double> valueTotals = MEMO.getTotals(valueModel, true);
         String actorFromValueModelUID = actorFromValueModel.getProperty(E3value.e3_has_uid).getLiteral().toString();
         List<Long> colludingActors = fraudModel.getFraudChanges().colludedActors;
         Double loss = null;
@@ -400,42 +468,42 @@ public class FraudModelRanker {
             //add up the base profit of all the actors involved in the collusion  
             loss = 0.0;
             for (long colludingActorUID : colludingActors) {
-                Resource colludingActor = valueModel.getJenaModel().listResourcesWithProperty(E3value.e3_has_uid, String.valueOf(colludingActorUID)).next();
-                loss += valueModel.getTotalForActor(colludingActor, true);
+                Resource colludingActor = valueModel.getResourceByUID(colludingActorUID);
+                loss += total(valueTotals, colludingActor);
             }
             //then deduct the base result        
-            Resource colludedActor = fraudModel.getJenaModel().listResourcesWithProperty(E3value.e3_has_uid, String.valueOf(colludingActors.get(0))).next();
-            loss -= fraudModel.getTotalForActor(colludedActor, false);
+            Resource colludedActor = fraudModel.getResourceByUID(colludingActors.get(0));
+            loss -= total(fraudTotals, colludedActor);
         } else {
 
-            Resource actorInValueModel = valueModel.getJenaModel().listResourcesWithProperty(E3value.e3_has_uid, actorFromValueModelUID).next();
-            loss = valueModel.getTotalForActor(actorFromValueModel, true) - fraudModel.getTotalForActor(actorInValueModel, false);
+            Resource actorInValueModel = valueModel.getResourceByUID(Long.parseLong(actorFromValueModelUID));
+            loss = total(valueTotals, actorFromValueModel) - total(fraudTotals, actorInValueModel);
         }
 
         return loss;
     }
 
     public static Double computeGain(E3Model fraudModel, E3Model valueModel, Resource actorFromValueModel) {
+        Map<String, Double> fraudTotals = MEMO.getTotals(fraudModel, false);
+        Map<String, Double> valueTotals = MEMO.getTotals(valueModel, true);
         String actorFromValueModelUID = actorFromValueModel.getProperty(E3value.e3_has_uid).getLiteral().toString();
         List<Long> colludingActors = fraudModel.getFraudChanges().colludedActors;
         Double gain;
 
         //if the actor was involved in collusion
         if (colludingActors.contains(Long.parseLong(actorFromValueModelUID))) {
-            Resource colludedActor = fraudModel.getJenaModel().listResourcesWithProperty(E3value.e3_has_uid, String.valueOf(colludingActors.get(0))).next();
-            String colludedActorUID = colludedActor.getProperty(E3value.e3_has_uid).getLiteral().toString();
-            Resource actorFromFraudModel = fraudModel.getJenaModel().listResourcesWithProperty(E3value.e3_has_uid, colludedActorUID).next();
-            gain = fraudModel.getTotalForActor(actorFromFraudModel, false);
+            Resource actorFromFraudModel = fraudModel.getResourceByUID(colludingActors.get(0));
+            gain = total(fraudTotals, actorFromFraudModel);
             //deduct the base profit of all the actors involved in the same collusion        
             for (long colludingActorUID : colludingActors) {
-                Resource colludingActor = valueModel.getJenaModel().listResourcesWithProperty(E3value.e3_has_uid, String.valueOf(colludingActorUID)).next();
-                gain -= valueModel.getTotalForActor(colludingActor, true);
+                Resource colludingActor = valueModel.getResourceByUID(colludingActorUID);
+                gain -= total(valueTotals, colludingActor);
             }
 
             //otherwise, deduct their base profit
         } else {
-            Resource actorFromFraudModel = fraudModel.getJenaModel().listResourcesWithProperty(E3value.e3_has_uid, actorFromValueModelUID).next();
-            gain = fraudModel.getTotalForActor(actorFromFraudModel, false )- valueModel.getTotalForActor(actorFromValueModel, true);
+            Resource actorFromFraudModel = fraudModel.getResourceByUID(Long.parseLong(actorFromValueModelUID));
+            gain = total(fraudTotals, actorFromFraudModel) - total(valueTotals, actorFromValueModel);
         }
 
         return gain;
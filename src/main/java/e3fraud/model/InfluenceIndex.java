@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package e3fraud.model;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.ResIterator;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.vocabulary.RDF;
+import e3fraud.vocabulary.E3value;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tells which actors' profit (as computed by E3Model.getTotalForActor) can
+ * change when an element of the model changes, e.g. the OCCURRENCES of a need,
+ * the COUNT of a market segment, the VALUATION of a value port or the
+ * CARDINALITY of a value exchange.
+ *
+ * The index is a static analysis of the model, so it answers without
+ * evaluating anything. An element influences:
+ * <ul>
+ * <li>every element with a formula that refers to it, e.g.
+ * <code>e3{#12.VALUATION}</code> or <code>e3{'fee'.VALUATION}</code></li>
+ * <li>for a need, every value interface on its dependency path (whose
+ * OCCURRENCES enhance() derives from the need)</li>
+ * <li>for a market segment, every value interface on the dependency paths
+ * that pass through it (whose OCCURRENCES are divided or multiplied by the
+ * COUNT)</li>
+ * </ul>
+ * and so on transitively. An actor's profit is read from the actor itself, its
+ * value interfaces, their value ports and the value exchanges connected to
+ * those. The answers are conservative: an actor that is not reported cannot
+ * be affected, while one that is reported usually is.
+ *
+ * The index is built once per model. When a formula changes, call
+ * {@link #formulasChanged(Resource)}, which only re-scans the formulas of that
+ * element. When the structure of the model changes (elements or connections
+ * are added or removed), the index must be rebuilt.
+ *
+ * @author agent
+ */
+final class InfluenceIndex {
+
+    private final Model model;
+    // per element (by uid), the elements whose formulas it refers to
+    private final Map<String, Set<String>> references = new HashMap<>();
+    // per element, the elements whose formulas refer to it
+    private final Map<String, Set<String>> referencedBy = new HashMap<>();
+    // per need or market segment, the value interfaces on its dependency paths
+    private final Map<String, Set<String>> pathDependents = new HashMap<>();
+    // per element, the actors whose profit reads it directly
+    private final Map<String, Set<Resource>> watchers = new HashMap<>();
+    // per name, the elements with that name
+    private final Map<String, Set<String>> names = new HashMap<>();
+
+    InfluenceIndex(Model model) {
+        this.model = model;
+
+        ResIterator elements = model.listSubjectsWithProperty(E3value.e3_has_uid);
+        while (elements.hasNext()) {
+            Resource element = elements.next();
+            if (element.hasProperty(E3value.e3_has_name)) {
+                addTo(names, element.getProperty(E3value.e3_has_name).getString(), uidOf(element));
+            }
+        }
+
+        ResIterator withFormulas = model.listSubjectsWithProperty(E3value.e3_has_formula);
+        while (withFormulas.hasNext()) {
+            Resource element = withFormulas.next();
+            if (element.hasProperty(E3value.e3_has_uid)) {
+                scanFormulas(element);
+            }
+        }
+
+        ResIterator startStimuli = model.listSubjectsWithProperty(RDF.type, E3value.start_stimulus);
+        while (startStimuli.hasNext()) {
+            addPath(startStimuli.next());
+        }
+
+        addWatchers(model.listSubjectsWithProperty(RDF.type, E3value.elementary_actor));
+        addWatchers(model.listSubjectsWithProperty(RDF.type, E3value.market_segment));
+    }
+
+    /**
+     * @param element a need, market segment, value port, value exchange or
+     * any other element of the model
+     * @return the actors (and market segments) whose profit can change when
+     * the formulas of the given element change
+     */
+    Set<Resource> getInfluencedActors(Resource element) {
+        Set<Resource> actors = new HashSet<>();
+        element = model.getResource(element.getURI());
+        if (!element.hasProperty(E3value.e3_has_uid)) {
+            return actors;
+        }
+        Set<String> reached = new HashSet<>();
+        Deque<String> queue = new ArrayDeque<>();
+        String start = uidOf(element);
+        reached.add(start);
+        queue.add(start);
+        while (!queue.isEmpty()) {
+            String uid = queue.poll();
+            Set<Resource> direct = watchers.get(uid);
+            if (direct != null) {
+                actors.addAll(direct);
+            }
+            for (String next : dependentsOf(uid)) {
+                if (reached.add(next)) {
+                    queue.add(next);
+                }
+            }
+        }
+        return actors;
+    }
+
+    /**
+     * Updates the index after the formulas of the given element changed
+     */
+    void formulasChanged(Resource element) {
+        element = model.getResource(element.getURI());
+        if (!element.hasProperty(E3value.e3_has_uid)) {
+            return;
+        }
+        String uid = uidOf(element);
+        Set<String> old = references.remove(uid);
+        if (old != null) {
+            for (String target : old) {
+                referencedBy.get(target).remove(uid);
+            }
+        }
+        scanFormulas(element);
+    }
+
+    private Set<String> dependentsOf(String uid) {
+        Set<String> formulas = referencedBy.get(uid);
+        Set<String> paths = pathDependents.get(uid);
+        if (paths == null) {
+            return formulas == null ? Collections.<String>emptySet() : formulas;
+        }
+        if (formulas == null) {
+            return paths;
+        }
+        Set<String> both = new HashSet<>(formulas);
+        both.addAll(paths);
+        return both;
+    }
+
+    /**
+     * Adds the references of all formulas of the given element
+     */
+    private void scanFormulas(Resource element) {
+        String uid = uidOf(element);
+        StmtIterator formulas = element.listProperties(E3value.e3_has_formula);
+        while (formulas.hasNext()) {
+            String[] formula = formulas.next().getString().split("=", 2);
+            if (formula.length < 2) {
+                continue;
+            }
+            ReferenceScanner scanner = new ReferenceScanner(formula[1]);
+            while (scanner.find()) {
+                switch (scanner.getKind()) {
+                    case ReferenceScanner.UID:
+                        addReference(uid, scanner.getTarget());
+                        break;
+                    case ReferenceScanner.NAME:
+                        Set<String> targets = names.get(scanner.getTarget());
+                        if (targets != null) {
+                            for (String target : targets) {
+                                addReference(uid, target);
+                            }
+                        }
+                        break;
+                    default:
+                    //a local reference refers to the element itself
+                }
+            }
+        }
+    }
+
+    private void addReference(String from, String to) {
+        if (!from.equals(to)) {
+            addTo(references, from, to);
+            addTo(referencedBy, to, from);
+        }
+    }
+
+    /**
+     * Follows the dependency path of a need the way E3Model.traverse does
+     * (but without evaluating anything), and records the value interfaces on
+     * it as dependents of the need and of the market segments it passes
+     * through.
+     */
+    private void addPath(Resource startStimulus) {
+        if (!startStimulus.hasProperty(E3value.e3_has_uid)) {
+            return;
+        }
+        Set<Resource> valueInterfaces = new HashSet<>();
+        Set<Resource> marketSegments = new HashSet<>();
+        Set<Resource> visited = new HashSet<>();
+        Deque<Resource> queue = new ArrayDeque<>();
+        queue.add(startStimulus);
+        visited.add(startStimulus);
+        while (!queue.isEmpty()) {
+            Resource element = queue.poll();
+            Set<Resource> next = new HashSet<>();
+            if (element.hasProperty(RDF.type, E3value.end_stimulus)) {
+                continue;
+            } else if (element.hasProperty(RDF.type, E3value.connection_element)) {
+                addResources(element, E3value.ce_with_down_de, next);
+            } else if (element.hasProperty(RDF.type, E3value.value_interface)) {
+                valueInterfaces.add(element);
+                if (element.hasProperty(E3value.vi_assigned_to_ms)) {
+                    marketSegments.add(element.getPropertyResourceValue(E3value.vi_assigned_to_ms));
+                }
+                if (element.hasProperty(E3value.de_up_ce) || !element.hasProperty(E3value.de_down_ce)) {
+                    addConnectedInterfaces(element, next);
+                } else {
+                    addResources(element, E3value.de_down_ce, next);
+                }
+            } else {
+                //start stimulus, AND or OR node
+                addResources(element, E3value.de_down_ce, next);
+            }
+            for (Resource resource : next) {
+                if (visited.add(resource)) {
+                    queue.add(resource);
+                }
+            }
+        }
+
+        Set<String> dependents = new HashSet<>();
+        for (Resource valueInterface : valueInterfaces) {
+            if (valueInterface.hasProperty(E3value.e3_has_uid)) {
+                dependents.add(uidOf(valueInterface));
+            }
+        }
+        addAllTo(pathDependents, uidOf(startStimulus), dependents);
+        for (Resource marketSegment : marketSegments) {
+            if (marketSegment.hasProperty(E3value.e3_has_uid)) {
+                addAllTo(pathDependents, uidOf(marketSegment), dependents);
+            }
+        }
+    }
+
+    /**
+     * Adds the value interfaces that are connected to the given one via value
+     * exchanges, in either direction
+     */
+    private static void addConnectedInterfaces(Resource valueInterface, Set<Resource> result) {
+        StmtIterator valueOfferings = valueInterface.listProperties(E3value.vi_consists_of_of);
+        while (valueOfferings.hasNext()) {
+            StmtIterator valuePorts = valueOfferings.next().getResource().listProperties(E3value.vo_consists_of_vp);
+            while (valuePorts.hasNext()) {
+                Resource valuePort = valuePorts.next().getResource();
+                Set<Resource> valueExchanges = new HashSet<>();
+                addResources(valuePort, E3value.vp_in_connects_ve, valueExchanges);
+                addResources(valuePort, E3value.vp_out_connects_ve, valueExchanges);
+                addResources(valuePort, E3value.vp_first_connects_ve, valueExchanges);
+                addResources(valuePort, E3value.vp_second_connects_ve, valueExchanges);
+                for (Resource valueExchange : valueExchanges) {
+                    Set<Resource> ports = new HashSet<>();
+                    addResources(valueExchange, E3value.ve_has_in_po, ports);
+                    addResources(valueExchange, E3value.ve_has_out_po, ports);
+                    addResources(valueExchange, E3value.ve_has_first_vp, ports);
+                    addResources(valueExchange, E3value.ve_has_second_vp, ports);
+                    for (Resource port : ports) {
+                        Resource valueOffering = port.getPropertyResourceValue(E3value.vp_in_vo);
+                        Resource other = valueOffering == null ? null : valueOffering.getPropertyResourceValue(E3value.vo_in_vi);
+                        if (other != null && !other.equals(valueInterface)) {
+                            result.add(other);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Records, for each of the given actors, the elements its profit is
+     * computed from (see E3Model.getProfitPlan)
+     */
+    private void addWatchers(ResIterator actors) {
+        while (actors.hasNext()) {
+            Resource actor = actors.next();
+            watch(actor, actor);
+            Set<Resource> valueInterfaces = new HashSet<>();
+            addResources(actor, E3value.ac_has_vi, valueInterfaces);
+            addResources(actor, E3value.ms_has_vi, valueInterfaces);
+            for (Resource valueInterface : valueInterfaces) {
+                watch(valueInterface, actor);
+                StmtIterator valueOfferings = valueInterface.listProperties(E3value.vi_consists_of_of);
+                while (valueOfferings.hasNext()) {
+                    StmtIterator valuePorts = valueOfferings.next().getResource().listProperties(E3value.vo_consists_of_vp);
+                    while (valuePorts.hasNext()) {
+                        Resource valuePort = valuePorts.next().getResource();
+                        watch(valuePort, actor);
+                        Set<Resource> valueExchanges = new HashSet<>();
+                        addResources(valuePort, E3value.vp_in_connects_ve, valueExchanges);
+                        addResources(valuePort, E3value.vp_out_connects_ve, valueExchanges);
+                        for (Resource valueExchange : valueExchanges) {
+                            watch(valueExchange, actor);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void watch(Resource element, Resource actor) {
+        if (element.hasProperty(E3value.e3_has_uid)) {
+            String uid = uidOf(element);
+            Set<Resource> actors = watchers.get(uid);
+            if (actors == null) {
+                actors = new HashSet<>();
+                watchers.put(uid, actors);
+            }
+            actors.add(actor);
+        }
+    }
+
+    private static void addResources(Resource element, Property property, Set<Resource> result) {
+        StmtIterator statements = element.listProperties(property);
+        while (statements.hasNext()) {
+            Statement statement = statements.next();
+            if (statement.getObject().isResource()) {
+                result.add(statement.getResource());
+            }
+        }
+    }
+
+    private static void addTo(Map<String, Set<String>> map, String key, String value) {
+        Set<String> values = map.get(key);
+        if (values == null) {
+            values = new HashSet<>();
+            map.put(key, values);
+        }
+        values.add(value);
+    }
+
+    private static void addAllTo(Map<String, Set<String>> map, String key, Set<String> values) {
+        for (String value : values) {
+            addTo(map, key, value);
+        }
+    }
+
+    private String uidOf(Resource element) {
+        return model.getResource(element.getURI()).getProperty(E3value.e3_has_uid).getString();
+    }
+}
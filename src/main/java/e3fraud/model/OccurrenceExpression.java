@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package e3fraud.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * An occurrence rate as it is built up by E3Model.traverse, kept in a
+ * simplified form: a constant plus a sum of terms, where every term is a
+ * coefficient times a product of (powers of) factors. Factors are references
+ * like <code>e3{#12.COUNT}</code>, or the minimum of other expressions (at AND
+ * joins).
+ *
+ * All operations fold constants and combine terms with the same factors, so
+ * <code>(a*0.5)+(a*0.5)</code> becomes <code>a</code> and
+ * <code>((a)*0.5)*0.2</code> becomes <code>0.1*a</code>. An expression
+ * therefore has at most one term per distinct product of factors, however
+ * deep the dependency path is.
+ *
+ * Division by a market segment count (see E3Model.divideByCount) yields 0 when
+ * the count is 0. Terms remember the counts they were divided by as guards,
+ * so that multiplying by the count again does not lose that case.
+ *
+ * Instances are immutable.
+ *
+ * @author agent
+ */
+final class OccurrenceExpression {
+
+    private static final OccurrenceExpression ZERO = new OccurrenceExpression(0, Collections.<String, Term>emptyMap());
+
+    private final double constant;
+    // per product of factors (rendered without coefficient), the term
+    private final Map<String, Term> terms;
+
+    private OccurrenceExpression(double constant, Map<String, Term> terms) {
+        this.constant = constant;
+        this.terms = terms;
+    }
+
+    static OccurrenceExpression constant(double value) {
+        return value == 0 ? ZERO : new OccurrenceExpression(value, Collections.<String, Term>emptyMap());
+    }
+
+    /**
+     * @param reference a reference like <code>e3{#12.OCCURRENCES}</code>
+     */
+    static OccurrenceExpression reference(String reference) {
+        Term term = new Term(1, new TreeMap<String, Integer>(), new TreeSet<String>(), new TreeMap<String, Factor>());
+        term.powers.put(reference, 1);
+        term.factors.put(reference, new Factor(reference, null));
+        return ZERO.plus(term);
+    }
+
+    /**
+     * Reads an occurrence rate: a number, a single reference, or any other
+     * expression (which is then kept as an opaque factor).
+     */
+    static OccurrenceExpression parse(String text) {
+        if (text.matches("\\d*\\.?\\d*")) {
+            return constant(Double.valueOf(text));
+        }
+        ReferenceScanner scanner = new ReferenceScanner(text);
+        if (scanner.matchAt(0) && scanner.getEnd() == text.length()) {
+            return reference(text);
+        }
+        return reference("(" + text + ")");
+    }
+
+    /**
+     * @return true iff this is a number
+     */
+    boolean isConstant() {
+        return terms.isEmpty();
+    }
+
+    double getConstant() {
+        return constant;
+    }
+
+    OccurrenceExpression plus(OccurrenceExpression other) {
+        OccurrenceExpression result = new OccurrenceExpression(constant + other.constant, new LinkedHashMap<>(terms));
+        for (Term term : other.terms.values()) {
+            result = result.plus(term);
+        }
+        return result;
+    }
+
+    private OccurrenceExpression plus(Term term) {
+        Map<String, Term> sum = new LinkedHashMap<>(terms);
+        String key = term.key();
+        Term existing = sum.get(key);
+        if (existing == null) {
+            sum.put(key, term);
+        } else {
+            double coefficient = existing.coefficient + term.coefficient;
+            if (coefficient == 0) {
+                sum.remove(key);
+            } else {
+                sum.put(key, existing.withCoefficient(coefficient));
+            }
+        }
+        return new OccurrenceExpression(constant, sum);
+    }
+
+    OccurrenceExpression times(double factor) {
+        if (factor == 0) {
+            return ZERO;
+        }
+        Map<String, Term> product = new LinkedHashMap<>();
+        for (Map.Entry<String, Term> term : terms.entrySet()) {
+            product.put(term.getKey(), term.getValue().withCoefficient(term.getValue().coefficient * factor));
+        }
+        return new OccurrenceExpression(constant * factor, product);
+    }
+
+    /**
+     * Multiplies by a reference (a market segment count)
+     */
+    OccurrenceExpression times(String reference) {
+        return multiply(reference, 1, false);
+    }
+
+    /**
+     * Divides by a reference (a market segment count), where the result is 0
+     * if the reference is 0
+     */
+    OccurrenceExpression dividedBy(String reference) {
+        return multiply(reference, -1, true);
+    }
+
+    private OccurrenceExpression multiply(String reference, int exponent, boolean guard) {
+        OccurrenceExpression result = ZERO;
+        Factor factor = new Factor(reference, null);
+        if (constant != 0) {
+            Term term = new Term(constant, new TreeMap<String, Integer>(), new TreeSet<String>(), new TreeMap<String, Factor>());
+            result = result.plus(term.multiply(factor, exponent, guard));
+        }
+        for (Term term : terms.values()) {
+            result = result.plus(term.multiply(factor, exponent, guard));
+        }
+        return result;
+    }
+
+    /**
+     * The smallest of the two (at AND joins)
+     */
+    OccurrenceExpression min(OccurrenceExpression other) {
+        if (isConstant() && other.isConstant()) {
+            return constant(Math.min(constant, other.constant));
+        }
+        if (toString().equals(other.toString())) {
+            return this;
+        }
+        // Flatten MIN(MIN(a, b), c) into MIN(a, b, c)
+        List<OccurrenceExpression> arguments = new ArrayList<>(minArguments());
+        for (OccurrenceExpression argument : other.minArguments()) {
+            boolean found = false;
+            for (OccurrenceExpression existing : arguments) {
+                found |= existing.toString().equals(argument.toString());
+            }
+            if (!found) {
+                arguments.add(argument);
+            }
+        }
+        StringBuilder text = new StringBuilder("MIN(");
+        for (int i = 0; i < arguments.size(); i++) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(arguments.get(i));
+        }
+        text.append(')');
+        Factor factor = new Factor(text.toString(), arguments);
+        Term term = new Term(1, new TreeMap<String, Integer>(), new TreeSet<String>(), new TreeMap<String, Factor>());
+        term.powers.put(factor.text, 1);
+        term.factors.put(factor.text, factor);
+        return ZERO.plus(term);
+    }
+
+    /**
+     * The arguments of this expression if it is a single MIN, otherwise this
+     */
+    private List<OccurrenceExpression> minArguments() {
+        if (constant == 0 && terms.size() == 1) {
+            Term term = terms.values().iterator().next();
+            if (term.coefficient == 1 && term.guards.isEmpty() && term.powers.size() == 1) {
+                Map.Entry<String, Integer> power = term.powers.entrySet().iterator().next();
+                Factor factor = term.factors.get(power.getKey());
+                if (power.getValue() == 1 && factor.minArguments != null) {
+                    return factor.minArguments;
+                }
+            }
+        }
+        return Collections.singletonList(this);
+    }
+
+    /**
+     * @return the expression as an e3value formula
+     */
+    @Override
+    public String toString() {
+        if (terms.isEmpty()) {
+            return Double.toString(constant);
+        }
+        StringBuilder text = new StringBuilder();
+        for (Term term : terms.values()) {
+            String rendered = term.toString();
+            if (text.length() > 0 && !rendered.startsWith("-")) {
+                text.append('+');
+            }
+            text.append(rendered);
+        }
+        if (constant > 0) {
+            text.append('+').append(Double.toString(constant));
+        } else if (constant < 0) {
+            text.append(Double.toString(constant));
+        }
+        return text.toString();
+    }
+
+    /**
+     * A reference or a MIN
+     */
+    private static final class Factor {
+
+        private final String text;
+        private final List<OccurrenceExpression> minArguments;
+
+        Factor(String text, List<OccurrenceExpression> minArguments) {
+            this.text = text;
+            this.minArguments = minArguments;
+        }
+    }
+
+    private static final class Term {
+
+        private final double coefficient;
+        // per factor (by text) its exponent, never 0
+        private final TreeMap<String, Integer> powers;
+        // the counts the term was divided by; the term is 0 if one of them is
+        private final TreeSet<String> guards;
+        private final TreeMap<String, Factor> factors;
+
+        Term(double coefficient, TreeMap<String, Integer> powers, TreeSet<String> guards, TreeMap<String, Factor> factors) {
+            this.coefficient = coefficient;
+            this.powers = powers;
+            this.guards = guards;
+            this.factors = factors;
+        }
+
+        Term withCoefficient(double newCoefficient) {
+            return new Term(newCoefficient, powers, guards, factors);
+        }
+
+        Term multiply(Factor factor, int exponent, boolean guard) {
+            TreeMap<String, Integer> newPowers = new TreeMap<>(powers);
+            TreeMap<String, Factor> newFactors = new TreeMap<>(factors);
+            TreeSet<String> newGuards = new TreeSet<>(guards);
+            Integer current = newPowers.get(factor.text);
+            int power = (current == null ? 0 : current) + exponent;
+            if (power == 0) {
+                newPowers.remove(factor.text);
+                newFactors.remove(factor.text);
+            } else {
+                newPowers.put(factor.text, power);
+                newFactors.put(factor.text, factor);
+            }
+            if (guard) {
+                newGuards.add(factor.text);
+            }
+            return new Term(coefficient, newPowers, newGuards, newFactors);
+        }
+
+        /**
+         * The term without its coefficient, which identifies terms that can
+         * be combined
+         */
+        String key() {
+            return powers.toString() + guards.toString();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder numerator = new StringBuilder();
+            StringBuilder denominator = new StringBuilder();
+            for (Map.Entry<String, Integer> power : powers.entrySet()) {
+                StringBuilder target = power.getValue() > 0 ? numerator : denominator;
+                int exponent = Math.abs(power.getValue());
+                String factor = power.getKey();
+                if (target.length() > 0 || target == denominator) {
+                    target.append(target == denominator ? '/' : '*');
+                }
+                target.append(factor);
+                if (exponent > 1) {
+                    target.append('^').append(exponent);
+                }
+            }
+            StringBuilder text = new StringBuilder();
+            if (coefficient != 1 || numerator.length() == 0) {
+                text.append(Double.toString(coefficient));
+                if (numerator.length() > 0) {
+                    text.append('*');
+                }
+            }
+            text.append(numerator).append(denominator);
+            if (guards.isEmpty()) {
+                return text.toString();
+            }
+            StringBuilder guarded = new StringBuilder("IF(");
+            if (guards.size() > 1) {
+                guarded.append("OR(");
+            }
+            boolean first = true;
+            for (String guard : guards) {
+                if (!first) {
+                    guarded.append(',');
+                }
+                guarded.append(guard).append("=0");
+                first = false;
+            }
+            if (guards.size() > 1) {
+                guarded.append(')');
+            }
+            return guarded.append(",0,").append(text).append(')').toString();
+        }
+    }
+}
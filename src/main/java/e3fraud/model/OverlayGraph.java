@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package e3fraud.model;
+
+import com.hp.hpl.jena.graph.Factory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.GraphUtil;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.impl.GraphBase;
+import com.hp.hpl.jena.graph.impl.SimpleEventManager;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.Filter;
+
+/**
+ * A graph that reads through to a base graph, and keeps its own changes as
+ * the triples it added to and deleted from it. It is what models derived from
+ * another model (see E3Model(E3Model)) are built on: the base graph is shared
+ * by all of them, so every derived model only takes the memory of what it
+ * changed (typically a hidden transfer, a few DASHED formulas and the
+ * OCCURRENCES that enhance() rewrote), instead of a copy of the whole model.
+ *
+ * The base graph must not change as long as overlays are built on it.
+ *
+ * Unlike Jena's Delta, looking up a triple does not copy all deleted
+ * triples first, so reading a model with many changes stays as fast as
+ * reading a plain one.
+ *
+ * @author agent
+ */
+final class OverlayGraph extends GraphBase {
+
+    private final Graph base;
+    //triples that are not in the base
+    private final Graph additions;
+    //triples of the base that are not in this graph
+    private final Graph deletions;
+
+    /**
+     * @param base the graph to read through to, which must not change
+     */
+    OverlayGraph(Graph base) {
+        this(base, Factory.createGraphMem(), Factory.createGraphMem());
+    }
+
+    private OverlayGraph(Graph base, Graph additions, Graph deletions) {
+        this.base = base;
+        this.additions = additions;
+        this.deletions = deletions;
+    }
+
+    /**
+     * @return a graph with the same content, on the same base, that can be
+     * changed independently of this one
+     */
+    OverlayGraph copy() {
+        Graph additionsCopy = Factory.createGraphMem();
+        GraphUtil.addInto(additionsCopy, additions);
+        Graph deletionsCopy = Factory.createGraphMem();
+        GraphUtil.addInto(deletionsCopy, deletions);
+        return new OverlayGraph(base, additionsCopy, deletionsCopy);
+    }
+
+    /**
+     * @return the number of triples this graph differs from its base by
+     */
+    int getChangeCount() {
+        return additions.size() + deletions.size();
+    }
+
+    @Override
+    public void performAdd(Triple triple) {
+        if (deletions.contains(triple)) {
+            deletions.delete(triple);
+        } else if (!base.contains(triple)) {
+            additions.add(triple);
+        }
+    }
+
+    @Override
+    public void performDelete(Triple triple) {
+        if (additions.contains(triple)) {
+            additions.delete(triple);
+        } else if (base.contains(triple)) {
+            deletions.add(triple);
+        }
+    }
+
+    @Override
+    protected ExtendedIterator<Triple> graphBaseFind(Triple pattern) {
+        ExtendedIterator<Triple> found = base.find(pattern);
+        if (!deletions.isEmpty()) {
+            found = found.filterDrop(new Filter<Triple>() {
+                @Override
+                public boolean accept(Triple triple) {
+                    return deletions.contains(triple);
+                }
+            });
+        }
+        if (!additions.isEmpty()) {
+            found = found.andThen(additions.find(pattern));
+        }
+        //lets the iterator's remove() delete from this graph
+        return SimpleEventManager.notifyingRemove(this, found);
+    }
+
+    @Override
+    protected boolean graphBaseContains(Triple triple) {
+        if (!triple.isConcrete()) {
+            return super.graphBaseContains(triple);
+        }
+        return additions.contains(triple) || (base.contains(triple) && !deletions.contains(triple));
+    }
+
+    @Override
+    protected int graphBaseSize() {
+        return base.size() + additions.size() - deletions.size();
+    }
+}
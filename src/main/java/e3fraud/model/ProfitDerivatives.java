@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package e3fraud.model;
+
+import com.hp.hpl.jena.rdf.model.Resource;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The profit of every actor of a model together with its partial derivatives
+ * with respect to the parameters of the model (the OCCURRENCES of needs, the
+ * COUNT of market segments and the VALUATION of value ports), as computed by
+ * {@link E3Model#getProfitDerivatives(boolean)}. The derivatives tell how
+ * much the profit changes per unit change of each parameter, around its
+ * current value.
+ *
+ * @author agent
+ */
+public final class ProfitDerivatives {
+
+    private final List<Resource> parameters;
+    private final List<String> attributes;
+    private final Map<Resource, Double> profits;
+    private final Map<Resource, double[]> derivatives;
+
+    ProfitDerivatives(List<Resource> parameters, List<String> attributes, Map<Resource, Double> profits, Map<Resource, double[]> derivatives) {
+        this.parameters = Collections.unmodifiableList(parameters);
+        this.attributes = Collections.unmodifiableList(attributes);
+        this.profits = profits;
+        this.derivatives = derivatives;
+    }
+
+    /**
+     * @return the elements (needs, market segments and value ports) that own
+     * the parameters, indexed by parameter
+     */
+    public List<Resource> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @return the attribute (OCCURRENCES, COUNT or VALUATION) of each
+     * parameter, indexed by parameter
+     */
+    public List<String> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @return the index of the given parameter, or -1 if it is not one
+     */
+    public int indexOf(Resource element, String attribute) {
+        for (int i = 0; i < parameters.size(); i++) {
+            if (parameters.get(i).equals(element) && attributes.get(i).equals(attribute)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public Set<Resource> getActors() {
+        return Collections.unmodifiableSet(profits.keySet());
+    }
+
+    /**
+     * @return the profit of the actor, as getTotalForActor computes it
+     */
+    public double getProfit(Resource actor) {
+        return profits.get(actor);
+    }
+
+    /**
+     * @return the derivatives of the profit of the actor, indexed by
+     * parameter. NaN where the derivative does not exist.
+     */
+    public double[] getDerivatives(Resource actor) {
+        return derivatives.get(actor).clone();
+    }
+
+    public double getDerivative(Resource actor, int parameter) {
+        return derivatives.get(actor)[parameter];
+    }
+}
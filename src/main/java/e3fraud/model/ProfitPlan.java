@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package e3fraud.model;
+
+import java.util.Arrays;
+
+/**
+ * The profit computation of one actor (see E3Model.getTotalForActor) with the
+ * model structure already walked: a flat list of terms over the values of a
+ * few formulas. The values are referred to by operand index; the formula
+ * handles behind the operands are given by {@link #getHandles()}. Evaluating
+ * the plan performs exactly the same floating point operations, in the same
+ * order, as getTotalForActor.
+ *
+ * @author agent
+ */
+final class ProfitPlan {
+
+    // result -= operand
+    static final int SUBTRACT = 0;
+    // PORT direction valuationCount valuations... expensesCount expenses... nullified cardinality occurrences
+    static final int PORT = 1;
+    // result += sign * sum of the ports since the previous OFFERING
+    static final int OFFERING = 2;
+
+    static final int NONE = 0;
+    static final int OUT = 1;
+    static final int IN = 2;
+
+    private final int[] handles;
+    private final int[] code;
+    private final double[] constants;
+
+    private ProfitPlan(int[] handles, int[] code, double[] constants) {
+        this.handles = handles;
+        this.code = code;
+        this.constants = constants;
+    }
+
+    /**
+     * The handles of the formulas this plan uses, indexed by operand
+     */
+    int[] getHandles() {
+        return handles;
+    }
+
+    /**
+     * Evaluates the plan with the current values of an evaluator
+     */
+    double evaluate(ExpressionEvaluator evaluator) {
+        double[] values = new double[handles.length];
+        for (int i = 0; i < handles.length; i++) {
+            values[i] = evaluator.valueOf(handles[i]);
+        }
+        return evaluate(values);
+    }
+
+    /**
+     * Evaluates the plan.
+     *
+     * @param values the value of every operand. NaN (an error) counts as 0,
+     * like in E3Model.valueOf.
+     */
+    double evaluate(double[] values) {
+        double result = 0;
+        double offering = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case SUBTRACT:
+                    result -= operand(code[pc++], values);
+                    break;
+                case PORT: {
+                    int direction = code[pc++];
+                    double valuation = 0;
+                    double expenses = 0;
+                    int n = code[pc++];
+                    for (int i = 0; i < n; i++) {
+                        valuation += operand(code[pc++], values);
+                    }
+                    n = code[pc++];
+                    for (int i = 0; i < n; i++) {
+                        expenses += operand(code[pc++], values);
+                    }
+                    boolean nullified = code[pc++] != 0;
+                    int cardinality = code[pc++];
+                    if (direction == OUT) {
+                        valuation += expenses;
+                    } else if (direction == IN) {
+                        valuation -= expenses;
+                    }
+                    if (direction != NONE) {
+                        if (nullified) {
+                            valuation = 0;
+                        }
+                        valuation *= operand(cardinality, values);
+                    }
+                    valuation = valuation * operand(code[pc++], values);
+                    offering += valuation;
+                    break;
+                }
+                case OFFERING:
+                    if (code[pc++] > 0) {
+                        result += offering;
+                    } else {
+                        result -= offering;
+                    }
+                    offering = 0;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode " + code[pc - 1]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Evaluates the plan together with its derivatives with respect to a
+     * number of parameters.
+     *
+     * @param values the value of every operand
+     * @param tangents per operand, its derivatives with respect to the
+     * parameters (or null if they are all 0)
+     * @param tangent receives the derivatives of the profit
+     * @return the profit
+     */
+    double evaluate(double[] values, double[][] tangents, double[] tangent) {
+        int width = tangent.length;
+        double result = 0;
+        double offering = 0;
+        double[] offeringTangent = new double[width];
+        double[] valuationTangent = new double[width];
+        Arrays.fill(tangent, 0);
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case SUBTRACT: {
+                    int operand = code[pc++];
+                    result -= operand(operand, values);
+                    add(tangent, -1, tangent(operand, values, tangents));
+                    break;
+                }
+                case PORT: {
+                    int direction = code[pc++];
+                    double valuation = 0;
+                    double expenses = 0;
+                    Arrays.fill(valuationTangent, 0);
+                    int n = code[pc++];
+                    for (int i = 0; i < n; i++) {
+                        valuation += operand(code[pc], values);
+                        add(valuationTangent, 1, tangent(code[pc++], values, tangents));
+                    }
+                    // the expenses are added to (out) or deducted from (in)
+                    // the valuation, so their tangents can go there directly
+                    double sign = direction == OUT ? 1 : (direction == IN ? -1 : 0);
+                    n = code[pc++];
+                    for (int i = 0; i < n; i++) {
+                        expenses += operand(code[pc], values);
+                        add(valuationTangent, sign, tangent(code[pc++], values, tangents));
+                    }
+                    boolean nullified = code[pc++] != 0;
+                    int cardinality = code[pc++];
+                    if (direction == OUT) {
+                        valuation += expenses;
+                    } else if (direction == IN) {
+                        valuation -= expenses;
+                    }
+                    if (direction != NONE) {
+                        if (nullified) {
+                            valuation = 0;
+                            Arrays.fill(valuationTangent, 0);
+                        }
+                        valuation = multiply(valuation, valuationTangent, cardinality, values, tangents);
+                    }
+                    valuation = multiply(valuation, valuationTangent, code[pc++], values, tangents);
+                    offering += valuation;
+                    add(offeringTangent, 1, valuationTangent);
+                    break;
+                }
+                case OFFERING:
+                    if (code[pc++] > 0) {
+                        result += offering;
+                        add(tangent, 1, offeringTangent);
+                    } else {
+                        result -= offering;
+                        add(tangent, -1, offeringTangent);
+                    }
+                    offering = 0;
+                    Arrays.fill(offeringTangent, 0);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode " + code[pc - 1]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Evaluates the plan for operands that are ranges instead of single
+     * values, see {@link Formula#evaluateInterval}.
+     *
+     * @param lower the lowest value of every operand
+     * @param upper the highest value of every operand
+     * @return the lower (index 0) and upper (index 1) bound of the profit
+     */
+    double[] evaluate(double[] lower, double[] upper) {
+        double[] result = {0, 0};
+        double[] offering = {0, 0};
+        double[] valuation = new double[2];
+        double[] expenses = new double[2];
+        double[] operand = new double[2];
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case SUBTRACT:
+                    operand(code[pc++], lower, upper, operand);
+                    result[0] -= operand[1];
+                    result[1] -= operand[0];
+                    break;
+                case PORT: {
+                    int direction = code[pc++];
+                    valuation[0] = 0;
+                    valuation[1] = 0;
+                    expenses[0] = 0;
+                    expenses[1] = 0;
+                    int n = code[pc++];
+                    for (int i = 0; i < n; i++) {
+                        operand(code[pc++], lower, upper, operand);
+                        valuation[0] += operand[0];
+                        valuation[1] += operand[1];
+                    }
+                    n = code[pc++];
+                    for (int i = 0; i < n; i++) {
+                        operand(code[pc++], lower, upper, operand);
+                        expenses[0] += operand[0];
+                        expenses[1] += operand[1];
+                    }
+                    boolean nullified = code[pc++] != 0;
+                    int cardinality = code[pc++];
+                    if (direction == OUT) {
+                        valuation[0] += expenses[0];
+                        valuation[1] += expenses[1];
+                    } else if (direction == IN) {
+                        valuation[0] -= expenses[1];
+                        valuation[1] -= expenses[0];
+                    }
+                    if (direction != NONE) {
+                        if (nullified) {
+                            valuation[0] = 0;
+                            valuation[1] = 0;
+                        }
+                        operand(cardinality, lower, upper, operand);
+                        Formula.intervalMultiply(valuation[0], valuation[1], operand[0], operand[1], valuation);
+                    }
+                    operand(code[pc++], lower, upper, operand);
+                    Formula.intervalMultiply(valuation[0], valuation[1], operand[0], operand[1], valuation);
+                    offering[0] += valuation[0];
+                    offering[1] += valuation[1];
+                    break;
+                }
+                case OFFERING:
+                    if (code[pc++] > 0) {
+                        result[0] += offering[0];
+                        result[1] += offering[1];
+                    } else {
+                        result[0] -= offering[1];
+                        result[1] -= offering[0];
+                    }
+                    offering[0] = 0;
+                    offering[1] = 0;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode " + code[pc - 1]);
+            }
+        }
+        // Infinity - Infinity
+        if (Double.isNaN(result[0])) {
+            result[0] = Double.NEGATIVE_INFINITY;
+        }
+        if (Double.isNaN(result[1])) {
+            result[1] = Double.POSITIVE_INFINITY;
+        }
+        return result;
+    }
+
+    /**
+     * The range of an operand. Errors count as 0, like in evaluate. (A range
+     * that may contain an error is unbounded, so it includes 0 already.)
+     */
+    private void operand(int operand, double[] lower, double[] upper, double[] range) {
+        if (operand < 0) {
+            range[0] = constants[-operand - 1];
+            range[1] = range[0];
+        } else if (Double.isNaN(lower[operand])) {
+            range[0] = 0;
+            range[1] = 0;
+        } else {
+            range[0] = lower[operand];
+            range[1] = upper[operand];
+        }
+    }
+
+    /**
+     * Returns value * operand, and updates the tangent of value to that of
+     * the product
+     */
+    private double multiply(double value, double[] valueTangent, int operand, double[] values, double[][] tangents) {
+        double factor = operand(operand, values);
+        double[] factorTangent = tangent(operand, values, tangents);
+        for (int i = 0; i < valueTangent.length; i++) {
+            valueTangent[i] = valueTangent[i] * factor + (factorTangent == null ? 0 : value * factorTangent[i]);
+        }
+        return value * factor;
+    }
+
+    /**
+     * target += factor * tangent
+     */
+    private static void add(double[] target, double factor, double[] tangent) {
+        if (tangent == null || factor == 0) {
+            return;
+        }
+        for (int i = 0; i < target.length; i++) {
+            target[i] += factor * tangent[i];
+        }
+    }
+
+    /**
+     * The tangent of an operand, or null if it is constant. Errors count as
+     * the constant 0.
+     */
+    private static double[] tangent(int operand, double[] values, double[][] tangents) {
+        if (operand < 0 || Double.isNaN(values[operand])) {
+            return null;
+        }
+        return tangents[operand];
+    }
+
+    /**
+     * Operands are encoded as an index in values, or as -(i + 1) for
+     * constant i
+     */
+    private double operand(int operand, double[] values) {
+        if (operand < 0) {
+            return constants[-operand - 1];
+        }
+        double value = values[operand];
+        return Double.isNaN(value) ? 0 : value;
+    }
+
+    /**
+     * Collects the terms of a plan
+     */
+    static final class Builder {
+
+        private int[] handles = new int[8];
+        private int handleCount;
+        private int[] code = new int[32];
+        private int codeLength;
+        private double[] constants = new double[4];
+        private int constantCount;
+
+        /**
+         * Returns the operand for the formula with the given handle. A missing
+         * formula (ExpressionEvaluator.NO_HANDLE) counts as 0.
+         */
+        int value(int handle) {
+            if (handle == ExpressionEvaluator.NO_HANDLE) {
+                return constant(0);
+            }
+            for (int i = 0; i < handleCount; i++) {
+                if (handles[i] == handle) {
+                    return i;
+                }
+            }
+            if (handleCount == handles.length) {
+                handles = Arrays.copyOf(handles, handleCount * 2);
+            }
+            handles[handleCount] = handle;
+            return handleCount++;
+        }
+
+        /**
+         * Returns the operand for a constant value
+         */
+        int constant(double value) {
+            if (constantCount == constants.length) {
+                constants = Arrays.copyOf(constants, constantCount * 2);
+            }
+            constants[constantCount] = value;
+            return -(++constantCount);
+        }
+
+        Builder subtract(int operand) {
+            emit(SUBTRACT, operand);
+            return this;
+        }
+
+        Builder port(int direction, int[] valuations, int[] expenses, boolean nullified, int cardinality, int occurrences) {
+            emit(PORT, direction, valuations.length);
+            emit(valuations);
+            emit(expenses.length);
+            emit(expenses);
+            emit(nullified ? 1 : 0, cardinality, occurrences);
+            return this;
+        }
+
+        /**
+         * Ends a value offering. Incoming offerings are added to the profit,
+         * outgoing ones deducted.
+         */
+        Builder offering(boolean incoming) {
+            emit(OFFERING, incoming ? 1 : -1);
+            return this;
+        }
+
+        private void emit(int... words) {
+            if (codeLength + words.length > code.length) {
+                code = Arrays.copyOf(code, Math.max(code.length * 2, codeLength + words.length));
+            }
+            for (int word : words) {
+                code[codeLength++] = word;
+            }
+        }
+
+        ProfitPlan build() {
+            return new ProfitPlan(Arrays.copyOf(handles, handleCount), Arrays.copyOf(code, codeLength),
+                    Arrays.copyOf(constants, constantCount));
+        }
+    }
+}
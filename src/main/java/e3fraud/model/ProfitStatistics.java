@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package e3fraud.model;
+
+/**
+ * Statistics of the profit of one actor over the samples of
+ * E3Model.getUncertainty. The samples are not stored: every statistic is
+ * updated as they come in, so the memory used does not depend on their
+ * number. The mean and the variance are exact (computed with Welford's
+ * method); the percentiles are estimates (see QuantileEstimator).
+ *
+ * @author agent
+ */
+public final class ProfitStatistics {
+
+    private static final double[] PERCENTILES = {5, 25, 50, 75, 95};
+
+    private long count;
+    private double mean;
+    //the sum of the squared differences from the mean
+    private double squares;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private long losses;
+    private final QuantileEstimator[] percentiles = new QuantileEstimator[PERCENTILES.length];
+
+    ProfitStatistics() {
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            percentiles[i] = new QuantileEstimator(PERCENTILES[i] / 100);
+        }
+    }
+
+    void add(double profit) {
+        count++;
+        double difference = profit - mean;
+        mean += difference / count;
+        squares += difference * (profit - mean);
+        min = Math.min(min, profit);
+        max = Math.max(max, profit);
+        if (profit < 0) {
+            losses++;
+        }
+        for (QuantileEstimator percentile : percentiles) {
+            percentile.add(profit);
+        }
+    }
+
+    /**
+     * @return the percentiles that are available from getPercentile
+     */
+    public static double[] getPercentiles() {
+        return PERCENTILES.clone();
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return count == 0 ? Double.NaN : mean;
+    }
+
+    /**
+     * @return the sample standard deviation
+     */
+    public double getStandardDeviation() {
+        return count < 2 ? Double.NaN : Math.sqrt(squares / (count - 1));
+    }
+
+    public double getMin() {
+        return count == 0 ? Double.NaN : min;
+    }
+
+    public double getMax() {
+        return count == 0 ? Double.NaN : max;
+    }
+
+    /**
+     * @return the fraction of the samples in which the profit is negative
+     */
+    public double getProbabilityOfLoss() {
+        return count == 0 ? Double.NaN : (double) losses / count;
+    }
+
+    /**
+     * @param percentile one of getPercentiles(), e.g. 50 for the median
+     * @return the estimated percentile of the profit
+     */
+    public double getPercentile(double percentile) {
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            if (PERCENTILES[i] == percentile) {
+                return percentiles[i].get();
+            }
+        }
+        throw new IllegalArgumentException("The " + percentile + "th percentile is not kept");
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        result.append("n=").append(count).append(" mean=").append(getMean())
+                .append(" sd=").append(getStandardDeviation())
+                .append(" P(loss)=").append(getProbabilityOfLoss());
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            result.append(" p").append((int) PERCENTILES[i]).append("=").append(percentiles[i].get());
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package e3fraud.model;
+
+import java.util.Arrays;
+
+/**
+ * Estimates a quantile of a stream of values without storing them, with the
+ * P-square algorithm (R. Jain and I. Chlamtac, "The P2 algorithm for dynamic
+ * calculation of quantiles and histograms without storing observations",
+ * CACM 28(10), 1985). It keeps five markers: the minimum, the maximum, the
+ * quantile and two halfway between, whose heights are adjusted with a
+ * piecewise-parabolic fit as values come in.
+ *
+ * Up to five values the quantile is exact.
+ *
+ * @author agent
+ */
+final class QuantileEstimator {
+
+    private final double quantile;
+    //the heights of the markers
+    private final double[] heights = new double[5];
+    //the positions of the markers (1-based)
+    private final int[] positions = new int[5];
+    //the desired positions of the markers, and their increment per value
+    private final double[] desired = new double[5];
+    private final double[] increments;
+    private long count;
+
+    /**
+     * @param quantile between 0 and 1, e.g. 0.5 for the median
+     */
+    QuantileEstimator(double quantile) {
+        this.quantile = quantile;
+        this.increments = new double[]{0, quantile / 2, quantile, (1 + quantile) / 2, 1};
+    }
+
+    void add(double value) {
+        if (count < 5) {
+            heights[(int) count++] = value;
+            if (count == 5) {
+                Arrays.sort(heights);
+                for (int i = 0; i < 5; i++) {
+                    positions[i] = i + 1;
+                }
+                desired[0] = 1;
+                desired[1] = 1 + 2 * quantile;
+                desired[2] = 1 + 4 * quantile;
+                desired[3] = 3 + 2 * quantile;
+                desired[4] = 5;
+            }
+            return;
+        }
+
+        //find the cell the value falls in, extending the extremes if needed
+        int cell;
+        if (value < heights[0]) {
+            heights[0] = value;
+            cell = 0;
+        } else if (value >= heights[4]) {
+            heights[4] = value;
+            cell = 3;
+        } else {
+            cell = 0;
+            while (value >= heights[cell + 1]) {
+                cell++;
+            }
+        }
+        for (int i = cell + 1; i < 5; i++) {
+            positions[i]++;
+        }
+        for (int i = 0; i < 5; i++) {
+            desired[i] += increments[i];
+        }
+        count++;
+
+        //move the middle markers towards their desired positions
+        for (int i = 1; i <= 3; i++) {
+            double offset = desired[i] - positions[i];
+            if ((offset >= 1 && positions[i + 1] - positions[i] > 1)
+                    || (offset <= -1 && positions[i - 1] - positions[i] < -1)) {
+                int step = offset > 0 ? 1 : -1;
+                double height = parabolic(i, step);
+                if (heights[i - 1] < height && height < heights[i + 1]) {
+                    heights[i] = height;
+                } else {
+                    heights[i] = heights[i] + step * (heights[i + step] - heights[i]) / (positions[i + step] - positions[i]);
+                }
+                positions[i] += step;
+            }
+        }
+    }
+
+    private double parabolic(int i, int step) {
+        double below = positions[i] - positions[i - 1];
+        double above = positions[i + 1] - positions[i];
+        return heights[i] + step / (double) (positions[i + 1] - positions[i - 1])
+                * ((below + step) * (heights[i + 1] - heights[i]) / above
+                + (above - step) * (heights[i] - heights[i - 1]) / below);
+    }
+
+    /**
+     * @return the estimate of the quantile, or NaN if there are no values
+     */
+    double get() {
+        if (count == 0) {
+            return Double.NaN;
+        } else if (count >= 5) {
+            return heights[2];
+        }
+        //interpolate between the few values there are
+        double[] sorted = Arrays.copyOf(heights, (int) count);
+        Arrays.sort(sorted);
+        double index = quantile * (count - 1);
+        int lower = (int) Math.floor(index);
+        int upper = Math.min(lower + 1, sorted.length - 1);
+        return sorted[lower] + (index - lower) * (sorted[upper] - sorted[lower]);
+    }
+}
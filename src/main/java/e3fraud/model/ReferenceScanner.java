@@ -0,0 +1,238 @@
+/**
+ * *****************************************************************************
+ * Copyright (C) 2026 agent
+ *
+ *
+ * This file is part of e3tool.
+ *
+ * e3tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * e3tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with e3tool.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************
+ */
+package e3fraud.model;
+
+/**
+ * Finds e3value references in a formula in a single left to right pass. It
+ * recognizes the same forms as the patterns in ExpressionEvaluator:
+ * <ul>
+ * <li><code>e3{VALUATION}</code> ({@link #LOCAL})</li>
+ * <li><code>e3{#123.VALUATION}</code> ({@link #UID})</li>
+ * <li><code>e3{'Subscription fee'.VALUATION}</code> and
+ * <code>e3{ValuePort('Subscription fee').VALUATION}</code> ({@link #NAME})</li>
+ * </ul>
+ *
+ * Typical use:
+ * <pre>
+ * ReferenceScanner scanner = new ReferenceScanner(formula);
+ * while (scanner.find()) {
+ *     // use scanner.getStart(), getKind(), getTarget() etc.
+ * }
+ * </pre>
+ */
+final class ReferenceScanner {
+
+    static final int LOCAL = 1;
+    static final int UID = 2;
+    static final int NAME = 3;
+
+    private final String text;
+    private int pos;
+
+    private int kind;
+    private int start;
+    private int end;
+    private String target;
+    private String attribute;
+
+    ReferenceScanner(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Finds the next reference, starting after the previous one.
+     *
+     * @return false if there are no more references
+     */
+    boolean find() {
+        int candidate = text.indexOf("e3{", pos);
+        while (candidate >= 0) {
+            if (matchAt(candidate)) {
+                return true;
+            }
+            candidate = text.indexOf("e3{", candidate + 1);
+        }
+        pos = text.length();
+        return false;
+    }
+
+    /**
+     * Tries to match a reference that starts exactly at position at. If it
+     * matches, the next call to {@link #find()} continues after it.
+     */
+    boolean matchAt(int at) {
+        if (!text.startsWith("e3{", at)) {
+            return false;
+        }
+        int p = at + 3;
+        int length = text.length();
+        if (p >= length) {
+            return false;
+        }
+        char c = text.charAt(p);
+        int attributeStart;
+        if (c == '#') {
+            // #123.VALUATION, without leading zeros
+            int uidStart = p + 1;
+            int uidEnd = skipDigits(uidStart);
+            if (uidEnd == uidStart || (text.charAt(uidStart) == '0' && uidEnd > uidStart + 1)) {
+                return false;
+            }
+            if (uidEnd >= length || text.charAt(uidEnd) != '.') {
+                return false;
+            }
+            kind = UID;
+            target = text.substring(uidStart, uidEnd);
+            attributeStart = uidEnd + 1;
+        } else if (c == '\'') {
+            // 'Subscription fee'.VALUATION
+            int nameEnd = skipName(p + 1);
+            if (nameEnd < 0 || !text.startsWith("'.", nameEnd)) {
+                return false;
+            }
+            kind = NAME;
+            target = text.substring(p + 1, nameEnd);
+            attributeStart = nameEnd + 2;
+        } else {
+            int idEnd = skipIdentifier(p);
+            if (idEnd < 0 || idEnd >= length) {
+                return false;
+            }
+            if (text.charAt(idEnd) == '}') {
+                // VALUATION
+                kind = LOCAL;
+                target = null;
+                attribute = text.substring(p, idEnd);
+                return matched(at, idEnd + 1);
+            }
+            // ValuePort('Subscription fee').VALUATION
+            if (!text.startsWith("('", idEnd)) {
+                return false;
+            }
+            int nameEnd = skipName(idEnd + 2);
+            if (nameEnd < 0 || !text.startsWith("').", nameEnd)) {
+                return false;
+            }
+            kind = NAME;
+            target = text.substring(idEnd + 2, nameEnd);
+            attributeStart = nameEnd + 3;
+        }
+        int attributeEnd = skipIdentifier(attributeStart);
+        if (attributeEnd < 0 || attributeEnd >= length || text.charAt(attributeEnd) != '}') {
+            return false;
+        }
+        attribute = text.substring(attributeStart, attributeEnd);
+        return matched(at, attributeEnd + 1);
+    }
+
+    private boolean matched(int from, int to) {
+        start = from;
+        end = to;
+        pos = to;
+        return true;
+    }
+
+    /**
+     * Skips [0-9]*
+     */
+    private int skipDigits(int p) {
+        while (p < text.length() && isDigit(text.charAt(p))) {
+            p++;
+        }
+        return p;
+    }
+
+    /**
+     * Skips [a-zA-Z][a-zA-Z0-9]*, returns -1 if there is none
+     */
+    private int skipIdentifier(int p) {
+        if (p >= text.length() || !isLetter(text.charAt(p))) {
+            return -1;
+        }
+        p++;
+        while (p < text.length() && (isLetter(text.charAt(p)) || isDigit(text.charAt(p)))) {
+            p++;
+        }
+        return p;
+    }
+
+    /**
+     * Skips [a-zA-Z][a-zA-Z0-9 + \r\n]*, returns -1 if there is none
+     */
+    private int skipName(int p) {
+        if (p >= text.length() || !isLetter(text.charAt(p))) {
+            return -1;
+        }
+        p++;
+        while (p < text.length()) {
+            char c = text.charAt(p);
+            if (!(isLetter(c) || isDigit(c) || c == ' ' || c == '+' || c == '\r' || c == '\n')) {
+                break;
+            }
+            p++;
+        }
+        return p;
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * @return {@link #LOCAL}, {@link #UID} or {@link #NAME}
+     */
+    int getKind() {
+        return kind;
+    }
+
+    /**
+     * Position of the "e3{" of the current reference
+     */
+    int getStart() {
+        return start;
+    }
+
+    /**
+     * Position just after the "}" of the current reference
+     */
+    int getEnd() {
+        return end;
+    }
+
+    /**
+     * The uid (for {@link #UID}) or name (for {@link #NAME}) of the entity
+     * the current reference refers to. Null for {@link #LOCAL}.
+     */
+    String getTarget() {
+        return target;
+    }
+
+    /**
+     * The attribute of the current reference, e.g. VALUATION
+     */
+    String getAttribute() {
+        return attribute;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package e3fraud.model;
+
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.vocabulary.RDF;
+import e3fraud.vocabulary.E3value;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the financial result of every actor (see
+ * E3Model.getTotalForActor) per scenario, so that scenarios which end up with
+ * the same formulas are only evaluated once. This happens when the same
+ * hidden transfer is reached through different generation orders, or when
+ * non-occurring exchanges only touch paths without any value, and when the
+ * same model is ranked over and over while sorting.
+ *
+ * Scenarios are identified by a SHA-256 hash of everything the results are
+ * computed from: every formula of the model (including the OCCURRENCES added
+ * by enhance() and the overridden needs and counts), the types of the actors,
+ * and the statements that connect actors to their interfaces, offerings,
+ * ports and exchanges. Models with different resources but the same content
+ * share their results.
+ * The hash of a model is kept until the model changes (see
+ * E3Model.getModificationCount), so ranking the same model again is cheap.
+ *
+ * The memo holds a bounded number of scenarios, dropping the least recently
+ * used one when full. It can be used from multiple threads at the same time.
+ *
+ * @author agent
+ */
+public final class ScenarioMemo {
+
+    //the statements (besides the formulas) getTotalForActor follows
+    private static final Set<Property> STRUCTURE = new HashSet<>(Arrays.asList(
+            E3value.ac_has_vi, E3value.ms_has_vi, E3value.vi_consists_of_of, E3value.vo_consists_of_vp,
+            E3value.vp_in_connects_ve, E3value.vp_out_connects_ve));
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final int capacity;
+    private final Map<String, Map<String, Double>> results;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    //per model, its last key, so unchanged models are not hashed again
+    private final Map<E3Model, CachedKey> keys = new WeakHashMap<>();
+
+    /**
+     * @param capacity the maximum number of scenarios to remember
+     */
+    public ScenarioMemo(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1, got " + capacity);
+        }
+        this.capacity = capacity;
+        this.results = new LinkedHashMap<String, Map<String, Double>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map<String, Double>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Computes (or recalls) the financial result of every actor and market
+     * segment of the model
+     *
+     * @param model the scenario
+     * @param ideal expected (true) or real (false) case, see getTotalForActor
+     * @return per actor uid, its result. Must not be modified.
+     */
+    public Map<String, Double> getTotals(E3Model model, boolean ideal) {
+        String key = cachedKeyOf(model) + (ideal ? "/ideal" : "/real");
+        Map<String, Double> totals;
+        synchronized (results) {
+            totals = results.get(key);
+        }
+        if (totals != null) {
+            hits.incrementAndGet();
+            return totals;
+        }
+        misses.incrementAndGet();
+        totals = new HashMap<>();
+        for (Map.Entry<Resource, Double> total : model.getTotals(ideal).entrySet()) {
+            totals.put(total.getKey().getProperty(E3value.e3_has_uid).getString(), total.getValue());
+        }
+        totals = Collections.unmodifiableMap(totals);
+        synchronized (results) {
+            results.put(key, totals);
+        }
+        return totals;
+    }
+
+    /**
+     * Same as model.getTotalForActor(actor, ideal), but recalled if the same
+     * scenario was evaluated before
+     *
+     * @param actor the actor, from this model or any model with the same uids
+     */
+    public double getTotalForActor(E3Model model, Resource actor, boolean ideal) {
+        Double total = getTotals(model, ideal).get(actor.getProperty(E3value.e3_has_uid).getString());
+        if (total == null) {
+            //not an actor; let getTotalForActor report it
+            return model.getTotalForActor(actor, ideal);
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of scenarios whose results were recalled
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of scenarios that had to be evaluated
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the fraction of scenarios whose results were recalled, 0 if
+     * nothing was asked yet
+     */
+    public double getHitRate() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * @return the number of scenarios currently remembered
+     */
+    public int size() {
+        synchronized (results) {
+            return results.size();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Forgets all scenarios and resets the metrics
+     */
+    public void clear() {
+        synchronized (results) {
+            results.clear();
+        }
+        synchronized (keys) {
+            keys.clear();
+        }
+        hits.set(0);
+        misses.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "ScenarioMemo[" + getHits() + " hits, " + getMisses() + " misses, "
+                + String.format("%.1f", 100 * getHitRate()) + "% hit rate, " + size() + "/" + capacity + " scenarios]";
+    }
+
+    /**
+     * The key of the model, which is only computed again if the model changed
+     */
+    private String cachedKeyOf(E3Model model) {
+        long modifications = model.getModificationCount();
+        synchronized (keys) {
+            CachedKey cached = keys.get(model);
+            if (cached != null && cached.modifications == modifications) {
+                return cached.key;
+            }
+        }
+        String key = keyOf(model);
+        synchronized (keys) {
+            keys.put(model, new CachedKey(modifications, key));
+        }
+        return key;
+    }
+
+    /**
+     * Hashes the content of the model that the results of the actors are
+     * computed from. The lines are sorted, so the order in which the model
+     * was built does not matter.
+     */
+    static String keyOf(E3Model model) {
+        List<String> lines = new ArrayList<>();
+        StmtIterator statements = model.getJenaModel().listStatements();
+        while (statements.hasNext()) {
+            Statement statement = statements.next();
+            Property predicate = statement.getPredicate();
+            if (predicate.equals(E3value.e3_has_formula)) {
+                lines.add(uidOf(statement.getSubject()) + " = " + statement.getString());
+            } else if (STRUCTURE.contains(predicate)) {
+                lines.add(uidOf(statement.getSubject()) + " " + predicate.getLocalName() + " " + uidOf(statement.getObject()));
+            } else if (predicate.equals(RDF.type) && (statement.getObject().equals(E3value.elementary_actor) || statement.getObject().equals(E3value.market_segment))) {
+                lines.add(uidOf(statement.getSubject()) + " a " + statement.getResource().getLocalName());
+            } else if (predicate.equals(E3value.e3_has_name) && statement.getSubject().hasProperty(RDF.type, E3value.value_offering)) {
+                //whether an offering is "in" or "out"
+                lines.add(uidOf(statement.getSubject()) + " named " + statement.getString());
+            }
+        }
+        Collections.sort(lines);
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+        for (String line : lines) {
+            digest.update(line.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        byte[] hash = digest.digest();
+        char[] key = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            key[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+            key[2 * i + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(key);
+    }
+
+    private static final class CachedKey {
+
+        private final long modifications;
+        private final String key;
+
+        CachedKey(long modifications, String key) {
+            this.modifications = modifications;
+            this.key = key;
+        }
+    }
+
+    private static String uidOf(RDFNode node) {
+        if (node.isResource() && node.asResource().hasProperty(E3value.e3_has_uid)) {
+            return "#" + node.asResource().getProperty(E3value.e3_has_uid).getString();
+        }
+        return node.toString();
+    }
+}
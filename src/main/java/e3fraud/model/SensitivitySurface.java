@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package e3fraud.model;
+
+import com.hp.hpl.jena.rdf.model.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The results of all actors over a grid of two parameters (needs or market
+ * segments), as computed by E3Model.getSurface.
+ *
+ * @author agent
+ */
+public final class SensitivitySurface {
+
+    private final Resource xParameter;
+    private final List<Double> xValues;
+    private final Resource yParameter;
+    private final List<Double> yValues;
+    private final List<Resource> actors;
+    private final Map<Resource, double[][]> results = new HashMap<>();
+
+    /**
+     * @param results per actor (in the order of actors), per y value, per x
+     * value, its result
+     */
+    SensitivitySurface(Resource xParameter, List<Double> xValues, Resource yParameter, List<Double> yValues, List<Resource> actors, double[][][] results) {
+        this.xParameter = xParameter;
+        this.xValues = Collections.unmodifiableList(new ArrayList<>(xValues));
+        this.yParameter = yParameter;
+        this.yValues = Collections.unmodifiableList(new ArrayList<>(yValues));
+        this.actors = Collections.unmodifiableList(new ArrayList<>(actors));
+        for (int a = 0; a < actors.size(); a++) {
+            this.results.put(actors.get(a), results[a]);
+        }
+    }
+
+    public Resource getXParameter() {
+        return xParameter;
+    }
+
+    public List<Double> getXValues() {
+        return xValues;
+    }
+
+    public Resource getYParameter() {
+        return yParameter;
+    }
+
+    public List<Double> getYValues() {
+        return yValues;
+    }
+
+    /**
+     * @return the actors and market segments, in the order of the model
+     */
+    public List<Resource> getActors() {
+        return actors;
+    }
+
+    /**
+     * @param actor one of getActors()
+     * @param x the index of the value of the X parameter
+     * @param y the index of the value of the Y parameter
+     * @return the result of the actor for these values
+     */
+    public double getResult(Resource actor, int x, int y) {
+        return results.get(actor)[y][x];
+    }
+
+    /**
+     * @return the lowest and the highest result of the actor
+     */
+    public double[] getRange(Resource actor) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (double[] row : results.get(actor)) {
+            for (double result : row) {
+                min = Math.min(min, result);
+                max = Math.max(max, result);
+            }
+        }
+        return new double[]{min, max};
+    }
+}
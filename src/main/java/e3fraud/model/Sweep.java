@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package e3fraud.model;
+
+import java.util.List;
+
+/**
+ * The results of a fixed list of actors for values of one parameter of a
+ * model (the OCCURRENCES of a need or the COUNT of a market segment), as
+ * computed by E3Model.getSeries. A sweep is prepared once and can then be
+ * evaluated for as many lists of points as needed, e.g. by an
+ * AdaptiveSampler.
+ *
+ * @author agent
+ */
+interface Sweep {
+
+    /**
+     * @param points the values of the parameter
+     * @return per point, per actor, its result
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    double[][] evaluate(List<Double> points) throws InterruptedException;
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package e3fraud.model;
+
+import com.hp.hpl.jena.rdf.model.Resource;
+
+/**
+ * A formula of an element of a model with a distribution of its value, for
+ * E3Model.getUncertainty: e.g. the OCCURRENCES of a need, the COUNT of a
+ * market segment or the VALUATION of a value port.
+ *
+ * @author agent
+ */
+public final class UncertainParameter {
+
+    private final Resource element;
+    private final String attribute;
+    private final Distribution distribution;
+
+    /**
+     * @param element the element with the formula
+     * @param attribute the name of the formula, e.g. VALUATION
+     * @param distribution the distribution of its value
+     */
+    public UncertainParameter(Resource element, String attribute, Distribution distribution) {
+        this.element = element;
+        this.attribute = attribute;
+        this.distribution = distribution;
+    }
+
+    public Resource getElement() {
+        return element;
+    }
+
+    public String getAttribute() {
+        return attribute;
+    }
+
+    public Distribution getDistribution() {
+        return distribution;
+    }
+
+    @Override
+    public String toString() {
+        return element.getURI() + "." + attribute + " ~ " + distribution;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package e3fraud.tools;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import e3fraud.model.E3Model;
+import e3fraud.vocabulary.E3value;
+
+/**
+ * Benchmark for E3Model.enhance() on deep dependency paths. The generated
+ * models consist of a chain of stages, alternating between OR and AND, where
+ * every stage forks into a number of parallel paths (each going through an
+ * exchange between two actors) that join again before the next stage.
+ *
+ * For a growing number of stages it times the first enhance() of a model and
+ * a second one on the same model (as done after changing a need or market
+ * segment, e.g. by getSeries). Both should grow linearly with the number of
+ * stages.
+ *
+ * Run with: java e3fraud.tools.EnhanceBenchmark [paths per stage] [maximum
+ * number of stages]
+ *
+ * @author agent
+ */
+public class EnhanceBenchmark {
+
+    private static final String URI_BASE = "http://www.cs.vu.nl/~gordijn/TestModel";
+
+    public static void main(String[] args) {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        int maxDepth = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+        System.out.println("stages\telements\tenhance (ms)\tre-enhance (ms)");
+        for (int depth = 2; depth <= maxDepth; depth += 2) {
+            Model model = generateModel(width, depth);
+
+            // Warm up, then take the best of a few runs
+            long first = Long.MAX_VALUE;
+            long again = Long.MAX_VALUE;
+            for (int run = 0; run < 3; run++) {
+                E3Model e3model = new E3Model(generateModel(width, depth));
+                long start = System.nanoTime();
+                e3model.enhance();
+                first = Math.min(first, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                e3model.enhance();
+                again = Math.min(again, System.nanoTime() - start);
+            }
+            System.out.println(depth + "\t" + model.listSubjectsWithProperty(E3value.e3_has_uid).toList().size()
+                    + "\t\t" + first / 1000000 + "\t\t" + again / 1000000);
+        }
+    }
+
+    /**
+     * Generates a dependency path of the given number of stages, each with
+     * the given number of parallel paths between its fork and its join.
+     */
+    public static Model generateModel(int width, int depth) {
+        Generator generator = new Generator();
+        Resource actorA = generator.create(E3value.elementary_actor, "A");
+        Resource actorB = generator.create(E3value.elementary_actor, "B");
+
+        Resource start = generator.create(E3value.start_stimulus, "need");
+        start.addProperty(E3value.e3_has_formula, "OCCURRENCES=10");
+        Resource previous = start;
+        for (int stage = 0; stage < depth; stage++) {
+            Resource type = stage % 2 == 0 ? E3value.OR_node : E3value.AND_node;
+            Resource fork = generator.create(type, "fork" + stage);
+            Resource join = generator.create(type, "join" + stage);
+            generator.connect(previous, fork);
+            for (int path = 0; path < width; path++) {
+                Resource in = generator.createInterface(actorA, "in" + stage + "_" + path);
+                Resource out = generator.createInterface(actorB, "out" + stage + "_" + path);
+                generator.exchange(in, out, "exchange" + stage + "_" + path);
+                generator.connect(fork, in);
+                generator.connect(out, join);
+            }
+            previous = join;
+        }
+        Resource end = generator.create(E3value.end_stimulus, "end");
+        generator.connect(previous, end);
+        return generator.model;
+    }
+
+    /**
+     * Creates the elements of a generated model, numbering them
+     */
+    private static class Generator {
+
+        private final Model model = ModelFactory.createDefaultModel();
+        private int uid = 0;
+
+        Resource create(Resource type, String name) {
+            uid++;
+            Resource res = model.createResource(URI_BASE + "#" + uid, type);
+            res.addProperty(E3value.e3_has_uid, "" + uid);
+            res.addProperty(E3value.e3_has_name, name);
+            return res;
+        }
+
+        /**
+         * Creates a value interface of the actor with one offering and port
+         */
+        Resource createInterface(Resource actor, String name) {
+            Resource valueInterface = create(E3value.value_interface, name);
+            Resource offering = create(E3value.value_offering, name.startsWith("in") ? "in" : "out");
+            Resource port = create(E3value.value_port, name + "_port");
+            actor.addProperty(E3value.ac_has_vi, valueInterface);
+            valueInterface.addProperty(E3value.vi_assigned_to_ac, actor);
+            valueInterface.addProperty(E3value.vi_consists_of_of, offering);
+            offering.addProperty(E3value.vo_in_vi, valueInterface);
+            offering.addProperty(E3value.vo_consists_of_vp, port);
+            port.addProperty(E3value.vp_in_vo, offering);
+            port.addProperty(E3value.e3_has_formula, "VALUATION=1");
+            return valueInterface;
+        }
+
+        /**
+         * Creates a value exchange from the port of the out interface to the
+         * port of the in interface
+         */
+        void exchange(Resource in, Resource out, String name) {
+            Resource exchange = create(E3value.value_exchange, name);
+            Resource inPort = portOf(in);
+            Resource outPort = portOf(out);
+            exchange.addProperty(E3value.ve_has_in_po, inPort);
+            exchange.addProperty(E3value.ve_has_out_po, outPort);
+            inPort.addProperty(E3value.vp_in_connects_ve, exchange);
+            outPort.addProperty(E3value.vp_out_connects_ve, exchange);
+        }
+
+        /**
+         * Creates a connection element from the upper to the lower element
+         */
+        void connect(Resource up, Resource down) {
+            Resource connection = create(E3value.connection_element, "ce" + (uid + 1));
+            connection.addProperty(E3value.ce_with_up_de, up);
+            connection.addProperty(E3value.ce_with_down_de, down);
+            connection.addProperty(E3value.up_fraction, "1");
+            connection.addProperty(E3value.down_fraction, "1");
+            up.addProperty(E3value.de_down_ce, connection);
+            down.addProperty(E3value.de_up_ce, connection);
+        }
+
+        private Resource portOf(Resource valueInterface) {
+            Resource offering = valueInterface.getProperty(E3value.vi_consists_of_of).getResource();
+            return offering.getProperty(E3value.vo_consists_of_vp).getResource();
+        }
+    }
+}
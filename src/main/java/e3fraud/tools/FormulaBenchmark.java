@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2026 agent
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package e3fraud.tools;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import e3fraud.model.ExpressionEvaluator;
+import e3fraud.model.FormulaCache;
+import e3fraud.vocabulary.E3value;
+
+/**
+ * Micro-benchmark for the handling of long formulas, like the
+ * <code>(a)+(b)+...</code> sums built at OR joins. For formulas with a growing
+ * number of references it times the rewriting to spreadsheet references
+ * (e3ExpressionToExcel) and the compilation by the native engine. Both should
+ * grow linearly, i.e. the time per reference should stay about the same.
+ *
+ * Run with: java e3fraud.tools.FormulaBenchmark [maximum number of references]
+ *
+ * @author agent
+ */
+public class FormulaBenchmark {
+
+    private static final String URI_BASE = "http://www.cs.vu.nl/~gordijn/TestModel";
+
+    public static void main(String[] args) {
+        int maxReferences = args.length > 0 ? Integer.parseInt(args[0]) : 16000;
+
+        // One entity with a VALUATION per reference
+        Model model = ModelFactory.createDefaultModel();
+        for (int i = 1; i <= maxReferences; i++) {
+            Resource res = model.createResource(URI_BASE + "#" + i, E3value.value_port);
+            res.addProperty(E3value.e3_has_uid, "" + i);
+            res.addProperty(E3value.e3_has_name, "vp" + i);
+            res.addProperty(E3value.e3_has_formula, "VALUATION=" + i);
+        }
+        ExpressionEvaluator evaluator = ExpressionEvaluator.evaluateModel(model).get();
+
+        System.out.println("references\trewrite (ns/ref)\tcompile (ns/ref)");
+        for (int n = 250; n <= maxReferences; n *= 2) {
+            String formula = generateFormula(n);
+
+            // Warm up, then take the best of a few runs
+            long rewrite = Long.MAX_VALUE;
+            long compile = Long.MAX_VALUE;
+            for (int run = 0; run < 5; run++) {
+                long start = System.nanoTime();
+                evaluator.e3ExpressionToExcel("1", formula);
+                rewrite = Math.min(rewrite, System.nanoTime() - start);
+
+                FormulaCache.clear();
+                start = System.nanoTime();
+                FormulaCache.get("1", formula);
+                compile = Math.min(compile, System.nanoTime() - start);
+            }
+            System.out.println(n + "\t\t" + rewrite / n + "\t\t\t" + compile / n);
+        }
+        FormulaCache.clear();
+    }
+
+    /**
+     * Generates a sum of n references, alternating between uid, name and
+     * local references.
+     */
+    private static String generateFormula(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= n; i++) {
+            if (i > 1) {
+                sb.append('+');
+            }
+            switch (i % 3) {
+                case 0:
+                    sb.append("(e3{#").append(i).append(".VALUATION})");
+                    break;
+                case 1:
+                    sb.append("(e3{'vp").append(i).append("'.VALUATION}*2)");
+                    break;
+                default:
+                    sb.append("(e3{VALUATION}/e3{ValuePort('vp").append(i).append("').VALUATION})");
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -280,6 +280,7 @@ public class SortingAndFilteringWorker extends SwingWorker<ResultObject, String>
 
         if (DEBUG) {
             System.out.println(currentTime.currentTime() + " Sorting finished. Showing " + shownModels + " out of " + numberOfSubIdealModels + " fraud models." + NEWLINE);
+            System.out.println(currentTime.currentTime() + " Duplicate evaluations avoided: " + FraudModelRanker.getScenarioMemo() + NEWLINE);
         }
         return new ResultObject(numberOfSubIdealModels, shownModels, root);
     }
@@ -0,0 +1,118 @@
+/**
+ * *****************************************************************************
+ * Copyright (C) 2026 agent
+ *
+ *
+ * This file is part of e3tool.
+ *
+ * e3tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * e3tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with e3tool.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************
+ */
+package e3fraud.model;
+
+import java.util.List;
+import java.util.TreeMap;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks where AdaptiveSampler puts its points, with sweeps of a single actor
+ * whose result is a known function of the parameter.
+ *
+ * @author agent
+ */
+public class AdaptiveSamplerTest {
+
+    @Test
+    public void straightLinesAreNotRefined() throws InterruptedException {
+        TreeMap<Double, double[]> samples = new AdaptiveSampler().sample(0, 80, sweepOf(new Function() {
+            @Override
+            public double at(double x) {
+                return 3 * x - 7;
+            }
+        }));
+        // the 9 initial points, and the midpoint of each interval between them
+        assertEquals(17, samples.size());
+        assertEquals(0, samples.firstKey(), 0);
+        assertEquals(80, samples.lastKey(), 0);
+    }
+
+    @Test
+    public void kinksAreRefined() throws InterruptedException {
+        final double kink = 33.3;
+        TreeMap<Double, double[]> samples = new AdaptiveSampler().sample(0, 100, sweepOf(new Function() {
+            @Override
+            public double at(double x) {
+                return Math.abs(x - kink);
+            }
+        }));
+        assertTrue(samples.size() > 17);
+        assertTrue(samples.size() <= AdaptiveSampler.DEFAULT_BUDGET);
+        assertEquals(0, samples.firstKey(), 0);
+        assertEquals(100, samples.lastKey(), 0);
+
+        // the points closest to the kink are much closer than the initial steps of 12.5
+        double below = samples.floorKey(kink);
+        double above = samples.ceilingKey(kink);
+        assertTrue(above - below < 1);
+        // while the straight parts only have their first midpoints
+        assertEquals(9, samples.subMap(50.0, true, 100.0, true).size());
+    }
+
+    @Test
+    public void budgetIsKept() throws InterruptedException {
+        TreeMap<Double, double[]> samples = new AdaptiveSampler(12, 0).sample(-1, 1, sweepOf(new Function() {
+            @Override
+            public double at(double x) {
+                return x * x;
+            }
+        }));
+        assertEquals(12, samples.size());
+    }
+
+    @Test
+    public void singlePoint() throws InterruptedException {
+        TreeMap<Double, double[]> samples = new AdaptiveSampler().sample(5, 5, sweepOf(new Function() {
+            @Override
+            public double at(double x) {
+                return x;
+            }
+        }));
+        assertEquals(1, samples.size());
+        assertEquals(5, samples.get(5.0)[0], 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooSmallABudget() {
+        new AdaptiveSampler(1, 0.01);
+    }
+
+    private interface Function {
+
+        double at(double x);
+    }
+
+    private static Sweep sweepOf(final Function function) {
+        return new Sweep() {
+            @Override
+            public double[][] evaluate(List<Double> points) {
+                double[][] results = new double[points.size()][];
+                for (int i = 0; i < points.size(); i++) {
+                    results[i] = new double[]{function.at(points.get(i))};
+                }
+                return results;
+            }
+        };
+    }
+}
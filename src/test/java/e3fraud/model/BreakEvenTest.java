@@ -0,0 +1,132 @@
+/**
+ * *****************************************************************************
+ * Copyright (C) 2026 agent
+ *
+ *
+ * This file is part of e3tool.
+ *
+ * e3tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * e3tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with e3tool.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************
+ */
+package e3fraud.model;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import e3fraud.tools.EnhanceBenchmark;
+import e3fraud.vocabulary.E3value;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks E3Model.getBreakEvenPoints (and so the Brent solver behind it) on a
+ * generated model where one valuation depends on the occurrences of the need.
+ * Every other exchange is worth 1, so actor B makes (v + 2) per occurrence,
+ * where v is that valuation, while the result of actor A only changes sign at
+ * 0.
+ *
+ * @author agent
+ */
+public class BreakEvenTest {
+
+    private static final String OCCURRENCES = "e3{#3.OCCURRENCES}";
+
+    @Test
+    public void linearCurve() throws InterruptedException {
+        // B makes 100 - x at x occurrences
+        E3Model model = generateModel("100/" + OCCURRENCES + "-3");
+        Map<Resource, List<Double>> points = findBreakEvenPoints(model, 1, 150);
+        List<Double> b = points.get(getActor(model, "B"));
+        assertEquals(1, b.size());
+        assertEquals(100, b.get(0), 1e-6);
+        assertTrue(points.get(getActor(model, "A")).isEmpty());
+    }
+
+    @Test
+    public void stepCurve() throws InterruptedException {
+        // B makes -x up to 61.3 occurrences, and 7x from there on
+        E3Model model = generateModel("IF(" + OCCURRENCES + ">61.3,5,-3)");
+        List<Double> b = findBreakEvenPoints(model, 1, 150).get(getActor(model, "B"));
+        assertEquals(1, b.size());
+        assertEquals(61.3, b.get(0), 1e-6);
+    }
+
+    @Test
+    public void rootAtTheStartOfTheRange() throws InterruptedException {
+        // B makes x * (x - 35)
+        E3Model model = generateModel(OCCURRENCES + "-37");
+        List<Double> b = findBreakEvenPoints(model, 0, 100).get(getActor(model, "B"));
+        assertEquals(2, b.size());
+        assertEquals(0, b.get(0), 1e-6);
+        assertEquals(35, b.get(1), 1e-6);
+    }
+
+    @Test
+    public void functionsThatOnlyPoiCanEvaluate() throws InterruptedException {
+        // B makes (CEILING(x) - 38.5) * x, which changes sign where CEILING jumps from 38 to 39
+        E3Model model = generateModel("CEILING(" + OCCURRENCES + ",1)-40.5");
+        List<Double> b = findBreakEvenPoints(model, 1, 150).get(getActor(model, "B"));
+        assertEquals(1, b.size());
+        assertEquals(38, b.get(0), 1e-6);
+    }
+
+    @Test
+    public void singleActor() throws InterruptedException {
+        E3Model model = generateModel("100/" + OCCURRENCES + "-3");
+        Resource b = getActor(model, "B");
+        assertEquals(findBreakEvenPoints(model, 1, 150).get(b),
+                model.getBreakEvenPoints(b, getNeed(model), 1, 150, true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyRange() throws InterruptedException {
+        E3Model model = generateModel("1");
+        model.getBreakEvenPoints(getNeed(model), 10, 10, true);
+    }
+
+    /**
+     * Finds the break-even values of all actors, and checks that doing so
+     * leaves the model as it was
+     */
+    private static Map<Resource, List<Double>> findBreakEvenPoints(E3Model model, double startValue, double endValue) throws InterruptedException {
+        long modificationCount = model.getModificationCount();
+        double occurrences = model.valueOf(getNeed(model), "OCCURRENCES");
+        Map<Resource, List<Double>> points = model.getBreakEvenPoints(getNeed(model), startValue, endValue, true);
+        assertEquals(modificationCount, model.getModificationCount());
+        assertEquals(occurrences, model.valueOf(getNeed(model), "OCCURRENCES"), 0);
+        return points;
+    }
+
+    /**
+     * @param valuation the formula for the first valuation of the model
+     */
+    private static E3Model generateModel(String valuation) {
+        Model jenaModel = EnhanceBenchmark.generateModel(2, 2);
+        List<Statement> valuations = jenaModel.listStatements(null, E3value.e3_has_formula, "VALUATION=1").toList();
+        valuations.get(0).changeObject("VALUATION=" + valuation);
+        E3Model model = new E3Model(jenaModel);
+        model.enhance();
+        return model;
+    }
+
+    private static Resource getNeed(E3Model model) {
+        return model.getNeeds().iterator().next();
+    }
+
+    private static Resource getActor(E3Model model, String name) {
+        return model.getActorsMap().get(name);
+    }
+}
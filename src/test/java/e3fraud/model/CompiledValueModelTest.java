@@ -0,0 +1,132 @@
+/**
+ * *****************************************************************************
+ * Copyright (C) 2026 agent
+ *
+ *
+ * This file is part of e3tool.
+ *
+ * e3tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * e3tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with e3tool.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************
+ */
+package e3fraud.model;
+
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDF;
+import e3fraud.vocabulary.E3value;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that the profits E3Model computes from its compiled model agree with
+ * each other, and that the compiled model is made again when the model
+ * changes.
+ *
+ * @author agent
+ */
+public class CompiledValueModelTest {
+
+    private static final String[] MODELS = {
+        "src/test/resources/evaluation_rdf_test.rdf",
+        "src/test/resources/evaluation_rdf_test2.rdf"
+    };
+    private static final double TOLERANCE = 1e-9;
+
+    @Test
+    public void totalsAreThoseOfEachActor() throws IOException {
+        for (String path : MODELS) {
+            E3Model model = new E3Model(EvaluationModesTest.load(path));
+            model.enhance();
+            for (boolean ideal : new boolean[]{true, false}) {
+                Map<Resource, Double> totals = model.getTotals(ideal);
+                assertEquals(path, model.getActorsAndMarketSegments().size(), totals.size());
+                for (Resource actor : model.getActorsAndMarketSegments()) {
+                    assertEquals(path + " " + actor.getURI() + " " + ideal,
+                            model.getTotalForActor(actor, ideal), totals.get(actor), TOLERANCE);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void totalsFollowChangesToTheModel() throws IOException {
+        for (String path : MODELS) {
+            E3Model model = new E3Model(EvaluationModesTest.load(path));
+            model.enhance();
+            model.getTotals(false);
+
+            for (Resource exchange : model.getJenaModel().listSubjectsWithProperty(RDF.type, E3value.value_exchange).toList()) {
+                model.makeHidden(exchange);
+                model.enhance();
+                E3Model expected = new E3Model(ModelFactory.createDefaultModel().add(model.getJenaModel()));
+                expected.enhance();
+                for (boolean ideal : new boolean[]{true, false}) {
+                    assertEquals(path + " " + exchange.getURI() + " " + ideal,
+                            expected.getTotals(ideal), model.getTotals(ideal));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void onlyStructuralChangesCompileAgain() throws IOException {
+        E3Model model = new E3Model(EvaluationModesTest.load(MODELS[0]));
+        model.enhance();
+        CompiledValueModel compiled = model.getCompiledModel();
+
+        // enhancing again rewrites the OCCURRENCES of the value interfaces
+        long modificationCount = model.getModificationCount();
+        model.enhance();
+        assertNotEquals(modificationCount, model.getModificationCount());
+        assertSame(compiled, model.getCompiledModel());
+
+        model.makeHidden(model.getJenaModel().listSubjectsWithProperty(RDF.type, E3value.value_exchange).next());
+        assertNotSame(compiled, model.getCompiledModel());
+    }
+
+    @Test
+    public void totalsPerOccurrenceAreTheSameInEveryMode() throws IOException {
+        ExpressionEvaluator.Mode defaultMode = ExpressionEvaluator.getDefaultMode();
+        try {
+            for (String path : MODELS) {
+                ExpressionEvaluator.setDefaultMode(ExpressionEvaluator.Mode.POI);
+                E3Model expected = new E3Model(EvaluationModesTest.load(path));
+                expected.enhance();
+                List<Resource> valueInterfaces = expected.getJenaModel().listSubjectsWithProperty(RDF.type, E3value.value_interface).toList();
+                assertFalse(valueInterfaces.isEmpty());
+
+                ExpressionEvaluator.setDefaultMode(ExpressionEvaluator.Mode.NATIVE);
+                E3Model actual = new E3Model(EvaluationModesTest.load(path));
+                actual.enhance();
+                for (Resource valueInterface : valueInterfaces) {
+                    for (Resource actor : expected.getActorsAndMarketSegments()) {
+                        for (boolean ideal : new boolean[]{true, false}) {
+                            assertEquals(path + " " + valueInterface.getURI() + " " + actor.getURI() + " " + ideal,
+                                    expected.getTotalForActorPerOccurence(actor, valueInterface, ideal),
+                                    actual.getTotalForActorPerOccurence(actor, valueInterface, ideal), TOLERANCE);
+                        }
+                    }
+                }
+            }
+        } finally {
+            ExpressionEvaluator.setDefaultMode(defaultMode);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * *****************************************************************************
+ * Copyright (C) 2026 agent
+ *
+ *
+ * This file is part of e3tool.
+ *
+ * e3tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * e3tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with e3tool.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************
+ */
+package e3fraud.model;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.ResIterator;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.vocabulary.RDF;
+import e3fraud.vocabulary.E3value;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the NATIVE, LAZY and POI evaluation modes give the same values
+ * for the test models, including the occurrence formulas added by enhance().
+ *
+ * @author agent
+ */
+public class EvaluationModesTest {
+
+    private static final String[] MODELS = {
+        "src/test/resources/evaluation_rdf_test.rdf",
+        "src/test/resources/evaluation_rdf_test2.rdf"
+    };
+    private static final double TOLERANCE = 1e-9;
+
+    private ExpressionEvaluator.Mode defaultMode;
+
+    @Before
+    public void saveDefaultMode() {
+        defaultMode = ExpressionEvaluator.getDefaultMode();
+    }
+
+    @After
+    public void restoreDefaultMode() {
+        ExpressionEvaluator.setDefaultMode(defaultMode);
+    }
+
+    @Test
+    public void formulasHaveTheSameValueInEveryMode() throws IOException {
+        for (String path : MODELS) {
+            ExpressionEvaluator.setDefaultMode(ExpressionEvaluator.Mode.NATIVE);
+            E3Model model = new E3Model(load(path));
+            model.enhance();
+            List<String> references = getFormulaReferences(model.getJenaModel());
+            assertFalse(references.isEmpty());
+
+            ExpressionEvaluator expected = ExpressionEvaluator.evaluateModel(model.getJenaModel(), ExpressionEvaluator.Mode.POI).get();
+            for (ExpressionEvaluator.Mode mode : ExpressionEvaluator.Mode.values()) {
+                ExpressionEvaluator actual = ExpressionEvaluator.evaluateModel(model.getJenaModel(), mode).get();
+                assertEquals(mode, actual.getMode());
+                for (String reference : references) {
+                    assertTrue(path + " " + reference, actual.valueOf(reference).isPresent());
+                    assertEquals(path + " " + mode + " " + reference,
+                            expected.valueOf(reference).get(), actual.valueOf(reference).get(), TOLERANCE);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void totalsAreTheSameInEveryMode() throws IOException {
+        for (String path : MODELS) {
+            ExpressionEvaluator.setDefaultMode(ExpressionEvaluator.Mode.POI);
+            E3Model expected = new E3Model(load(path));
+            expected.enhance();
+            assertFalse(expected.getActorsAndMarketSegments().isEmpty());
+
+            for (ExpressionEvaluator.Mode mode : ExpressionEvaluator.Mode.values()) {
+                ExpressionEvaluator.setDefaultMode(mode);
+                E3Model actual = new E3Model(load(path));
+                actual.enhance();
+                for (Resource actor : expected.getActorsAndMarketSegments()) {
+                    Resource sameActor = actual.getJenaModel().getResource(actor.getURI());
+                    for (boolean ideal : new boolean[]{true, false}) {
+                        assertEquals(path + " " + mode + " " + actor.getURI() + " " + ideal,
+                                expected.getTotalForActor(actor, ideal), actual.getTotalForActor(sameActor, ideal), TOLERANCE);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void errorsAreTheSameInEveryMode() {
+        Model model = ExpressionEvaluatorTest.createModel(
+                "#1.A=0^-1",
+                "#2.A=POWER(0,-1)",
+                "#3.A=LOG(8,1)",
+                "#4.A=LOG(8,0)",
+                "#5.A=10^400",
+                "#6.A=LOG(8,2)",
+                "#7.A=0^0");
+        ExpressionEvaluator expected = ExpressionEvaluator.evaluateModel(model, ExpressionEvaluator.Mode.POI).get();
+        for (ExpressionEvaluator.Mode mode : ExpressionEvaluator.Mode.values()) {
+            ExpressionEvaluator actual = ExpressionEvaluator.evaluateModel(model, mode).get();
+            assertEquals(mode, actual.getMode());
+            for (int uid = 1; uid <= 7; uid++) {
+                int handle = expected.handleOf("#" + uid + ".A");
+                assertEquals(mode + " #" + uid, expected.valueOf(handle), actual.valueOf(handle), 0);
+            }
+        }
+        assertTrue(Double.isNaN(expected.valueOf(expected.handleOf("#1.A"))));
+        assertTrue(Double.isNaN(expected.valueOf(expected.handleOf("#3.A"))));
+    }
+
+    /**
+     * @return the references (e.g. #12.VALUATION) of all formulas in the
+     * model
+     */
+    private static List<String> getFormulaReferences(Model model) {
+        List<String> references = new ArrayList<>();
+        ResIterator it = model.listResourcesWithProperty(E3value.e3_has_uid);
+        while (it.hasNext()) {
+            Resource res = it.next();
+            if (res.hasProperty(RDF.type, E3value.value_offering)) {
+                continue;
+            }
+            String uid = res.getProperty(E3value.e3_has_uid).getString();
+            StmtIterator formulas = res.listProperties(E3value.e3_has_formula);
+            while (formulas.hasNext()) {
+                references.add("#" + uid + "." + formulas.next().getString().split("=")[0]);
+            }
+        }
+        return references;
+    }
+
+    /**
+     * Reads a test model. These were exported by the e3value toolkit, which
+     * writes dashes in the property and type names where the E3value
+     * vocabulary has underscores.
+     */
+    static Model load(String path) throws IOException {
+        String rdf = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+        Matcher names = Pattern.compile("(a:|e3value#)([a-zA-Z0-9-]+)").matcher(rdf);
+        StringBuffer fixed = new StringBuffer();
+        while (names.find()) {
+            names.appendReplacement(fixed, Matcher.quoteReplacement(names.group(1) + names.group(2).replace('-', '_')));
+        }
+        names.appendTail(fixed);
+        Model model = ModelFactory.createDefaultModel();
+        model.read(new ByteArrayInputStream(fixed.toString().getBytes(StandardCharsets.UTF_8)), null);
+        return model;
+    }
+}
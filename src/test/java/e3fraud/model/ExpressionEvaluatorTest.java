@@ -0,0 +1,255 @@
+/**
+ * *****************************************************************************
+ * Copyright (C) 2026 agent
+ *
+ *
+ * This file is part of e3tool.
+ *
+ * e3tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * e3tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with e3tool.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************
+ */
+package e3fraud.model;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.vocabulary.RDF;
+import e3fraud.vocabulary.E3value;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how ExpressionEvaluator keeps its values (also those looked up by
+ * handle) up to date when formulas change, and that forks do not affect each
+ * other, in every evaluation mode.
+ *
+ * @author agent
+ */
+public class ExpressionEvaluatorTest {
+
+    private static final String[] CHAIN = {
+        "#1.A=2",
+        "#2.B=e3{#1.A}*3",
+        "#3.C=e3{#2.B}+e3{#1.A}",
+        "#4.D=5"
+    };
+
+    @Test
+    public void changingAFormulaUpdatesItsDependents() {
+        for (ExpressionEvaluator.Mode mode : ExpressionEvaluator.Mode.values()) {
+            ExpressionEvaluator evaluator = ExpressionEvaluator.evaluateModel(createModel(CHAIN), mode).get();
+            assertEquals(mode.toString(), 8, valueOf(evaluator, "#3.C"), 0);
+
+            evaluator.addOrChangeFormula("#1.A", "1", "10");
+            assertEquals(mode.toString(), 30, valueOf(evaluator, "#2.B"), 0);
+            assertEquals(mode.toString(), 40, valueOf(evaluator, "#3.C"), 0);
+            assertEquals(mode.toString(), 5, valueOf(evaluator, "#4.D"), 0);
+
+            evaluator.changeExistingFormula("#2.B", "2", 1);
+            evaluator.reEvaluate();
+            assertEquals(mode.toString(), 11, valueOf(evaluator, "#3.C"), 0);
+        }
+    }
+
+    @Test
+    public void addingAFormula() {
+        for (ExpressionEvaluator.Mode mode : ExpressionEvaluator.Mode.values()) {
+            ExpressionEvaluator evaluator = ExpressionEvaluator.evaluateModel(createModel(CHAIN), mode).get();
+            evaluator.addOrChangeFormula("#4.E", "4", "e3{#3.C}*e3{D}");
+            assertEquals(mode.toString(), 40, valueOf(evaluator, "#4.E"), 0);
+
+            evaluator.addOrChangeFormula("#1.A", "1", "1");
+            assertEquals(mode.toString(), 20, valueOf(evaluator, "#4.E"), 0);
+        }
+    }
+
+    @Test
+    public void circularReferencesHaveNoValue() {
+        ExpressionEvaluator evaluator = ExpressionEvaluator.evaluateModel(createModel(
+                "#1.A=e3{#2.B}+1",
+                "#2.B=e3{#1.A}*2",
+                "#3.C=e3{#1.A}",
+                "#4.D=1"), ExpressionEvaluator.Mode.NATIVE).get();
+        assertFalse(evaluator.valueOf("#3.C").isPresent());
+        assertEquals(1, valueOf(evaluator, "#4.D"), 0);
+
+        evaluator.addOrChangeFormula("#2.B", "2", "4");
+        assertEquals(5, valueOf(evaluator, "#3.C"), 0);
+    }
+
+    @Test
+    public void lazyModeOnlyEvaluatesWhatIsAskedFor() {
+        ExpressionEvaluator evaluator = ExpressionEvaluator.evaluateModel(createModel(CHAIN), ExpressionEvaluator.Mode.LAZY).get();
+        assertEquals(0, evaluator.getEvaluationCount());
+        assertEquals(6, valueOf(evaluator, "#2.B"), 0);
+        assertEquals(2, evaluator.getLastQueryEvaluations());
+        assertEquals(6, valueOf(evaluator, "#2.B"), 0);
+        assertEquals(0, evaluator.getLastQueryEvaluations());
+
+        evaluator.addOrChangeFormula("#4.D", "4", "6");
+        assertEquals(6, valueOf(evaluator, "#2.B"), 0);
+        assertEquals(0, evaluator.getLastQueryEvaluations());
+
+        evaluator.addOrChangeFormula("#1.A", "1", "3");
+        assertEquals(12, valueOf(evaluator, "#3.C"), 0);
+        assertEquals(3, evaluator.getLastQueryEvaluations());
+        assertEquals(5, evaluator.getEvaluationCount());
+    }
+
+    @Test
+    public void nativeModeOnlyRecalculatesDependents() {
+        ExpressionEvaluator evaluator = ExpressionEvaluator.evaluateModel(createModel(CHAIN), ExpressionEvaluator.Mode.NATIVE).get();
+        evaluator.resetCounters();
+        evaluator.addOrChangeFormula("#4.D", "4", "6");
+        assertEquals(1, evaluator.getEvaluationCount());
+        evaluator.addOrChangeFormula("#2.B", "2", "1");
+        assertEquals(3, evaluator.getEvaluationCount());
+        assertEquals(3, valueOf(evaluator, "#3.C"), 0);
+    }
+
+    @Test
+    public void parallelLevelsGiveTheSameValues() {
+        // two wide levels of formulas that depend on #1.A, and their sum
+        List<String> formulas = new ArrayList<>();
+        StringBuilder sum = new StringBuilder("#1000.S=SUM(");
+        formulas.add("#1.A=2");
+        for (int i = 2; i < 500; i++) {
+            formulas.add("#" + i + ".V=e3{#1.A}*" + i);
+            formulas.add("#" + i + ".W=e3{#" + i + ".V}/" + i + "+e3{#" + (i - 1) + (i == 2 ? ".A}" : ".V}"));
+            sum.append(i > 2 ? "," : "").append("e3{#").append(i).append(".W}");
+        }
+        formulas.add(sum.append(')').toString());
+        Model model = createModel(formulas.toArray(new String[formulas.size()]));
+
+        int threshold = ExpressionEvaluator.getParallelThreshold();
+        try {
+            ExpressionEvaluator.setParallelThreshold(Integer.MAX_VALUE);
+            ExpressionEvaluator sequential = ExpressionEvaluator.evaluateModel(model, ExpressionEvaluator.Mode.NATIVE).get();
+            ExpressionEvaluator.setParallelThreshold(1);
+            ExpressionEvaluator parallel = ExpressionEvaluator.evaluateModel(model, ExpressionEvaluator.Mode.NATIVE).get();
+            assertEquals(valueOf(sequential, "#1000.S"), valueOf(parallel, "#1000.S"), 0);
+
+            sequential.addOrChangeFormula("#1.A", "1", "3");
+            parallel.addOrChangeFormula("#1.A", "1", "3");
+            for (int i = 2; i < 500; i++) {
+                assertEquals(valueOf(sequential, "#" + i + ".W"), valueOf(parallel, "#" + i + ".W"), 0);
+            }
+            assertEquals(valueOf(sequential, "#1000.S"), valueOf(parallel, "#1000.S"), 0);
+        } finally {
+            ExpressionEvaluator.setParallelThreshold(threshold);
+        }
+    }
+
+    @Test
+    public void forksAreIndependent() {
+        for (ExpressionEvaluator.Mode mode : ExpressionEvaluator.Mode.values()) {
+            Model model = createModel(CHAIN);
+            ExpressionEvaluator parent = ExpressionEvaluator.evaluateModel(model, mode).get();
+            ExpressionEvaluator fork = parent.fork(ModelFactory.createDefaultModel().add(model));
+            assertEquals(mode.toString(), 8, valueOf(fork, "#3.C"), 0);
+
+            fork.addOrChangeFormula("#1.A", "1", "10");
+            assertEquals(mode.toString(), 40, valueOf(fork, "#3.C"), 0);
+            assertEquals(mode.toString(), 8, valueOf(parent, "#3.C"), 0);
+
+            parent.addOrChangeFormula("#2.B", "2", "0");
+            assertEquals(mode.toString(), 2, valueOf(parent, "#3.C"), 0);
+            assertEquals(mode.toString(), 40, valueOf(fork, "#3.C"), 0);
+
+            fork.addOrChangeFormula("#4.E", "4", "e3{#3.C}+1");
+            assertEquals(mode.toString(), 41, valueOf(fork, "#4.E"), 0);
+            assertEquals(mode.toString(), 2, valueOf(parent, "#3.C"), 0);
+        }
+    }
+
+    @Test
+    public void derivedModelsEvaluateLikeNewModels() throws IOException {
+        E3Model base = new E3Model(EvaluationModesTest.load("src/test/resources/evaluation_rdf_test.rdf"));
+        base.enhance();
+        Map<Resource, Double> baseTotals = getTotals(base);
+
+        E3Model derived = new E3Model(base);
+        for (Resource exchange : derived.getJenaModel().listSubjectsWithProperty(RDF.type, E3value.value_exchange).toList()) {
+            derived.makeHidden(exchange);
+        }
+        derived.enhance();
+        E3Model expected = new E3Model(ModelFactory.createDefaultModel().add(derived.getJenaModel()));
+        expected.enhance();
+
+        assertEquals(getTotals(expected), getTotals(derived));
+        assertEquals(baseTotals, getTotals(base));
+    }
+
+    @Test
+    public void handles() {
+        for (ExpressionEvaluator.Mode mode : ExpressionEvaluator.Mode.values()) {
+            Model model = createModel(CHAIN);
+            ExpressionEvaluator evaluator = ExpressionEvaluator.evaluateModel(model, mode).get();
+            int handle = evaluator.handleOf("3", "C");
+            assertEquals(mode.toString(), handle, evaluator.handleOf("#3.C"));
+            assertEquals(mode.toString(), handle, evaluator.handleOf("'element3'.C"));
+            assertEquals(mode.toString(), ExpressionEvaluator.NO_HANDLE, evaluator.handleOf("3", "D"));
+            assertEquals(mode.toString(), ExpressionEvaluator.NO_HANDLE, evaluator.handleOf("'element5'.C"));
+            assertEquals(mode.toString(), 8, evaluator.valueOf(handle), 0);
+
+            ExpressionEvaluator fork = evaluator.fork(ModelFactory.createDefaultModel().add(model));
+            evaluator.addOrChangeFormula("#1.A", "1", "10");
+            assertEquals(mode.toString(), 40, evaluator.valueOf(handle), 0);
+            assertEquals(mode.toString(), 8, fork.valueOf(handle), 0);
+
+            evaluator.addOrChangeFormula("#1.A", "1", "1/0");
+            assertTrue(mode.toString(), Double.isNaN(evaluator.valueOf(handle)));
+        }
+    }
+
+    /**
+     * @return per actor, its sub-ideal total
+     */
+    private static Map<Resource, Double> getTotals(E3Model model) {
+        Map<Resource, Double> totals = new HashMap<>();
+        for (Resource actor : model.getActorsAndMarketSegments()) {
+            totals.put(actor, model.getTotalForActor(actor, false));
+        }
+        return totals;
+    }
+
+    /**
+     * Creates a model with an element per uid, which has the given formulas
+     *
+     * @param formulas formulas like <code>#12.VALUATION=e3{#3.COUNT}*2</code>
+     */
+    static Model createModel(String... formulas) {
+        Model model = ModelFactory.createDefaultModel();
+        for (String formula : formulas) {
+            String uid = formula.substring(1, formula.indexOf('.'));
+            Resource element = model.getResource("http://test#" + uid);
+            if (!element.hasProperty(E3value.e3_has_uid)) {
+                element.addProperty(E3value.e3_has_uid, uid);
+                element.addProperty(E3value.e3_has_name, "element" + uid);
+            }
+            element.addProperty(E3value.e3_has_formula, formula.substring(formula.indexOf('.') + 1));
+        }
+        return model;
+    }
+
+    static double valueOf(ExpressionEvaluator evaluator, String reference) {
+        return evaluator.valueOf(reference).get();
+    }
+}
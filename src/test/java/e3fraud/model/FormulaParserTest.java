@@ -0,0 +1,115 @@
+/**
+ * *****************************************************************************
+ * Copyright (C) 2026 agent
+ *
+ *
+ * This file is part of e3tool.
+ *
+ * e3tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * e3tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with e3tool.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************
+ */
+package e3fraud.model;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that FormulaParser gives the same precedence and results as POI.
+ * The expected values are the ones POI computes for the same formulas.
+ *
+ * @author agent
+ */
+public class FormulaParserTest {
+
+    private static final double TOLERANCE = 1e-12;
+
+    @Test
+    public void unaryMinusBindsWeakerThanPower() {
+        assertEquals(-4, evaluate("-2^2"), TOLERANCE);
+        assertEquals(-4, evaluate("-(2)^2"), TOLERANCE);
+        assertEquals(-12, evaluate("-2^2*3"), TOLERANCE);
+        assertEquals(5, evaluate("3--2"), TOLERANCE);
+    }
+
+    @Test
+    public void powerIsLeftAssociative() {
+        assertEquals(64, evaluate("2^3^2"), TOLERANCE);
+    }
+
+    @Test
+    public void signedExponents() {
+        assertEquals(0.5, evaluate("2^-1"), TOLERANCE);
+        assertEquals(-0.25, evaluate("-2^-2"), TOLERANCE);
+        // the sign applies to the rest of the power: 2^-(1^2)
+        assertEquals(0.5, evaluate("2^-1^2"), TOLERANCE);
+        assertEquals(Math.pow(2, -0.02), evaluate("2^-2%"), TOLERANCE);
+    }
+
+    @Test
+    public void percentBindsStrongerThanPower() {
+        assertEquals(0.5, evaluate("50%"), TOLERANCE);
+        assertEquals(0.25, evaluate("50%^2"), TOLERANCE);
+        assertEquals(-0.5, evaluate("-50%"), TOLERANCE);
+        assertEquals(1, evaluate("2*50%"), TOLERANCE);
+    }
+
+    @Test
+    public void numbersWithExponents() {
+        assertEquals(0.015, evaluate("1.5E-2"), TOLERANCE);
+        assertEquals(150, evaluate("1.5e+2"), TOLERANCE);
+    }
+
+    @Test
+    public void arithmeticPrecedence() {
+        assertEquals(5, evaluate("10-2-3"), TOLERANCE);
+        assertEquals(2, evaluate("12/3/2"), TOLERANCE);
+        assertEquals(14, evaluate("2+3*4"), TOLERANCE);
+        assertEquals(20, evaluate("(2+3)*4"), TOLERANCE);
+        assertEquals(1, evaluate("1+1=2"), TOLERANCE);
+        assertEquals(4, evaluate("IF(1>2,3,4)"), TOLERANCE);
+    }
+
+    @Test
+    public void references() {
+        Formula formula = FormulaParser.parse("7", "e3{VALUATION}*2+e3{#3.OCCURRENCES}");
+        assertArrayEquals(new String[]{"#7.VALUATION", "#3.OCCURRENCES"}, formula.getReferences());
+        double[] values = {3, 10};
+        int[] slots = {0, 1};
+        assertEquals(16, formula.evaluate(values, slots, new double[formula.getMaxStack()]), TOLERANCE);
+    }
+
+    @Test
+    public void unsupportedFunctions() {
+        try {
+            FormulaParser.parse(null, "CEILING(1.5,1)");
+            fail();
+        } catch (FormulaException e) {
+            assertTrue(e.isUnsupportedFunction());
+        }
+        try {
+            FormulaParser.parse(null, "1+");
+            fail();
+        } catch (FormulaException e) {
+            assertFalse(e.isUnsupportedFunction());
+        }
+    }
+
+    private static double evaluate(String text) {
+        Formula formula = FormulaParser.parse(null, text);
+        return formula.evaluate(new double[0], new int[0], new double[formula.getMaxStack()]);
+    }
+}
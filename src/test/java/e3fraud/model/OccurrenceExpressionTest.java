@@ -0,0 +1,121 @@
+/**
+ * *****************************************************************************
+ * Copyright (C) 2026 agent
+ *
+ *
+ * This file is part of e3tool.
+ *
+ * e3tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * e3tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with e3tool.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************
+ */
+package e3fraud.model;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the simplifications of OccurrenceExpression, by evaluating the
+ * formulas it renders.
+ *
+ * @author agent
+ */
+public class OccurrenceExpressionTest {
+
+    private static final String A = "e3{#1.OCCURRENCES}";
+    private static final String B = "e3{#2.OCCURRENCES}";
+    private static final String COUNT = "e3{#3.COUNT}";
+    private static final double TOLERANCE = 1e-12;
+
+    @Test
+    public void constants() {
+        OccurrenceExpression expression = OccurrenceExpression.parse("2.5").times(4).plus(OccurrenceExpression.constant(1));
+        assertTrue(expression.isConstant());
+        assertEquals(11, expression.getConstant(), TOLERANCE);
+    }
+
+    @Test
+    public void combinesTermsWithTheSameFactors() {
+        OccurrenceExpression half = OccurrenceExpression.reference(A).times(0.5);
+        OccurrenceExpression sum = half.plus(half);
+        assertEquals(OccurrenceExpression.reference(A).toString(), sum.toString());
+
+        OccurrenceExpression product = OccurrenceExpression.reference(A).times(0.5).times(0.2);
+        assertEquals(0.1 * 7, evaluate(product, 7, 0, 0), TOLERANCE);
+
+        assertTrue(half.plus(half.times(-1)).isConstant());
+    }
+
+    @Test
+    public void keepsDifferentFactorsApart() {
+        OccurrenceExpression sum = OccurrenceExpression.reference(A).times(2)
+                .plus(OccurrenceExpression.reference(B).times(3))
+                .plus(OccurrenceExpression.constant(1));
+        assertFalse(sum.isConstant());
+        assertEquals(2 * 5 + 3 * 7 + 1, evaluate(sum, 5, 7, 0), TOLERANCE);
+    }
+
+    @Test
+    public void divisionByACountIsGuarded() {
+        OccurrenceExpression perMember = OccurrenceExpression.reference(A).dividedBy(COUNT);
+        assertEquals(2.5, evaluate(perMember, 10, 0, 4), TOLERANCE);
+        assertEquals(0, evaluate(perMember, 10, 0, 0), TOLERANCE);
+
+        // multiplying by the count again cancels it out, except when it is 0
+        OccurrenceExpression total = perMember.times(COUNT);
+        assertEquals(10, evaluate(total, 10, 0, 4), TOLERANCE);
+        assertEquals(0, evaluate(total, 10, 0, 0), TOLERANCE);
+    }
+
+    @Test
+    public void minimumOfExpressions() {
+        OccurrenceExpression a = OccurrenceExpression.reference(A);
+        OccurrenceExpression b = OccurrenceExpression.reference(B).times(2);
+        OccurrenceExpression min = a.min(b).min(a);
+        assertEquals(a.min(b).toString(), min.toString());
+        assertEquals(5, evaluate(min, 5, 7, 0), TOLERANCE);
+        assertEquals(6, evaluate(min.times(2), 7, 1.5, 0), TOLERANCE);
+        assertEquals(3, OccurrenceExpression.constant(3).min(OccurrenceExpression.constant(4)).getConstant(), TOLERANCE);
+    }
+
+    @Test
+    public void parse() {
+        assertEquals(4, OccurrenceExpression.parse("4").getConstant(), TOLERANCE);
+        assertEquals(OccurrenceExpression.reference(A).toString(), OccurrenceExpression.parse(A).toString());
+        OccurrenceExpression opaque = OccurrenceExpression.parse(A + "+" + B);
+        assertEquals(24, evaluate(opaque.times(2), 5, 7, 0), TOLERANCE);
+    }
+
+    /**
+     * Evaluates the expression as a formula, for the given values of A, B and
+     * COUNT
+     */
+    private static double evaluate(OccurrenceExpression expression, double a, double b, double count) {
+        Map<String, Double> values = new HashMap<>();
+        values.put("#1.OCCURRENCES", a);
+        values.put("#2.OCCURRENCES", b);
+        values.put("#3.COUNT", count);
+        Formula formula = FormulaParser.parse(null, expression.toString());
+        String[] references = formula.getReferences();
+        double[] referenced = new double[references.length];
+        int[] slots = new int[references.length];
+        for (int i = 0; i < references.length; i++) {
+            referenced[i] = values.get(references[i]);
+            slots[i] = i;
+        }
+        return formula.evaluate(referenced, slots, new double[formula.getMaxStack()]);
+    }
+}
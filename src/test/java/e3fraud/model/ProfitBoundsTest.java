@@ -0,0 +1,75 @@
+/**
+ * *****************************************************************************
+ * Copyright (C) 2026 agent
+ *
+ *
+ * This file is part of e3tool.
+ *
+ * e3tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * e3tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with e3tool.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************
+ */
+package e3fraud.model;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Resource;
+import e3fraud.tools.EnhanceBenchmark;
+import e3fraud.vocabulary.E3value;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks E3Model.getProfitBounds on a generated model, where every exchange
+ * is worth 1 except for one valuation v, and actor B pays (v + 2) per
+ * occurrence of the need.
+ *
+ * @author agent
+ */
+public class ProfitBoundsTest {
+
+    private static final double TOLERANCE = 1e-9;
+
+    @Test
+    public void boundsOfOneValuation() {
+        Model jenaModel = EnhanceBenchmark.generateModel(2, 2);
+        Resource port = jenaModel.listStatements(null, E3value.e3_has_formula, "VALUATION=1").next().getSubject();
+        String reference = "#" + port.getProperty(E3value.e3_has_uid).getString() + ".VALUATION";
+        E3Model model = new E3Model(jenaModel);
+        model.enhance();
+        Resource need = model.getNeeds().iterator().next();
+        Resource b = model.getActorsMap().get("B");
+        double occurrences = model.valueOf(need, "OCCURRENCES");
+        Map<String, double[]> ranges = Collections.singletonMap(reference, new double[]{0, 5});
+
+        long modificationCount = model.getModificationCount();
+        Map<Resource, double[]> bounds = model.getProfitBounds(ranges, true);
+        assertEquals(modificationCount, model.getModificationCount());
+
+        assertEquals(model.getActorsAndMarketSegments().size(), bounds.size());
+        assertTrue(bounds.get(b)[0] <= -7 * occurrences + TOLERANCE);
+        assertTrue(bounds.get(b)[1] >= -2 * occurrences - TOLERANCE);
+        assertTrue(bounds.get(b)[0] > Double.NEGATIVE_INFINITY);
+        assertTrue(bounds.get(b)[1] < Double.POSITIVE_INFINITY);
+        assertArrayEquals(bounds.get(b), model.getTotalBoundsForActor(b, true, ranges), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingFormula() {
+        E3Model model = new E3Model(EnhanceBenchmark.generateModel(2, 2));
+        model.enhance();
+        model.getProfitBounds(Collections.singletonMap("#0.VALUATION", new double[]{0, 1}), true);
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * *****************************************************************************
+ * Copyright (C) 2026 agent
+ *
+ *
+ * This file is part of e3tool.
+ *
+ * e3tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * e3tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with e3tool.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************
+ */
+package e3fraud.model;
+
+import com.hp.hpl.jena.rdf.model.Resource;
+import e3fraud.tools.EnhanceBenchmark;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks E3Model.getProfitDerivatives on a generated model, where every
+ * exchange is worth 1 and actor B pays 3 per occurrence of the need.
+ *
+ * @author agent
+ */
+public class ProfitDerivativesTest {
+
+    private static final double TOLERANCE = 1e-9;
+
+    @Test
+    public void derivativesOfTheOccurrences() {
+        E3Model model = new E3Model(EnhanceBenchmark.generateModel(2, 2));
+        model.enhance();
+        Resource need = model.getNeeds().iterator().next();
+        Resource b = model.getActorsMap().get("B");
+        double occurrences = model.valueOf(need, "OCCURRENCES");
+
+        long modificationCount = model.getModificationCount();
+        ProfitDerivatives derivatives = model.getProfitDerivatives(true);
+        assertEquals(modificationCount, model.getModificationCount());
+
+        Map<Resource, Double> totals = model.getTotals(true);
+        for (Resource actor : model.getActorsAndMarketSegments()) {
+            assertEquals(actor.getURI(), totals.get(actor), derivatives.getProfit(actor), TOLERANCE);
+        }
+        // the profit of B is proportional to the occurrences of the need
+        int parameter = derivatives.indexOf(need, "OCCURRENCES");
+        assertEquals(-3 * occurrences, derivatives.getProfit(b), TOLERANCE);
+        assertEquals(-3, derivatives.getDerivative(b, parameter), TOLERANCE);
+    }
+}
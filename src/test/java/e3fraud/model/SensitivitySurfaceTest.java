@@ -0,0 +1,142 @@
+/**
+ * *****************************************************************************
+ * Copyright (C) 2026 agent
+ *
+ *
+ * This file is part of e3tool.
+ *
+ * e3tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * e3tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with e3tool.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************
+ */
+package e3fraud.model;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import e3fraud.vocabulary.E3value;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that E3Model.getSurface gives, for every combination of values, the
+ * results of a model whose two needs occur that often, and leaves the model
+ * as it was.
+ *
+ * @author agent
+ */
+public class SensitivitySurfaceTest {
+
+    private static final String MODEL = "src/test/resources/evaluation_rdf_test2.rdf";
+    private static final double TOLERANCE = 1e-9;
+
+    private ExpressionEvaluator.Mode defaultMode;
+
+    @Before
+    public void saveDefaultMode() {
+        defaultMode = ExpressionEvaluator.getDefaultMode();
+    }
+
+    @After
+    public void restoreDefaultMode() {
+        ExpressionEvaluator.setDefaultMode(defaultMode);
+    }
+
+    @Test
+    public void surfaceInEveryMode() throws IOException, InterruptedException {
+        for (ExpressionEvaluator.Mode mode : ExpressionEvaluator.Mode.values()) {
+            ExpressionEvaluator.setDefaultMode(mode);
+            checkSurface(EvaluationModesTest.load(MODEL), mode.toString());
+        }
+    }
+
+    @Test
+    public void functionsThatOnlyPoiCanEvaluate() throws IOException, InterruptedException {
+        Model jenaModel = EvaluationModesTest.load(MODEL);
+        jenaModel.listStatements(null, E3value.e3_has_formula, "VALUATION=e3{#39.TEST}").next().changeObject("VALUATION=CEILING(e3{#39.TEST},1)");
+        checkSurface(jenaModel, "CEILING");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sameParameterTwice() throws IOException, InterruptedException {
+        E3Model model = new E3Model(EvaluationModesTest.load(MODEL));
+        Resource need = model.getNeeds().iterator().next();
+        model.getSurface(need, Arrays.asList(1.0), need, Arrays.asList(2.0), true, null);
+    }
+
+    /**
+     * Checks the surface over the two needs of the model against models where
+     * the needs have those numbers of occurrences
+     */
+    private static void checkSurface(Model jenaModel, String message) throws InterruptedException {
+        E3Model model = new E3Model(jenaModel);
+        model.enhance();
+        List<Resource> needs = new ArrayList<>(model.getNeeds());
+        assertEquals(2, needs.size());
+        Resource x = needs.get(0);
+        Resource y = needs.get(1);
+        List<Double> xValues = Arrays.asList(0.0, 1.0, 2.5, 10.0);
+        List<Double> yValues = Arrays.asList(3.0, 7.0, 20.0);
+
+        long modificationCount = model.getModificationCount();
+        final List<Integer> progress = new ArrayList<>();
+        SensitivitySurface surface = model.getSurface(x, xValues, y, yValues, true, new IntConsumer() {
+            @Override
+            public void accept(int value) {
+                progress.add(value);
+            }
+        });
+        assertEquals(modificationCount, model.getModificationCount());
+        assertEquals(100, (int) progress.get(progress.size() - 1));
+        assertEquals(xValues, surface.getXValues());
+        assertEquals(yValues, surface.getYValues());
+
+        for (int i = 0; i < xValues.size(); i++) {
+            for (int j = 0; j < yValues.size(); j++) {
+                E3Model expected = withOccurrences(model, x, xValues.get(i), y, yValues.get(j));
+                for (Resource actor : surface.getActors()) {
+                    assertEquals(message + " " + actor.getURI() + " " + xValues.get(i) + " " + yValues.get(j),
+                            expected.getTotalForActor(actor, true), surface.getResult(actor, i, j), TOLERANCE);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a new model like the given one, where the two needs have the
+     * given numbers of occurrences
+     */
+    private static E3Model withOccurrences(E3Model model, Resource x, double xOccurrences, Resource y, double yOccurrences) {
+        Model jenaModel = ModelFactory.createDefaultModel().add(model.getJenaModel());
+        setOccurrences(jenaModel.getResource(x.getURI()), xOccurrences);
+        setOccurrences(jenaModel.getResource(y.getURI()), yOccurrences);
+        E3Model expected = new E3Model(jenaModel);
+        expected.enhance();
+        return expected;
+    }
+
+    private static void setOccurrences(Resource need, double occurrences) {
+        for (Statement formula : need.listProperties(E3value.e3_has_formula).toList()) {
+            if (formula.getString().startsWith("OCCURRENCES=")) {
+                formula.changeObject("OCCURRENCES=" + occurrences);
+            }
+        }
+    }
+}
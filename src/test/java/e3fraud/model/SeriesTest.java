@@ -0,0 +1,133 @@
+/**
+ * *****************************************************************************
+ * Copyright (C) 2026 agent
+ *
+ *
+ * This file is part of e3tool.
+ *
+ * e3tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * e3tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with e3tool.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************
+ */
+package e3fraud.model;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import e3fraud.tools.EnhanceBenchmark;
+import e3fraud.vocabulary.E3value;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.jfree.data.xy.XYSeries;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the sweeps of E3Model.getSeries give, at every point, the
+ * results of a model whose need has that many occurrences, and leave the
+ * swept model as it was.
+ *
+ * @author agent
+ */
+public class SeriesTest {
+
+    private static final double TOLERANCE = 1e-9;
+
+    private ExpressionEvaluator.Mode defaultMode;
+
+    @Before
+    public void saveDefaultMode() {
+        defaultMode = ExpressionEvaluator.getDefaultMode();
+    }
+
+    @After
+    public void restoreDefaultMode() {
+        ExpressionEvaluator.setDefaultMode(defaultMode);
+    }
+
+    @Test
+    public void batchSweep() throws InterruptedException {
+        ExpressionEvaluator.setDefaultMode(ExpressionEvaluator.Mode.NATIVE);
+        checkSweep();
+    }
+
+    @Test
+    public void sweepByUpdating() throws InterruptedException {
+        ExpressionEvaluator.setDefaultMode(ExpressionEvaluator.Mode.POI);
+        checkSweep();
+    }
+
+    @Test
+    public void equalStepsByDefault() {
+        E3Model model = new E3Model(EnhanceBenchmark.generateModel(2, 2));
+        model.enhance();
+        Map<Resource, XYSeries> series = model.getSeries(model.getNeeds().iterator().next(), 0, 100, true);
+        for (XYSeries actorSeries : series.values()) {
+            assertEquals(51, actorSeries.getItemCount());
+            for (int i = 0; i < actorSeries.getItemCount(); i++) {
+                assertEquals(2 * i, actorSeries.getX(i).doubleValue(), TOLERANCE);
+            }
+        }
+    }
+
+    private static void checkSweep() throws InterruptedException {
+        // the first valuation depends on the occurrences of the need
+        Model jenaModel = EnhanceBenchmark.generateModel(2, 2);
+        List<Statement> valuations = jenaModel.listStatements(null, E3value.e3_has_formula, "VALUATION=1").toList();
+        valuations.get(0).changeObject("VALUATION=100/e3{#3.OCCURRENCES}-3");
+        E3Model model = new E3Model(jenaModel);
+        model.enhance();
+        Resource need = model.getNeeds().iterator().next();
+
+        List<Double> points = new ArrayList<>();
+        for (double point = 1; point <= 60; point += 2.5) {
+            points.add(point);
+        }
+        long modificationCount = model.getModificationCount();
+        double occurrences = model.valueOf(need, "OCCURRENCES");
+        Map<Resource, XYSeries> series = model.getSeries(need, points, false);
+        assertEquals(modificationCount, model.getModificationCount());
+        assertEquals(occurrences, model.valueOf(need, "OCCURRENCES"), 0);
+
+        assertEquals(model.getActorsAndMarketSegments().size(), series.size());
+        for (int i = 0; i < points.size(); i++) {
+            E3Model expected = withOccurrences(model, need, points.get(i));
+            for (Resource actor : model.getActorsAndMarketSegments()) {
+                XYSeries actorSeries = series.get(actor);
+                assertEquals(points.get(i), actorSeries.getX(i).doubleValue(), 0);
+                assertEquals(actor.getURI() + " " + points.get(i),
+                        expected.getTotalForActor(actor, false), actorSeries.getY(i).doubleValue(), TOLERANCE);
+            }
+        }
+    }
+
+    /**
+     * @return a new model like the given one, where the need has the given
+     * number of occurrences
+     */
+    private static E3Model withOccurrences(E3Model model, Resource need, double occurrences) {
+        Model jenaModel = ModelFactory.createDefaultModel().add(model.getJenaModel());
+        Resource sameNeed = jenaModel.getResource(need.getURI());
+        for (Statement formula : sameNeed.listProperties(E3value.e3_has_formula).toList()) {
+            if (formula.getString().startsWith("OCCURRENCES=")) {
+                formula.changeObject("OCCURRENCES=" + occurrences);
+            }
+        }
+        E3Model expected = new E3Model(jenaModel);
+        expected.enhance();
+        return expected;
+    }
+}
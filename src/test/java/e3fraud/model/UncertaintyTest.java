@@ -0,0 +1,173 @@
+/**
+ * *****************************************************************************
+ * Copyright (C) 2026 agent
+ *
+ *
+ * This file is part of e3tool.
+ *
+ * e3tool is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * e3tool is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with e3tool.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************
+ */
+package e3fraud.model;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import e3fraud.tools.EnhanceBenchmark;
+import e3fraud.vocabulary.E3value;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntConsumer;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the Monte Carlo analysis of E3Model.getUncertainty and the
+ * statistics it returns.
+ *
+ * @author agent
+ */
+public class UncertaintyTest {
+
+    private static final double TOLERANCE = 1e-9;
+
+    @Test
+    public void constantParametersGiveTheResultOfThoseValues() throws InterruptedException {
+        checkConstantParameters(EnhanceBenchmark.generateModel(2, 2));
+    }
+
+    @Test
+    public void functionsThatOnlyPoiCanEvaluate() throws InterruptedException {
+        Model jenaModel = EnhanceBenchmark.generateModel(2, 2);
+        jenaModel.listStatements(null, E3value.e3_has_formula, "VALUATION=1").toList().get(1).changeObject("VALUATION=CEILING(0.2,1)");
+        checkConstantParameters(jenaModel);
+    }
+
+    @Test
+    public void theSameSeedGivesTheSameStatistics() throws InterruptedException {
+        E3Model model = new E3Model(EnhanceBenchmark.generateModel(2, 2));
+        model.enhance();
+        List<UncertainParameter> parameters = Arrays.asList(
+                new UncertainParameter(firstValuation(model.getJenaModel()).getSubject(), "VALUATION", Distribution.triangular(-5, 0, 10)),
+                new UncertainParameter(model.getNeeds().iterator().next(), "OCCURRENCES", Distribution.uniform(1, 100)));
+
+        final List<Integer> progress = new ArrayList<>();
+        Map<Resource, ProfitStatistics> first = model.getUncertainty(parameters, 5000, 42, true, new IntConsumer() {
+            @Override
+            public void accept(int value) {
+                progress.add(value);
+            }
+        });
+        Map<Resource, ProfitStatistics> second = model.getUncertainty(parameters, 5000, 42, true, null);
+        assertEquals(100, (int) progress.get(progress.size() - 1));
+        for (Resource actor : model.getActorsAndMarketSegments()) {
+            assertEquals(first.get(actor).toString(), second.get(actor).toString());
+            assertEquals(first.get(actor).getMean(), second.get(actor).getMean(), 0);
+            assertEquals(first.get(actor).getPercentile(95), second.get(actor).getPercentile(95), 0);
+        }
+        assertTrue(first.get(model.getActorsMap().get("B")).getStandardDeviation() > 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noSamples() throws InterruptedException {
+        E3Model model = new E3Model(EnhanceBenchmark.generateModel(2, 2));
+        model.getUncertainty(Arrays.<UncertainParameter>asList(), 0, 1, true, null);
+    }
+
+    @Test
+    public void statistics() {
+        ProfitStatistics statistics = new ProfitStatistics();
+        Random random = new Random(7);
+        double sum = 0;
+        double[] values = new double[20000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextDouble() * 200 - 50;
+            statistics.add(values[i]);
+            sum += values[i];
+        }
+        double mean = sum / values.length;
+        double squares = 0;
+        for (double value : values) {
+            squares += (value - mean) * (value - mean);
+        }
+        assertEquals(values.length, statistics.getCount());
+        assertEquals(mean, statistics.getMean(), TOLERANCE);
+        assertEquals(Math.sqrt(squares / (values.length - 1)), statistics.getStandardDeviation(), TOLERANCE);
+        // uniform between -50 and 150
+        assertEquals(0.25, statistics.getProbabilityOfLoss(), 0.01);
+        assertEquals(50, statistics.getPercentile(50), 2);
+        assertEquals(-40, statistics.getPercentile(5), 2);
+        assertEquals(140, statistics.getPercentile(95), 2);
+    }
+
+    @Test
+    public void quantilesOfFewValuesAreExact() {
+        QuantileEstimator median = new QuantileEstimator(0.5);
+        assertTrue(Double.isNaN(median.get()));
+        for (double value : new double[]{9, 1, 5}) {
+            median.add(value);
+        }
+        assertEquals(5, median.get(), 0);
+    }
+
+    /**
+     * Checks that drawing the first valuation and the occurrences of the need
+     * from constant distributions gives the results of a model with those
+     * values
+     */
+    private static void checkConstantParameters(Model jenaModel) throws InterruptedException {
+        E3Model model = new E3Model(jenaModel);
+        model.enhance();
+        Statement valuation = firstValuation(model.getJenaModel());
+        Resource need = model.getNeeds().iterator().next();
+        List<UncertainParameter> parameters = Arrays.asList(
+                new UncertainParameter(valuation.getSubject(), "VALUATION", Distribution.constant(5)),
+                new UncertainParameter(need, "OCCURRENCES", Distribution.constant(12)));
+
+        long modificationCount = model.getModificationCount();
+        Map<Resource, ProfitStatistics> statistics = model.getUncertainty(parameters, 100, 1, false, null);
+        assertEquals(modificationCount, model.getModificationCount());
+
+        Model expectedModel = ModelFactory.createDefaultModel().add(model.getJenaModel());
+        expectedModel.createStatement(valuation.getSubject(), E3value.e3_has_formula, "VALUATION=1").changeObject("VALUATION=5");
+        for (Statement formula : expectedModel.getResource(need.getURI()).listProperties(E3value.e3_has_formula).toList()) {
+            if (formula.getString().startsWith("OCCURRENCES=")) {
+                formula.changeObject("OCCURRENCES=12");
+            }
+        }
+        E3Model expected = new E3Model(expectedModel);
+        expected.enhance();
+
+        assertEquals(model.getActorsAndMarketSegments().size(), statistics.size());
+        for (Resource actor : model.getActorsAndMarketSegments()) {
+            ProfitStatistics actorStatistics = statistics.get(actor);
+            double total = expected.getTotalForActor(actor, false);
+            assertEquals(100, actorStatistics.getCount());
+            assertEquals(actor.getURI(), total, actorStatistics.getMean(), TOLERANCE);
+            assertEquals(total, actorStatistics.getMin(), TOLERANCE);
+            assertEquals(total, actorStatistics.getMax(), TOLERANCE);
+            assertEquals(0, actorStatistics.getStandardDeviation(), TOLERANCE);
+            assertEquals(total, actorStatistics.getPercentile(50), TOLERANCE);
+            assertEquals(total < 0 ? 1 : 0, actorStatistics.getProbabilityOfLoss(), 0);
+        }
+    }
+
+    private static Statement firstValuation(Model model) {
+        return model.listStatements(null, E3value.e3_has_formula, "VALUATION=1").toList().get(0);
+    }
+}